@@ -28,8 +28,11 @@
 package edu.uw.apl.vmvols.cli;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -38,6 +41,8 @@ import org.apache.log4j.LogManager;
 
 import edu.uw.apl.vmvols.model.VirtualDisk;
 import edu.uw.apl.vmvols.model.VirtualMachine;
+import edu.uw.apl.vmvols.model.vmware.FlatDisk;
+import edu.uw.apl.vmvols.model.vmware.StreamOptimizedInputStream;
 
 /**
  * @author Stuart Maclean
@@ -78,6 +83,12 @@ import edu.uw.apl.vmvols.model.VirtualMachine;
  * VM and doing something akin to 'cat /dev/sda' from within that VM.
  * Note that this is disk-level access, i.e. from first sector of
  * disk.  It is not file-system level access.
+ *
+ * A streamOptimized .vmdk (as found inside a .ova) can also be read
+ * from stdin, given '-' as the file name, so needing no seekable copy
+ * on the host:
+ *
+ * $ tar xOf vm.ova disk1.vmdk | VDCat -
  */
 
 public class VDCat {
@@ -85,12 +96,23 @@ public class VDCat {
 	static public void main( String[] args ) {
 
 		final String usage = "Usage: " + VDCat.class.getName() +
-			" (virtualDiskFile | virtualMachineDirectory)";
+			" (virtualDiskFile | virtualMachineDirectory | -)";
 		if( args.length < 1 ) {
 			System.err.println( usage );
 			System.exit(1);
 		}
 
+		if( args[0].equals( "-" ) ) {
+			try {
+				InputStream is = new StreamOptimizedInputStream( System.in );
+				copy( is );
+				is.close();
+			} catch( Exception e ) {
+				System.err.println( e );
+			}
+			return;
+		}
+
 		File f = new File( args[0] );
 		if( !f.exists() ) {
 			System.err.println( f + ": no such file or directory" );
@@ -132,21 +154,37 @@ public class VDCat {
 			  content...
 			*/
 			vd = vd.getActive();
-			
-			InputStream is = vd.getInputStream();
 
-			byte[] ba = new byte[1024*1024];
-			while( true ) {
-				int nin = is.read( ba );
-				if( nin < 1 )
-					break;
-				System.out.write( ba, 0, nin );
+			/*
+			  Flat disk content is just file content, so let the OS
+			  move it straight to stdout, no copying through our heap
+			*/
+			if( vd instanceof FlatDisk ) {
+				FileOutputStream fos = new FileOutputStream
+					( FileDescriptor.out );
+				FileChannel out = fos.getChannel();
+				((FlatDisk)vd).transferTo( 0, vd.size(), out );
+				return;
 			}
+			
+			InputStream is = vd.getInputStream();
+			copy( is );
 			is.close();
 		} catch( Exception e ) {
 			System.err.println( e );
 		}
 	}
+
+	static void copy( InputStream is ) throws IOException {
+		byte[] ba = new byte[1024*1024];
+		while( true ) {
+			int nin = is.read( ba );
+			if( nin < 1 )
+				break;
+			System.out.write( ba, 0, nin );
+		}
+		System.out.flush();
+	}
 }
 
 // eof
@@ -0,0 +1,94 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.cli;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import edu.uw.apl.vmvols.model.DiskCheck;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualMachine;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Check the metadata of virtual disks, and the linkage of their
+ * snapshot chains, printing any problems found to stdout, one per
+ * line.  See DiskCheck for what is checked.
+ *
+ * $ VDCheck /path/to/vm/
+ *
+ * checks every generation of every disk of the VM.
+ *
+ * $ VDCheck /path/to/disk.vdi
+ *
+ * checks that disk and all its ancestors.
+ *
+ * Exit status is 0 if all is well, 1 if any problem found, 2 if any
+ * disk or VM could not even be opened.
+ */
+
+public class VDCheck {
+
+	static public void main( String[] args ) {
+
+		final String usage = "Usage: " + VDCheck.class.getName() +
+			" (virtualDiskFile | virtualMachineDirectory)+";
+		if( args.length < 1 ) {
+			System.err.println( usage );
+			System.exit(1);
+		}
+
+		int status = 0;
+		for( String arg : args ) {
+			File f = new File( arg );
+			try {
+				List<String> problems;
+				if( f.isDirectory() ) {
+					VirtualMachine vm = VirtualMachine.create( f );
+					problems = DiskCheck.check( vm );
+				} else {
+					VirtualDisk vd = VirtualDisk.create( f );
+					problems = DiskCheck.check
+						( Collections.singletonList( vd ) );
+				}
+				for( String s : problems )
+					System.out.println( s );
+				if( !problems.isEmpty() )
+					status = Math.max( status, 1 );
+			} catch( Exception e ) {
+				System.err.println( f + "-> " + e );
+				status = 2;
+			}
+		}
+		System.exit( status );
+	}
+}
+
+// eof
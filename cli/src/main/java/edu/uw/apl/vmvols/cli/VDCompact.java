@@ -0,0 +1,84 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.cli;
+
+import java.io.File;
+
+import edu.uw.apl.vmvols.model.Compactor;
+import edu.uw.apl.vmvols.model.DiskLayout;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Compact, offline, the virtual disk file supplied in args[0]: its
+ * allocated blocks/grains are rewritten in logical order, all-zero
+ * ones dropped.  See Compactor for the disk types supported.
+ *
+ * $ VDCompact /path/to/disk.vdi
+ *
+ * The disk's VM must not be running.  The layout before and after
+ * is printed, as for VDLayout.
+ */
+
+public class VDCompact {
+
+	static public void main( String[] args ) {
+
+		final String usage = "Usage: " + VDCompact.class.getName() +
+			" virtualDiskFile";
+		if( args.length < 1 ) {
+			System.err.println( usage );
+			System.exit(1);
+		}
+		
+		File f = new File( args[0] );
+		if( !f.isFile() ) {
+			System.err.println( f + ": no such file" );
+			System.exit(1);
+		}
+
+		try {
+			VirtualDisk vd = VirtualDisk.create( f );
+			long before = f.length();
+			System.out.print( new DiskLayout( vd ).paramString() );
+			Compactor.compact( vd );
+			// the old disk object describes the old file, re-read
+			vd = VirtualDisk.create( f );
+			System.out.println();
+			System.out.print( new DiskLayout( vd ).paramString() );
+			System.out.println();
+			System.out.println( "Size: " + before + " -> " + f.length() );
+		} catch( Exception e ) {
+			System.err.println( f + "-> " + e );
+			System.exit(1);
+		}
+	}
+}
+
+// eof
@@ -0,0 +1,118 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.cli;
+
+import java.io.File;
+
+import org.apache.commons.cli.*;
+
+import edu.uw.apl.vmvols.model.Flattener;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Merge a virtual disk's snapshot chain, see Flattener.
+ *
+ * $ VDFlatten /path/to/vm/Snapshots/{uuid}.vdi out.vmdk
+ *
+ * writes the content of that snapshot (so its chain down to the base)
+ * to a new standalone monolithicFlat out.vmdk (plus out-flat.vmdk).
+ *
+ * $ VDFlatten -g 2 /path/to/vm/disk.vdi out.vmdk
+ *
+ * does the same for generation 2 of the chain containing disk.vdi.
+ *
+ * $ VDFlatten -c /path/to/vm/disk-000002.vmdk
+ *
+ * commits that disk's content into its parent, in place.  The VM must
+ * not be running, and the parent must have no other child.
+ */
+public class VDFlatten {
+
+	static public void main( String[] args ) {
+
+		Options os = new Options();
+		os.addOption( "c", false,
+					  "commit the disk into its parent, in place (false)" );
+		os.addOption( "g", true, "generation (the disk itself)" );
+		os.addOption( "h", false, "help" );
+		final String USAGE = VDFlatten.class.getName() +
+			" [-c] [-g generation] [-h] virtualDiskFile [out.vmdk]";
+
+		CommandLineParser clp = new PosixParser();
+		CommandLine cl = null;
+		try {
+			cl = clp.parse( os, args );
+		} catch( Exception e ) {
+			System.err.println( e );
+			new HelpFormatter().printHelp( USAGE, os );
+			System.exit(1);
+		}
+		args = cl.getArgs();
+		boolean commit = cl.hasOption( "c" );
+		if( cl.hasOption( "h" ) || args.length < ( commit ? 1 : 2 ) ) {
+			new HelpFormatter().printHelp( USAGE, os );
+			System.exit(1);
+		}
+		int generation = VirtualDisk.SELF;
+		if( cl.hasOption( "g" ) ) {
+			try {
+				generation = Integer.parseInt( cl.getOptionValue( "g" ) );
+			} catch( NumberFormatException nfe ) {
+				System.err.println( "Bad generation: " +
+									cl.getOptionValue( "g" ) );
+				System.exit(1);
+			}
+		}
+		
+		File f = new File( args[0] );
+		try {
+			VirtualDisk vd = VirtualDisk.create( f, generation );
+			if( commit ) {
+				if( vd.getGeneration() < 2 ) {
+					System.err.println( vd.getPath() + ": no parent" );
+					System.exit(1);
+				}
+				Flattener.commit( vd );
+			} else {
+				File out = new File( args[1] );
+				if( out.exists() ) {
+					System.err.println( out + ": exists" );
+					System.exit(1);
+				}
+				Flattener.flatten( vd, out );
+			}
+		} catch( Exception e ) {
+			System.err.println( f + "-> " + e );
+			System.exit(1);
+		}
+	}
+}
+
+// eof
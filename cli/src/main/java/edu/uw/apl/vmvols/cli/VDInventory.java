@@ -0,0 +1,350 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.cli;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.cli.*;
+
+import edu.uw.apl.vmvols.model.DiskLayout;
+import edu.uw.apl.vmvols.model.DiskProbe;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualMachine;
+import edu.uw.apl.vmvols.model.virtualbox.VBoxVM;
+import edu.uw.apl.vmvols.model.virtualbox.VDIDisk;
+import edu.uw.apl.vmvols.model.vmware.VMDKDisk;
+import edu.uw.apl.vmvols.model.vmware.VMwareVM;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Inventory a whole tree of virtual machines in one JVM.  Walk the
+ * supplied root directory, identify every VirtualBox and VMware VM
+ * directory, and every 'orphan' .vdi/.vmdk file not in a VM
+ * directory, and print one JSON object per line (per disk, all
+ * generations) to stdout, as each VM/directory is done.
+ *
+ * $ VDInventory /path/to/archive > inventory.json
+ *
+ * Each line has: path, vm (name, or null for an orphan), format,
+ * type, capacity, allocated (bytes held in that disk's own file(s),
+ * from the block map/grain tables), unit (allocation granularity),
+ * hostBytes, generation, uuid, uuidParent, cid, parentCID (vmdk
+ * only), parent (path), fragments and seeks.
+ *
+ * fragments is the number of runs into which the disk's allocated
+ * units fall in its host file(s), i.e. how far out of logical order
+ * the format itself has laid out the data.  1 means fully sequential.
+ * seeks is the predicted seek count for one sequential read of the
+ * disk, across its whole snapshot chain.  See DiskLayout.
+ * Fragmentation of the host file on the host filesystem is not
+ * visible from pure Java, so is not reported.
+ *
+ * Directories are processed on a pool of -t threads (default 8), and
+ * the walk never runs more than a few directories ahead of that
+ * pool, so memory use is bounded whatever the size of the tree.  Any
+ * failure is reported as a line with path and error, and the walk
+ * continues.
+ *
+ * -c: find a VM's disks from its .vbox/.vmx, see VirtualMachine.create
+ */
+public class VDInventory {
+
+	static public void main( String[] args ) {
+
+		Options os = new Options();
+		os.addOption( "c", false,
+					  "attached disks only, as listed in the .vbox/.vmx config (false)" );
+		os.addOption( "h", false, "help" );
+		os.addOption( "t", true, "threads (" + THREADS_DEFAULT + ")" );
+		final String USAGE =
+			VDInventory.class.getName() + " [-c] [-h] [-t threads] rootDir+";
+
+		CommandLineParser clp = new PosixParser();
+		CommandLine cl = null;
+		try {
+			cl = clp.parse( os, args );
+		} catch( Exception e ) {
+			System.err.println( e );
+			new HelpFormatter().printHelp( USAGE, os );
+			System.exit(1);
+		}
+		args = cl.getArgs();
+		if( cl.hasOption( "h" ) || args.length < 1 ) {
+			new HelpFormatter().printHelp( USAGE, os );
+			System.exit(1);
+		}
+		int threads = THREADS_DEFAULT;
+		if( cl.hasOption( "t" ) ) {
+			try {
+				threads = Integer.parseInt( cl.getOptionValue( "t" ) );
+			} catch( NumberFormatException nfe ) {
+				System.err.println( "Bad thread count: " +
+									cl.getOptionValue( "t" ) );
+				System.exit(1);
+			}
+		}
+		VDInventory i = new VDInventory( System.out, threads,
+										 cl.hasOption( "c" ) );
+		try {
+			for( String arg : args )
+				i.walk( new File( arg ) );
+			i.finish();
+		} catch( InterruptedException ie ) {
+			System.err.println( ie );
+			System.exit(1);
+		}
+	}
+
+	public VDInventory( PrintStream out, int threads, boolean fromConfig ) {
+		this.out = out;
+		this.fromConfig = fromConfig;
+		pool = Executors.newFixedThreadPool( threads );
+		// the walk may queue only a little ahead of the pool
+		permits = new Semaphore( 2 * threads );
+	}
+
+	/**
+	 * Walk the tree at root, queueing each VM directory, and each
+	 * other directory with disk files in it, for the pool.  An
+	 * explicit stack, not recursion, so depth is no issue.  We do not
+	 * descend into VM directories, the VM itself finds its disks
+	 * there.
+	 */
+	public void walk( File root ) throws InterruptedException {
+		Deque<File> dirs = new ArrayDeque<File>();
+		dirs.push( root );
+		while( !dirs.isEmpty() ) {
+			final File dir = dirs.pop();
+			if( VBoxVM.isVBoxVM( dir ) || VMwareVM.isVMwareVM( dir ) ) {
+				submit( new Runnable() {
+						public void run() {
+							reportVM( dir );
+						}
+					} );
+				continue;
+			}
+			File[] fs = dir.listFiles();
+			if( fs == null ) {
+				error( dir, "Unreadable directory" );
+				continue;
+			}
+			Arrays.sort( fs );
+			final List<File> disks = new ArrayList<File>();
+			for( int i = fs.length-1; i >= 0; i-- ) {
+				File f = fs[i];
+				String name = f.getName();
+				if( f.isDirectory() )
+					dirs.push( f );
+				else if( name.endsWith( "." + VDIDisk.FILESUFFIX ) ||
+						 name.endsWith( "." + VMDKDisk.FILESUFFIX ) )
+					disks.add( 0, f );
+			}
+			if( !disks.isEmpty() ) {
+				submit( new Runnable() {
+						public void run() {
+							reportOrphans( dir, disks );
+						}
+					} );
+			}
+		}
+	}
+
+	/**
+	 * Wait for all queued work to be reported
+	 */
+	public void finish() throws InterruptedException {
+		pool.shutdown();
+		pool.awaitTermination( Long.MAX_VALUE, TimeUnit.SECONDS );
+	}
+
+	private void submit( final Runnable r ) throws InterruptedException {
+		permits.acquire();
+		pool.execute( new Runnable() {
+				public void run() {
+					try {
+						r.run();
+					} finally {
+						permits.release();
+					}
+				}
+			} );
+	}
+
+	private void reportVM( File dir ) {
+		try {
+			VirtualMachine vm = VirtualMachine.create( dir, fromConfig );
+			List<String> lines = new ArrayList<String>();
+			for( VirtualDisk base : vm.getBaseDisks() ) {
+				int n = base.getActive().getGeneration();
+				for( int g = 1; g <= n; g++ )
+					lines.add( describe( base.getGeneration( g ),
+										 vm.getName() ) );
+			}
+			print( lines );
+		} catch( Exception e ) {
+			error( dir, e.toString() );
+		}
+	}
+
+	/*
+	  Disk files outside any VM directory, e.g. packer/vagrant output.
+	  Each stands alone, no snapshot linkage is attempted.  Split
+	  vmdk extent files, which have no descriptor, are skipped by the
+	  probe.
+	*/
+	private void reportOrphans( File dir, List<File> disks ) {
+		try {
+			List<String> lines = new ArrayList<String>();
+			for( VirtualDisk vd : DiskProbe.readAll( disks ) )
+				lines.add( describe( vd, null ) );
+			print( lines );
+		} catch( Exception e ) {
+			error( dir, e.toString() );
+		}
+	}
+
+	String describe( VirtualDisk vd, String vmName ) throws IOException {
+		StringBuilder sb = new StringBuilder( "{" );
+		field( sb, "path", vd.getPath().getPath() );
+		field( sb, "vm", vmName );
+		if( vd instanceof VDIDisk ) {
+			VDIDisk vdi = (VDIDisk)vd;
+			field( sb, "format", VDIDisk.FILESUFFIX );
+			field( sb, "type", vdiType( vdi.imageType() ) );
+		} else if( vd instanceof VMDKDisk ) {
+			VMDKDisk vmdk = (VMDKDisk)vd;
+			field( sb, "format", VMDKDisk.FILESUFFIX );
+			field( sb, "type", vmdk.getCreateType() );
+		}
+		field( sb, "capacity", vd.size() );
+		field( sb, "allocated", vd.allocatedBytes() );
+		field( sb, "unit", vd.allocationUnit() );
+		// a split or flat .vmdk's descriptor is but a few hundred bytes
+		long hostBytes = 0;
+		for( File f : vd.getHostFiles() )
+			hostBytes += f.length();
+		field( sb, "hostBytes", hostBytes );
+		field( sb, "generation", vd.getGeneration() );
+		field( sb, "uuid", vd.getUUID() == null ? null :
+			   vd.getUUID().toString() );
+		field( sb, "uuidParent", vd.getUUIDParent() == null ? null :
+			   vd.getUUIDParent().toString() );
+		if( vd instanceof VMDKDisk ) {
+			VMDKDisk vmdk = (VMDKDisk)vd;
+			field( sb, "cid", vmdk.getCID() );
+			field( sb, "parentCID", vmdk.getParentCID() );
+		}
+		VirtualDisk parent = vd.getGeneration() == 1 ? null :
+			vd.getGeneration( vd.getGeneration() - 1 );
+		field( sb, "parent", parent == null ? null :
+			   parent.getPath().getPath() );
+		DiskLayout dl = new DiskLayout( vd );
+		field( sb, "fragments", dl.runs() );
+		field( sb, "seeks", dl.seeks() );
+		sb.setLength( sb.length() - 1 );
+		sb.append( "}" );
+		return sb.toString();
+	}
+
+	static String vdiType( int imageType ) {
+		switch( imageType ) {
+		case VDIDisk.VDI_IMAGE_TYPE_NORMAL:
+			return "normal";
+		case VDIDisk.VDI_IMAGE_TYPE_FIXED:
+			return "fixed";
+		case VDIDisk.VDI_IMAGE_TYPE_DIFF:
+			return "diff";
+		default:
+			return "" + imageType;
+		}
+	}
+	
+	private void error( File f, String msg ) {
+		StringBuilder sb = new StringBuilder( "{" );
+		field( sb, "path", f.getPath() );
+		field( sb, "error", msg );
+		sb.setLength( sb.length() - 1 );
+		sb.append( "}" );
+		print( Collections.singletonList( sb.toString() ) );
+	}
+	
+	// A VM's lines go out together, never interleaved with another's
+	private void print( List<String> lines ) {
+		synchronized( out ) {
+			for( String s : lines )
+				out.println( s );
+			out.flush();
+		}
+	}
+
+	static void field( StringBuilder sb, String name, long value ) {
+		sb.append( '"' ).append( name ).append( "\":" ).append( value );
+		sb.append( ',' );
+	}
+
+	static void field( StringBuilder sb, String name, String value ) {
+		sb.append( '"' ).append( name ).append( "\":" );
+		if( value == null ) {
+			sb.append( "null," );
+			return;
+		}
+		sb.append( '"' );
+		for( int i = 0; i < value.length(); i++ ) {
+			char c = value.charAt(i);
+			if( c == '"' || c == '\\' )
+				sb.append( '\\' ).append( c );
+			else if( c < 0x20 )
+				sb.append( String.format( "\\u%04x", (int)c ) );
+			else
+				sb.append( c );
+		}
+		sb.append( "\"," );
+	}
+
+	private final PrintStream out;
+	private final boolean fromConfig;
+	private final ExecutorService pool;
+	private final Semaphore permits;
+
+	static final int THREADS_DEFAULT = 8;
+}
+
+// eof
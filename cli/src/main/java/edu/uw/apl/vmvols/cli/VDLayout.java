@@ -0,0 +1,100 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.cli;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uw.apl.vmvols.model.DiskLayout;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualMachine;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Analyse the physical layout, in its host file(s), of the virtual
+ * disk supplied in args[0] and of its snapshot chain, and print the
+ * findings to stdout.  See DiskLayout for what each figure means.
+ *
+ * $ VDLayout /path/to/disk.vmdk
+ *
+ * reports on that disk.
+ *
+ * $ VDLayout /path/to/vm/
+ *
+ * reports on each active disk of the VM.
+ *
+ * The zero-block count needs a full read of each disk's allocated
+ * data.  If any second argument supplied (could be -q but anything
+ * will do, as for VDIInfo), that read is skipped.
+ */
+
+public class VDLayout {
+
+	static public void main( String[] args ) {
+
+		final String usage = "Usage: " + VDLayout.class.getName() +
+			" (virtualDiskFile | virtualMachineDirectory) [-q]";
+		if( args.length < 1 ) {
+			System.err.println( usage );
+			System.exit(1);
+		}
+		boolean quick = args.length > 1;
+		
+		File f = new File( args[0] );
+		if( !f.exists() ) {
+			System.err.println( f + ": no such file or directory" );
+			System.exit(1);
+		}
+
+		try {
+			List<VirtualDisk> disks = new ArrayList<VirtualDisk>();
+			if( f.isDirectory() )
+				disks.addAll( VirtualMachine.create( f ).getActiveDisks() );
+			else
+				disks.add( VirtualDisk.create( f ) );
+			for( VirtualDisk vd : disks ) {
+				DiskLayout dl = new DiskLayout( vd );
+				System.out.print( dl.paramString() );
+				if( !quick ) {
+					long z = dl.zeroUnits();
+					System.out.printf( "ZeroUnits: %d (%.3f)\n", z,
+									   dl.allocatedUnits() == 0 ? 0.0 :
+									   (double)z / dl.allocatedUnits() );
+				}
+				System.out.println();
+			}
+		} catch( Exception e ) {
+			System.err.println( f + "-> " + e );
+			System.exit(1);
+		}
+	}
+}
+
+// eof
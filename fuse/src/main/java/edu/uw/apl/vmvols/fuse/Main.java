@@ -38,6 +38,7 @@ import org.apache.commons.cli.*;
 
 import fuse.FuseMount;
 
+import edu.uw.apl.vmvols.model.DiskCheck;
 import edu.uw.apl.vmvols.model.VirtualDisk;
 import edu.uw.apl.vmvols.model.VirtualMachine;
 import edu.uw.apl.vmvols.model.virtualbox.VDIDisk;
@@ -62,6 +63,28 @@ import edu.uw.apl.vmvols.model.vmware.VMDKDisk;
  * with our mounting of it.  In fact, even for read access, the VM is
  * best powered off.
  *
+ * A safer write option is -o overlayDir.  The disks are then
+ * writable, but all writes go to copy-on-write overlay files in
+ * overlayDir (see edu.uw.apl.vmvols.model.Overlay), the VM's own
+ * files are never written.  A later mount using the same overlayDir
+ * sees those writes again.  To keep them for good, re-run with -o
+ * overlayDir -C, which commits them to the real disks (with all the
+ * caveats of -w).  To throw them away, use -o overlayDir -D.
+ *
+ * With -c, a VM's disks are those its .vbox/.vmx file lists as
+ * attached, in controller order, rather than every disk file found
+ * under the VM directory.  Stray/detached disk files are then
+ * ignored, and no recursive directory walk is needed.
+ *
+ * Under -w, writes of zeros to unallocated blocks allocate nothing,
+ * so wiping or restoring through the mount keeps disks sparse.  Add
+ * -z and a whole block of zeros written over an allocated block
+ * releases it too (see VirtualDisk.setReleaseZeros).
+ *
+ * With -k, the metadata of every disk, and the linkage of every
+ * snapshot chain, is checked before mounting (see vdcheck), and no
+ * mount is done if any problem is found.
+ *
  * Example: We have a Linux VM whose files (on the host) live under
  * /path/to/vms/L and a Windows VM whose files live under path/to/vms/W.
  * Each VM has a single hard disk.
@@ -147,16 +170,28 @@ public class Main {
 	public static void main(String[] args) throws Exception {
 
 		Options os = new Options();
+		os.addOption( "c", false,
+					  "attached disks only, as listed in the .vbox/.vmx config (false)" );
 		os.addOption( "h", false, "help" );
+		os.addOption( "C", false,
+					  "commit overlays (see -o) to the disks, no mount" );
+		os.addOption( "D", false,
+					  "discard overlays (see -o), no mount" );
+		os.addOption( "k", false,
+					  "check all disk metadata first, no mount if any problem (false)" );
 		os.addOption( "n", false,
 					  "dryrun, show the would-be filesystem but skip the mount (default=false)" );
 		os.addOption( "s", false, "include snapshots (false)" );
+		os.addOption( "o", true,
+					  "copy-on-write overlay mode, writes go to files in this dir, disks are untouched" );
 		os.addOption( "v", false, "verbose (false)" );
 		os.addOption( "w", false,
 					  "Allow disk writes. WARNING: Make sure VM is not active! (false)" );
+		os.addOption( "z", false,
+					  "with -w, writing a whole block of zeros releases the block (false)" );
 		final String USAGE =
 			Main.class.getName() +
-			" [-h] [-n] [-s] [-v] [-w] vmDir+ mountPoint";
+			" [-c] [-h] [-k] [-n] [-s] [-v] [-w [-z]] [-o overlayDir [-C|-D]] vmDir+ mountPoint";
 		final String HEADER = "";
 		final String FOOTER = "";
 		
@@ -174,10 +209,28 @@ public class Main {
 			System.exit(1);
 		}
 		
+		boolean fromConfig = cl.hasOption( "c" );
+		boolean check = cl.hasOption( "k" );
 		boolean dryrun = cl.hasOption( "n" );
 		boolean verbose = cl.hasOption( "v" );
 		boolean includeSnapshots = cl.hasOption( "s" );
 		boolean writable = cl.hasOption( "w" );
+		boolean releaseZeros = cl.hasOption( "z" );
+		File overlayDir = null;
+		if( cl.hasOption( "o" ) ) {
+			overlayDir = new File( cl.getOptionValue( "o" ) );
+			if( !overlayDir.isDirectory() ) {
+				System.err.println( "Overlay dir " + overlayDir +
+									" not a directory" );
+				System.exit(-1);
+			}
+		}
+		boolean commit = cl.hasOption( "C" );
+		boolean discard = cl.hasOption( "D" );
+		if( (commit || discard) && overlayDir == null ) {
+			printUsage( os, USAGE, HEADER, FOOTER );
+			System.exit(1);
+		}
 
 		args = cl.getArgs();
 		if( args.length < 2 ) {
@@ -191,15 +244,12 @@ public class Main {
 			System.exit(-1);
 		}
 		
-		List<VirtualMachine> vms = new ArrayList<VirtualMachine>();
-
+		// All vm dirs (and all disks within each) are probed in parallel
+		List<File> dirs = new ArrayList<File>();
 		for( int i = 0; i < args.length - 1; i++ ) {
-			File f = new File( args[i] );
-			VirtualMachine vm = VirtualMachine.create( f );
-			if( vm == null )
-				continue;
-			vms.add( vm );
+			dirs.add( new File( args[i] ) );
 		}
+		List<VirtualMachine> vms = VirtualMachine.createAll( dirs, fromConfig );
 		
 		if( vms.isEmpty() ) {
 			System.err.println( "No virtual machine dirs" );
@@ -207,9 +257,27 @@ public class Main {
 			System.exit(1);
 		}
 
+		if( check ) {
+			List<String> problems = new ArrayList<String>();
+			for( VirtualMachine vm : vms )
+				problems.addAll( DiskCheck.check( vm ) );
+			for( String s : problems )
+				System.err.println( s );
+			if( !problems.isEmpty() )
+				System.exit(1);
+		}
+		
+		if( releaseZeros ) {
+			for( VirtualMachine vm : vms ) {
+				for( VirtualDisk vd : vm.getActiveDisks() )
+					vd.setReleaseZeros( true );
+			}
+		}
+		
 		VirtualMachineFileSystem vmfs = new VirtualMachineFileSystem();
 		vmfs.setIncludeSnapshots( includeSnapshots );
 		vmfs.setReadOnly( !writable );
+		vmfs.setOverlayDir( overlayDir );
 		
 		for( VirtualMachine vm : vms ) {
 			vmfs.add( vm );
@@ -235,13 +303,27 @@ public class Main {
 		
 		if( dryrun )
 			return;
+
+		if( commit ) {
+			System.out.println( "Committing overlays from " + overlayDir );
+			vmfs.commitOverlays();
+			return;
+		}
+		if( discard ) {
+			System.out.println( "Discarding overlays in " + overlayDir );
+			vmfs.discardOverlays();
+			return;
+		}
 		
 		if( !mount.isDirectory() ) {
 			System.err.println( "Mount point missing: " + mount );
 			System.exit(1);
 		}
 
-		if( writable ) {
+		if( overlayDir != null ) {
+			System.out.println( "Mounting volumes read/write, writes to " +
+								overlayDir );
+		} else if( writable ) {
 			System.out.println( "Warning: mounting volumes read/write..." );
 		}
 
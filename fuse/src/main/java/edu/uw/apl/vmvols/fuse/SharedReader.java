@@ -0,0 +1,111 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.fuse;
+
+import java.io.IOException;
+
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+
+/**
+ * @author Stuart Maclean
+
+   The one RandomAccessVirtualDisk behind every open fuse handle on a
+   given disk.  Building a RandomAccessVirtualDisk is not cheap: a
+   block buffer, plus host handles on every file of the disk's
+   snapshot chain.  Tools like Sleuthkit open and close the same
+   device file hundreds of times, so rather than build and discard
+   one per fuse open/release, the VirtualMachineFileSystem keeps one
+   of these per disk, counts its users, and only closes it once it
+   has been idle a while.  Any
+   block/grain caching in the underlying disk then survives from one
+   open to the next.
+
+   A RandomAccessVirtualDisk has a file position, so each
+   seek+read/write pair is done under this object's lock.  The same
+   lock guards the byte[] used for fuse's direct ByteBuffers, so one
+   such buffer per disk suffices.
+
+   All reference counting is done by the owning filesystem, under
+   its own lock, see VirtualMachineFileSystem.acquire/release.
+*/
+class SharedReader {
+
+	SharedReader( Object key, RandomAccessVirtualDisk ravd ) {
+		this.key = key;
+		this.ravd = ravd;
+	}
+
+	synchronized int read( long offset, byte[] ba, int off, int len )
+		throws IOException {
+		ravd.seek( offset );
+		return ravd.read( ba, off, len );
+	}
+
+	synchronized void write( long offset, byte[] ba, int off, int len )
+		throws IOException {
+		ravd.seek( offset );
+		ravd.write( ba, off, len );
+	}
+
+	synchronized void flush() throws IOException {
+		ravd.flush();
+	}
+
+	synchronized void close() throws IOException {
+		buffer = null;
+		ravd.close();
+	}
+
+	/**
+	   A byte[] of at least n bytes, for a read or write from/to a
+	   direct ByteBuffer.  Caller must hold our lock.
+
+	   @see VirtualMachineFileSystem#bufferLength
+	*/
+	byte[] buffer( int n ) {
+		if( buffer == null || n > buffer.length )
+			buffer = new byte[VirtualMachineFileSystem.bufferLength( n )];
+		return buffer;
+	}
+
+	@Override
+	public String toString() {
+		return "SharedReader(" + ravd + ")";
+	}
+
+	final Object key;
+	final RandomAccessVirtualDisk ravd;
+
+	// guarded by the owning filesystem's lock, not ours
+	int refs;
+	long idleSince;
+
+	private byte[] buffer;
+}
+
+// eof
@@ -30,6 +30,7 @@ package edu.uw.apl.vmvols.fuse;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
@@ -37,6 +38,11 @@ import java.util.Set;
 import java.util.HashSet;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.BufferOverflowException;
@@ -46,6 +52,8 @@ import fuse.*;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import edu.uw.apl.vmvols.model.Overlay;
+import edu.uw.apl.vmvols.model.OverlayRandomAccess;
 import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 import edu.uw.apl.vmvols.model.VirtualDisk;
 import edu.uw.apl.vmvols.model.VirtualMachine;
@@ -148,8 +156,10 @@ public class VirtualMachineFileSystem extends AbstractFilesystem3 {
 		volumesByPath = new HashMap<String,VirtualDisk>();
 		startTime = (int) (System.currentTimeMillis() / 1000L);
 		log = LogFactory.getLog( getClass() );
-		readBuffers = new HashMap<Object,byte[]>();
-		writeBuffers = new HashMap<Object,byte[]>();
+		overlays = new HashMap<VirtualDisk,Overlay>();
+		overlayNames = new HashMap<VirtualDisk,String>();
+		readers = new HashMap<Object,SharedReader>();
+		idleTimeout = IDLETIMEOUT;
 	}
 
 	public void setIncludeSnapshots( boolean b ) {
@@ -159,6 +169,65 @@ public class VirtualMachineFileSystem extends AbstractFilesystem3 {
 	public void setReadOnly( boolean b ) {
 		readOnly = b;
 	}
+
+	/**
+	 * How long (millis) a disk's shared reader is kept open once its
+	 * last fuse handle is released, see SharedReader.  A later open
+	 * in that time reuses it, and its caches, as is.
+	 */
+	public void setIdleTimeout( long millis ) {
+		idleTimeout = millis;
+	}
+
+	/**
+	 * Enable copy-on-write mode.  Writes are then held in one {@link
+	 * Overlay} per exposed disk, spilling to sidecar files in the
+	 * supplied directory, and the real .vdi/.vmdk files are only
+	 * ever read.  Implies a writable filesystem.
+	 */
+	public void setOverlayDir( File dir ) {
+		overlayDir = dir;
+		if( dir != null )
+			readOnly = false;
+	}
+
+	/**
+	 * Write all overlay content back to the real virtual disks.  Used
+	 * after an overlay-mode mount, when its changes are to be kept.
+	 * Just as dicey as a -w mount, the VM must not be running.  Only
+	 * active disks ever have overlays, see isWritable.
+	 */
+	public void commitOverlays() throws IOException {
+		// no shared reader may outlive the content it has cached
+		closeIdle( 0 );
+		for( VirtualDisk vd : overlayNames.keySet() ) {
+			Overlay o = overlayFor( vd, false );
+			if( o == null )
+				continue;
+			RandomAccessVirtualDisk ravd = vd.getRandomAccess( true );
+			try {
+				o.commit( ravd );
+			} finally {
+				ravd.close();
+			}
+			overlays.remove( vd );
+		}
+	}
+
+	/**
+	 * Throw away all overlay content, i.e. all writes made during any
+	 * previous overlay-mode mounts.
+	 */
+	public void discardOverlays() throws IOException {
+		closeIdle( 0 );
+		for( VirtualDisk vd : overlayNames.keySet() ) {
+			Overlay o = overlayFor( vd, false );
+			if( o == null )
+				continue;
+			o.discard();
+			overlays.remove( vd );
+		}
+	}
 	
 	public void add( VirtualMachine vm ) {
 		vms.put( vm.getName(), vm );
@@ -169,6 +238,7 @@ public class VirtualMachineFileSystem extends AbstractFilesystem3 {
 			// vmName/sdN for all disks N
 			String extName = vm.getName() + "/sd" + ("" + diskNum);
 			volumesByPath.put( extName, vd );
+			overlayNames.put( vd, extName );
 			log.debug( "VMFS.put: " + extName + " -> " + vd );
 			if( includeSnapshots ) {
 				// /vmName/sdNG for all disks N and generations G of that disk
@@ -284,7 +354,7 @@ public class VirtualMachineFileSystem extends AbstractFilesystem3 {
 			VirtualDisk initial = vd.getGeneration(1);
 			File f = initial.getPath();
 			int time = (int)(f.lastModified() / 1000L);
-			int mode = readOnly ? 0444 : 0644;
+			int mode = isWritable( vd ) ? 0644 : 0444;
 			getattrSetter.set
 				( details.hashCode(), FuseFtypeConstants.TYPE_FILE | mode,
 				  1, 0, 0, 0, vd.size(), (vd.size() + 512 - 1) / 512,
@@ -324,9 +394,9 @@ public class VirtualMachineFileSystem extends AbstractFilesystem3 {
 			}
 			if( matching.isEmpty() )
 				return Errno.ENOENT;
-			// LOOK: Only an active disk could be writable !!
-			int mode = readOnly ? 0444 : 0644;
 			for( String s : matching ) {
+				VirtualDisk vd = volumesByPath.get( needle + "/" + s );
+				int mode = isWritable( vd ) ? 0644 : 0444;
 				filler.add( s, s.hashCode(),
 							FuseFtypeConstants.TYPE_FILE | mode );
 			}
@@ -365,13 +435,19 @@ public class VirtualMachineFileSystem extends AbstractFilesystem3 {
 		}
 		if( vd == null )
 			return Errno.ENOENT;
+		if( !isWritable( vd ) &&
+			( (flags & FilesystemConstants.O_WRONLY) ==
+			  FilesystemConstants.O_WRONLY ||
+			  (flags & FilesystemConstants.O_RDWR) ==
+			  FilesystemConstants.O_RDWR ) ) {
+			return Errno.EROFS;
+		}
 
 		try {
-			boolean writable = !readOnly;
-			RandomAccessVirtualDisk ravd = vd.getRandomAccess( writable );
-			if( log.isInfoEnabled() )
-				log.info( path + ": fh = " + ravd );
-			openSetter.setFh( ravd );
+			SharedReader sr = acquire( vd );
+			if( log.isDebugEnabled() )
+				log.debug( path + ": fh = " + sr + " refs = " + sr.refs );
+			openSetter.setFh( sr );
 			return 0;
 		} catch( IOException ioe ) {
 			throw new FuseException( ioe );
@@ -391,42 +467,35 @@ public class VirtualMachineFileSystem extends AbstractFilesystem3 {
 					   offset + " " + buf.remaining());
 		}
 
-		RandomAccessVirtualDisk ravd = (RandomAccessVirtualDisk)fh;
+		SharedReader sr = (SharedReader)fh;
 		try {
-			ravd.seek( offset );
-
 			/*
-			  We keep building a bigger read buffer for each open 'file'.
+			  A heap ByteBuffer we can read straight into.  Else we
+			  use the disk's shared read buffer, sized for the
+			  largest read fuse makes, so it is allocated once.
 			  Remember that any read may be for a smaller byte count
 			  than the previous one, so use the 3-arg version of read
 			*/
-			byte[] ba;
+			if( buf.hasArray() ) {
+				int nin = sr.read( offset, buf.array(),
+								   buf.arrayOffset() + buf.position(),
+								   buf.remaining() );
+				if( nin > 0 )
+					buf.position( buf.position() + nin );
+				return 0;
+			}
 			int nin;
-			if( true ) {
-				ba = readBuffers.get( fh );
-				if( ba == null || buf.remaining() > ba.length ) {
-					ba = new byte[buf.remaining()];
-					readBuffers.put( fh, ba );
-					if( log.isInfoEnabled() )
-						log.info( "New read buffer for " + path +
-								  " = " + ba.length );
-				}
-				nin = ravd.read( ba, 0, buf.remaining() );
-			} else {
-				// Older code, did not cache any byte[]...
-				ba = new byte[buf.remaining()];
-				nin = ravd.read( ba );
+			synchronized( sr ) {
+				byte[] ba = sr.buffer( buf.remaining() );
+				nin = sr.read( offset, ba, 0, buf.remaining() );
+				if( nin > 0 )
+					buf.put( ba, 0, nin );
 			}
 			
 			if( log.isDebugEnabled() ) {
 				log.debug( "ravd.read " + nin );
 			}
 			
-			if( nin > -1 )
-				buf.put( ba, 0, nin );
-			else
-				// need this??  does this tells fuse we are at eof???
-				buf.put( ba, 0, 0 );
 			/*
 			  The fuse4j api says we return 0, NOT the byte count written
 			  to the ByteBuffer
@@ -457,33 +526,28 @@ public class VirtualMachineFileSystem extends AbstractFilesystem3 {
 		if( readOnly )
 			return Errno.EROFS;
 
-		RandomAccessVirtualDisk ravd = (RandomAccessVirtualDisk)fh;
+		SharedReader sr = (SharedReader)fh;
 		try {
-			ravd.seek( offset );
-			
 			/*
-			  We keep building a bigger write buffer for each open 'file'
+			  As for read: a heap ByteBuffer we can write straight
+			  from, else the disk's shared buffer
 			*/
-			byte[] ba;
-			if( true ) {
-				ba = writeBuffers.get( fh );
-				if( ba == null || buf.remaining() > ba.length ) {
-					ba = new byte[buf.remaining()];
-					writeBuffers.put( fh, ba );
-					if( log.isInfoEnabled() )
-						log.info( "Write buffer for " + path + " = "
-								  + ba.length );
-				}
-			} else {
-				ba = new byte[buf.remaining()];
+			if( buf.hasArray() ) {
+				int nout = buf.remaining();
+				sr.write( offset, buf.array(),
+						  buf.arrayOffset() + buf.position(), nout );
+				buf.position( buf.position() + nout );
+				return 0;
 			}
 			int nout = buf.remaining();
-			buf.get( ba, 0, nout );
-
 			if( log.isDebugEnabled() ) {
 				log.debug( "sos.write " + nout );
 			}
-			ravd.write( ba, 0, nout );
+			synchronized( sr ) {
+				byte[] ba = sr.buffer( nout );
+				buf.get( ba, 0, nout );
+				sr.write( offset, ba, 0, nout );
+			}
 			return 0;
 		} catch( Exception e ) {
 			log.warn( e, e );
@@ -492,14 +556,194 @@ public class VirtualMachineFileSystem extends AbstractFilesystem3 {
 		}
 	}
 	
+	// fh is filehandle passed from open
+	@Override
+	public int fsync(String path, Object fh, boolean isDatasync)
+		throws FuseException {
+		log.trace( "fsync" );
+		SharedReader sr = (SharedReader)fh;
+		try {
+			sr.flush();
+			return 0;
+		} catch( IOException ioe ) {
+			log.warn( path + ": " + ioe );
+			throw new FuseException( ioe );
+		}
+	}
+	
    // called when last filehandle is closed, fh is filehandle passed from open
 	@Override
 	public int release(String path, Object fh, int flags) throws FuseException {
 		log.trace( "release" );
-		readBuffers.remove( fh );
-		writeBuffers.remove( fh );
+		/*
+		  The shared reader stays open, see acquire/closeIdle.  But
+		  push out any metadata (block maps, grain tables) that writes
+		  have left buffered in it, as a close would have done, so
+		  the host files are consistent once the last handle goes.
+		  Overlay content is persisted at unmount, as before.
+		*/
+		SharedReader sr = (SharedReader)fh;
+		try {
+			if( !readOnly && overlayDir == null )
+				sr.flush();
+			return 0;
+		} catch( IOException ioe ) {
+			log.warn( path + ": " + ioe );
+			throw new FuseException( ioe );
+		} finally {
+			synchronized( readers ) {
+				if( --sr.refs == 0 )
+					sr.idleSince = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	   Unmount time, so persist any overlay blocks still in memory.
+	*/
+	@Override
+	public int destroy() {
+		synchronized( readers ) {
+			if( reaper != null ) {
+				reaper.cancel( false );
+				reaper = null;
+			}
+			for( SharedReader sr : readers.values() ) {
+				try {
+					sr.close();
+				} catch( IOException ioe ) {
+					log.warn( sr.key + ": " + ioe );
+				}
+			}
+			readers.clear();
+		}
+		for( Map.Entry<VirtualDisk,Overlay> me : overlays.entrySet() ) {
+			try {
+				me.getValue().close();
+			} catch( IOException ioe ) {
+				log.warn( overlayNames.get( me.getKey() ) + ": " + ioe );
+			}
+		}
+		overlays.clear();
 		return 0;
 	}
+	
+	/**
+	   The shared reader for a disk, built on first use.  Keyed on the
+	   VirtualDisk, since sdN and sdNG may name the same one.  Counts
+	   one more user: each successful open is paired with a release.
+	*/
+	SharedReader acquire( VirtualDisk vd ) throws IOException {
+		synchronized( readers ) {
+			SharedReader result = readers.get( vd );
+			if( result == null ) {
+				RandomAccessVirtualDisk ravd;
+				if( !isWritable( vd ) ) {
+					ravd = vd.getRandomAccess( false );
+				} else if( overlayDir != null ) {
+					Overlay o = overlayFor( vd, true );
+					ravd = new OverlayRandomAccess
+						( vd.getRandomAccess( false ), o );
+				} else {
+					ravd = vd.getRandomAccess( true );
+				}
+				result = new SharedReader( vd, ravd );
+				readers.put( vd, result );
+				if( log.isInfoEnabled() )
+					log.info( overlayNames.get( vd ) + ": new " + result );
+				if( reaper == null ) {
+					long period = Math.max( 1, idleTimeout / 2 );
+					reaper = REAPER.scheduleWithFixedDelay( new Runnable() {
+							public void run() {
+								closeIdle( idleTimeout );
+							}
+						}, period, period, TimeUnit.MILLISECONDS );
+				}
+			}
+			result.refs++;
+			return result;
+		}
+	}
+
+	/**
+	   Close every shared reader with no open handles that has been
+	   idle for at least idleMillis.  Run periodically by the reaper,
+	   and with 0 to drop all idle readers at once.
+
+	   @return the number of readers closed
+	*/
+	int closeIdle( long idleMillis ) {
+		long now = System.currentTimeMillis();
+		int result = 0;
+		synchronized( readers ) {
+			Iterator<SharedReader> it = readers.values().iterator();
+			while( it.hasNext() ) {
+				SharedReader sr = it.next();
+				if( sr.refs > 0 || now - sr.idleSince < idleMillis )
+					continue;
+				it.remove();
+				result++;
+				try {
+					sr.close();
+				} catch( IOException ioe ) {
+					log.warn( sr.key + ": " + ioe );
+				}
+			}
+		}
+		if( result > 0 && log.isDebugEnabled() )
+			log.debug( "Closed idle readers: " + result );
+		return result;
+	}
+
+	/**
+	   Only a disk's active generation may be written, via -w or an
+	   overlay.  Every other generation is the frozen parent of later
+	   ones, so any write to it would corrupt all its descendants.
+	*/
+	boolean isWritable( VirtualDisk vd ) {
+		return !readOnly && overlayNames.containsKey( vd );
+	}
+
+	/**
+	   One overlay per active disk, shared by all its open handles,
+	   whichever of its paths (sdN, sdNG) they were opened by.  The
+	   sidecar name is derived from the disk's sdN path, e.g.
+	   vmName/sda -> vmName_sda.overlay, so a later mount with the
+	   same overlay dir picks up where this one left off.
+
+	   @param create - if false, only an overlay with existing
+	   content is returned, else null.  Always null for any disk not
+	   active, see isWritable.
+	*/
+	private synchronized Overlay overlayFor( VirtualDisk vd, boolean create )
+		throws IOException {
+		Overlay result = overlays.get( vd );
+		if( result != null )
+			return result;
+		String name = overlayNames.get( vd );
+		if( name == null )
+			return null;
+		File sidecar = new File( overlayDir,
+								 name.replace( '/', '_' ) + OVERLAYSUFFIX );
+		if( !create &&
+			!new File( sidecar.getPath() + Overlay.MAPSUFFIX ).isFile() )
+			return null;
+		result = new Overlay( sidecar, vd.size() );
+		overlays.put( vd, result );
+		return result;
+	}
+
+	/**
+	   Size a per-disk read/write buffer for a request of n bytes:
+	   at least fuse's usual largest request, doubled past that, so a
+	   disk's buffer is grown rarely, if ever.
+	*/
+	static int bufferLength( int n ) {
+		int result = MINBUFFER;
+		while( result < n && result <= Integer.MAX_VALUE / 2 )
+			result *= 2;
+		return Math.max( result, n );
+	}
 
 	/**
 	   @return a null return here will manifest in an
@@ -518,18 +762,40 @@ public class VirtualMachineFileSystem extends AbstractFilesystem3 {
 
 	private final Map<String,VirtualMachine> vms;
 	private boolean includeSnapshots, readOnly;
-	private File mountPoint;
+	private File mountPoint, overlayDir;
+	private final Map<VirtualDisk,Overlay> overlays;
+	// sdN path of each active disk, see isWritable, overlayFor
+	private final Map<VirtualDisk,String> overlayNames;
 	private final int startTime;
 	private final Log log;
-	private final Map<Object,byte[]> readBuffers;
-	private final Map<Object,byte[]> writeBuffers;
+	private final Map<Object,SharedReader> readers;
+	private long idleTimeout;
+	private ScheduledFuture<?> reaper;
 
 	// Allow access from unit tests...
 
 	// LOOK: really ANY char that is not '/' is valid in a vm name
 	//	static final String NAMERE = "([\\p{Alnum}_\\-\\.]+)";
 	static final String NAMERE = "([^/]+)";
-	
+
+	static final String OVERLAYSUFFIX = ".overlay";
+
+	// default for setIdleTimeout, millis
+	static final long IDLETIMEOUT = 30 * 1000L;
+
+	// one daemon thread retires idle shared readers for all instances
+	static private final ScheduledExecutorService REAPER =
+		Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+				public Thread newThread( Runnable r ) {
+					Thread t = new Thread( r, "VMFS-Reaper" );
+					t.setDaemon( true );
+					return t;
+				}
+			} );
+
+	// fuse's default max_read/max_write, see bufferLength
+	static final int MINBUFFER = 128 * 1024;
+
 	static final String DISKRE = "sd([a-z])";
 
 	static final String GENRE = "(\\d+)";
@@ -0,0 +1,126 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.fuse;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+import fuse.Errno;
+import fuse.FilesystemConstants;
+
+import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualMachine;
+
+/**
+ * In overlay mode, a disk's active generation is writable whichever
+ * of its paths (sdN, sdNG) is used, with the one overlay, while any
+ * older generation, the frozen parent of later ones, is read only.
+ *
+ * @see SharedReaderTest
+ */
+public class OverlayGenerationsTest extends junit.framework.TestCase {
+
+	protected void setUp() {
+		dir = new File( "target/OverlayGenerationsTest" );
+		dir.mkdirs();
+		for( File f : dir.listFiles() )
+			f.delete();
+	}
+
+	public void testGenerations() throws Exception {
+		SharedReaderTest.StubDisk base =
+			new SharedReaderTest.StubDisk( 1024 * 1024 );
+		SharedReaderTest.StubDisk active =
+			new SharedReaderTest.StubDisk( 1024 * 1024 );
+		active.setParent( base );
+		base.setChild( active );
+
+		VirtualMachineFileSystem vmfs = new VirtualMachineFileSystem();
+		vmfs.setIncludeSnapshots( true );
+		vmfs.setOverlayDir( dir );
+		vmfs.add( new StubVM( active ) );
+		assertEquals( 3, vmfs.volumeCount() );
+
+		SharedReaderTest.Setter s = new SharedReaderTest.Setter();
+		assertEquals( Errno.EROFS,
+					  vmfs.open( "/vm/sda1", FilesystemConstants.O_RDWR, s ) );
+		assertEquals( 0, vmfs.open( "/vm/sda1", 0, s ) );
+		vmfs.release( "/vm/sda1", s.fh, 0 );
+
+		SharedReaderTest.Setter s1 = new SharedReaderTest.Setter();
+		SharedReaderTest.Setter s2 = new SharedReaderTest.Setter();
+		assertEquals( 0, vmfs.open( "/vm/sda",
+									FilesystemConstants.O_RDWR, s1 ) );
+		assertEquals( 0, vmfs.open( "/vm/sda2",
+									FilesystemConstants.O_RDWR, s2 ) );
+		assertSame( s1.fh, s2.fh );
+
+		// a write via one path is seen via the other
+		ByteBuffer bb = ByteBuffer.wrap( new byte[] { 42, 43 } );
+		vmfs.write( "/vm/sda2", s2.fh, false, bb, 100 );
+		bb = ByteBuffer.allocate( 2 );
+		vmfs.read( "/vm/sda", s1.fh, bb, 100 );
+		assertEquals( 42, bb.get( 0 ) );
+		assertEquals( 43, bb.get( 1 ) );
+		vmfs.release( "/vm/sda", s1.fh, 0 );
+		vmfs.release( "/vm/sda2", s2.fh, 0 );
+		vmfs.destroy();
+
+		assertTrue( new File( dir, "vm_sda" +
+							  VirtualMachineFileSystem.OVERLAYSUFFIX )
+					.exists() );
+		assertFalse( new File( dir, "vm_sda2" +
+							   VirtualMachineFileSystem.OVERLAYSUFFIX )
+					 .exists() );
+		assertFalse( new File( dir, "vm_sda1" +
+							   VirtualMachineFileSystem.OVERLAYSUFFIX )
+					 .exists() );
+	}
+
+	static class StubVM extends VirtualMachine {
+		StubVM( VirtualDisk active ) {
+			this.active = active;
+		}
+		public String getName() {
+			return "vm";
+		}
+		public List<VirtualDisk> getBaseDisks() {
+			return Collections.singletonList( active.getBase() );
+		}
+		public List<VirtualDisk> getActiveDisks() {
+			return Collections.singletonList( active );
+		}
+		final VirtualDisk active;
+	}
+
+	private File dir;
+}
+
+// eof
@@ -0,0 +1,188 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.fuse;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+import fuse.FuseOpenSetter;
+
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+
+/**
+ * Check that repeated fuse open/release of one disk share a single
+ * RandomAccessVirtualDisk, and that it is closed only once idle.  A
+ * stub in-memory disk counts the handles built and closed.
+ *
+ * @see SharedReader
+ */
+public class SharedReaderTest extends junit.framework.TestCase {
+
+	public void testShared() throws Exception {
+		StubDisk vd = new StubDisk( 1024 * 1024 );
+		VirtualMachineFileSystem vmfs = new VirtualMachineFileSystem();
+		vmfs.setIdleTimeout( 60 * 1000L );
+		vmfs.volumesByPath.put( "vm/sda", vd );
+		vmfs.volumesByPath.put( "vm/sda1", vd );
+
+		Setter s1 = new Setter();
+		Setter s2 = new Setter();
+		assertEquals( 0, vmfs.open( "/vm/sda", 0, s1 ) );
+		assertEquals( 0, vmfs.open( "/vm/sda1", 0, s2 ) );
+		assertSame( s1.fh, s2.fh );
+		assertEquals( 1, vd.opened );
+
+		// both a heap and a direct ByteBuffer
+		ByteBuffer bb = ByteBuffer.allocate( 512 );
+		vmfs.read( "/vm/sda", s1.fh, bb, 1000 );
+		assertEquals( 512, bb.position() );
+		assertEquals( (byte)1000, bb.get( 0 ) );
+		bb = ByteBuffer.allocateDirect( 512 );
+		vmfs.read( "/vm/sda1", s2.fh, bb, 2000 );
+		assertEquals( 512, bb.position() );
+		assertEquals( (byte)2000, bb.get( 0 ) );
+
+		vmfs.release( "/vm/sda", s1.fh, 0 );
+		vmfs.release( "/vm/sda1", s2.fh, 0 );
+		assertEquals( 0, vd.closed );
+
+		// a later open, inside the idle timeout, reuses the reader
+		for( int i = 0; i < 100; i++ ) {
+			Setter s = new Setter();
+			vmfs.open( "/vm/sda", 0, s );
+			assertSame( s1.fh, s.fh );
+			vmfs.release( "/vm/sda", s.fh, 0 );
+		}
+		assertEquals( 1, vd.opened );
+
+		// readers still in use are never retired
+		Setter s3 = new Setter();
+		vmfs.open( "/vm/sda", 0, s3 );
+		assertEquals( 0, vmfs.closeIdle( 0 ) );
+		vmfs.release( "/vm/sda", s3.fh, 0 );
+		assertEquals( 1, vmfs.closeIdle( 0 ) );
+		assertEquals( 1, vd.closed );
+
+		Setter s4 = new Setter();
+		vmfs.open( "/vm/sda", 0, s4 );
+		assertNotSame( s1.fh, s4.fh );
+		assertEquals( 2, vd.opened );
+		vmfs.destroy();
+		assertEquals( 2, vd.closed );
+	}
+
+	public void testReaper() throws Exception {
+		StubDisk vd = new StubDisk( 1024 * 1024 );
+		VirtualMachineFileSystem vmfs = new VirtualMachineFileSystem();
+		vmfs.setIdleTimeout( 50 );
+		vmfs.volumesByPath.put( "vm/sda", vd );
+		Setter s = new Setter();
+		vmfs.open( "/vm/sda", 0, s );
+		vmfs.release( "/vm/sda", s.fh, 0 );
+		for( int i = 0; i < 100 && vd.closed == 0; i++ )
+			Thread.sleep( 20 );
+		assertEquals( 1, vd.closed );
+		vmfs.destroy();
+	}
+
+	static class Setter implements FuseOpenSetter {
+		public void setFh( Object o ) {
+			fh = o;
+		}
+		public boolean isDirectIO() {
+			return false;
+		}
+		public void setDirectIO( boolean b ) {
+		}
+		public boolean isKeepCache() {
+			return false;
+		}
+		public void setKeepCache( boolean b ) {
+		}
+		Object fh;
+	}
+
+	/**
+	   A disk whose byte at offset N is (byte)N
+	*/
+	static class StubDisk extends VirtualDisk {
+		StubDisk( long size ) {
+			super( new File( "stub" ) );
+			this.size = size;
+		}
+		public String getID() {
+			return "stub";
+		}
+		public long size() {
+			return size;
+		}
+		public UUID getUUID() {
+			return null;
+		}
+		public UUID getUUIDParent() {
+			return null;
+		}
+		public InputStream getInputStream() throws IOException {
+			return new ByteArrayInputStream( new byte[0] );
+		}
+		public RandomAccessVirtualDisk getRandomAccess( boolean writable )
+			throws IOException {
+			opened++;
+			return new RandomAccessVirtualDisk( size ) {
+				public int readImpl( byte[] b, int off, int len ) {
+					int n = (int)Math.min( len, size - posn );
+					if( n <= 0 )
+						return -1;
+					for( int i = 0; i < n; i++ )
+						b[off+i] = (byte)( posn + i );
+					posn += n;
+					return n;
+				}
+				public void writeImpl( byte[] b, int off, int len ) {
+					throw new UnsupportedOperationException();
+				}
+				public void seek( long pos ) {
+					posn = pos;
+				}
+				@Override
+				public void close() {
+					closed++;
+				}
+			};
+		}
+		final long size;
+		int opened, closed;
+	}
+}
+
+// eof
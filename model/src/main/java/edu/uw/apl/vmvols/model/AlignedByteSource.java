@@ -0,0 +1,184 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A ByteSource wrapper which only ever asks its underlying source
+ * for aligned byte ranges: starting at a multiple of alignment, and
+ * (eof aside) a multiple of it long.  Reads smaller than a window
+ * are served from a window-sized buffer, filled in one request, so
+ * runs of small adjacent reads (sector reads of metadata, parts of
+ * grains) are coalesced into one request per window.  Reads of a
+ * window or more go straight to the caller's array, again one
+ * request.
+ *
+ * For sources where each request is costly (HTTP, object stores),
+ * or which need aligned I/O.  Writes pass through, dropping any
+ * buffered data they overlap.
+ */
+public class AlignedByteSource extends ByteSource {
+
+	/**
+	 * @param window - the buffer size, a multiple of alignment
+	 */
+	public AlignedByteSource( ByteSource source, int alignment, int window ) {
+		if( alignment < 1 || window < alignment || window % alignment != 0 )
+			throw new IllegalArgumentException
+				( "Bad alignment/window: " + alignment + "/" + window );
+		this.source = source;
+		this.alignment = alignment;
+		buffer = new byte[window];
+		bufferFrom = 0;
+		bufferLen = 0;
+	}
+
+	@Override
+	public int read( long pos, byte[] ba, int off, int len )
+		throws IOException {
+		int total = 0;
+		while( total < len ) {
+			long p = pos + total;
+			int left = len - total;
+			if( p >= bufferFrom && p < bufferFrom + bufferLen ) {
+				int n = Math.min( left, (int)(bufferFrom + bufferLen - p) );
+				System.arraycopy( buffer, (int)(p - bufferFrom),
+								  ba, off + total, n );
+				total += n;
+				continue;
+			}
+			if( p % alignment == 0 && left >= buffer.length ) {
+				int n = source.read( p, ba, off + total,
+									 left - left % alignment );
+				if( n <= 0 )
+					break;
+				total += n;
+				continue;
+			}
+			long from = p - p % alignment;
+			int n = source.read( from, buffer, 0, buffer.length );
+			bufferFrom = from;
+			bufferLen = Math.max( n, 0 );
+			if( p >= bufferFrom + bufferLen )
+				break;
+		}
+		return total == 0 && len > 0 ? -1 : total;
+	}
+
+	@Override
+	public int read( long pos, ByteBuffer dst ) throws IOException {
+		if( dst.hasArray() ) {
+			int n = read( pos, dst.array(), dst.arrayOffset() + dst.position(),
+						  dst.remaining() );
+			if( n > 0 )
+				dst.position( dst.position() + n );
+			return n;
+		}
+		byte[] ba = new byte[dst.remaining()];
+		int n = read( pos, ba, 0, ba.length );
+		if( n > 0 )
+			dst.put( ba, 0, n );
+		return n;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return source.size();
+	}
+
+	@Override
+	public boolean isWritable() {
+		return source.isWritable();
+	}
+
+	@Override
+	public void write( long pos, ByteBuffer src ) throws IOException {
+		drop( pos, src.remaining() );
+		source.write( pos, src );
+	}
+
+	@Override
+	public void write( long pos, byte[] ba, int off, int len )
+		throws IOException {
+		drop( pos, len );
+		source.write( pos, ba, off, len );
+	}
+
+	@Override
+	public void truncate( long size ) throws IOException {
+		bufferLen = 0;
+		source.truncate( size );
+	}
+
+	@Override
+	public void sync() throws IOException {
+		source.sync();
+	}
+
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+
+	@Override
+	public String toString() {
+		return source.toString();
+	}
+
+	private void drop( long pos, int len ) {
+		if( pos < bufferFrom + bufferLen && pos + len > bufferFrom )
+			bufferLen = 0;
+	}
+
+	/**
+	 * @return a factory whose sources are those of f, aligned
+	 */
+	static public Factory wrap( final Factory f, final int alignment,
+								final int window ) {
+		return new Factory() {
+			public ByteSource open( File file, boolean writable )
+				throws IOException {
+				return new AlignedByteSource( f.open( file, writable ),
+											  alignment, window );
+			}
+		};
+	}
+
+	private final ByteSource source;
+	private final int alignment;
+	private final byte[] buffer;
+	private long bufferFrom;
+	private int bufferLen;
+}
+
+// eof
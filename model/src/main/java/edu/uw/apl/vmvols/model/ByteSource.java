@@ -0,0 +1,188 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Positional access to the bytes of some storage object, usually a
+ * host file.  All the format readers (.vdi, sparse and
+ * streamOptimized .vmdk) get at their data through one of these,
+ * obtained from {@link #open}, rather than a RandomAccessFile.  So
+ * where disk images live is a choice made once, in the {@link
+ * Factory}, not in format code.
+ *
+ * By default, sources on local files share pooled descriptors (see
+ * {@link HostFilePool}).  Other implementations here are local files
+ * with a descriptor each ({@link FileByteSource}),
+ * memory mapped files ({@link MappedByteSource}), byte ranges of
+ * another source, e.g. tar members ({@link SliceByteSource}), and
+ * ranged HTTP GETs ({@link HttpByteSource}), a stand-in for any
+ * object store.  Remote sources want few, large requests, so wrap
+ * them in an {@link AlignedByteSource}.
+ *
+ * Like RandomAccessFile, a ByteSource is for one reader at a time.
+ * Each RandomAccessVirtualDisk opens its own.
+ *
+ * Reading is the only requirement.  Writes, truncation and sync are
+ * optional, the defaults saying 'read only'.
+ */
+abstract public class ByteSource implements Closeable {
+
+	/**
+	 * Read up to dst.remaining() bytes at pos, short only at end of
+	 * source
+	 *
+	 * @return bytes read, -1 if pos is at or beyond the end
+	 */
+	abstract public int read( long pos, ByteBuffer dst ) throws IOException;
+
+	/**
+	 * @return length of the source in bytes
+	 */
+	abstract public long size() throws IOException;
+
+	/**
+	 * Array form of read, which sources should override to avoid
+	 * wrapping ba in a ByteBuffer per call
+	 *
+	 * @return bytes read, -1 if pos is at or beyond the end
+	 */
+	public int read( long pos, byte[] ba, int off, int len )
+		throws IOException {
+		return read( pos, ByteBuffer.wrap( ba, off, len ) );
+	}
+
+	/**
+	 * Read exactly len bytes at pos, as RandomAccessFile.readFully
+	 *
+	 * @throws EOFException if the source ends first
+	 */
+	public void readFully( long pos, byte[] ba, int off, int len )
+		throws IOException {
+		int total = 0;
+		while( total < len ) {
+			int n = read( pos + total, ba, off + total, len - total );
+			if( n < 0 )
+				throw new EOFException( "Read past end: " + (pos + total) );
+			total += n;
+		}
+	}
+
+	public void readFully( long pos, byte[] ba ) throws IOException {
+		readFully( pos, ba, 0, ba.length );
+	}
+
+	public boolean isWritable() {
+		return false;
+	}
+
+	/**
+	 * Write all of src at pos, extending the source if need be
+	 */
+	public void write( long pos, ByteBuffer src ) throws IOException {
+		throw new UnsupportedOperationException( "Read only: " + this );
+	}
+
+	public void write( long pos, byte[] ba, int off, int len )
+		throws IOException {
+		write( pos, ByteBuffer.wrap( ba, off, len ) );
+	}
+
+	public void write( long pos, byte[] ba ) throws IOException {
+		write( pos, ba, 0, ba.length );
+	}
+
+	/**
+	 * Set the length of the source, as RandomAccessFile.setLength
+	 */
+	public void truncate( long size ) throws IOException {
+		throw new UnsupportedOperationException( "Read only: " + this );
+	}
+
+	/**
+	 * Make all writes so far durable.  Nothing to do for a read only
+	 * source.
+	 */
+	public void sync() throws IOException {
+	}
+
+	@Override
+	public void close() throws IOException {
+	}
+
+	/**
+	 * Where the format readers get their sources from.  Install a
+	 * different one (setFactory) to put disk images on other
+	 * storage, or e.g. to instrument reads in a benchmark.
+	 */
+	public interface Factory {
+		ByteSource open( File f, boolean writable ) throws IOException;
+	}
+
+	/**
+	 * @return a source for the content of host file f, via the
+	 * current Factory
+	 */
+	static public ByteSource open( File f, boolean writable )
+		throws IOException {
+		return factory.open( f, writable );
+	}
+
+	static public Factory getFactory() {
+		return factory;
+	}
+
+	/**
+	 * @param f - the new factory, or null for the default, sources
+	 * sharing the descriptors of HostFilePool.SHARED
+	 */
+	static public void setFactory( Factory f ) {
+		factory = f == null ? HostFilePool.SHARED.factory() : f;
+	}
+
+	/**
+	 * Unpooled, a new RandomAccessFile per source
+	 */
+	static public final Factory FILES = new Factory() {
+			public ByteSource open( File f, boolean writable )
+				throws IOException {
+				return new FileByteSource( f, writable );
+			}
+		};
+
+	static private volatile Factory factory = HostFilePool.SHARED.factory();
+}
+
+// eof
@@ -0,0 +1,202 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import edu.uw.apl.vmvols.model.virtualbox.NormalDisk;
+import edu.uw.apl.vmvols.model.virtualbox.VDICompactor;
+import edu.uw.apl.vmvols.model.vmware.MonolithicSparseDisk;
+import edu.uw.apl.vmvols.model.vmware.SparseCompactor;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Offline compaction: rewrite a disk's host file with its allocated
+ * blocks/grains in logical order, all-zero ones dropped (marked as
+ * zero in the block map/grain table instead) and the file truncated
+ * to fit.  A sequential read of the compacted disk is then one
+ * straight-line read of the host file.
+ *
+ * Supported: VirtualBox NormalDisks (see VDICompactor) and VMware
+ * monolithicSparse disks (see SparseCompactor).  The disk must not
+ * be in use, by its VM or by us.  The new file is built alongside
+ * the old (COMPACTSUFFIX) and renamed over it only once complete.
+ *
+ * The data copy is shared by both formats, see copyUnits.
+ */
+public class Compactor {
+
+	static public void compact( VirtualDisk vd ) throws IOException {
+		if( false ) {
+		} else if( vd instanceof NormalDisk ) {
+			VDICompactor.compact( (NormalDisk)vd );
+		} else if( vd instanceof MonolithicSparseDisk ) {
+			SparseCompactor.compact( (MonolithicSparseDisk)vd );
+		} else {
+			throw new IllegalArgumentException
+				( "Compaction not supported: " + vd.getPath() );
+		}
+	}
+
+	/**
+	 * Copy the allocated units of vd, in logical order, from its host
+	 * file in to out, the first at file offset dataStart and each
+	 * following directly after.  Units all zero are not copied.
+	 *
+	 * Streams a batch of units at a time, so memory is bounded by
+	 * BATCHSIZE.  The zero test for each batch runs in parallel, on
+	 * the DiskProbe pool.  Only formats whose allocated units are
+	 * stored raw, at hostOffset, in the one host file will do.
+	 *
+	 * @return per unit: the slot (0, 1, ...) it was copied to, or
+	 * FREE if not allocated, or ZERO if allocated but all zeros
+	 */
+	static public int[] copyUnits( VirtualDisk vd, RandomAccessFile in,
+								   RandomAccessFile out, long dataStart )
+		throws IOException {
+		long u = vd.allocationUnit();
+		int n = vd.allocationUnits();
+		int[] result = new int[n];
+		BitSet bs = vd.allocationMap();
+		int batch = (int)Math.max( 1, BATCHSIZE / u );
+		final byte[][] bufs = new byte[batch][(int)u];
+		int slot = 0;
+		out.seek( dataStart );
+		for( int first = 0; first < n; first += batch ) {
+			int last = Math.min( n, first + batch );
+			List<Callable<Boolean>> tasks = new ArrayList<Callable<Boolean>>();
+			for( int i = first; i < last; i++ ) {
+				if( !bs.get( i ) ) {
+					result[i] = FREE;
+					continue;
+				}
+				final byte[] buf = bufs[i-first];
+				read( in, vd.hostOffset( i ), buf );
+				tasks.add( new Callable<Boolean>() {
+						public Boolean call() {
+							return Utils.isZero( buf, 0, buf.length );
+						}
+					} );
+			}
+			List<Boolean> zeros = DiskProbe.invokeAll( tasks );
+			int t = 0;
+			for( int i = first; i < last; i++ ) {
+				if( !bs.get( i ) )
+					continue;
+				if( zeros.get( t++ ) ) {
+					result[i] = ZERO;
+					continue;
+				}
+				out.write( bufs[i-first] );
+				result[i] = slot++;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @return count of units copied, i.e. slots used, in a copyUnits
+	 * result
+	 */
+	static public int slots( int[] units ) {
+		int result = 0;
+		for( int s : units ) {
+			if( s >= 0 )
+				result++;
+		}
+		return result;
+	}
+
+	/**
+	 * Copy len bytes at offset from in to the same offset in out, in
+	 * bounded pieces.
+	 */
+	static public void copy( RandomAccessFile in, RandomAccessFile out,
+							 long offset, long len ) throws IOException {
+		byte[] ba = new byte[(int)Math.min( len, 1024 * 1024 )];
+		in.seek( offset );
+		out.seek( offset );
+		while( len > 0 ) {
+			int n = (int)Math.min( len, ba.length );
+			in.readFully( ba, 0, n );
+			out.write( ba, 0, n );
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Replace f with the compacted file built alongside it, in one
+	 * atomic rename.  Where the platform cannot do that, we fail and
+	 * leave both files be, rather than ever delete the original
+	 * first: a crash between a delete and a rename would lose the
+	 * only copy of the disk.
+	 */
+	static public void replace( File f, File compacted ) throws IOException {
+		Files.move( compacted.toPath(), f.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	static public File compactFile( File f ) {
+		return new File( f.getPath() + COMPACTSUFFIX );
+	}
+
+	// a final, partial unit reads short, the rest is zeros
+	static private void read( RandomAccessFile in, long offset, byte[] ba )
+		throws IOException {
+		in.seek( offset );
+		int total = 0;
+		while( total < ba.length ) {
+			int nin = in.read( ba, total, ba.length - total );
+			if( nin < 1 )
+				break;
+			total += nin;
+		}
+		for( int i = total; i < ba.length; i++ )
+			ba[i] = 0;
+	}
+
+	static public final int FREE = -1;
+	static public final int ZERO = -2;
+
+	static public final String COMPACTSUFFIX = ".compact";
+
+	// bytes of disk data held in memory at once, see copyUnits
+	static public final long BATCHSIZE = 64 * Constants.MiB;
+}
+
+// eof
@@ -0,0 +1,129 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import edu.uw.apl.vmvols.model.vmware.VMDKDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * The engine behind vdcheck: validate the metadata of whole snapshot
+ * chains up front, rather than discovering corruption when some read
+ * throws mid-analysis.  Each disk checks its own metadata (see
+ * VirtualDisk.check), all disks of all chains in parallel, on the
+ * DiskProbe pool.  Here we add the checks between generations:
+ *
+ * - parent and child have the same size
+ *
+ * - the child's parent uuid is the parent's uuid (VirtualBox, and
+ * VirtualBox-managed vmdks)
+ *
+ * - the child's parentCID is the parent's CID (VMware)
+ *
+ * Problems are reported as "path: description" strings.
+ */
+public class DiskCheck {
+
+	/**
+	 * Check every generation of every disk of the VM, base to active.
+	 */
+	static public List<String> check( VirtualMachine vm ) throws IOException {
+		return check( vm.getActiveDisks() );
+	}
+
+	/**
+	 * @param vds - disks whose generations 1..vd are to be checked,
+	 * typically active disks
+	 */
+	static public List<String> check( List<VirtualDisk> vds )
+		throws IOException {
+		List<VirtualDisk> all = new ArrayList<VirtualDisk>();
+		for( VirtualDisk vd : vds ) {
+			for( int g = 1; g <= vd.getGeneration(); g++ )
+				all.add( vd.getGeneration( g ) );
+		}
+		List<Callable<List<String>>> tasks =
+			new ArrayList<Callable<List<String>>>( all.size() );
+		for( final VirtualDisk vd : all ) {
+			tasks.add( new Callable<List<String>>() {
+					public List<String> call() throws IOException {
+						List<String> result = new ArrayList<String>();
+						try {
+							for( String s : vd.check() )
+								result.add( vd.getPath() + ": " + s );
+						} catch( IOException ioe ) {
+							result.add( vd.getPath() + ": " + ioe );
+						}
+						if( vd.getGeneration() > 1 ) {
+							VirtualDisk parent =
+								vd.getGeneration( vd.getGeneration() - 1 );
+							for( String s : linkage( vd, parent ) )
+								result.add( vd.getPath() + ": " + s );
+						}
+						return result;
+					}
+				} );
+		}
+		List<String> result = new ArrayList<String>();
+		for( List<String> ss : DiskProbe.invokeAll( tasks ) )
+			result.addAll( ss );
+		return result;
+	}
+
+	/**
+	 * @return problems in the linkage of child to its parent
+	 */
+	static public List<String> linkage( VirtualDisk child,
+										VirtualDisk parent ) {
+		List<String> result = new ArrayList<String>();
+		if( child.size() != parent.size() )
+			result.add( "Size " + child.size() + " differs from parent " +
+						parent.getPath() + ": " + parent.size() );
+		UUID up = child.getUUIDParent();
+		UUID u = parent.getUUID();
+		if( up != null && u != null && !up.equals( u ) )
+			result.add( "Parent uuid " + up + " differs from parent " +
+						parent.getPath() + ": " + u );
+		if( child instanceof VMDKDisk && parent instanceof VMDKDisk ) {
+			String pcid = ((VMDKDisk)child).getParentCID();
+			String cid = ((VMDKDisk)parent).getCID();
+			if( pcid != null && cid != null && !pcid.equalsIgnoreCase( cid ) )
+				result.add( "ParentCID " + pcid + " differs from parent " +
+							parent.getPath() + ": " + cid );
+		}
+		return result;
+	}
+}
+
+// eof
@@ -0,0 +1,212 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Physical layout of a virtual disk in its host file(s), and of the
+ * snapshot chain behind it, from the allocation api of VirtualDisk.
+ * Explains why one disk images at disk speed and another at a crawl:
+ *
+ * runs: maximal runs of allocated units adjacent both logically and
+ * in the host file.  1 for a disk laid out in logical order.
+ *
+ * forward: fraction of allocated units lying after their logical
+ * predecessor in the host file, i.e. how far file order follows
+ * logical order.  Blocks appended in first-write order score low.
+ *
+ * ownership: for each generation, the fraction of the logical disk
+ * which a read finds in that generation's file (index 0 is the
+ * fraction found nowhere, or marked zero by the newest generation
+ * to mention it, so read as zeros).  See Ownership, which Flattener
+ * uses too.
+ *
+ * seeks: predicted host seeks for one sequential read of the whole
+ * logical disk, i.e. the number of times the next read is not
+ * contiguous with the last, across all files of the chain.
+ *
+ * zeroUnits: allocated units whose content is all zeros, so could
+ * be dropped by compaction.  Needs a full read of the allocated data,
+ * so computed only on request.
+ */
+public class DiskLayout {
+
+	public DiskLayout( VirtualDisk vd ) throws IOException {
+		this.vd = vd;
+		unit = vd.allocationUnit();
+		BitSet bs = vd.allocationMap();
+		allocatedUnits = bs.cardinality();
+
+		long runs = 0, forward = 0;
+		int prev = -2;
+		long prevOffset = -1;
+		for( int i = bs.nextSetBit( 0 ); i >= 0; i = bs.nextSetBit( i+1 ) ) {
+			long offset = vd.hostOffset( i );
+			if( i != prev + 1 || offset != prevOffset + unit )
+				runs++;
+			if( offset > prevOffset )
+				forward++;
+			prev = i;
+			prevOffset = offset;
+		}
+		this.runs = runs;
+		this.forward = forward;
+		chain();
+	}
+
+	/*
+	  Walk the logical disk at the finest unit of any generation,
+	  noting which generation owns each piece, and where in which
+	  file a sequential read would find it.
+	*/
+	private void chain() throws IOException {
+		int n = vd.getAncestors().size() + 1;
+		List<VirtualDisk> gens = new ArrayList<VirtualDisk>();
+		for( int g = 1; g <= n; g++ )
+			gens.add( vd.getGeneration( g ) );
+		Ownership own = new Ownership( gens );
+		long u = own.piece();
+		long[] owned = new long[n+1];
+		long seeks = 0;
+		int prevOwner = -1;
+		long prevEnd = -1;
+		long size = vd.size();
+		for( long posn = 0; posn < size; posn += u ) {
+			int owner = own.owner( posn );
+			long len = Math.min( u, size - posn );
+			if( owner < 0 ) {
+				owned[0] += len;
+				continue;
+			}
+			owned[owner+1] += len;
+			VirtualDisk og = gens.get( owner );
+			long ou = og.allocationUnit();
+			int i = (int)(posn / ou);
+			long offset = og.hostOffset( i ) + posn - i * ou;
+			if( owner != prevOwner || offset != prevEnd )
+				seeks++;
+			prevOwner = owner;
+			prevEnd = offset + len;
+		}
+		ownership = new double[n+1];
+		for( int g = 0; g <= n; g++ )
+			ownership[g] = size == 0 ? 0 : (double)owned[g] / size;
+		this.seeks = seeks;
+	}
+
+	public long unit() {
+		return unit;
+	}
+
+	public long allocatedUnits() {
+		return allocatedUnits;
+	}
+
+	public long runs() {
+		return runs;
+	}
+
+	public double forward() {
+		return allocatedUnits == 0 ? 1 : (double)forward / allocatedUnits;
+	}
+
+	/**
+	 * @return fractions of the logical disk held by each generation,
+	 * [0] being unallocated in all, [g] generation g
+	 */
+	public double[] ownership() {
+		return ownership;
+	}
+
+	public long seeks() {
+		return seeks;
+	}
+
+	/**
+	 * Read every allocated unit (through the disk, so any format,
+	 * compressed or not) and count those all zero.
+	 */
+	public long zeroUnits() throws IOException {
+		BitSet bs = vd.allocationMap();
+		byte[] ba = new byte[(int)unit];
+		long result = 0;
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( false );
+		try {
+			for( int i = bs.nextSetBit( 0 ); i >= 0;
+				 i = bs.nextSetBit( i+1 ) ) {
+				long posn = i * unit;
+				int len = (int)Math.min( unit, vd.size() - posn );
+				ra.seek( posn );
+				int total = 0;
+				while( total < len ) {
+					int nin = ra.read( ba, total, len - total );
+					if( nin < 1 )
+						break;
+					total += nin;
+				}
+				if( Utils.isZero( ba, 0, total ) )
+					result++;
+			}
+		} finally {
+			ra.close();
+		}
+		return result;
+	}
+
+	public String paramString() {
+		StringWriter sw = new StringWriter();
+		PrintWriter pw = new PrintWriter( sw );
+		pw.println( "Path: " + vd.getPath() );
+		pw.println( "Generation: " + vd.getGeneration() );
+		pw.println( "Unit: " + unit );
+		pw.println( "AllocatedUnits: " + allocatedUnits );
+		pw.println( "Runs: " + runs );
+		pw.printf( "Forward: %.3f\n", forward() );
+		for( int g = 0; g < ownership.length; g++ ) {
+			pw.printf( "Ownership.%s: %.3f\n",
+					   g == 0 ? "none" : "" + g, ownership[g] );
+		}
+		pw.println( "SequentialReadSeeks: " + seeks );
+		return sw.toString();
+	}
+
+	private final VirtualDisk vd;
+	private final long unit, allocatedUnits, runs, forward;
+	private double[] ownership;
+	private long seeks;
+}
+
+// eof
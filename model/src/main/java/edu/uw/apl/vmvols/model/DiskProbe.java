@@ -0,0 +1,199 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.uw.apl.vmvols.model.virtualbox.VDIDisk;
+import edu.uw.apl.vmvols.model.vmware.VMDKDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Support for fast discovery of virtual disks, i.e. the probing of
+ * many candidate .vdi/.vmdk files for their headers.  Two parts:
+ *
+ * readHead: every header we need (VDI pre-header and header, VMDK
+ * SparseExtentHeader and embedded or standalone Descriptor) lies in
+ * the first HEADSIZE bytes of a file, so read just that, once, and
+ * parse all from the buffer.
+ *
+ * readAll: probe many files at once, on a bounded pool of threads.
+ * Header probing is almost all waiting on I/O (seeks on spinning
+ * disks, round trips on network filesystems), so overlapping it is
+ * where the time goes.
+ *
+ * Parsed headers are memoized by each disk type, see HeaderCache.
+ */
+public class DiskProbe {
+
+	/**
+	 * @return the first HEADSIZE bytes of f, or all of f if shorter
+	 */
+	static public byte[] readHead( File f ) throws IOException {
+		ByteSource store = ByteSource.open( f, false );
+		try {
+			byte[] result = new byte[(int)Math.min( HEADSIZE, store.size() )];
+			store.readFully( 0, result );
+			return result;
+		} finally {
+			store.close();
+		}
+	}
+
+	/**
+	 * Parse each file as a .vdi or .vmdk (by file suffix), in
+	 * parallel.  Files which turn out not to be (supported) virtual
+	 * disks are logged and skipped.
+	 *
+	 * @return the disks, in the order of the supplied files.  No
+	 * parent/child linkage is done here.
+	 */
+	static public List<VirtualDisk> readAll( Collection<File> fs )
+		throws IOException {
+		List<Callable<VirtualDisk>> tasks =
+			new ArrayList<Callable<VirtualDisk>>( fs.size() );
+		for( final File f : fs ) {
+			tasks.add( new Callable<VirtualDisk>() {
+					public VirtualDisk call() throws IOException {
+						return read( f );
+					}
+				} );
+		}
+		List<VirtualDisk> result = new ArrayList<VirtualDisk>();
+		for( VirtualDisk vd : invokeAll( tasks ) ) {
+			if( vd != null )
+				result.add( vd );
+		}
+		return result;
+	}
+
+	static VirtualDisk read( File f ) throws IOException {
+		String name = f.getName();
+		try {
+			if( false ) {
+			} else if( name.endsWith( VDIDisk.FILESUFFIX ) ) {
+				return VDIDisk.readFrom( f );
+			} else if( name.endsWith( VMDKDisk.FILESUFFIX ) ) {
+				return VMDKDisk.readFrom( f );
+			}
+		} catch( VirtualDiskException e ) {
+			LogFactory.getLog( DiskProbe.class ).warn( f + ": " + e );
+		}
+		return null;
+	}
+	
+	/**
+	 * Run the tasks on our pool, wait for all, and return their
+	 * results in task order.  Any task failure is rethrown, as its
+	 * original type if possible.
+	 *
+	 * A task which itself calls invokeAll (e.g. parallel VM
+	 * creation, each VM probing its disks in parallel) runs its
+	 * subtasks inline, so a bounded pool cannot deadlock.
+	 */
+	static public <T> List<T> invokeAll( List<Callable<T>> tasks )
+		throws IOException {
+		List<T> result = new ArrayList<T>( tasks.size() );
+		if( tasks.size() < 2 ||
+			Thread.currentThread() instanceof ProbeThread ) {
+			for( Callable<T> c : tasks ) {
+				try {
+					result.add( c.call() );
+				} catch( IOException ioe ) {
+					throw ioe;
+				} catch( RuntimeException re ) {
+					throw re;
+				} catch( Exception e ) {
+					throw new IOException( e );
+				}
+			}
+			return result;
+		}
+		List<Future<T>> fs = new ArrayList<Future<T>>( tasks.size() );
+		for( Callable<T> c : tasks )
+			fs.add( POOL.submit( c ) );
+		try {
+			for( Future<T> f : fs )
+				result.add( f.get() );
+		} catch( InterruptedException ie ) {
+			for( Future<T> f : fs )
+				f.cancel( true );
+			Thread.currentThread().interrupt();
+			throw new IOException( ie );
+		} catch( ExecutionException ee ) {
+			for( Future<T> f : fs )
+				f.cancel( true );
+			Throwable t = ee.getCause();
+			if( t instanceof IOException )
+				throw (IOException)t;
+			if( t instanceof RuntimeException )
+				throw (RuntimeException)t;
+			if( t instanceof Error )
+				throw (Error)t;
+			throw new IOException( t );
+		}
+		return result;
+	}
+
+	static private class ProbeThread extends Thread {
+		ProbeThread( Runnable r, int n ) {
+			super( r, "DiskProbe-" + n );
+			setDaemon( true );
+		}
+	}
+
+	// All that is needed of any header we parse, see above
+	static public final int HEADSIZE = 64 * 1024;
+
+	static private final int POOLSIZE =
+		Math.min( 16, 2 * Runtime.getRuntime().availableProcessors() );
+	
+	static private final ExecutorService POOL =
+		Executors.newFixedThreadPool( POOLSIZE, new ThreadFactory() {
+				int n = 0;
+				public synchronized Thread newThread( Runnable r ) {
+					return new ProbeThread( r, ++n );
+				}
+			} );
+}
+
+// eof
@@ -0,0 +1,145 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A ByteSource which is a local host file, the default.  Array reads
+ * and writes go via RandomAccessFile seek + read/write, which
+ * allocate nothing, ByteBuffer ones via the positional FileChannel
+ * calls.
+ */
+public class FileByteSource extends ByteSource {
+
+	public FileByteSource( File f, boolean writable ) throws IOException {
+		file = f;
+		this.writable = writable;
+		raf = new RandomAccessFile( f, writable ? "rw" : "r" );
+		channel = raf.getChannel();
+	}
+
+	@Override
+	public int read( long pos, ByteBuffer dst ) throws IOException {
+		int total = 0;
+		while( dst.hasRemaining() ) {
+			int n = channel.read( dst, pos + total );
+			if( n < 0 )
+				break;
+			total += n;
+		}
+		return total == 0 && pos >= channel.size() ? -1 : total;
+	}
+
+	@Override
+	public int read( long pos, byte[] ba, int off, int len )
+		throws IOException {
+		raf.seek( pos );
+		int total = 0;
+		while( total < len ) {
+			int n = raf.read( ba, off + total, len - total );
+			if( n < 0 )
+				break;
+			total += n;
+		}
+		return total == 0 && len > 0 ? -1 : total;
+	}
+
+	@Override
+	public void readFully( long pos, byte[] ba, int off, int len )
+		throws IOException {
+		raf.seek( pos );
+		raf.readFully( ba, off, len );
+	}
+
+	@Override
+	public long size() throws IOException {
+		return raf.length();
+	}
+
+	@Override
+	public boolean isWritable() {
+		return writable;
+	}
+
+	@Override
+	public void write( long pos, ByteBuffer src ) throws IOException {
+		checkWritable();
+		long p = pos;
+		while( src.hasRemaining() )
+			p += channel.write( src, p );
+	}
+
+	@Override
+	public void write( long pos, byte[] ba, int off, int len )
+		throws IOException {
+		checkWritable();
+		raf.seek( pos );
+		raf.write( ba, off, len );
+	}
+
+	@Override
+	public void truncate( long size ) throws IOException {
+		checkWritable();
+		raf.setLength( size );
+	}
+
+	@Override
+	public void sync() throws IOException {
+		if( writable )
+			raf.getFD().sync();
+	}
+
+	@Override
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+
+	private void checkWritable() {
+		if( !writable )
+			throw new UnsupportedOperationException( "Read only: " + file );
+	}
+
+	private final File file;
+	private final boolean writable;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+}
+
+// eof
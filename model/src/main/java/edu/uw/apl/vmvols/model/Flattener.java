@@ -0,0 +1,285 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Merging of a snapshot chain, so that later reads of its content
+ * are single-level.  Two operations:
+ *
+ * flatten: the content of one generation of a chain (base and all
+ * snapshots up to and including that generation) written to a new,
+ * standalone monolithicFlat .vmdk: a small descriptor plus one raw
+ * '-flat' extent, readable by VMware, VirtualBox and us.  The extent
+ * is a sparse host file, unowned and zero areas left as holes.
+ *
+ * commit: the content a child disk holds itself written, in place,
+ * into its parent.  The child is left intact and still consistent
+ * (all it holds now matches its parent) so could then be discarded.
+ * Any other child of the parent is NOT consistent afterwards, it is
+ * the caller's job to know there is none.
+ *
+ * Both are driven by the chain's allocation metadata, not its data:
+ * each piece of the logical disk is read once, from the generation
+ * which owns it (see VirtualDisk.allocationMap, zeroMap), pieces
+ * owned by none never read at all.  Reading and writing overlap: a
+ * reader thread fills buffers which the caller's thread writes,
+ * memory bounded by QUEUEDEPTH buffers of CHUNK bytes.
+ */
+public class Flattener {
+
+	/**
+	 * @param vd - the generation whose content to capture
+	 * @param out - the descriptor file to create, name ending .vmdk.
+	 * Its extent is created alongside, see extentFile.
+	 */
+	static public void flatten( VirtualDisk vd, File out ) throws IOException {
+		List<VirtualDisk> gens = new ArrayList<VirtualDisk>();
+		for( int g = 1; g <= vd.getGeneration(); g++ )
+			gens.add( vd.getGeneration( g ) );
+		File extent = extentFile( out );
+		RandomAccessFile raf = new RandomAccessFile( extent, "rw" );
+		try {
+			raf.setLength( 0 );
+			raf.setLength( vd.size() );
+			copy( gens, vd.size(), new FileTarget( raf ), false );
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+		FileUtils.writeStringToFile( out, descriptor( vd.size(), extent ),
+									 "ISO-8859-1" );
+	}
+
+	/**
+	 * @param child - a disk whose own content is to be written into
+	 * its parent
+	 */
+	static public void commit( VirtualDisk child ) throws IOException {
+		VirtualDisk parent = child.getGeneration( child.getGeneration() - 1 );
+		if( child.size() != parent.size() )
+			throw new IllegalArgumentException
+				( "Size mismatch: " + child.getPath() + "," +
+				  parent.getPath() );
+		List<VirtualDisk> gens = new ArrayList<VirtualDisk>();
+		gens.add( child );
+		final RandomAccessVirtualDisk ra = parent.getRandomAccess( true );
+		try {
+			copy( gens, child.size(), new Target() {
+					public void write( long posn, byte[] ba, int len )
+						throws IOException {
+						ra.seek( posn );
+						ra.write( ba, 0, len );
+					}
+				}, true );
+		} finally {
+			ra.close();
+		}
+	}
+
+	/**
+	 * @return the raw extent file of a flattened disk with descriptor
+	 * file f, e.g. disk.vmdk -> disk-flat.vmdk
+	 */
+	static public File extentFile( File f ) {
+		String name = f.getName();
+		if( name.endsWith( ".vmdk" ) )
+			name = name.substring( 0, name.length() - 5 );
+		return new File( f.getAbsoluteFile().getParentFile(),
+						 name + "-flat.vmdk" );
+	}
+
+	/*
+	  The pipeline.  The reader (a thread of its own) walks the owners
+	  in logical order, coalescing pieces of one owner into chunks of
+	  up to CHUNK bytes, and hands each filled buffer to us, the
+	  writer.  Empty buffers circulate back, so no more than
+	  QUEUEDEPTH are ever allocated.  Zero pieces are written only if
+	  writeZeros, i.e. when the target may hold older data there.
+	*/
+	static private void copy( final List<VirtualDisk> gens, final long size,
+							  Target target, final boolean writeZeros )
+		throws IOException {
+		Ownership own = new Ownership( gens );
+		final long piece = own.piece();
+		final int[] owners = own.owners( size );
+		final long chunk = Math.max( piece, CHUNK / piece * piece );
+		final BlockingQueue<byte[]> empty =
+			new ArrayBlockingQueue<byte[]>( QUEUEDEPTH );
+		final BlockingQueue<Chunk> full =
+			new ArrayBlockingQueue<Chunk>( QUEUEDEPTH + 1 );
+		for( int i = 0; i < QUEUEDEPTH; i++ )
+			empty.add( new byte[(int)chunk] );
+		
+		ExecutorService es = Executors.newSingleThreadExecutor();
+		Future<Void> reader = es.submit( new Callable<Void>() {
+				public Void call() throws Exception {
+					RandomAccessVirtualDisk[] ras =
+						new RandomAccessVirtualDisk[gens.size()];
+					try {
+						int k = 0;
+						while( k < owners.length ) {
+							int owner = owners[k];
+							int run = 1;
+							while( k + run < owners.length &&
+								   owners[k+run] == owner &&
+								   (run+1) * piece <= chunk )
+								run++;
+							long posn = k * piece;
+							int len = (int)(Math.min( size, posn + run * piece )
+											- posn);
+							k += run;
+							if( owner == Ownership.NONE ||
+								( owner == Ownership.ZERO && !writeZeros ) )
+								continue;
+							byte[] ba = empty.take();
+							if( owner == Ownership.ZERO ) {
+								Arrays.fill( ba, 0, len, (byte)0 );
+							} else {
+								if( ras[owner] == null )
+									ras[owner] = gens.get( owner ).
+										getRandomAccess( false );
+								ras[owner].seek( posn );
+								IOUtils.readFully( ras[owner], ba, 0, len );
+							}
+							full.put( new Chunk( posn, ba, len ) );
+						}
+					} finally {
+						for( RandomAccessVirtualDisk ra : ras ) {
+							if( ra != null )
+								ra.close();
+						}
+						full.put( END );
+					}
+					return null;
+				}
+			} );
+		es.shutdown();
+		try {
+			while( true ) {
+				Chunk c = full.take();
+				if( c == END )
+					break;
+				target.write( c.posn, c.ba, c.len );
+				empty.put( c.ba );
+			}
+			reader.get();
+		} catch( InterruptedException ie ) {
+			throw new InterruptedIOException();
+		} catch( ExecutionException ee ) {
+			Throwable t = ee.getCause();
+			if( t instanceof IOException )
+				throw (IOException)t;
+			if( t instanceof RuntimeException )
+				throw (RuntimeException)t;
+			throw new IOException( t );
+		} finally {
+			// a writer failure must not leave the reader blocked
+			reader.cancel( true );
+		}
+	}
+
+	static String descriptor( long size, File extent ) {
+		long sectors = size / Constants.SECTORLENGTH;
+		long cylinders = Math.max( 1, sectors / (16 * 63) );
+		StringBuilder sb = new StringBuilder();
+		sb.append( "# Disk DescriptorFile\n" );
+		sb.append( "version=1\n" );
+		sb.append( "encoding=\"UTF-8\"\n" );
+		sb.append( "CID=fffffffe\n" );
+		sb.append( "parentCID=ffffffff\n" );
+		sb.append( "createType=\"monolithicFlat\"\n" );
+		sb.append( "\n# Extent description\n" );
+		sb.append( "RW " + sectors + " FLAT \"" + extent.getName() +
+				   "\" 0\n" );
+		sb.append( "\n# The Disk Data Base\n#DDB\n\n" );
+		sb.append( "ddb.virtualHWVersion = \"4\"\n" );
+		sb.append( "ddb.geometry.cylinders = \"" +
+				   Math.min( cylinders, 16383 ) + "\"\n" );
+		sb.append( "ddb.geometry.heads = \"16\"\n" );
+		sb.append( "ddb.geometry.sectors = \"63\"\n" );
+		sb.append( "ddb.adapterType = \"ide\"\n" );
+		sb.append( "ddb.uuid.image=\"" + UUID.randomUUID() + "\"\n" );
+		return sb.toString();
+	}
+	
+	interface Target {
+		void write( long posn, byte[] ba, int len ) throws IOException;
+	}
+
+	static class FileTarget implements Target {
+		FileTarget( RandomAccessFile raf ) {
+			this.raf = raf;
+		}
+		public void write( long posn, byte[] ba, int len )
+			throws IOException {
+			raf.seek( posn );
+			raf.write( ba, 0, len );
+		}
+		private final RandomAccessFile raf;
+	}
+
+	static class Chunk {
+		Chunk( long posn, byte[] ba, int len ) {
+			this.posn = posn;
+			this.ba = ba;
+			this.len = len;
+		}
+		final long posn;
+		final byte[] ba;
+		final int len;
+	}
+	
+	static private final Chunk END = new Chunk( -1, null, 0 );
+	
+	// bytes per read/write, and count of buffers in flight...
+	static public final long CHUNK = 4 * Constants.MiB;
+	static public final int QUEUEDEPTH = 4;
+}
+
+// eof
@@ -0,0 +1,117 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Memoize whatever we parse from a virtual disk file's headers
+ * (e.g. a VDIHeader, a VMDK SparseExtentHeader and Descriptor), keyed
+ * by the file's path, size and last modified time.  Any change to
+ * the file (a VM running, a snapshot being taken) changes the key,
+ * so a stale entry is never returned, it just ages out.  Rescanning
+ * an unchanged VM directory thus costs one stat() per file.
+ *
+ * The cached values are shared by all VirtualDisks built from them,
+ * so must be treated as immutable.
+ */
+public class HeaderCache<V> {
+
+	public HeaderCache( final int capacity ) {
+		map = new LinkedHashMap<Key,V>( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<Key,V> me ) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return the current state of f, as a cache key.  Take this
+	 * before reading f, so that if f changes while we parse, the
+	 * parse is cached against the old state, never the new.
+	 */
+	static public Key key( File f ) {
+		return new Key( f );
+	}
+	
+	/**
+	 * @return the value cached for the file state k, else null
+	 */
+	public synchronized V get( Key k ) {
+		return map.get( k );
+	}
+
+	public synchronized void put( Key k, V v ) {
+		map.put( k, v );
+	}
+
+	public synchronized void clear() {
+		map.clear();
+	}
+	
+	public synchronized int size() {
+		return map.size();
+	}
+	
+	static public final class Key {
+		Key( File f ) {
+			path = f.getAbsolutePath();
+			length = f.length();
+			lastModified = f.lastModified();
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			if( !( o instanceof Key ) )
+				return false;
+			Key that = (Key)o;
+			return this.length == that.length &&
+				this.lastModified == that.lastModified &&
+				this.path.equals( that.path );
+		}
+
+		@Override
+		public int hashCode() {
+			return path.hashCode() ^ (int)length ^ (int)lastModified;
+		}
+		
+		final String path;
+		final long length, lastModified;
+	}
+	
+	private final LinkedHashMap<Key,V> map;
+
+	static public final int CAPACITY_DEFAULT = 16 * 1024;
+}
+
+// eof
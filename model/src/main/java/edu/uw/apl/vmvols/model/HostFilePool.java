@@ -0,0 +1,518 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A pool of open host files, shared by all ByteSources of this
+ * pool's making.  Every RandomAccessVirtualDisk opens a source on its
+ * own file and, via its parent, on every ancestor's, and fuse does so
+ * per open() call.  Without a pool, deep snapshot chains and many
+ * concurrent readers run out of file descriptors (EMFILE) and pay an
+ * open and close each time.
+ *
+ * So all sources on one host file share one FileChannel, reference
+ * counted, reading with positional (pread) calls, which are safe
+ * across threads.  Channels of files no longer in use stay open, for
+ * the next open, up to maxOpen descriptors in all.  Beyond that, the
+ * least recently acquired channel is closed: an idle one is dropped,
+ * one in use is reopened on its next read.  So maxOpen is a hard cap.
+ *
+ * A host file replaced (e.g. by a compaction, which renames a new
+ * file over the old) is noticed at the next open by its changed file
+ * key (inode), so is never served from a stale channel.
+ *
+ * Sources never closed are found, once garbage collected, via
+ * PhantomReferences, and their references dropped, with a warning.
+ *
+ * This pool, SHARED, is ByteSource's default factory.
+ */
+public class HostFilePool {
+
+	public HostFilePool( int maxOpen ) {
+		setMaxOpen( maxOpen );
+		entries = new HashMap<Key,Entry>();
+		lru = new LinkedHashMap<Entry,Entry>( 16, 0.75f, true );
+		leaks = new HashSet<Leak>();
+		queue = new ReferenceQueue<Object>();
+		log = LogFactory.getLog( getClass() );
+	}
+
+	public synchronized void setMaxOpen( int maxOpen ) {
+		if( maxOpen < 1 )
+			throw new IllegalArgumentException( "maxOpen: " + maxOpen );
+		this.maxOpen = maxOpen;
+	}
+
+	public synchronized int getMaxOpen() {
+		return maxOpen;
+	}
+
+	/**
+	 * @return descriptors currently open, at most maxOpen
+	 */
+	public synchronized int openCount() {
+		return lru.size();
+	}
+
+	/**
+	 * @return sources handed out and not yet closed (or collected)
+	 */
+	public synchronized int activeCount() {
+		return leaks.size();
+	}
+
+	/**
+	 * Close the channels of all files not in use, e.g. before
+	 * deleting them
+	 */
+	public synchronized void closeIdle() throws IOException {
+		reap();
+		Iterator<Entry> i = lru.keySet().iterator();
+		while( i.hasNext() ) {
+			Entry e = i.next();
+			if( e.refs > 0 )
+				continue;
+			i.remove();
+			entries.remove( e.key );
+			e.channel.close();
+		}
+	}
+
+	public ByteSource open( File f, boolean writable ) throws IOException {
+		Path p = f.toPath().toAbsolutePath();
+		Key k = new Key( p, writable );
+		Object fileKey = fileKey( p );
+		synchronized( this ) {
+			reap();
+			Entry e = entries.get( k );
+			if( e != null && fileKey != null &&
+				!fileKey.equals( e.fileKey ) ) {
+				// replaced on disk, old entry lives on until released
+				entries.remove( k );
+				e.replaced = true;
+				if( e.refs == 0 )
+					evict( e );
+				e = null;
+			}
+			if( e == null ) {
+				e = new Entry( k, fileKey );
+				entries.put( k, e );
+			}
+			channel( e );
+			e.refs++;
+			Source result = new Source( e );
+			Leak l = new Leak( result, e, queue );
+			result.leak = l;
+			leaks.add( l );
+			return result;
+		}
+	}
+
+	/**
+	 * @return e's channel, (re)opening it if need be, evicting the
+	 * least recently acquired channel(s) if then over maxOpen
+	 */
+	private synchronized FileChannel channel( Entry e ) throws IOException {
+		if( e.channel != null && e.channel.isOpen() ) {
+			lru.get( e );
+			return e.channel;
+		}
+		if( e.channel != null )
+			lru.remove( e );
+		if( e.fileKey != null && !e.replaced ) {
+			Object now = fileKey( e.key.path );
+			if( now != null && !now.equals( e.fileKey ) )
+				e.replaced = true;
+		}
+		if( e.replaced && e.channel != null )
+			throw new IOException( "Host file replaced: " + e.key.path );
+		while( lru.size() >= maxOpen ) {
+			Entry victim = lru.keySet().iterator().next();
+			evict( victim );
+		}
+		e.channel = e.key.writable ?
+			FileChannel.open( e.key.path, StandardOpenOption.READ,
+							  StandardOpenOption.WRITE ) :
+			FileChannel.open( e.key.path, StandardOpenOption.READ );
+		lru.put( e, e );
+		return e.channel;
+	}
+
+	/**
+	 * Close e's channel.  An idle e is forgotten altogether, one in
+	 * use reopens on its next read.
+	 */
+	private void evict( Entry e ) throws IOException {
+		lru.remove( e );
+		if( e.refs == 0 && entries.get( e.key ) == e )
+			entries.remove( e.key );
+		if( e.channel != null )
+			e.channel.close();
+		if( log.isDebugEnabled() )
+			log.debug( "Evicted: " + e.key.path );
+	}
+
+	private synchronized void release( Entry e ) throws IOException {
+		e.refs--;
+		if( e.refs == 0 && e.replaced )
+			evict( e );
+	}
+
+	/**
+	 * Drop the references of sources collected without being closed
+	 */
+	private void reap() throws IOException {
+		Reference<?> r;
+		while( (r = queue.poll()) != null ) {
+			Leak l = (Leak)r;
+			if( !leaks.remove( l ) )
+				continue;
+			log.warn( "Source not closed: " + l.entry.key.path );
+			release( l.entry );
+		}
+	}
+
+	static private Object fileKey( Path p ) throws IOException {
+		try {
+			return Files.readAttributes
+				( p, BasicFileAttributes.class ).fileKey();
+		} catch( NoSuchFileException nsfe ) {
+			// as RandomAccessFile would say
+			throw new FileNotFoundException( p.toString() );
+		}
+	}
+
+	/**
+	 * @return a factory whose sources come from this pool
+	 */
+	public ByteSource.Factory factory() {
+		return new ByteSource.Factory() {
+			public ByteSource open( File f, boolean writable )
+				throws IOException {
+				return HostFilePool.this.open( f, writable );
+			}
+		};
+	}
+
+	/**
+	 * One client's view of a pooled channel
+	 */
+	class Source extends ByteSource {
+		Source( Entry e ) {
+			entry = e;
+		}
+
+		@Override
+		public int read( long pos, ByteBuffer dst ) throws IOException {
+			int start = dst.position();
+			while( true ) {
+				FileChannel c = channel();
+				try {
+					while( dst.hasRemaining() ) {
+						int n = c.read( dst, pos + dst.position() - start );
+						if( n < 0 )
+							break;
+					}
+					int total = dst.position() - start;
+					return total == 0 && pos >= c.size() ? -1 : total;
+				} catch( ClosedByInterruptException cbie ) {
+					throw cbie;
+				} catch( AsynchronousCloseException ace ) {
+					// evicted mid read, reopen and carry on
+				} catch( ClosedChannelException cce ) {
+				}
+			}
+		}
+
+		/**
+		 * Callers reuse their arrays (block and grain buffers, the
+		 * caller's own), so we reuse our wrappings of the last few,
+		 * keeping steady state reads allocation free.  See wrap for
+		 * how a Source stays safe for use by many threads.
+		 */
+		@Override
+		public int read( long pos, byte[] ba, int off, int len )
+			throws IOException {
+			ByteBuffer bb = wrap( ba, off, len );
+			try {
+				return read( pos, bb );
+			} finally {
+				unwrap( ba, bb );
+			}
+		}
+
+		@Override
+		public long size() throws IOException {
+			while( true ) {
+				try {
+					return channel().size();
+				} catch( ClosedByInterruptException cbie ) {
+					throw cbie;
+				} catch( ClosedChannelException cce ) {
+				}
+			}
+		}
+
+		@Override
+		public boolean isWritable() {
+			return entry.key.writable;
+		}
+
+		@Override
+		public void write( long pos, ByteBuffer src ) throws IOException {
+			checkWritable();
+			int start = src.position();
+			while( true ) {
+				FileChannel c = channel();
+				try {
+					while( src.hasRemaining() )
+						c.write( src, pos + src.position() - start );
+					return;
+				} catch( ClosedByInterruptException cbie ) {
+					throw cbie;
+				} catch( ClosedChannelException cce ) {
+				}
+			}
+		}
+
+		@Override
+		public void write( long pos, byte[] ba, int off, int len )
+			throws IOException {
+			ByteBuffer bb = wrap( ba, off, len );
+			try {
+				write( pos, bb );
+			} finally {
+				unwrap( ba, bb );
+			}
+		}
+
+		@Override
+		public void truncate( long size ) throws IOException {
+			checkWritable();
+			channel().truncate( size );
+		}
+
+		@Override
+		public void sync() throws IOException {
+			if( entry.key.writable )
+				channel().force( true );
+		}
+
+		@Override
+		public void close() throws IOException {
+			synchronized( HostFilePool.this ) {
+				if( leak == null )
+					return;
+				leak.clear();
+				leaks.remove( leak );
+				leak = null;
+				release( entry );
+			}
+			// nor keep any caller's arrays alive
+			synchronized( wrapped ) {
+				Arrays.fill( wrapped, null );
+				Arrays.fill( wrappers, null );
+				wrapsClosed = true;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return entry.key.path.toString();
+		}
+
+		private FileChannel channel() throws IOException {
+			// not a ClosedChannelException, which we retry
+			if( leak == null )
+				throw new IOException( "Source closed: " + this );
+			FileChannel c = entry.channel;
+			if( c != null && c.isOpen() )
+				return c;
+			return HostFilePool.this.channel( entry );
+		}
+
+		/*
+		  A wrapper is checked out of the cache for the duration of
+		  one read/write, and back in by unwrap, so no two threads
+		  ever share one (and its position/limit).  A thread finding
+		  its array's wrapper already out, i.e. a concurrent I/O on
+		  the same array, just wraps afresh.  The cache holds the
+		  last WRAPS arrays used, until close.
+		*/
+		private ByteBuffer wrap( byte[] ba, int off, int len ) {
+			ByteBuffer result = null;
+			synchronized( wrapped ) {
+				for( int i = 0; i < wrapped.length; i++ ) {
+					if( wrapped[i] == ba ) {
+						result = wrappers[i];
+						wrappers[i] = null;
+						break;
+					}
+				}
+			}
+			if( result == null )
+				result = ByteBuffer.wrap( ba );
+			result.limit( off + len );
+			result.position( off );
+			return result;
+		}
+
+		private void unwrap( byte[] ba, ByteBuffer bb ) {
+			synchronized( wrapped ) {
+				if( wrapsClosed )
+					return;
+				for( int i = 0; i < wrapped.length; i++ ) {
+					if( wrapped[i] == ba ) {
+						if( wrappers[i] == null )
+							wrappers[i] = bb;
+						return;
+					}
+				}
+				int i = nextWrap;
+				nextWrap = (nextWrap + 1) % wrapped.length;
+				wrapped[i] = ba;
+				wrappers[i] = bb;
+			}
+		}
+
+		private void checkWritable() {
+			if( !entry.key.writable )
+				throw new UnsupportedOperationException
+					( "Read only: " + entry.key.path );
+		}
+
+		private final Entry entry;
+		private Leak leak;
+		private final byte[][] wrapped = new byte[WRAPS][];
+		private final ByteBuffer[] wrappers = new ByteBuffer[WRAPS];
+		private int nextWrap;
+		private boolean wrapsClosed;
+	}
+
+	static class Key {
+		Key( Path path, boolean writable ) {
+			this.path = path;
+			this.writable = writable;
+		}
+
+		@Override
+		public boolean equals( Object o ) {
+			if( !( o instanceof Key ) )
+				return false;
+			Key that = (Key)o;
+			return this.writable == that.writable &&
+				this.path.equals( that.path );
+		}
+
+		@Override
+		public int hashCode() {
+			return path.hashCode() ^ (writable ? 1 : 0);
+		}
+
+		final Path path;
+		final boolean writable;
+	}
+
+	/**
+	 * A host file (and mode), its channel, if open, and its users.
+	 * Identity equality, so an entry superseded by a replacement
+	 * file's stays distinct in the lru.
+	 */
+	static class Entry {
+		Entry( Key key, Object fileKey ) {
+			this.key = key;
+			this.fileKey = fileKey;
+		}
+
+		final Key key;
+		final Object fileKey;
+		volatile FileChannel channel;
+		int refs;
+		boolean replaced;
+	}
+
+	/**
+	 * Enqueued once its Source is unreachable, unless cleared by
+	 * close
+	 */
+	static class Leak extends PhantomReference<Object> {
+		Leak( Object referent, Entry entry, ReferenceQueue<Object> q ) {
+			super( referent, q );
+			this.entry = entry;
+		}
+
+		final Entry entry;
+	}
+
+	static public final int MAXOPEN_DEFAULT = 256;
+
+	// arrays whose wrappings each Source retains
+	static final int WRAPS = 4;
+
+	static public final HostFilePool SHARED =
+		new HostFilePool( MAXOPEN_DEFAULT );
+
+	private int maxOpen;
+	private final Map<Key,Entry> entries;
+	// entries with an open channel, least recently acquired first
+	private final LinkedHashMap<Entry,Entry> lru;
+	private final Set<Leak> leaks;
+	private final ReferenceQueue<Object> queue;
+	private final Log log;
+}
+
+// eof
@@ -0,0 +1,140 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A read only ByteSource which is an HTTP resource, each read one
+ * ranged GET (RFC 7233), so a stand-in for any object store (S3
+ * etc) offering ranged reads.  The server must honour Range, we
+ * cannot afford whole-object responses.  Each request is a round
+ * trip, so wrap in an AlignedByteSource, as FACTORY does.
+ */
+public class HttpByteSource extends ByteSource {
+
+	public HttpByteSource( URL url ) throws IOException {
+		this.url = url;
+		HttpURLConnection c = (HttpURLConnection)url.openConnection();
+		c.setRequestMethod( "HEAD" );
+		int rc = c.getResponseCode();
+		if( rc == HttpURLConnection.HTTP_NOT_FOUND )
+			throw new FileNotFoundException( url.toString() );
+		if( rc != HttpURLConnection.HTTP_OK )
+			throw new IOException( url + ": HEAD " + rc );
+		size = c.getContentLengthLong();
+		if( size < 0 )
+			throw new IOException( url + ": no Content-Length" );
+	}
+
+	@Override
+	public int read( long pos, byte[] ba, int off, int len )
+		throws IOException {
+		if( pos >= size )
+			return -1;
+		len = (int)Math.min( len, size - pos );
+		if( len == 0 )
+			return 0;
+		HttpURLConnection c = (HttpURLConnection)url.openConnection();
+		c.setRequestProperty( "Range", "bytes=" + pos + "-" +
+							  (pos + len - 1) );
+		int rc = c.getResponseCode();
+		if( rc != HttpURLConnection.HTTP_PARTIAL )
+			throw new IOException( url + ": range GET " + rc );
+		InputStream is = c.getInputStream();
+		try {
+			int total = 0;
+			while( total < len ) {
+				int n = is.read( ba, off + total, len - total );
+				if( n < 0 )
+					break;
+				total += n;
+			}
+			return total;
+		} finally {
+			// drained and closed, so the connection is reused
+			is.close();
+		}
+	}
+
+	@Override
+	public int read( long pos, ByteBuffer dst ) throws IOException {
+		byte[] ba = new byte[dst.remaining()];
+		int n = read( pos, ba, 0, ba.length );
+		if( n > 0 )
+			dst.put( ba, 0, n );
+		return n;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return url.toString();
+	}
+
+	/**
+	 * @return a factory serving files under root from base, root's
+	 * equivalent on the server, with requests aligned to alignment
+	 * and coalesced into window sized reads.  Files elsewhere, and
+	 * all writable opens, are local.
+	 */
+	static public Factory factory( final File root, final URL base,
+								   final int alignment, final int window ) {
+		final String prefix = root.getAbsolutePath() + File.separator;
+		return new Factory() {
+			public ByteSource open( File f, boolean writable )
+				throws IOException {
+				String path = f.getAbsolutePath();
+				if( writable || !path.startsWith( prefix ) )
+					return HostFilePool.SHARED.open( f, writable );
+				String rel = path.substring( prefix.length() ).replace
+					( File.separatorChar, '/' );
+				return new AlignedByteSource
+					( new HttpByteSource( new URL( base, rel ) ),
+					  alignment, window );
+			}
+		};
+	}
+
+	private final URL url;
+	private final long size;
+}
+
+// eof
@@ -0,0 +1,146 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A read only ByteSource which is a memory mapped local file.  Reads
+ * are then copies out of the page cache, no system call each.  A
+ * MappedByteBuffer is limited to 2GB, so bigger files are mapped in
+ * CHUNK sized pieces.
+ *
+ * To have all readers map their files:
+ *
+ * ByteSource.setFactory( MappedByteSource.FACTORY );
+ *
+ * Writable opens still get a pooled FileChannel, see HostFilePool.
+ */
+public class MappedByteSource extends ByteSource {
+
+	public MappedByteSource( File f ) throws IOException {
+		this( f, CHUNK );
+	}
+
+	// chunk size settable for test cases only
+	MappedByteSource( File f, int chunk ) throws IOException {
+		file = f;
+		this.chunk = chunk;
+		RandomAccessFile raf = new RandomAccessFile( f, "r" );
+		try {
+			FileChannel fc = raf.getChannel();
+			size = fc.size();
+			int n = (int)((size + chunk - 1) / chunk);
+			maps = new MappedByteBuffer[n];
+			for( int i = 0; i < n; i++ ) {
+				long from = (long)i * chunk;
+				maps[i] = fc.map( FileChannel.MapMode.READ_ONLY, from,
+								  Math.min( chunk, size - from ) );
+			}
+		} finally {
+			// a mapping outlives its channel
+			raf.close();
+		}
+	}
+
+	@Override
+	public int read( long pos, ByteBuffer dst ) throws IOException {
+		if( pos >= size )
+			return -1;
+		int total = 0;
+		while( dst.hasRemaining() && pos + total < size ) {
+			ByteBuffer m = locate( pos + total );
+			int n = Math.min( dst.remaining(), m.remaining() );
+			int limit = m.limit();
+			m.limit( m.position() + n );
+			dst.put( m );
+			m.limit( limit );
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	public int read( long pos, byte[] ba, int off, int len )
+		throws IOException {
+		if( pos >= size )
+			return -1;
+		int total = 0;
+		while( total < len && pos + total < size ) {
+			ByteBuffer m = locate( pos + total );
+			int n = Math.min( len - total, m.remaining() );
+			m.get( ba, off + total, n );
+			total += n;
+		}
+		return total;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return file.toString();
+	}
+
+	/**
+	 * @return the map holding byte pos, positioned there
+	 */
+	private ByteBuffer locate( long pos ) {
+		MappedByteBuffer m = maps[(int)(pos / chunk)];
+		m.position( (int)(pos % chunk) );
+		return m;
+	}
+
+	static public final Factory FACTORY = new Factory() {
+			public ByteSource open( File f, boolean writable )
+				throws IOException {
+				if( writable )
+					return HostFilePool.SHARED.open( f, writable );
+				return new MappedByteSource( f );
+			}
+		};
+
+	private final File file;
+	private final int chunk;
+	private final long size;
+	private final MappedByteBuffer[] maps;
+
+	static final int CHUNK = 1 << 30;
+}
+
+// eof
@@ -0,0 +1,338 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A copy-on-write overlay for a virtual disk.  Writes made via an
+ * {@link OverlayRandomAccess} land here and never in the .vdi/.vmdk
+ * files themselves, so writable analysis of a disk (e.g. replaying a
+ * filesystem journal at mount time) leaves the VM's own files
+ * untouched.
+ *
+ * The overlay is a set of fixed size blocks, each a copy of a disk
+ * block as it was at first write, plus all writes since.  Blocks are
+ * held in memory up to some limit, beyond which the oldest are
+ * spilled to a sidecar file, at their logical offsets (so the
+ * sidecar is sparse on any filesystem that supports it).  A second
+ * file, the sidecar name plus ".map", records which blocks the sidecar
+ * holds, see flush.  An overlay can thus outlive a process, and
+ * later be either committed to the real disk or just discarded.
+ *
+ * Instances are shared by all handles open on the same disk, so all
+ * access is synchronized.
+ */
+public class Overlay {
+
+	/**
+	 * @param sidecar - where to spill blocks.  If present (with its
+	 * map), the overlay is reloaded.
+	 *
+	 * @param size - size in bytes of the virtual disk being overlaid
+	 */
+	public Overlay( File sidecar, long size ) throws IOException {
+		this( sidecar, size, MEMORYBLOCKS_DEFAULT );
+	}
+	
+	public Overlay( File sidecar, long size, int memoryBlocks )
+		throws IOException {
+		long blockCount = (size + BLOCKSIZE - 1) / BLOCKSIZE;
+		if( blockCount > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "Disk too large: " + size );
+		this.sidecar = sidecar;
+		this.mapFile = new File( sidecar.getPath() + MAPSUFFIX );
+		this.size = size;
+		this.memoryBlocks = memoryBlocks;
+		log = LogFactory.getLog( getClass() );
+		memory = new LinkedHashMap<Integer,byte[]>();
+		spilled = new BitSet();
+		if( mapFile.isFile() )
+			readMap();
+	}
+
+	public File getFile() {
+		return sidecar;
+	}
+	
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return count of disk blocks now held by this overlay, in
+	 * memory or in the sidecar
+	 */
+	public synchronized int blockCount() {
+		return present().cardinality();
+	}
+
+	public synchronized boolean isEmpty() {
+		return memory.isEmpty() && spilled.isEmpty();
+	}
+	
+	/**
+	 * Copy bytes from the overlay, if it holds the block in question.
+	 *
+	 * @return false if the block is not in the overlay, in which case
+	 * the caller reads the underlying disk instead
+	 */
+	synchronized boolean read( int bIndex, int bOffset,
+							   byte[] ba, int off, int len )
+		throws IOException {
+		byte[] block = memory.get( bIndex );
+		if( block != null ) {
+			System.arraycopy( block, bOffset, ba, off, len );
+			return true;
+		}
+		if( !spilled.get( bIndex ) )
+			return false;
+		RandomAccessFile raf = sidecar();
+		raf.seek( (long)bIndex * BLOCKSIZE + bOffset );
+		raf.readFully( ba, off, len );
+		return true;
+	}
+
+	/**
+	 * Write bytes into the overlay.  On the first write to a block,
+	 * the block is first copied up from the underlying disk, so that
+	 * the overlay always holds whole blocks.
+	 *
+	 * @param source - the underlying disk, only read from
+	 */
+	synchronized void write( int bIndex, int bOffset,
+							 byte[] ba, int off, int len,
+							 RandomAccessVirtualDisk source )
+		throws IOException {
+		byte[] block = memory.get( bIndex );
+		if( block == null ) {
+			block = new byte[blockLength( bIndex )];
+			if( spilled.get( bIndex ) ) {
+				RandomAccessFile raf = sidecar();
+				raf.seek( (long)bIndex * BLOCKSIZE );
+				raf.readFully( block );
+			} else if( len < block.length ) {
+				source.seek( (long)bIndex * BLOCKSIZE );
+				int total = 0;
+				while( total < block.length ) {
+					int n = source.readImpl( block, total,
+											 block.length - total );
+					if( n < 1 )
+						break;
+					total += n;
+				}
+			}
+			memory.put( bIndex, block );
+		}
+		System.arraycopy( ba, off, block, bOffset, len );
+		if( memory.size() > memoryBlocks )
+			spill( memory.size() - memoryBlocks );
+	}
+
+	/**
+	 * Spill every in-memory block to the sidecar, then record in the
+	 * map file which blocks the sidecar holds.  The map is written
+	 * only after the sidecar is synced, and is replaced atomically,
+	 * so a crash leaves the previous consistent state.
+	 */
+	public synchronized void flush() throws IOException {
+		if( memory.isEmpty() && !mapDirty )
+			return;
+		spill( memory.size() );
+		sidecar().getFD().sync();
+		writeMap();
+		mapDirty = false;
+	}
+
+	/**
+	 * Write every overlay block to the supplied disk, then discard
+	 * the overlay.
+	 *
+	 * @param target - a writable handle on the disk this overlay
+	 * belongs to.  The caller closes it.
+	 */
+	public synchronized void commit( RandomAccessVirtualDisk target )
+		throws IOException {
+		BitSet bs = present();
+		log.info( "Committing " + bs.cardinality() + " blocks from " +
+				  sidecar );
+		byte[] ba = new byte[BLOCKSIZE];
+		for( int i = bs.nextSetBit( 0 ); i >= 0;
+			 i = bs.nextSetBit( i+1 ) ) {
+			int len = blockLength( i );
+			read( i, 0, ba, 0, len );
+			target.seek( (long)i * BLOCKSIZE );
+			target.write( ba, 0, len );
+		}
+		target.flush();
+		discard();
+	}
+
+	/**
+	 * Drop all blocks, in memory and on disk.  The overlay is empty
+	 * but still usable.
+	 */
+	public synchronized void discard() throws IOException {
+		memory.clear();
+		spilled.clear();
+		mapDirty = false;
+		if( raf != null ) {
+			raf.close();
+			raf = null;
+		}
+		mapFile.delete();
+		sidecar.delete();
+	}
+
+	public synchronized void close() throws IOException {
+		flush();
+		if( raf != null ) {
+			raf.close();
+			raf = null;
+		}
+	}
+
+	private BitSet present() {
+		BitSet result = (BitSet)spilled.clone();
+		for( int i : memory.keySet() )
+			result.set( i );
+		return result;
+	}
+	
+	private int blockLength( int bIndex ) {
+		return (int)Math.min( BLOCKSIZE, size - (long)bIndex * BLOCKSIZE );
+	}
+	
+	/**
+	 * Move the n oldest in-memory blocks out to the sidecar.  A
+	 * spilled block is rewritten in place, the sidecar never grows
+	 * beyond the disk size.
+	 */
+	private void spill( int n ) throws IOException {
+		if( n < 1 )
+			return;
+		RandomAccessFile raf = sidecar();
+		Iterator<Map.Entry<Integer,byte[]>> it = memory.entrySet().iterator();
+		for( int i = 0; i < n && it.hasNext(); i++ ) {
+			Map.Entry<Integer,byte[]> me = it.next();
+			raf.seek( (long)me.getKey() * BLOCKSIZE );
+			raf.write( me.getValue() );
+			spilled.set( me.getKey() );
+			it.remove();
+		}
+		mapDirty = true;
+		if( log.isDebugEnabled() )
+			log.debug( "Spilled " + n + " blocks to " + sidecar );
+	}
+
+	private RandomAccessFile sidecar() throws IOException {
+		if( raf == null )
+			raf = new RandomAccessFile( sidecar, "rw" );
+		return raf;
+	}
+
+	private void readMap() throws IOException {
+		DataInputStream dis = new DataInputStream
+			( new FileInputStream( mapFile ) );
+		try {
+			if( dis.readInt() != MAGIC )
+				throw new IOException( "Not an overlay map: " + mapFile );
+			long l = dis.readLong();
+			int bs = dis.readInt();
+			if( l != size || bs != BLOCKSIZE )
+				throw new IOException( "Overlay " + sidecar +
+									   " does not match disk size " + size );
+			long[] words = new long[dis.readInt()];
+			for( int i = 0; i < words.length; i++ )
+				words[i] = dis.readLong();
+			spilled = BitSet.valueOf( words );
+		} finally {
+			dis.close();
+		}
+	}
+
+	private void writeMap() throws IOException {
+		File tmp = new File( mapFile.getPath() + ".tmp" );
+		FileOutputStream fos = new FileOutputStream( tmp );
+		try {
+			DataOutputStream dos = new DataOutputStream( fos );
+			dos.writeInt( MAGIC );
+			dos.writeLong( size );
+			dos.writeInt( BLOCKSIZE );
+			long[] words = spilled.toLongArray();
+			dos.writeInt( words.length );
+			for( long w : words )
+				dos.writeLong( w );
+			dos.flush();
+			fos.getFD().sync();
+		} finally {
+			fos.close();
+		}
+		Files.move( tmp.toPath(), mapFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	private final File sidecar, mapFile;
+	private final long size;
+	private final int memoryBlocks;
+	private final Log log;
+	private final LinkedHashMap<Integer,byte[]> memory;
+	private BitSet spilled;
+	private boolean mapDirty;
+	private RandomAccessFile raf;
+	
+	static public final int BLOCKSIZE = 64 * 1024;
+
+	// 64MB of block copies before any spill to the sidecar
+	static public final int MEMORYBLOCKS_DEFAULT = 1024;
+
+	static public final String MAPSUFFIX = ".map";
+
+	// 'VOVL'
+	static private final int MAGIC = 0x564f564c;
+}
+
+// eof
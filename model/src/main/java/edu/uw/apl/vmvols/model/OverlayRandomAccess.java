@@ -0,0 +1,126 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.IOException;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Writable access to a virtual disk which never writes to the disk
+ * itself.  Writes go to an {@link Overlay}, reads consult that
+ * overlay first and fall through to a read-only handle on the
+ * underlying disk (and so its whole parent chain) for any block the
+ * overlay does not hold.
+ *
+ * Closing this handle closes the underlying one, but not the overlay,
+ * which may be shared with other handles.  A flush, however, does
+ * push the overlay out to its sidecar.
+ */
+public class OverlayRandomAccess extends RandomAccessVirtualDisk {
+
+	/**
+	 * @param base - typically the result of getRandomAccess( false )
+	 * on the disk being overlaid
+	 */
+	public OverlayRandomAccess( RandomAccessVirtualDisk base,
+								Overlay overlay ) {
+		super( overlay.size() );
+		this.base = base;
+		this.overlay = overlay;
+	}
+
+	@Override
+	public void close() throws IOException {
+		base.close();
+	}
+
+	@Override
+	public void flush() throws IOException {
+		overlay.flush();
+	}
+	
+	@Override
+	public void seek( long s ) throws IOException {
+		// according to java.io.RandomAccessFile, no restriction on seek
+		posn = s;
+	}
+
+	@Override
+	public int readImpl( byte[] ba, int off, int len ) throws IOException {
+
+		// Do min in long space, since size - posn may overflow int...
+		long actualL = Math.min( size - posn, len );
+
+		// Cannot blindly coerce a long to int, result could be -ve
+		int actual = actualL > Integer.MAX_VALUE ? Integer.MAX_VALUE :
+			(int)actualL;
+
+		int total = 0;
+		while( total < actual ) {
+			int bIndex = (int)(posn / Overlay.BLOCKSIZE);
+			int bOffset = (int)(posn % Overlay.BLOCKSIZE);
+			int n = Math.min( actual - total, Overlay.BLOCKSIZE - bOffset );
+			if( !overlay.read( bIndex, bOffset, ba, off+total, n ) ) {
+				base.seek( posn );
+				n = base.readImpl( ba, off+total, n );
+				if( n < 1 )
+					break;
+			}
+			total += n;
+			posn += n;
+		}
+		return total;
+	}
+
+	@Override
+	public void writeImpl( byte[] ba, int off, int len ) throws IOException {
+
+		// Do min in long space, since size - posn may overflow int...
+		long actualL = Math.min( size - posn, len );
+
+		// Cannot blindly coerce a long to int, result could be -ve
+		int actual = actualL > Integer.MAX_VALUE ? Integer.MAX_VALUE :
+			(int)actualL;
+
+		int total = 0;
+		while( total < actual ) {
+			int bIndex = (int)(posn / Overlay.BLOCKSIZE);
+			int bOffset = (int)(posn % Overlay.BLOCKSIZE);
+			int n = Math.min( actual - total, Overlay.BLOCKSIZE - bOffset );
+			overlay.write( bIndex, bOffset, ba, off+total, n, base );
+			total += n;
+			posn += n;
+		}
+	}
+
+	private final RandomAccessVirtualDisk base;
+	private final Overlay overlay;
+}
+
+// eof
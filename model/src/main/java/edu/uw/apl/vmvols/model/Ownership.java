@@ -0,0 +1,104 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Which generation of a snapshot chain a read finds each piece of
+ * the logical disk in, a piece being the finest allocation unit of
+ * any generation.  The newest generation holding a piece wins, as
+ * does the newest marking it zero (VDI BLOCK_ZERO, VMDK GTE 1), in
+ * which case no file holds it at all.
+ *
+ * Shared by Flattener, which copies each piece from its owner, and
+ * DiskLayout, which predicts what such a copy costs.
+ */
+class Ownership {
+
+	/**
+	 * @param gens - the chain, oldest generation first
+	 */
+	Ownership( List<VirtualDisk> gens ) throws IOException {
+		int n = gens.size();
+		maps = new BitSet[n];
+		zeros = new BitSet[n];
+		units = new long[n];
+		long p = Long.MAX_VALUE;
+		for( int g = 0; g < n; g++ ) {
+			VirtualDisk vd = gens.get(g);
+			maps[g] = vd.allocationMap();
+			zeros[g] = vd.zeroMap();
+			units[g] = vd.allocationUnit();
+			p = Math.min( p, units[g] );
+		}
+		piece = p;
+	}
+
+	long piece() {
+		return piece;
+	}
+
+	/**
+	 * @return for the piece at logical posn: index into gens, or
+	 * ZERO, or NONE
+	 */
+	int owner( long posn ) {
+		for( int g = maps.length-1; g >= 0; g-- ) {
+			int i = (int)(posn / units[g]);
+			if( maps[g].get( i ) )
+				return g;
+			if( zeros[g].get( i ) )
+				return ZERO;
+		}
+		return NONE;
+	}
+
+	/**
+	 * @return owner() of every piece of a logical disk of size bytes
+	 */
+	int[] owners( long size ) {
+		int[] result = new int[(int)((size + piece - 1) / piece)];
+		for( int k = 0; k < result.length; k++ )
+			result[k] = owner( k * piece );
+		return result;
+	}
+
+	private final BitSet[] maps, zeros;
+	private final long[] units;
+	private final long piece;
+
+	static final int NONE = -1;
+	static final int ZERO = -2;
+}
+
+// eof
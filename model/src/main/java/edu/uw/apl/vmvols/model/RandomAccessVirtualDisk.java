@@ -68,6 +68,105 @@ abstract public class RandomAccessVirtualDisk extends InputStream {
 
 	abstract public void seek( long pos ) throws IOException;
 
+	/**
+	 * Push out to the host file(s) any state buffered by a writable
+	 * instance, e.g. block map or grain table updates.  Called by
+	 * close(), but can be called at any time (e.g. from a fuse fsync).
+	 * Subclasses which buffer nothing need not override this no-op.
+	 */
+	public void flush() throws IOException {
+	}
+
+	/**
+	 * Discard (TRIM, punch a hole in) length bytes at offset: they
+	 * read as zeros from now on.  The file position is unchanged.
+	 *
+	 * Sparse formats override: blocks/grains wholly within the range
+	 * are dropped from the block map/grain table, so later reads of
+	 * them need no I/O and their space in the host file is free.  Any
+	 * partially covered block/grain is zero-filled.  This default,
+	 * correct for all formats if not as cheap, zero-fills it all.
+	 */
+	public void discard( long offset, long length ) throws IOException {
+		zeroFill( offset, Math.min( size, offset + length ) );
+	}
+
+	/**
+	 * Write zeros over [from,to), leaving the file position unchanged
+	 */
+	protected void zeroFill( long from, long to ) throws IOException {
+		if( from < 0 || from >= to )
+			return;
+		dropBytes();
+		long p = posn;
+		byte[] zeros = new byte[(int)Math.min( to - from, ZEROFILLCHUNK )];
+		seek( from );
+		for( long done = from; done < to; done += zeros.length ) {
+			int n = (int)Math.min( zeros.length, to - done );
+			writeImpl( zeros, 0, n );
+		}
+		seek( p );
+	}
+	
+	/**
+	 * Set the least amount of data, in bytes, fetched from the host
+	 * file(s) when a read of allocated data misses this handle's
+	 * block/grain buffer and reads look random, see sequential.  A
+	 * power of two, no smaller than a sector.  Sequential reads fetch
+	 * whole blocks/grains regardless.
+	 */
+	public void setReadMinimum( int readMinimum ) {
+		if( readMinimum < Constants.SECTORLENGTH ||
+			Integer.bitCount( readMinimum ) != 1 )
+			throw new IllegalArgumentException
+				( "Bad read minimum: " + readMinimum );
+		this.readMinimum = readMinimum;
+	}
+
+	public int getReadMinimum() {
+		return readMinimum;
+	}
+
+	/**
+	 * Note a read of len bytes at the current position, and say
+	 * whether reads on this handle look sequential, i.e. the last
+	 * SEQUENTIALRUN reads each started where the one before ended.
+	 * Subclasses call this once per readImpl, and fetch whole
+	 * blocks/grains when sequential (a readahead that the next read
+	 * will likely use), else just the readMinimum-aligned pieces
+	 * covering the request (sleuthkit-style metadata walks issue
+	 * scattered small reads, for which a whole 1MB block is waste).
+	 */
+	protected boolean sequential( int len ) {
+		if( posn == nextPosn ) {
+			if( run < SEQUENTIALRUN )
+				run++;
+		} else {
+			run = 0;
+		}
+		nextPosn = posn + len;
+		return run >= SEQUENTIALRUN;
+	}
+
+	/**
+	 * Where, in a block/grain, to start a host file read which must
+	 * cover offset 'from' of it.
+	 */
+	protected int spanStart( int from, boolean sequential ) {
+		return sequential ? 0 : from & -readMinimum;
+	}
+
+	/**
+	 * Where, in a block/grain of unitLength bytes, to end a host file
+	 * read which must cover up to (not including) offset 'to' of it.
+	 */
+	protected int spanEnd( int to, int unitLength, boolean sequential ) {
+		if( sequential )
+			return unitLength;
+		long end = ((long)to + readMinimum - 1) & -readMinimum;
+		return (int)Math.min( end, unitLength );
+	}
+
 	@Override
 	public int available() throws IOException {
 		// Cannot simply cast 'size - posn' to int, could get -ve value!
@@ -77,13 +176,40 @@ abstract public class RandomAccessVirtualDisk extends InputStream {
 		return (int)l;
 	}
 
+	/**
+	 * Single byte reads, e.g. via a DataInputStream, are served from a
+	 * small buffer, filled by one readImpl, so cost neither a readImpl
+	 * nor an allocation per byte.  Any write or discard through this
+	 * handle drops the buffer, see dropBytes.
+	 */
 	@Override
 	public int read() throws IOException {
-		byte[] ba = new byte[1];
-		int n = read( ba, 0, 1 );
-		if( n == -1 )
+		// LOOK: posn < 0, since seek allows for this...
+		if( posn >= size )
 			return -1;
-		return ba[0] & 0xff;
+		long p = posn;
+		if( p < bytesPosn || p >= bytesPosn + bytesCount ) {
+			if( bytes == null )
+				bytes = new byte[BYTESLENGTH];
+			int n = readImpl( bytes, 0, bytes.length );
+			if( n < 1 )
+				throw new IOException();
+			bytesPosn = p;
+			bytesCount = n;
+		}
+		int result = bytes[(int)(p - bytesPosn)] & 0xff;
+		// seek, not posn++, so subclasses track the new position
+		seek( p + 1 );
+		return result;
+	}
+
+	/**
+	 * Forget any bytes buffered for read(), since a write or discard
+	 * via this handle may have changed them.  Subclasses which
+	 * override discard must call this.
+	 */
+	protected void dropBytes() {
+		bytesCount = 0;
 	}
 
 	@Override
@@ -119,9 +245,10 @@ abstract public class RandomAccessVirtualDisk extends InputStream {
 	}
 
 	public void write( int b ) throws IOException {
-		byte[] ba = new byte[1];
-		ba[0] = (byte)b;
-		write( ba, 0, 1 );
+		if( oneByte == null )
+			oneByte = new byte[1];
+		oneByte[0] = (byte)b;
+		write( oneByte, 0, 1 );
 	}
 
 	public void write( byte[] bs ) throws IOException {
@@ -144,11 +271,31 @@ abstract public class RandomAccessVirtualDisk extends InputStream {
 			return;
 		}
 			
+		dropBytes();
 		writeImpl( b, off, len );
 	}
 
 	protected final long size;
 	protected long posn;
+
+	// see sequential, spanStart, spanEnd
+	private long nextPosn;
+	private int run;
+	private int readMinimum = READMINIMUM;
+
+	// see read(), dropBytes
+	private byte[] bytes, oneByte;
+	private long bytesPosn;
+	private int bytesCount;
+
+	static private final long ZEROFILLCHUNK = Constants.MiB;
+
+	// a filesystem block, the unit of most metadata reads
+	static public final int READMINIMUM = 4096;
+
+	static private final int SEQUENTIALRUN = 2;
+
+	static private final int BYTESLENGTH = Constants.SECTORLENGTH;
 }
 
 // eof
\ No newline at end of file
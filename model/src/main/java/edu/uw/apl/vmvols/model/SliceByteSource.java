@@ -0,0 +1,99 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Stuart Maclean
+ *
+ * The byte range [offset, offset+length) of some other ByteSource,
+ * presented as a source in its own right, e.g. a .vmdk member of an
+ * .ova (tar) archive.  Reads stop at the end of the range.  Read only.
+ */
+public class SliceByteSource extends ByteSource {
+
+	/**
+	 * @param length - the slice length, or -1 for all of source after
+	 * offset
+	 */
+	public SliceByteSource( ByteSource source, long offset, long length )
+		throws IOException {
+		this.source = source;
+		this.offset = offset;
+		this.length = length < 0 ? source.size() - offset : length;
+	}
+
+	@Override
+	public int read( long pos, ByteBuffer dst ) throws IOException {
+		if( pos >= length )
+			return -1;
+		if( dst.remaining() <= length - pos )
+			return source.read( offset + pos, dst );
+		int limit = dst.limit();
+		dst.limit( dst.position() + (int)(length - pos) );
+		try {
+			return source.read( offset + pos, dst );
+		} finally {
+			dst.limit( limit );
+		}
+	}
+
+	@Override
+	public int read( long pos, byte[] ba, int off, int len )
+		throws IOException {
+		if( pos >= length )
+			return -1;
+		return source.read( offset + pos, ba, off,
+							(int)Math.min( len, length - pos ) );
+	}
+
+	@Override
+	public long size() {
+		return length;
+	}
+
+	/**
+	 * Closes the underlying source too
+	 */
+	@Override
+	public void close() throws IOException {
+		source.close();
+	}
+
+	@Override
+	public String toString() {
+		return source + "@" + offset + "," + length;
+	}
+
+	private final ByteSource source;
+	private final long offset, length;
+}
+
+// eof
@@ -31,6 +31,7 @@ import java.io.File;
 import java.io.EOFException;
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -128,6 +129,26 @@ public class Utils {
 		return Hex.encodeHexString( hash );
 	}
 	
+	/**
+	   @return true iff ba[off..off+len) is all zeros.  Scans a long
+	   at a time, so a 1MB block of zeros, the common case on the
+	   write path, costs 128K compares not 1M.
+	*/
+	static public boolean isZero( byte[] ba, int off, int len ) {
+		ByteBuffer bb = ByteBuffer.wrap( ba );
+		int i = off;
+		int end = off + len;
+		for( ; i + 8 <= end; i += 8 ) {
+			if( bb.getLong( i ) != 0 )
+				return false;
+		}
+		for( ; i < end; i++ ) {
+			if( ba[i] != 0 )
+				return false;
+		}
+		return true;
+	}
+	
 	/**
 	   Given a byte count, express as a short string with units.  Much
 	   like the output of 'df -h'.  Example: 1024 -> "1K"
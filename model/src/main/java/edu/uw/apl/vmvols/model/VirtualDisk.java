@@ -31,6 +31,7 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.UUID;
 
@@ -38,6 +39,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import edu.uw.apl.vmvols.model.virtualbox.VDIDisk;
+import edu.uw.apl.vmvols.model.vmware.OVAArchive;
 import edu.uw.apl.vmvols.model.vmware.VMDKDisk;
 
 /**
@@ -179,56 +181,14 @@ abstract public class VirtualDisk {
 			throw new IllegalArgumentException( "Is a VM directory? " + f );
 		}
 
-		File dir = f.getParentFile();
-		try {
-			VirtualMachine vm = VirtualMachine.create( dir );
-			return create( vm, f, generation );
-		} catch( IllegalArgumentException notVMDirWeUnderstand ) {
-			/*
-			  If f were a Snapshot, it could be in a sub-dir (Snapshots?)
-			  of the VM home, so try this too...
-			*/
-			dir = dir.getParentFile();
-			try {
-				VirtualMachine vm = VirtualMachine.create( dir );
-				return create( vm, f, generation );
-			} catch( IllegalArgumentException notVMDirWeUnderstandEither ) {
-				return createStandalone( f, generation );
-			}
-		}
-	}
-
-	static private VirtualDisk create( VirtualMachine vm,
-									   File f, int generation )
-		throws IOException {
-
 		/*
-		  Given the VM, we can compose ALL its VirtualDisks, meaning
-		  all snapshots of all drives.  Somewhere in that set is a
-		  VirtualDisk whose source file should be the supplied file f.
-		  Once matched, go on to derive the generation of that VD
-		  matching the supplied generation.
+		  If f were a Snapshot, it could be in a sub-dir (Snapshots?)
+		  of the VM home, the registry tries that too.  Either way,
+		  after the first call for any one VM, this is a hash lookup.
 		*/
-		List<VirtualDisk> allDisks = new ArrayList();
-		List<VirtualDisk> actives = vm.getActiveDisks();
-		allDisks.addAll( actives );
-		for( VirtualDisk vd : actives ) {
-			List<VirtualDisk> ancs = vd.getAncestors();
-			allDisks.addAll( ancs );
-		}
-		VirtualDisk match = null;
-		File fCanon = f.getCanonicalFile();
-		for( VirtualDisk vd : allDisks ) {
-			if( vd.getPath().getCanonicalFile().equals( fCanon ) ) {
-				match = vd;
-				break;
-			}
-		}
+		VirtualDisk match = VirtualMachineRegistry.locate( f );
 		if( match == null )
-			throw new IllegalArgumentException( "Cannot associate " +
-												f + " with VM " +
-												vm.getName() );
-		match.vm = vm;
+			return createStandalone( f, generation );
 		switch( generation ) {
 		case SELF:
 			return match;
@@ -254,6 +214,14 @@ abstract public class VirtualDisk {
 			vd = VDIDisk.readFrom( f );
 		} else if( name.endsWith( VMDKDisk.FILESUFFIX ) ) {
 			vd = VMDKDisk.readFrom( f );
+		} else if( name.endsWith( OVAArchive.FILESUFFIX ) ) {
+			// read in place, no extraction, see OVAArchive
+			List<VMDKDisk> vds = OVAArchive.readDisks( f );
+			if( vds.size() != 1 )
+				throw new IllegalArgumentException
+					( f + " has " + vds.size() + " disks, see " +
+					  OVAArchive.class.getName() + ".readDisks" );
+			vd = vds.get(0);
 		} else {
 			throw new IllegalArgumentException
 				( "Cannot create virtual disk from: " + f );
@@ -292,6 +260,17 @@ abstract public class VirtualDisk {
 		return source;
 	}
 
+	/**
+	 * @return every host file this disk's own content and metadata
+	 * live in.  Just getPath() for most formats, but e.g. a split
+	 * .vmdk adds its extent files.  No parent's files are included.
+	 */
+	public List<File> getHostFiles() {
+		List<File> result = new ArrayList<File>();
+		result.add( source );
+		return result;
+	}
+
 	public long sectorCount() {
 		return size() / Constants.SECTORLENGTH;
 	}
@@ -363,6 +342,112 @@ abstract public class VirtualDisk {
 	abstract public RandomAccessVirtualDisk getRandomAccess
 		( boolean writeable ) throws IOException;
 
+	/**
+	 * Allocation: which parts of this disk's logical content are held
+	 * in its own host file(s), as opposed to being inherited from a
+	 * parent disk or implicitly zero.  The granularity is the
+	 * format's own: VirtualBox blocks, VMware grains.  Only this disk
+	 * is described, not its ancestors.
+	 *
+	 * The default describes a fully allocated, contiguous disk, true
+	 * of flat disks.  Sparse formats override.
+	 *
+	 * @return size, in bytes, of one allocation unit
+	 */
+	public long allocationUnit() {
+		return ALLOCATIONUNIT_DEFAULT;
+	}
+
+	/**
+	 * @return number of allocation units spanning the disk, the last
+	 * maybe partial
+	 */
+	public int allocationUnits() {
+		long u = allocationUnit();
+		return (int)((size() + u - 1) / u);
+	}
+	
+	/**
+	 * @return bit i set iff allocation unit i is held in this disk's
+	 * own host file(s)
+	 *
+	 * @see allocationUnit
+	 */
+	public BitSet allocationMap() throws IOException {
+		BitSet result = new BitSet( allocationUnits() );
+		result.set( 0, allocationUnits() );
+		return result;
+	}
+
+	/**
+	 * @return bit i set iff allocation unit i, though not held in this
+	 * disk's host file(s), reads as zeros, so hiding any parent's
+	 * content there.  The default, true of most formats, is none.
+	 *
+	 * @see allocationMap
+	 */
+	public BitSet zeroMap() throws IOException {
+		return new BitSet( allocationUnits() );
+	}
+
+	/**
+	 * @return byte offset, in the host file holding it, of allocation
+	 * unit i, or -1 if unit i is not allocated.  For formats storing
+	 * one disk across many host files (split sparse vmdks), the
+	 * offset is within the host file for that part of the disk.
+	 *
+	 * @see allocationMap
+	 */
+	public long hostOffset( int i ) throws IOException {
+		return i * allocationUnit();
+	}
+
+	/**
+	 * @return bytes of logical content held in this disk's own host
+	 * file(s), so excluding any inherited from a parent disk.
+	 */
+	public long allocatedBytes() throws IOException {
+		BitSet bs = allocationMap();
+		long u = allocationUnit();
+		long result = bs.cardinality() * u;
+		// the last unit may be partial
+		int last = allocationUnits() - 1;
+		if( last >= 0 && bs.get( last ) )
+			result -= (long)allocationUnits() * u - size();
+		return result;
+	}
+
+	/**
+	 * Check this disk's own metadata (block maps, grain directories
+	 * and tables etc) for consistency with itself and with its host
+	 * file(s), reporting every problem found.  Linkage to any parent
+	 * disk is checked by DiskCheck, not here.
+	 *
+	 * @return descriptions of any problems found, empty if none
+	 *
+	 * @see DiskCheck
+	 */
+	public List<String> check() throws IOException {
+		return new ArrayList<String>();
+	}
+
+	/**
+	 * Writes of a whole allocation unit of zeros never allocate a
+	 * new unit, the unit is instead marked zero in the block map or
+	 * grain table, for formats which can (dynamic .vdi base disks,
+	 * sparse .vmdks).  If releaseZeros is set, such a write to a unit
+	 * already allocated marks it zero too.  Its space in the host
+	 * file is then unused, but not reclaimed until a compaction (see
+	 * Compactor).  Off by default.
+	 */
+	public void setReleaseZeros( boolean b ) {
+		releaseZeros = b;
+	}
+
+	public boolean getReleaseZeros() {
+		return releaseZeros;
+	}
+	
 	/**
 	 * @return Disk generation, where a newly created, never
 	 * snapshotted-disk is assigned a generation of 1.  Each snapshot
@@ -447,12 +532,16 @@ abstract public class VirtualDisk {
 	protected VirtualDisk parent, child;
 	protected VirtualMachine vm;
 	protected final Log log;
+	protected boolean releaseZeros;
 
 	static public final int SELF = 0;
 	static public final int BASE = 1;
 	static public final int ACTIVE = -1;
 	
 	static public final UUID NULLUUID = new UUID( 0L, 0L );
+
+	// see allocationUnit
+	static public final long ALLOCATIONUNIT_DEFAULT = Constants.MiB;
 }
 
 // eof
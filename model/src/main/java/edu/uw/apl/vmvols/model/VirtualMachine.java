@@ -31,6 +31,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import edu.uw.apl.vmvols.model.virtualbox.VDIDisk;
 import edu.uw.apl.vmvols.model.virtualbox.VDIException;
@@ -80,14 +81,64 @@ abstract public class VirtualMachine {
 	 * (ha!)
 	 */
 	static public VirtualMachine create( File f ) throws IOException {
+		return create( f, false );
+	}
+
+	/**
+	 * @param fromConfig - if true, the VM's disks are those its
+	 * config file (.vbox, .vmx) says are attached, in controller
+	 * order.  Otherwise, any disk files under the VM directory.
+	 */
+	static public VirtualMachine create( File f, boolean fromConfig )
+		throws IOException {
 		if( VBoxVM.isVBoxVM( f ) )
-			return new VBoxVM( f );
+			return new VBoxVM( f, fromConfig );
 		if( VMwareVM.isVMwareVM( f ) )
-			return new VMwareVM( f );
+			return new VMwareVM( f, fromConfig );
 		throw new IllegalArgumentException
 			( "Not a virtual machine directory "+ f );
 	}
 
+	/**
+	 * Create many VirtualMachines at once, e.g. when scanning a tree
+	 * of VM directories.  The directories, and within each the disk
+	 * files, are probed in parallel, see DiskProbe.  Any directory not
+	 * a VM directory we understand is skipped.
+	 *
+	 * @return the VirtualMachines, in the order of the supplied dirs
+	 */
+	static public List<VirtualMachine> createAll( List<File> dirs )
+		throws IOException {
+		return createAll( dirs, false );
+	}
+
+	/**
+	 * @see #create( File, boolean )
+	 */
+	static public List<VirtualMachine> createAll( List<File> dirs,
+												  final boolean fromConfig )
+		throws IOException {
+		List<Callable<VirtualMachine>> tasks =
+			new ArrayList<Callable<VirtualMachine>>( dirs.size() );
+		for( final File f : dirs ) {
+			tasks.add( new Callable<VirtualMachine>() {
+					public VirtualMachine call() throws IOException {
+						if( VBoxVM.isVBoxVM( f ) )
+							return new VBoxVM( f, fromConfig );
+						if( VMwareVM.isVMwareVM( f ) )
+							return new VMwareVM( f, fromConfig );
+						return null;
+					}
+				} );
+		}
+		List<VirtualMachine> result = new ArrayList<VirtualMachine>();
+		for( VirtualMachine vm : DiskProbe.invokeAll( tasks ) ) {
+			if( vm != null )
+				result.add( vm );
+		}
+		return result;
+	}
+
 	abstract public String getName();
 
 	abstract public List<VirtualDisk> getBaseDisks();
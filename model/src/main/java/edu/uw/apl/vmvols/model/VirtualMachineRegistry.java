@@ -0,0 +1,210 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A cache of VirtualMachines, keyed by their directories, each with an
+ * index of all its disks (all generations of all drives) by canonical
+ * path.  Used by VirtualDisk.create( File ), so that locating the
+ * VirtualDisk for any one .vdi/.vmdk file is a hash lookup once its
+ * VM has been built, rather than a VM build plus a walk of every disk.
+ * Directories that turn out not to be VM directories are remembered
+ * too.
+ *
+ * An entry is valid while the modification times of the VM directory
+ * and of every directory holding its disks (e.g. Snapshots/) are
+ * unchanged.  A new snapshot, or a new disk, changes one of those
+ * and the VM is rebuilt on next lookup.  So too must the length and
+ * modification time of every disk host file, see HeaderCache.key:
+ * a write into an existing .vdi/.vmdk (a running VM, another
+ * process's writable mount) leaves its directory as is, yet would
+ * make stale any block map or grain directory the disk has read.
+ *
+ * Note that the VirtualDisks handed out are thus shared by all
+ * callers, as they already are by all users of one VirtualMachine.
+ *
+ * Entries hold whole block maps and grain directories, so only the
+ * most recently used few are kept, see setCapacity.  A scan of a
+ * large tree thus rebuilds an evicted VM if it comes back to it,
+ * but never grows without bound.
+ */
+public class VirtualMachineRegistry {
+
+	/**
+	 * @return the VirtualMachine in dir, built now or earlier, or
+	 * null if dir is not a VM directory we understand
+	 */
+	static public VirtualMachine get( File dir ) throws IOException {
+		return entry( dir.getCanonicalFile() ).vm;
+	}
+
+	/**
+	 * Locate the VirtualDisk whose source file is f, in the VM of f's
+	 * directory or, if f is a snapshot file in a sub-directory, of its
+	 * parent directory.
+	 *
+	 * @return null if neither directory is a VM containing f
+	 */
+	static public VirtualDisk locate( File f ) throws IOException {
+		File canon = f.getCanonicalFile();
+		File dir = canon.getParentFile();
+		for( int i = 0; i < 2 && dir != null; i++ ) {
+			VirtualDisk result = entry( dir ).disks.get( canon );
+			if( result != null )
+				return result;
+			dir = dir.getParentFile();
+		}
+		return null;
+	}
+
+	static public void clear() {
+		synchronized( ENTRIES ) {
+			ENTRIES.clear();
+		}
+	}
+
+	/**
+	 * @param n the most VM directories (and non-VM directories) to
+	 * remember, least recently used go first.  Default CAPACITY_DEFAULT.
+	 */
+	static public void setCapacity( int n ) {
+		if( n < 1 )
+			throw new IllegalArgumentException( "Capacity " + n );
+		synchronized( ENTRIES ) {
+			capacity = n;
+			Iterator<String> it = ENTRIES.keySet().iterator();
+			while( ENTRIES.size() > capacity ) {
+				it.next();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	   Concurrent lookups of the same stale or missing entry may both
+	   build it, the last one wins.  Harmless, and cheaper than
+	   serializing all builds.
+	*/
+	static private Entry entry( File canonicalDir ) throws IOException {
+		String key = canonicalDir.getPath();
+		Entry result;
+		synchronized( ENTRIES ) {
+			result = ENTRIES.get( key );
+		}
+		if( result != null && result.isValid() )
+			return result;
+		result = new Entry( canonicalDir );
+		synchronized( ENTRIES ) {
+			ENTRIES.put( key, result );
+		}
+		return result;
+	}
+	
+	static private class Entry {
+		Entry( File dir ) throws IOException {
+			dirs = new ArrayList<File>();
+			List<Long> stamps = new ArrayList<Long>();
+			dirs.add( dir );
+			stamps.add( dir.lastModified() );
+			disks = new HashMap<File,VirtualDisk>();
+			files = new ArrayList<HeaderCache.Key>();
+			VirtualMachine vm = null;
+			try {
+				vm = VirtualMachine.create( dir );
+			} catch( IllegalArgumentException notVMDirWeUnderstand ) {
+			}
+			this.vm = vm;
+			if( vm != null ) {
+				for( VirtualDisk active : vm.getActiveDisks() ) {
+					List<VirtualDisk> all = new ArrayList<VirtualDisk>();
+					all.add( active );
+					all.addAll( active.getAncestors() );
+					for( VirtualDisk vd : all ) {
+						vd.vm = vm;
+						File canon = vd.getPath().getCanonicalFile();
+						disks.put( canon, vd );
+						File parent = canon.getParentFile();
+						if( !dirs.contains( parent ) ) {
+							dirs.add( parent );
+							stamps.add( parent.lastModified() );
+						}
+						for( File f : vd.getHostFiles() )
+							files.add( HeaderCache.key( f ) );
+					}
+				}
+			}
+			lastModifieds = new long[stamps.size()];
+			for( int i = 0; i < lastModifieds.length; i++ )
+				lastModifieds[i] = stamps.get(i);
+		}
+
+		boolean isValid() {
+			for( int i = 0; i < lastModifieds.length; i++ ) {
+				if( dirs.get(i).lastModified() != lastModifieds[i] )
+					return false;
+			}
+			for( HeaderCache.Key k : files ) {
+				if( !k.equals( HeaderCache.key( new File( k.path ) ) ) )
+					return false;
+			}
+			return true;
+		}
+		
+		final VirtualMachine vm;
+		final Map<File,VirtualDisk> disks;
+		final List<File> dirs;
+		final long[] lastModifieds;
+		final List<HeaderCache.Key> files;
+	}
+
+	static public final int CAPACITY_DEFAULT = 64;
+
+	static private int capacity = CAPACITY_DEFAULT;
+
+	// access-ordered, so eldest is least recently used, as HeaderCache
+	static private final LinkedHashMap<String,Entry> ENTRIES =
+		new LinkedHashMap<String,Entry>( 16, 0.75f, true ) {
+			@Override
+			protected boolean removeEldestEntry( Map.Entry<String,Entry> me ) {
+				return size() > capacity;
+			}
+		};
+}
+
+// eof
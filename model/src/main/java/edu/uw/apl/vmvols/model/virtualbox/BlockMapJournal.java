@@ -0,0 +1,159 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.virtualbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.EndianUtils;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A tiny intent journal protecting block map updates in a .vdi file.
+ * The .vdi format has no journal of its own, so we keep one in a
+ * sidecar file alongside the .vdi (foo.vdi.bmj).
+ *
+ * A block map flush (see VDIDisk.flushBlockMap) is then:
+ *
+ * 1: sync the new blocks' data to the .vdi
+ *
+ * 2: write the dirty range of block map entries, plus the new
+ * cBlocksAllocated, here, and sync
+ *
+ * 3: write the same to the .vdi block map and header, and sync
+ *
+ * 4: delete the journal
+ *
+ * A crash before 2 completes leaves the .vdi untouched, and a
+ * partial journal fails its checksum and is ignored.  A crash during
+ * 3 is repaired by replaying the journal at next open.  Either way,
+ * no block map entry ever refers to an unwritten block, and the map
+ * and cBlocksAllocated always agree.
+ *
+ * Layout, all little-endian like the .vdi itself:
+ *
+ * magic(4) first(4) count(4) blocksAllocated(4) entries(4*count) crc32(8)
+ */
+class BlockMapJournal {
+
+	BlockMapJournal( File vdi ) {
+		file = new File( vdi.getPath() + FILESUFFIX );
+	}
+
+	File getFile() {
+		return file;
+	}
+	
+	void write( int[] blockMap, int first, int count, long blocksAllocated )
+		throws IOException {
+		byte[] ba = new byte[HEADERSIZEOF + 4*count + 8];
+		EndianUtils.writeSwappedInteger( ba, 0, MAGIC );
+		EndianUtils.writeSwappedInteger( ba, 4, first );
+		EndianUtils.writeSwappedInteger( ba, 8, count );
+		EndianUtils.writeSwappedInteger( ba, 12, (int)blocksAllocated );
+		for( int i = 0; i < count; i++ ) {
+			EndianUtils.writeSwappedInteger( ba, HEADERSIZEOF + 4*i,
+											 blockMap[first+i] );
+		}
+		CRC32 crc = new CRC32();
+		crc.update( ba, 0, ba.length - 8 );
+		EndianUtils.writeSwappedLong( ba, ba.length - 8, crc.getValue() );
+		RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+		try {
+			raf.setLength( 0 );
+			raf.write( ba );
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the journalled update, or null if there is no journal or
+	 * it is incomplete (we crashed while writing it, so the .vdi itself
+	 * was never touched)
+	 */
+	Record read() throws IOException {
+		if( !file.isFile() )
+			return null;
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		byte[] ba;
+		try {
+			if( raf.length() < HEADERSIZEOF + 8 )
+				return null;
+			ba = new byte[(int)raf.length()];
+			raf.readFully( ba );
+		} finally {
+			raf.close();
+		}
+		if( EndianUtils.readSwappedInteger( ba, 0 ) != MAGIC )
+			return null;
+		int count = EndianUtils.readSwappedInteger( ba, 8 );
+		if( count < 0 || ba.length != HEADERSIZEOF + 4*count + 8 )
+			return null;
+		CRC32 crc = new CRC32();
+		crc.update( ba, 0, ba.length - 8 );
+		if( EndianUtils.readSwappedLong( ba, ba.length - 8 ) !=
+			crc.getValue() )
+			return null;
+		Record result = new Record();
+		result.first = EndianUtils.readSwappedInteger( ba, 4 );
+		result.blocksAllocated =
+			EndianUtils.readSwappedUnsignedInteger( ba, 12 );
+		result.entries = new int[count];
+		for( int i = 0; i < count; i++ ) {
+			result.entries[i] = EndianUtils.readSwappedInteger
+				( ba, HEADERSIZEOF + 4*i );
+		}
+		return result;
+	}
+
+	void clear() {
+		file.delete();
+	}
+
+	static class Record {
+		int first;
+		int[] entries;
+		long blocksAllocated;
+	}
+	
+	private final File file;
+
+	static public final String FILESUFFIX = ".bmj";
+
+	// 'BMJ1'
+	static private final int MAGIC = 0x314a4d42;
+
+	static private final int HEADERSIZEOF = 4 + 4 + 4 + 4;
+}
+
+// eof
@@ -30,10 +30,11 @@ package edu.uw.apl.vmvols.model.virtualbox;
 import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import edu.uw.apl.vmvols.model.ByteSource;
 import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 import edu.uw.apl.vmvols.model.VirtualDisk;
 
@@ -80,6 +81,8 @@ public class DifferenceDisk extends DynamicDisk {
 		  and a parent of this disk cannot be active.
 		*/
 		RandomAccessVirtualDisk parentRA = parent.getRandomAccess( false );
+		if( writable )
+			prepareWrites();
 		return new DifferenceDiskRandomAccess( parentRA, writable );
 	}
 
@@ -99,8 +102,8 @@ public class DifferenceDisk extends DynamicDisk {
 			throws IOException {
 			super( size() );
 			this.parentRA = parentRA;
-			String mode = writable ? "rw" : "r";
-			raf = new RandomAccessFile( source, mode);
+			this.writable = writable;
+			store = ByteSource.open( source, writable );
 			dPos();
 			block = new byte[(int)header.blockSize()];
 			bmePrev = -1;
@@ -110,7 +113,14 @@ public class DifferenceDisk extends DynamicDisk {
 		@Override
 		public void close() throws IOException {
 			parentRA.close();
-			raf.close();
+			flush();
+			store.close();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if( writable )
+				flushBlockMap( store );
 		}
 		   
 		@Override
@@ -160,6 +170,8 @@ public class DifferenceDisk extends DynamicDisk {
 			int actual = actualL > Integer.MAX_VALUE ? Integer.MAX_VALUE :
 				(int)actualL;
 
+			boolean sequential = sequential( actual );
+
 			//logger.debug( "Actual " + actualL + " " + actual );
 			int total = 0;
 			while( total < actual ) {
@@ -179,18 +191,44 @@ public class DifferenceDisk extends DynamicDisk {
 					posn += fromParent;
 					break;
 				default:
-					if( bme != bmePrev ) {
+					if( bme == bmePrev && bOffset >= cachedFrom &&
+						bOffset + fromBlock <= cachedTo ) {
+						System.arraycopy( block, bOffset, ba, off+total,
+										  fromBlock );
+					} else if( fromBlock == inBlock ) {
+						/*
+						  Wanted up to the end of this block, so read
+						  straight into the caller's array, along with
+						  any following blocks contiguous with it.
+						*/
+						fromBlock = contiguous( bIndex, bme, fromBlock,
+												left );
 						// need long operands to the product, to avoid overfow
 						long seek = header.dataOffset() +
-							bme * header.blockSize();
+							bme * header.blockSize() + bOffset;
 						if( log.isTraceEnabled() ) {
-							log.trace( getGeneration() + ".seek " + seek );
+							log.trace( getGeneration() + ".seek " + seek +
+									   " " + fromBlock );
 						}
-						raf.seek( seek );
-						raf.readFully( block );
+						store.readFully( seek, ba, off+total, fromBlock );
+					} else {
+						int from = spanStart( bOffset, sequential );
+						int to = spanEnd( bOffset + fromBlock, block.length,
+										  sequential );
+						// need long operands to the product, to avoid overfow
+						long seek = header.dataOffset() +
+							bme * header.blockSize() + from;
+						if( log.isTraceEnabled() ) {
+							log.trace( getGeneration() + ".seek " + seek +
+									   " " + (to - from) );
+						}
+						store.readFully( seek, block, from, to - from );
 						bmePrev = bme;
+						cachedFrom = from;
+						cachedTo = to;
+						System.arraycopy( block, bOffset, ba, off+total,
+										  fromBlock );
 					}
-					System.arraycopy( block, bOffset, ba, off+total, fromBlock);
 					total += fromBlock;
 					posn  += fromBlock;
 					parentRA.skip( fromBlock );
@@ -201,10 +239,20 @@ public class DifferenceDisk extends DynamicDisk {
 			return total;
 		}
 
+		/**
+		   A write to a block not yet allocated in this disk appends
+		   a whole new block.  Where the write does not cover the
+		   whole block, the rest is filled from the parent, so that
+		   the block is complete before any block map entry refers to
+		   it.  Block map entries are held in memory and written in
+		   batches, see VDIDisk.flushBlockMap.
+		*/
 		@Override
 		public void writeImpl( byte[] ba, int off, int len )
 			throws IOException {
 
+			if( !writable )
+				throw new IOException( "Not writable: " + source );
 			log.debug( "Write.[BII: " + off + " " + len );
 
 			// do min in long space, since size - posn may overflow int...
@@ -221,23 +269,44 @@ public class DifferenceDisk extends DynamicDisk {
 				int n = Math.min( left, inBlock );
 				//logger.debug( "inBlock left n " + inBlock + " " + left + " "+n);
 				int bme = blockMap[bIndex];
+				boolean flushNeeded = false;
 				if( bme == VDI_IMAGE_BLOCK_FREE ||
 					bme == VDI_IMAGE_BLOCK_ZERO ) {
-					bme = nextFreeBlock();
-					blockMap[bIndex] = bme;
-					writeBlockMap();
+					bme = allocateBlock();
+					// need long operands to the product, to avoid overflow...
+					long seek = header.dataOffset() +
+						bme * header.blockSize();
+					if( n == block.length ) {
+						store.write( seek, ba, off+total, n );
+						bmePrev = -1;
+					} else {
+						parentRA.seek( posn - bOffset );
+						int fromParent = parentRA.readImpl( block, 0,
+															block.length );
+						// a final, partial block, beyond parent's eof
+						Arrays.fill( block, fromParent, block.length,
+									 (byte)0 );
+						System.arraycopy( ba, off+total, block, bOffset, n );
+						store.write( seek, block );
+						bmePrev = bme;
+						cachedFrom = 0;
+						cachedTo = block.length;
+					}
+					flushNeeded = commitBlock( bIndex, bme );
+				} else {
+					/*
+					  physical file location is sector lookup from
+					  current blockMapEntry, plus our offset into
+					  that block..
+					*/
+					// need long operands to the product, to avoid overflow...
+					long seek = header.dataOffset() +
+						bme * header.blockSize() + bOffset;
+					store.write( seek, ba, off+total, n );
+					// keep any cached copy of this block coherent
+					if( bme == bmePrev )
+						System.arraycopy( ba, off+total, block, bOffset, n );
 				}
-				//logger.debug( "gte " + gte + " " + gdIndex + " "+ gtIndex );
-				/*
-				  physical file location is sector lookup from
-				  current blockMapEntry, plus our offset into
-				  that block..
-				*/
-				// need long operands to the product, to avoid overflow...
-				long seek = header.dataOffset() +
-					bme * header.blockSize() + bOffset;
-				raf.seek( seek );
-				raf.write( ba, off+total, n );
 				if( log.isDebugEnabled() ) {
 					log.debug( getGeneration() + ".write " + posn );
 				}
@@ -248,6 +317,8 @@ public class DifferenceDisk extends DynamicDisk {
 				total += n;
 				posn += n;
 				dPos();
+				if( flushNeeded )
+					flushBlockMap( store );
 			}
 		}
 
@@ -279,11 +350,13 @@ public class DifferenceDisk extends DynamicDisk {
 						   " bOffset: " + bOffset );
 		}
 
-		private final RandomAccessFile raf;
+		private final ByteSource store;
+		private final boolean writable;
 		private final RandomAccessVirtualDisk parentRA;
 		private int bIndex, bOffset;
 		private final byte[] block;
-		private int bmePrev;
+		// block holds valid data for bmePrev in [cachedFrom,cachedTo)
+		private int bmePrev, cachedFrom, cachedTo;
 	}
 
 	//	private VDIDisk parent;
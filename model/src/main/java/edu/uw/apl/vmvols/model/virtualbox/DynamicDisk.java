@@ -47,6 +47,22 @@ public abstract class DynamicDisk extends VDIDisk {
 	long contiguousStorage() {
 		return header.blockSize();
 	}
+
+	/**
+	 * Extend a read of n bytes, which ends at the end of block
+	 * bIndex, held at host block bme, over the following blocks
+	 * while they are wholly wanted (left bytes are wanted in all) and
+	 * follow on in the host file.  VirtualBox appends blocks as they
+	 * are first written, so a disk written sequentially is one run.
+	 * Returns the extended length, readable with a single I/O.
+	 */
+	int contiguous( int bIndex, int bme, int n, int left ) {
+		int bs = (int)header.blockSize();
+		for( int i = bIndex + 1; i < blockMap.length && left - n >= bs &&
+				 blockMap[i] == bme + (i - bIndex); i++ )
+			n += bs;
+		return n;
+	}
 }
 
 // eof
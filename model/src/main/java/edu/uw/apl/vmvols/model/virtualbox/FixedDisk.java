@@ -30,11 +30,11 @@ package edu.uw.apl.vmvols.model.virtualbox;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
 
+import edu.uw.apl.vmvols.model.ByteSource;
 import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 import edu.uw.apl.vmvols.model.Utils;
 
@@ -93,14 +93,12 @@ public class FixedDisk extends VDIDisk {
 	class FixedDiskRandomAccess extends RandomAccessVirtualDisk {
 		FixedDiskRandomAccess( boolean writable ) throws IOException {
 			super( size() );
-			String mode = writable ? "rw" : "r";
-			raf = new RandomAccessFile( source, mode );
-			raf.seek( header.dataOffset() );
+			store = ByteSource.open( source, writable );
 		}
 
 		@Override
 		public void close() throws IOException {
-			raf.close();
+			store.close();
 		}
 
 		@Override
@@ -109,7 +107,6 @@ public class FixedDisk extends VDIDisk {
 			  According to java.io.RandomAccessFile, no restriction on
 			  seek.  That is, seek posn can be -ve or past eof!
 			*/
-			raf.seek( header.dataOffset() + s );
 			posn = s;
 		}
 
@@ -142,7 +139,11 @@ public class FixedDisk extends VDIDisk {
 			//logger.debug( "Actual " + actualL + " " + actual );
 			int total = 0;
 			while( total < actual ) {
-				int nin = raf.read( ba, off+total, actual-total );
+				int nin = store.read( header.dataOffset() + posn,
+									  ba, off+total, actual-total );
+				// a host file truncated short of the disk size
+				if( nin < 0 )
+					break;
 				if( log.isDebugEnabled() ) {
 					log.debug( getGeneration() + ".read " + posn  +
 							   " = " + nin );
@@ -170,14 +171,14 @@ public class FixedDisk extends VDIDisk {
 
 			log.debug( "Write.[BII: " + off + " " + len );
 
-			raf.write( ba, off, len );
+			store.write( header.dataOffset() + posn, ba, off, len );
 			if( log.isDebugEnabled() ) {
 				log.debug( getGeneration() + ".write " + posn );
 			}
 			posn += len;
 		}
 
-		private final RandomAccessFile raf;
+		private final ByteSource store;
 	}
 }
 
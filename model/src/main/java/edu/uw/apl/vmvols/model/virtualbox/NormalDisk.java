@@ -29,12 +29,14 @@ package edu.uw.apl.vmvols.model.virtualbox;
 
 import java.io.File;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import edu.uw.apl.vmvols.model.ByteSource;
 import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+import edu.uw.apl.vmvols.model.Utils;
 import edu.uw.apl.vmvols.model.VirtualDisk;
 
 /**
@@ -58,22 +60,6 @@ public class NormalDisk extends DynamicDisk {
 	
 	protected NormalDisk( File f, VDIHeader h ) {
 		super( f, h );
-
-		/*
-		  Maintain random and zero blocks as an optimisation for all
-		  reads which hit such a block.  From experience, we use the
-		  fact that most times VirtualBox builds .vdi files with a
-		  block size of 1MB.
-		*/
-		if( header.blockSize() == 1024*1024 ) {
-			randomBlock = RANDOMBLOCK_20;
-			zeroBlock = ZEROBLOCK_20;
-		} else {
-			randomBlock = new byte[(int)header.blockSize()];
-			for( int i = 0; i < randomBlock.length; i++ )
-				randomBlock[i] = (byte)RANDOM;
-			zeroBlock = new byte[randomBlock.length];
-		}
 	}
 
 	@Override
@@ -86,20 +72,23 @@ public class NormalDisk extends DynamicDisk {
 	public RandomAccessVirtualDisk getRandomAccess( boolean writable )
 		throws IOException {
 		readBlockMap();
+		if( writable )
+			prepareWrites();
 		return new NormalDiskRandomAccess( writable );
 	}
 
 	class NormalDiskRandomAccess extends RandomAccessVirtualDisk {
 		NormalDiskRandomAccess( boolean writable ) throws IOException {
 			super( size() );
-			String mode = writable ? "rw" : "r";
-			raf = new RandomAccessFile( source, mode );
+			this.writable = writable;
+			store = ByteSource.open( source, writable );
 			dPos();
 			/*
-			  A local buffer for one whole block of data.  We always
-			  read one block from the underlying content, even if if
-			  the caller requests fewer.  Acts as a sort of 'readahead
-			  buffer'
+			  A local buffer for one whole block of data.  Sequential
+			  reads fill all of it, even if the caller requests fewer
+			  bytes, so it acts as a sort of 'readahead buffer'.
+			  Random reads fill just the aligned pieces they need, see
+			  RandomAccessVirtualDisk.sequential.
 			*/
 			block = new byte[(int)header.blockSize()];
 			bmePrev = -1;
@@ -114,7 +103,14 @@ public class NormalDisk extends DynamicDisk {
 
 		@Override
 		public void close() throws IOException {
-			raf.close();
+			flush();
+			store.close();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if( writable )
+				flushBlockMap( store );
 		}
 
 		/**
@@ -143,6 +139,8 @@ public class NormalDisk extends DynamicDisk {
 			int actual = actualL > Integer.MAX_VALUE ? Integer.MAX_VALUE :
 				(int)actualL;
 
+			boolean sequential = sequential( actual );
+
 			//logger.debug( "Actual " + actualL + " " + actual );
 			int total = 0;
 			while( total < actual ) {
@@ -158,15 +156,14 @@ public class NormalDisk extends DynamicDisk {
 					if( log.isTraceEnabled() ) {
 						log.trace( "BLOCK_FREE " + posn + " " + fromBlock );
 					}
-					// have a random block pre-allocated, fill from it...
-					System.arraycopy( randomBlock, 0, ba, off+total, fromBlock);
+					Arrays.fill( ba, off+total, off+total+fromBlock,
+								 (byte)RANDOM );
 					break;
 				case VDI_IMAGE_BLOCK_ZERO: 
 					if( log.isTraceEnabled() ) {
 						log.trace( "BLOCK_ZERO " + posn + " " + fromBlock );
 					}
-					// have a zero block pre-allocated, fill from it...
-					System.arraycopy( zeroBlock, 0, ba, off+total, fromBlock );
+					Arrays.fill( ba, off+total, off+total+fromBlock, (byte)0 );
 					break;
 				default:
 					/*
@@ -175,18 +172,44 @@ public class NormalDisk extends DynamicDisk {
 					  block..
 					*/
 					// need long operands to the product, to avoid overflow...
-					if( bme != bmePrev ) {
+					if( bme == bmePrev && bOffset >= cachedFrom &&
+						bOffset + fromBlock <= cachedTo ) {
+						System.arraycopy( block, bOffset, ba, off+total,
+										  fromBlock );
+					} else if( fromBlock == inBlock ) {
+						/*
+						  Wanted up to the end of this block, so read
+						  straight into the caller's array, along with
+						  any following blocks contiguous with it.
+						*/
+						fromBlock = contiguous( bIndex, bme, fromBlock,
+												left );
+						// need long operands to the product, to avoid overfow
+						long seek = header.dataOffset() +
+							bme * header.blockSize() + bOffset;
+						if( log.isTraceEnabled() ) {
+							log.trace( getGeneration() + ".seek " + seek +
+									   " " + fromBlock );
+						}
+						store.readFully( seek, ba, off+total, fromBlock );
+					} else {
+						int from = spanStart( bOffset, sequential );
+						int to = spanEnd( bOffset + fromBlock, block.length,
+										  sequential );
 						// need long operands to the product, to avoid overfow
 						long seek = header.dataOffset() +
-							bme * header.blockSize();
+							bme * header.blockSize() + from;
 						if( log.isTraceEnabled() ) {
-							log.trace( getGeneration() + ".seek " + seek );
+							log.trace( getGeneration() + ".seek " + seek +
+									   " " + (to - from) );
 						}
-						raf.seek( seek );
-						raf.readFully( block );
+						store.readFully( seek, block, from, to - from );
 						bmePrev = bme;
+						cachedFrom = from;
+						cachedTo = to;
+						System.arraycopy( block, bOffset, ba, off+total,
+										  fromBlock );
 					}
-					System.arraycopy( block, bOffset, ba, off+total, fromBlock);
 				}
 				total += fromBlock;
 				posn += fromBlock;
@@ -205,11 +228,24 @@ public class NormalDisk extends DynamicDisk {
 			dPos();
 		}
 
-		// LOOK: Our .vdi writes not yet well-tested.  
+		/**
+		   A write to a block not yet allocated appends a whole new
+		   block, zero-filled where the write does not cover it, so
+		   that the block is complete before any block map entry
+		   refers to it.  Block map entries are held in memory and
+		   written in batches, see VDIDisk.flushBlockMap.
+
+		   A write of zeros to a block not yet allocated allocates
+		   nothing, a whole block of them just marks the block ZERO,
+		   so wipes and restores do not balloon the file.  See
+		   VirtualDisk.setReleaseZeros for allocated blocks.
+		*/
 		@Override
 		public void writeImpl( byte[] ba, int off, int len )
 			throws IOException {
 
+			if( !writable )
+				throw new IOException( "Not writable: " + source );
 			log.debug( "Write.[BII: " + off + " " + len );
 			
 			// Do min in long space, since size - posn may overflow int...
@@ -227,32 +263,87 @@ public class NormalDisk extends DynamicDisk {
 				int n = Math.min( left, inBlock );
 				//logger.debug( "inBlock left n " + inBlock + " " + left + " "+n);
 				int bme = blockMap[bIndex];
-				if( bme == VDI_IMAGE_BLOCK_FREE ||
-					bme == VDI_IMAGE_BLOCK_ZERO ) {
-					bme = nextFreeBlock();
-					blockMap[bIndex] = bme;
-					writeBlockMap();
+				boolean flushNeeded = false;
+				boolean unallocated = bme == VDI_IMAGE_BLOCK_FREE ||
+					bme == VDI_IMAGE_BLOCK_ZERO;
+				if( ( unallocated ||
+					  ( releaseZeros && n == block.length ) ) &&
+					Utils.isZero( ba, off+total, n ) ) {
+					// unallocated blocks already read as zeros
+					if( n == block.length && bme != VDI_IMAGE_BLOCK_ZERO ) {
+						flushNeeded = commitBlock
+							( bIndex, VDI_IMAGE_BLOCK_ZERO );
+						if( bme == bmePrev )
+							bmePrev = -1;
+					}
+				} else if( unallocated ) {
+					bme = allocateBlock();
+					// need long operands to the product, to avoid overflow...
+					long seek = header.dataOffset() +
+						bme * header.blockSize();
+					if( n == block.length ) {
+						store.write( seek, ba, off+total, n );
+						bmePrev = -1;
+					} else {
+						Arrays.fill( block, (byte)0 );
+						System.arraycopy( ba, off+total, block, bOffset, n );
+						store.write( seek, block );
+						bmePrev = bme;
+						cachedFrom = 0;
+						cachedTo = block.length;
+					}
+					flushNeeded = commitBlock( bIndex, bme );
+				} else {
+					/*
+					  physical file location is sector lookup from
+					  current blockMapEntry, plus our offset into
+					  that block..
+					*/
+					// need long operands to the product, to avoid overflow...
+					long seek = header.dataOffset() +
+						bme * header.blockSize() + bOffset;
+					store.write( seek, ba, off+total, n );
+					// keep any cached copy of this block coherent
+					if( bme == bmePrev )
+						System.arraycopy( ba, off+total, block, bOffset, n );
 				}
-				//logger.debug( "gte " + gte + " " + gdIndex + " "+ gtIndex );
-				/*
-				  physical file location is sector lookup from
-				  current blockMapEntry, plus our offset into
-				  that block..
-				*/
-				// need long operands to the product, to avoid overflow...
-				long seek = header.dataOffset() +
-					bme * header.blockSize() + bOffset;
-				raf.seek( seek );
-				raf.write( ba, off+total, n );
 				if( log.isDebugEnabled() ) {
 					log.debug( getGeneration() + ".write " + posn );
 				}
 				total += n;
 				posn += n;
 				dPos();
+				if( flushNeeded )
+					flushBlockMap( store );
 			}
 		}
 		
+		/**
+		   Whole blocks in the range become ZERO, see
+		   VDIDisk.discardBlocks, the rest is zero-filled.  A final
+		   partial block of the disk counts as whole.
+		*/
+		@Override
+		public void discard( long offset, long length ) throws IOException {
+			dropBytes();
+			if( !writable )
+				throw new IOException( "Not writable: " + source );
+			long bs = header.blockSize();
+			long end = Math.min( size, offset + length );
+			if( offset < 0 || offset >= end )
+				return;
+			long first = (offset + bs - 1) / bs;
+			long last = end == size ? (end + bs - 1) / bs : end / bs;
+			if( first >= last ) {
+				zeroFill( offset, end );
+				return;
+			}
+			zeroFill( offset, first * bs );
+			zeroFill( last * bs, end );
+			discardBlocks( store, (int)first, (int)last );
+			bmePrev = -1;
+		}
+		
 		/**
 		 * Called whenever the local posn changes value, which it will
 		 * via any number of operations: read,write,skip,seek.
@@ -293,15 +384,14 @@ public class NormalDisk extends DynamicDisk {
 		}
 
 	
-		private final RandomAccessFile raf;
+		private final ByteSource store;
+		private final boolean writable;
 		private int bIndex, bOffset;
 		private final byte[] block;
-		private int bmePrev;
+		// block holds valid data for bmePrev in [cachedFrom,cachedTo)
+		private int bmePrev, cachedFrom, cachedTo;
 	}
 	
-	private final byte[] randomBlock;
-	private final byte[] zeroBlock;
-	
 	/**
 	 * Block marked as free is not allocated in image file, read from
 	 * this block may return any random data (?? surely zeros ?? What
@@ -318,19 +408,6 @@ public class NormalDisk extends DynamicDisk {
 	
 	// random?? Well, 0 is random!
 	static private final int RANDOM = 0;
-	
-	/*
-	  In our experience, block size seems to be 1MB, so prealloc
-	  random and zero blocks for all those RandomAccessVirtualDisks
-	  that can use them (so saving on per-stream copies)
-	*/
-	static private final byte[] RANDOMBLOCK_20 = new byte[1024*1024];
-	static {
-		for( int i = 0; i < RANDOMBLOCK_20.length; i++ )
-			RANDOMBLOCK_20[i] = (byte)RANDOM;
-	}
-	
-	static private final byte[] ZEROBLOCK_20 = new byte[1024*1024];
 }
 
 // eof
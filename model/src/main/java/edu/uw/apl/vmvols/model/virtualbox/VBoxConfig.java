@@ -0,0 +1,199 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.virtualbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Just enough of a VirtualBox .vbox (XML) machine config to tell which
+ * disk files are attached to the VM, in controller order, and the
+ * snapshot chain behind each.  Two parts of the config matter:
+ *
+ * MediaRegistry/HardDisks: every disk image the VM knows of, each
+ * HardDisk element nested inside its parent's (a differencing disk
+ * inside the disk it was snapshotted from).
+ *
+ * StorageControllers (the Machine's own, i.e. current state, not
+ * those under any Snapshot element): AttachedDevice elements of type
+ * HardDisk, by port and device, whose Image uuid names the disk the
+ * VM would write to, i.e. the active disk.
+ */
+public class VBoxConfig {
+
+	public VBoxConfig( File vboxFile ) throws IOException {
+		this.vboxFile = vboxFile;
+		media = new HashMap<String,Medium>();
+		chains = new ArrayList<List<File>>();
+		Document d;
+		try {
+			/*
+			  .vbox files may come from untrusted VM archives, so no
+			  DOCTYPE, hence no external entities, is ever resolved
+			*/
+			DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+			dbf.setFeature( XMLConstants.FEATURE_SECURE_PROCESSING, true );
+			dbf.setFeature
+				( "http://apache.org/xml/features/disallow-doctype-decl",
+				  true );
+			dbf.setFeature
+				( "http://xml.org/sax/features/external-general-entities",
+				  false );
+			dbf.setFeature
+				( "http://xml.org/sax/features/external-parameter-entities",
+				  false );
+			dbf.setXIncludeAware( false );
+			dbf.setExpandEntityReferences( false );
+			DocumentBuilder db = dbf.newDocumentBuilder();
+			d = db.parse( vboxFile );
+		} catch( ParserConfigurationException pce ) {
+			throw new IOException( pce );
+		} catch( SAXException se ) {
+			throw new VDIException( "Bad .vbox file " + vboxFile + ": " + se );
+		}
+		NodeList nl = d.getElementsByTagName( "MediaRegistry" );
+		for( int i = 0; i < nl.getLength(); i++ ) {
+			for( Element hds : children( (Element)nl.item(i), "HardDisks" ) )
+				readMedia( hds, null );
+		}
+		nl = d.getElementsByTagName( "Machine" );
+		if( nl.getLength() == 0 )
+			throw new VDIException( "No Machine in " + vboxFile );
+		Element machine = (Element)nl.item(0);
+		for( Element scs : children( machine, "StorageControllers" ) ) {
+			for( Element sc : children( scs, "StorageController" ) )
+				readController( sc );
+		}
+	}
+
+	/**
+	 * @return one list per attached hard disk, in controller, port,
+	 * device order.  Each list is the snapshot chain of that disk,
+	 * base disk first, active disk last.
+	 */
+	public List<List<File>> getDiskChains() {
+		return chains;
+	}
+
+	private void readMedia( Element parent, String parentUUID ) {
+		for( Element hd : children( parent, "HardDisk" ) ) {
+			String uuid = hd.getAttribute( "uuid" );
+			String location = hd.getAttribute( "location" );
+			File f = new File( location );
+			if( !f.isAbsolute() )
+				f = new File( vboxFile.getAbsoluteFile().getParentFile(),
+							  location );
+			media.put( uuid, new Medium( f, parentUUID ) );
+			readMedia( hd, uuid );
+		}
+	}
+
+	private void readController( Element sc ) {
+		List<Element> ads = new ArrayList<Element>();
+		for( Element ad : children( sc, "AttachedDevice" ) ) {
+			if( "HardDisk".equals( ad.getAttribute( "type" ) ) )
+				ads.add( ad );
+		}
+		Collections.sort( ads, new Comparator<Element>() {
+				public int compare( Element e1, Element e2 ) {
+					int p = intAttribute( e1, "port" ) -
+						intAttribute( e2, "port" );
+					if( p != 0 )
+						return p;
+					return intAttribute( e1, "device" ) -
+						intAttribute( e2, "device" );
+				}
+			} );
+		for( Element ad : ads ) {
+			List<Element> images = children( ad, "Image" );
+			if( images.isEmpty() )
+				continue;
+			String uuid = images.get(0).getAttribute( "uuid" );
+			List<File> chain = new ArrayList<File>();
+			while( uuid != null ) {
+				Medium m = media.get( uuid );
+				if( m == null )
+					throw new VDIException( "Unknown medium " + uuid +
+											" in " + vboxFile );
+				chain.add( 0, m.file );
+				uuid = m.parentUUID;
+			}
+			chains.add( chain );
+		}
+	}
+
+	static private int intAttribute( Element e, String name ) {
+		String s = e.getAttribute( name );
+		return s.length() == 0 ? 0 : Integer.parseInt( s );
+	}
+	
+	// Direct child elements only, unlike getElementsByTagName
+	static private List<Element> children( Element e, String name ) {
+		List<Element> result = new ArrayList<Element>();
+		for( Node n = e.getFirstChild(); n != null; n = n.getNextSibling() ) {
+			if( n.getNodeType() == Node.ELEMENT_NODE &&
+				name.equals( n.getNodeName() ) )
+				result.add( (Element)n );
+		}
+		return result;
+	}
+
+	static private class Medium {
+		Medium( File file, String parentUUID ) {
+			this.file = file;
+			this.parentUUID = parentUUID;
+		}
+		final File file;
+		final String parentUUID;
+	}
+	
+	private final File vboxFile;
+	private final Map<String,Medium> media;
+	private final List<List<File>> chains;
+}
+
+// eof
@@ -31,6 +31,7 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
 import java.util.List;
@@ -43,10 +44,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.io.FileUtils;
 
+import edu.uw.apl.vmvols.model.DiskProbe;
 import edu.uw.apl.vmvols.model.VirtualDisk;
 import edu.uw.apl.vmvols.model.VirtualMachine;
 import edu.uw.apl.vmvols.model.vmware.VMDKDisk;
-import edu.uw.apl.vmvols.model.vmware.VMDKException;
 
 /**
  * @author Stuart Maclean
@@ -102,60 +103,109 @@ public class VBoxVM extends VirtualMachine {
 	 * @see isVBoxVM
 	 */
 	public VBoxVM( File f ) throws IOException {
+		this( f, false );
+	}
+
+	/**
+	 * @param f - a file which is expected to satisfy isVBoxVM
+	 *
+	 * @param fromConfig - if true, open just those disks the .vbox
+	 * file says are attached (and their snapshot chains), in
+	 * controller order.  Otherwise, walk the directory tree for any
+	 * .vdi/.vmdk files and link them by uuid.  The former ignores
+	 * stray disk files and needs no recursive walk, so is the better
+	 * choice for large directories or slow filesystems.
+	 *
+	 * @see VBoxConfig
+	 */
+	public VBoxVM( File f, boolean fromConfig ) throws IOException {
 		if( !isVBoxVM( f ) )
 			throw new IllegalArgumentException
 				( "Not a VirtualBox VM directory: " + f );
 		dir = f;
 		baseDisks = new ArrayList<VirtualDisk>();
 		log = LogFactory.getLog( getClass() );
+		if( fromConfig )
+			readConfig();
+		else
+			walk();
+	}
+
+	private void walk() throws IOException {
 		List<VirtualDisk> children = new ArrayList<VirtualDisk>();
 		
-		// A VBox VM can manage .vdi disks...
+		/*
+		  A VBox VM can manage .vdi disks, and also VMware .vmdk
+		  disks. If so, it buries its own uuidImage/uuidParent info
+		  in the Descriptor's 'ddb.*' entries.  One directory walk
+		  finds both, then all are probed in parallel.
+		*/
 		Collection<File> fs = FileUtils.listFiles
-			( dir, new String[] { VDIDisk.FILESUFFIX }, true );
-		for( File el : fs ) {
-			VDIDisk vdi = null;
-			try {
-				vdi = VDIDisk.readFrom( el );
-			} catch( VDIException e ) {
-				log.warn( el + ": " + e );
-				continue;
-			}
-			if( vdi == null )
-				continue;
-			if( vdi.getUUIDParent().equals( VirtualDisk.NULLUUID ) )
-				baseDisks.add( vdi );
+			( dir, new String[] { VDIDisk.FILESUFFIX, VMDKDisk.FILESUFFIX },
+			  true );
+		for( VirtualDisk vd : DiskProbe.readAll( fs ) ) {
+			if( vd.getUUIDParent().equals( VirtualDisk.NULLUUID ) )
+				baseDisks.add( vd );
 			else
-				children.add( vdi );
+				children.add( vd );
 		}
-			
+		// Link base disks to child disks...
+		for( VirtualDisk d : baseDisks )
+			link( d, children );
+	}
+
+	private void readConfig() throws IOException {
+		File[] vboxes = dir.listFiles( VBOXFILE );
+		Arrays.sort( vboxes );
+		VBoxConfig config = new VBoxConfig( vboxes[0] );
+		List<List<File>> chains = new ArrayList<List<File>>();
+
 		/*
-		  A VBox VM can also manage VMware .vmdk disks. If so,
-		  it buries its own uuidImage/uuidParent info in the
-		  Descriptor's 'ddb.*' entries.
+		  A disk the config names but which is not on disk, e.g. a
+		  snapshot deleted by hand, spoils its chain: we drop the
+		  chain here, as we would one we cannot read, see below.
 		*/
-		fs = FileUtils.listFiles
-			( dir, new String[] { VMDKDisk.FILESUFFIX }, true );
-		for( File el : fs ) {
-			VMDKDisk vmdk = null;
-			try {
-				vmdk = VMDKDisk.readFrom( el );
-			} catch( VMDKException e ) {
-				log.warn( el + ": " + e );
-				continue;
+		chains:
+		for( List<File> chain : config.getDiskChains() ) {
+			for( File cf : chain ) {
+				if( !cf.isFile() ) {
+					log.warn( dir + ": missing disk " + cf );
+					continue chains;
+				}
 			}
-			if( vmdk == null )
-				// LOOK: log e ??
-				continue;
-			if( vmdk.getUUIDParent().equals( VirtualDisk.NULLUUID ) )
-				baseDisks.add( vmdk );
-			else
-				children.add( vmdk );
+			chains.add( chain );
 		}
 		
-		// Link base disks to child disks...
-		for( VirtualDisk d : baseDisks )
-			link( d, children );
+		// Every disk of every chain, probed in parallel...
+		List<File> fs = new ArrayList<File>();
+		for( List<File> chain : chains )
+			fs.addAll( chain );
+		Map<File,VirtualDisk> disks = new HashMap<File,VirtualDisk>();
+		for( VirtualDisk vd : DiskProbe.readAll( fs ) )
+			disks.put( vd.getPath(), vd );
+
+		/*
+		  then linked as the config says, base disk first.  A chain
+		  with any disk we cannot read is skipped whole, rather than
+		  presenting some older generation as the active disk.
+		*/
+		chains:
+		for( List<File> chain : chains ) {
+			List<VirtualDisk> vds = new ArrayList<VirtualDisk>();
+			for( File cf : chain ) {
+				VirtualDisk vd = disks.get( cf );
+				if( vd == null ) {
+					log.warn( dir + ": unreadable disk " + cf );
+					continue chains;
+				}
+				vds.add( vd );
+			}
+			for( int i = 1; i < vds.size(); i++ ) {
+				vds.get(i-1).setChild( vds.get(i) );
+				vds.get(i).setParent( vds.get(i-1) );
+			}
+			baseDisks.add( vds.get(0) );
+		}
 	}
 
 	@Override
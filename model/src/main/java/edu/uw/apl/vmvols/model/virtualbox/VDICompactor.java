@@ -0,0 +1,108 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.virtualbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.EndianUtils;
+
+import edu.uw.apl.vmvols.model.Compactor;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Compaction of a .vdi NormalDisk, see Compactor.  Everything up to
+ * the data area (pre-header, header, block map) is kept, the block
+ * map then rewritten to point at the compacted blocks, which follow
+ * in logical order.  Blocks holding only zeros become
+ * VDI_IMAGE_BLOCK_ZERO.
+ *
+ * Only base images qualify: in a DifferenceDisk a block of zeros
+ * written by the guest must mask the parent's data, and ZERO (unlike
+ * FREE) does not guarantee that on all VirtualBox versions.
+ *
+ * The NormalDisk object itself is stale afterwards, since it caches
+ * the old block map.  Re-read the file via VDIDisk.readFrom.
+ */
+public class VDICompactor {
+
+	static public void compact( NormalDisk nd ) throws IOException {
+		File f = nd.getPath();
+		/*
+		  Any journal describes the old layout, not the new, so must
+		  be written into the original, and deleted, before we copy:
+		  none may survive beside the compacted file
+		*/
+		nd.completeReplay();
+		VDIHeader h = nd.getHeader();
+		int[] blockMap = nd.getBlockMap();
+		File tmp = Compactor.compactFile( f );
+		RandomAccessFile in = new RandomAccessFile( f, "r" );
+		try {
+			RandomAccessFile out = new RandomAccessFile( tmp, "rw" );
+			try {
+				out.setLength( 0 );
+				Compactor.copy( in, out, 0, h.dataOffset() );
+				int[] slots = Compactor.copyUnits( nd, in, out,
+												   h.dataOffset() );
+				byte[] ba = new byte[4*slots.length];
+				for( int i = 0; i < slots.length; i++ ) {
+					int bme;
+					if( false ) {
+					} else if( slots[i] == Compactor.FREE ) {
+						// retain any existing ZERO entry
+						bme = blockMap[i];
+					} else if( slots[i] == Compactor.ZERO ) {
+						bme = VDIDisk.VDI_IMAGE_BLOCK_ZERO;
+					} else {
+						bme = slots[i];
+					}
+					EndianUtils.writeSwappedInteger( ba, 4*i, bme );
+				}
+				out.seek( h.blocksOffset() );
+				out.write( ba );
+				int allocated = Compactor.slots( slots );
+				EndianUtils.writeSwappedInteger( ba, 0, allocated );
+				out.seek( h.blocksAllocatedOffset() );
+				out.write( ba, 0, 4 );
+				out.setLength( h.dataOffset() +
+							   (long)allocated * h.blockSize() );
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		Compactor.replace( f, tmp );
+	}
+}
+
+// eof
@@ -33,15 +33,14 @@ import java.io.FilenameFilter;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.UUID;
 
+import edu.uw.apl.vmvols.model.ByteSource;
 import edu.uw.apl.vmvols.model.VirtualDisk;
 
 import org.apache.commons.io.EndianUtils;
@@ -210,80 +209,213 @@ abstract public class VDIDisk extends VirtualDisk {
 	*/
 	   
 	private void checkBlockMap() {
-		long fLength = getPath().length();
+		List<String> problems = blockMapProblems( blockMap );
+		if( !problems.isEmpty() )
+			throw new VDIException( problems.get(0) + ". Corrupt vdi? " +
+									getPath() );
+	}
+
+	/**
+	   One pass over the entries, with duplicates found by a BitSet
+	   indexed by entry, so no boxing.  Entries are bounded by the
+	   file length, so the BitSet is too.
+	*/
+	private List<String> blockMapProblems( int[] bm ) {
+		List<String> result = new ArrayList<String>();
 		long dto = dataOffset();
 		long bs = blockSize();
-		Set<Integer> s = new HashSet<Integer>();
-		for( int bme : blockMap ) {
+		long fileBlocks = (getPath().length() - dto) / bs;
+		BitSet seen = new BitSet( (int)Math.max( 0, fileBlocks ) );
+		for( int i = 0; i < bm.length; i++ ) {
+			int bme = bm[i];
 
 			// The bme may 'point' to no data at all...
 			if( bme == VDI_IMAGE_BLOCK_FREE || bme == VDI_IMAGE_BLOCK_ZERO )
 				continue;
-			
-			// 1: the bme could point past eof of true file
-			long highestOffset = dto + bme * bs + bs;
-			if( highestOffset > fLength ) {
-				throw new VDIException
-					( "BlockMapEntry too big: " + bme +
-					  ". Corrupt vdi? " + getPath() );
+
+			// 1: the bme could point past eof of true file, or be negative
+			if( bme < 0 || bme >= fileBlocks ) {
+				result.add( "BlockMapEntry out of range: " + i + " -> " +
+							bme );
+				continue;
 			}
 			// 2: duplicate bme..
-			boolean isUnique = s.add( bme );
-			if( !isUnique ) {
-				log.warn( s );
-				throw new VDIException
-					( "BlockMapEntry duplicate: " + bme +
-					  ". Corrupt vdi? " + getPath() );
+			if( seen.get( bme ) ) {
+				result.add( "BlockMapEntry duplicate: " + i + " -> " + bme );
+				continue;
 			}
+			seen.set( bme );
+		}
+		return result;
+	}
+
+	/**
+	 * Full consistency check of this disk's metadata, reporting all
+	 * problems found rather than failing on the first.  The block map
+	 * is read afresh from the file (any journal is not replayed), so
+	 * this sees what is on disk.
+	 *
+	 * @see edu.uw.apl.vmvols.model.DiskCheck
+	 */
+	@Override
+	public List<String> check() throws IOException {
+		List<String> result = new ArrayList<String>();
+		long bs = blockSize();
+		if( bs <= 0 || Long.bitCount( bs ) != 1 ) {
+			result.add( "Bad block size: " + bs );
+			return result;
+		}
+		if( blockCount() * bs < header.diskSize() )
+			result.add( "Block count " + blockCount() +
+						" too small for disk size " + header.diskSize() );
+		long mapEnd = header.blocksOffset() + 4 * blockCount();
+		if( mapEnd > dataOffset() || dataOffset() > getPath().length() ) {
+			result.add( "Block map/data offsets beyond file: " +
+						header.blocksOffset() + "," + dataOffset() );
+			return result;
 		}
+		int[] bm = readBlockMapEntries();
+		result.addAll( blockMapProblems( bm ) );
+		int allocated = 0, free = 0;
+		for( int bme : bm ) {
+			if( bme == VDI_IMAGE_BLOCK_FREE )
+				free++;
+			else if( bme != VDI_IMAGE_BLOCK_ZERO )
+				allocated++;
+		}
+		// fewer is OK, blocks released by zero writes leave holes
+		if( allocated > header.blocksAllocated() )
+			result.add( "BlocksAllocated " + header.blocksAllocated() +
+						", block map has " + allocated );
+		if( imageType() == VDI_IMAGE_TYPE_FIXED && free > 0 )
+			result.add( "Fixed disk has " + free + " free blocks" );
+		if( imageType() == VDI_IMAGE_TYPE_DIFF &&
+			NULLUUID.equals( getUUIDParent() ) )
+			result.add( "Difference disk has no parent uuid" );
+		if( new BlockMapJournal( source ).getFile().exists() )
+			result.add( "Block map journal pending replay" );
+		return result;
 	}
 	
 	protected void readBlockMap() throws IOException {
 		/*
 		  Only need to read the block map at most once, it is
 		  invariant.  On the rare occasions when we do write to the
-		  virtualdisk, we update the block map in both local memory
-		  and out to the file, so the two are always synchronized.
+		  virtualdisk, we update the block map in local memory, and
+		  in batches out to the file, see flushBlockMap.
 		*/
 		if( blockMap != null )
 			return;
-		
+		blockMap = readBlockMapEntries();
+		replayJournal();
+		checkBlockMap();
+	}
+
+	private int[] readBlockMapEntries() throws IOException {
 		int N = (int)header.blockCount();
-		blockMap = new int[N];
-		RandomAccessFile raf = new RandomAccessFile( source, "r" );
-		raf.seek( header.blocksOffset() );
+		int[] bm = new int[N];
+		ByteSource store = ByteSource.open( source, false );
 		byte[] ba = new byte[4*N];
-		raf.readFully( ba );
-		raf.close();
+		try {
+			store.readFully( header.blocksOffset(), ba );
+		} finally {
+			store.close();
+		}
 
 		// LOOK: We are assuming little-endian formats, seems to hold...
 		for( int i = 0; i < N; i++ ) {
-			blockMap[i] = (int)EndianUtils.readSwappedUnsignedInteger
+			bm[i] = (int)EndianUtils.readSwappedUnsignedInteger
 				( ba, 4*i );
 		}
-		checkBlockMap();
+		return bm;
 	}
 
-	protected void writeBlockMap() throws IOException {
-		int N = (int)header.blockCount();
-		byte[] ba = new byte[4*N];
-		log.info( "Writing BlockMap for : " + source );
-		for( int i = 0; i < N; i++ ) {
-			EndianUtils.writeSwappedInteger( ba, 4*i, blockMap[i] );
+	/**
+	   Any journal left behind means we crashed while (or just before)
+	   writing block map entries to the .vdi, see BlockMapJournal.
+	   The blocks those entries refer to were already synced, so the
+	   entries are good.  Here we apply them in memory only: a read
+	   only open, e.g. analysis of an evidence image, must never
+	   modify the .vdi (or its journal).  The first writable open
+	   finishes the job, see prepareWrites.
+	*/
+	private void replayJournal() throws IOException {
+		BlockMapJournal j = new BlockMapJournal( source );
+		BlockMapJournal.Record r = j.read();
+		if( r == null )
+			return;
+		if( !fits( r ) ) {
+			log.warn( "Ignoring block map journal, not of this disk: " +
+					  j.getFile() );
+			return;
+		}
+		log.warn( "Replaying block map journal (in memory): " +
+				  j.getFile() );
+		System.arraycopy( r.entries, 0, blockMap, r.first, r.entries.length );
+		pendingReplay = r;
+	}
+	
+	/**
+	   A journal with a good crc may still not be this disk's, e.g. a
+	   stale one beside a copy of, or compaction of, its .vdi.  Its
+	   entries must lie within our block map and refer only to blocks
+	   it says are allocated.
+	*/
+	private boolean fits( BlockMapJournal.Record r ) {
+		if( r.first < 0 || r.first > blockMap.length - r.entries.length )
+			return false;
+		if( r.blocksAllocated > header.blockCount() )
+			return false;
+		for( int bme : r.entries ) {
+			if( bme == VDI_IMAGE_BLOCK_FREE || bme == VDI_IMAGE_BLOCK_ZERO )
+				continue;
+			if( bme < 0 || bme >= r.blocksAllocated )
+				return false;
 		}
-		RandomAccessFile raf = new RandomAccessFile( source, "rw" );
-		raf.seek( header.blocksOffset() );
-		raf.write( ba );
-		raf.close();
+		return true;
 	}
+	
+	/**
+	   Write to the .vdi any journal replayed only in memory by
+	   readBlockMap, then drop the journal (or any incomplete one,
+	   which never touched the .vdi).  Needs the .vdi writable.
 
-	// access only for test cases is this package...
-	int[] getBlockMap() throws IOException {
+	   @return the blocksAllocated count now in the .vdi
+	*/
+	synchronized long completeReplay() throws IOException {
 		readBlockMap();
-		return blockMap;
+		BlockMapJournal j = new BlockMapJournal( source );
+		long blocksAllocated = header.blocksAllocated();
+		if( pendingReplay != null ) {
+			BlockMapJournal.Record r = pendingReplay;
+			log.warn( "Replaying block map journal: " + j.getFile() );
+			ByteSource store = ByteSource.open( source, true );
+			try {
+				writeBlockMap( store, r.first, r.entries.length,
+							   r.blocksAllocated );
+				store.sync();
+			} finally {
+				store.close();
+			}
+			blocksAllocated = r.blocksAllocated;
+			pendingReplay = null;
+		}
+		j.clear();
+		return blocksAllocated;
 	}
 	
-	protected int nextFreeBlock() {
+	/**
+	   Called on any writable open.  Complete any journal replay,
+	   see completeReplay.
+
+	   Then establish the next free block index, so that allocation
+	   is O(1) thereafter.  VirtualBox itself appends new blocks at
+	   cBlocksAllocated, so respect that too.
+	*/
+	protected synchronized void prepareWrites() throws IOException {
+		if( journal != null )
+			return;
+		long blocksAllocated = completeReplay();
 		int max = -1;
 		for( int i = 0; i < blockMap.length; i++ ) {
 			if( blockMap[i] == VDI_IMAGE_BLOCK_FREE ||
@@ -292,11 +424,170 @@ abstract public class VDIDisk extends VirtualDisk {
 			if( blockMap[i] > max )
 				max = blockMap[i];
 		}
-		return max+1;
+		nextFreeBlock = Math.max( max+1, (int)blocksAllocated );
+		dirtyFirst = Integer.MAX_VALUE;
+		dirtyLast = -1;
+		dirtyBlocks = 0;
+		journal = new BlockMapJournal( source );
+	}
+
+	/**
+	   Reserve a new block at the end of the data area.  The caller
+	   writes the whole block and only then calls commitBlock.  Until
+	   then the reservation is outstanding, see discardBlocks.
+	*/
+	protected synchronized int allocateBlock() {
+		reservedBlocks++;
+		return nextFreeBlock++;
+	}
+
+	/**
+	   Record a new block map entry in memory.  On disk it is written
+	   only at the next flushBlockMap, as part of a contiguous
+	   range of dirty entries.
+
+	   @return true if enough entries are now dirty that the caller
+	   should flush
+	*/
+	protected synchronized boolean commitBlock( int bIndex, int bme ) {
+		// a real block index completes an allocateBlock reservation
+		if( bme != VDI_IMAGE_BLOCK_FREE && bme != VDI_IMAGE_BLOCK_ZERO )
+			reservedBlocks--;
+		blockMap[bIndex] = bme;
+		dirtyFirst = Math.min( dirtyFirst, bIndex );
+		dirtyLast = Math.max( dirtyLast, bIndex );
+		dirtyBlocks++;
+		return dirtyBlocks >= DIRTYBLOCKS_FLUSH;
+	}
+
+	/**
+	   Group commit of all block map entries changed since the last
+	   flush, via our intent journal.  See BlockMapJournal for the
+	   ordering which keeps the .vdi consistent across a crash.
+
+	   @param store - the writable handle which wrote the new blocks
+	*/
+	protected synchronized void flushBlockMap( ByteSource store )
+		throws IOException {
+		if( dirtyBlocks == 0 )
+			return;
+		int count = dirtyLast - dirtyFirst + 1;
+		log.info( "Flushing BlockMap for : " + source + ", " +
+				  dirtyBlocks + " new blocks in " + count + " entries" );
+		store.sync();
+		journal.write( blockMap, dirtyFirst, count, nextFreeBlock );
+		writeBlockMap( store, dirtyFirst, count, nextFreeBlock );
+		store.sync();
+		journal.clear();
+		dirtyFirst = Integer.MAX_VALUE;
+		dirtyLast = -1;
+		dirtyBlocks = 0;
+	}
+
+	/**
+	   Discard blocks [first,last), marking any allocated ones ZERO,
+	   then give back to the host file system any data area blocks
+	   so freed at its end.  Java cannot punch holes, so those freed
+	   mid-file stay in the file, unused, until a compaction.
+
+	   The block map (and blocksAllocated) is made durable, via
+	   flushBlockMap, before the file shrinks, so no entry ever
+	   refers to a block beyond eof.
+
+	   The next free block only drops back when no allocateBlock
+	   reservation is outstanding, i.e. no other handle has a new
+	   block's data in flight.  Those blocks lie above every
+	   committed one, so would otherwise be handed out twice.  A
+	   write that failed between reservation and commit leaves its
+	   reservation outstanding for good, which just stops later
+	   discards shrinking the file.
+
+	   @param store - the writable handle to flush and truncate
+	*/
+	protected synchronized void discardBlocks( ByteSource store,
+											   int first, int last )
+		throws IOException {
+		boolean released = false;
+		for( int i = first; i < last; i++ ) {
+			if( blockMap[i] == VDI_IMAGE_BLOCK_FREE ||
+				blockMap[i] == VDI_IMAGE_BLOCK_ZERO )
+				continue;
+			commitBlock( i, VDI_IMAGE_BLOCK_ZERO );
+			released = true;
+		}
+		if( !released )
+			return;
+		int max = -1;
+		for( int bme : blockMap ) {
+			if( bme != VDI_IMAGE_BLOCK_FREE &&
+				bme != VDI_IMAGE_BLOCK_ZERO && bme > max )
+				max = bme;
+		}
+		if( reservedBlocks == 0 )
+			nextFreeBlock = max + 1;
+		flushBlockMap( store );
+		long end = header.dataOffset() + (long)nextFreeBlock * blockSize();
+		if( store.size() > end )
+			store.truncate( end );
 	}
 
+	private void writeBlockMap( ByteSource store, int first, int count,
+								long blocksAllocated ) throws IOException {
+		byte[] ba = new byte[4*count];
+		for( int i = 0; i < count; i++ ) {
+			EndianUtils.writeSwappedInteger( ba, 4*i, blockMap[first+i] );
+		}
+		store.write( header.blocksOffset() + 4L * first, ba );
+		EndianUtils.writeSwappedInteger( ba, 0, (int)blocksAllocated );
+		store.write( header.blocksAllocatedOffset(), ba, 0, 4 );
+	}
+
+	@Override
+	public long allocationUnit() {
+		return blockSize();
+	}
+
+	/**
+	 * Blocks marked FREE are inherited from any parent, ZERO blocks
+	 * are implicitly zero.  Neither occupies any of our file.
+	 */
+	@Override
+	public BitSet allocationMap() throws IOException {
+		readBlockMap();
+		BitSet result = new BitSet( blockMap.length );
+		for( int i = 0; i < blockMap.length; i++ ) {
+			if( blockMap[i] != VDI_IMAGE_BLOCK_FREE &&
+				blockMap[i] != VDI_IMAGE_BLOCK_ZERO )
+				result.set( i );
+		}
+		return result;
+	}
+
+	@Override
+	public long hostOffset( int i ) throws IOException {
+		readBlockMap();
+		int bme = blockMap[i];
+		if( bme == VDI_IMAGE_BLOCK_FREE || bme == VDI_IMAGE_BLOCK_ZERO )
+			return -1;
+		return dataOffset() + (long)bme * blockSize();
+	}
+	
+	// access only for test cases is this package...
+	int[] getBlockMap() throws IOException {
+		readBlockMap();
+		return blockMap;
+	}
+	
 	protected int[] blockMap;
 
+	// A journal applied in memory only, see replayJournal
+	private BlockMapJournal.Record pendingReplay;
+
+	// Write support only, see prepareWrites...
+	private BlockMapJournal journal;
+	private int nextFreeBlock, reservedBlocks;
+	private int dirtyFirst, dirtyLast, dirtyBlocks;
+
 	protected final VDIHeader header;
 		
 	static public final String FILESUFFIX = "vdi";
@@ -307,6 +598,13 @@ abstract public class VDIDisk extends VirtualDisk {
 			}
 		};
 
+	/*
+	  Once this many new blocks are awaiting a block map flush, flush
+	  even without an explicit flush/close.  Bounds the work lost,
+	  though never the consistency, on a crash.
+	*/
+	static final int DIRTYBLOCKS_FLUSH = 256;
+
 	static public final int VDI_IMAGE_TYPE_NORMAL = 1;
 	static public final int VDI_IMAGE_TYPE_FIXED  = 2;
 	static public final int VDI_IMAGE_TYPE_DIFF   = 4;
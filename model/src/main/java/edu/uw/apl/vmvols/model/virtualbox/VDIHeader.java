@@ -41,6 +41,8 @@ public interface VDIHeader {
 	long dataOffset();
 	long blockSize();
 	long blockCount();
+	long blocksAllocated();
+	long blocksAllocatedOffset();
 	UUID imageCreationUUID();
 	UUID imageParentUUID();
 	long diskSize();
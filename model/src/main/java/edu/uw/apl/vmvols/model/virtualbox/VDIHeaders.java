@@ -27,16 +27,20 @@
  */
 package edu.uw.apl.vmvols.model.virtualbox;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.UUID;
 
 import org.apache.commons.io.EndianUtils;
 
+import edu.uw.apl.vmvols.model.DiskProbe;
+import edu.uw.apl.vmvols.model.HeaderCache;
+
 /**
  * @author Stuart Maclean
  *
@@ -47,9 +51,27 @@ import org.apache.commons.io.EndianUtils;
  */
  public class VDIHeaders {
 
+	/**
+	   Headers are memoized, see HeaderCache, so rescans of unchanged
+	   VM directories parse nothing.
+	*/
 	static VDIHeader parse( File f ) throws IOException {
-		RandomAccessFile raf = new RandomAccessFile( f, "r" );
-		PreHeader ph = new PreHeader( raf );
+		HeaderCache.Key k = HeaderCache.key( f );
+		VDIHeader result = CACHE.get( k );
+		if( result != null )
+			return result;
+		result = parse( f, DiskProbe.readHead( f ) );
+		CACHE.put( k, result );
+		return result;
+	}
+
+	/**
+	   @param head - leading bytes of f, see DiskProbe.readHead.
+	   Header1 is well within that.
+	*/
+	static VDIHeader parse( File f, byte[] head ) throws IOException {
+		DataInput di = new DataInputStream( new ByteArrayInputStream( head ) );
+		PreHeader ph = new PreHeader( di );
 		VDIHeader result = null;
 		switch( ph.versionMajor() ) {
 		case 0:
@@ -57,7 +79,7 @@ import org.apache.commons.io.EndianUtils;
 			throw new IllegalStateException( "Major version 0 not supported: "
 											 + f );
 		case 1: 
-			result = new Header1( raf );
+			result = new Header1( di );
 			break;
 
 		default:
@@ -148,7 +170,9 @@ import org.apache.commons.io.EndianUtils;
 			
 			blockCount = EndianUtils.readSwappedUnsignedInteger( ba, 308 );
 
-			// blocksAllocated 4, then...
+			blocksAllocated = EndianUtils.readSwappedUnsignedInteger( ba, 312 );
+
+			// then...
 			// RTUUID          uuidCreate;
 			// RTUUID          uuidModify
 			// RTUUID          uuidLinkage;
@@ -218,6 +242,16 @@ import org.apache.commons.io.EndianUtils;
 			return blockCount;
 		}
 
+		@Override
+		public long blocksAllocated() {
+			return blocksAllocated;
+		}
+
+		@Override
+		public long blocksAllocatedOffset() {
+			return BLOCKSALLOCATEDOFFSET;
+		}
+
 		@Override
 		public UUID imageCreationUUID() {
 			return uuidCreate;
@@ -238,6 +272,7 @@ import org.apache.commons.io.EndianUtils;
 			pw.println( "diskSize  : " + diskSize );
 			pw.println( "blockSize : " + blockSize );
 			pw.println( "blockCount: " + blockCount );
+			pw.println( "blocksAllocated: " + blocksAllocated );
 			pw.println( "blocksOffset: " + blocksOffset );
 			pw.println( "dataOffset: " + dataOffset );
 			return sw.toString();
@@ -253,9 +288,17 @@ import org.apache.commons.io.EndianUtils;
 		long blocksOffset, dataOffset, diskSize;
 		long blockSize;
 		long blockCount;
+		long blocksAllocated;
 		
 		UUID uuidCreate;
 		UUID uuidLinkage;
+
+		/*
+		  File offset of cBlocksAllocated: follows the pre-header, the
+		  cbHeader field, then 312 bytes of VDIHEADER1.  VirtualBox
+		  appends new blocks at this index, so it must track ours.
+		*/
+		static final int BLOCKSALLOCATEDOFFSET = PreHeader.SIZEOF + 4 + 312;
 	}
 
 	/**
@@ -300,6 +343,9 @@ import org.apache.commons.io.EndianUtils;
 
 		static public final int SIZEOF = 16;
 	} 
+
+	static private final HeaderCache<VDIHeader> CACHE =
+		new HeaderCache<VDIHeader>( HeaderCache.CAPACITY_DEFAULT );
 }
 
 // eof
@@ -32,6 +32,9 @@ import java.io.IOException;
 import java.io.BufferedReader;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
@@ -65,6 +68,7 @@ public class Descriptor {
 		} catch( UnsupportedEncodingException never ) {
 		}
 		data = s;
+		extents = new ArrayList<Extent>();
 		BufferedReader br = new BufferedReader( new StringReader( data ) );
 		String line;
 		try {
@@ -82,6 +86,11 @@ public class Descriptor {
 					cid = m.group(1);
 					continue;
 				}
+				m = reParentCID.matcher( line );
+				if( m.matches() ) {
+					parentCID = m.group(1);
+					continue;
+				}
 				m = reUUIDImage.matcher( line );
 				if( m.matches() ) {
 					uuidImage = UUID.fromString( m.group(1) );
@@ -97,6 +106,18 @@ public class Descriptor {
 					parentFileNameHint = m.group(1);
 					continue;
 				}
+				m = reExtent.matcher( line );
+				if( m.matches() ) {
+					Extent e = new Extent();
+					e.access = m.group(1);
+					e.sectors = Long.parseLong( m.group(2) );
+					e.type = m.group(3);
+					e.fileName = m.group(4);
+					e.offset = m.group(5) == null ? 0 :
+						Long.parseLong( m.group(5) );
+					extents.add( e );
+					continue;
+				}
 			}
 		} catch( IOException never ) {
 		}
@@ -115,9 +136,68 @@ public class Descriptor {
 		return cid;
 	}
 	
+	/**
+	 * @return the parent's CID at the time this disk was created
+	 * from it, ffffffff if no parent.  A mismatch with the parent's
+	 * own CID means the parent has changed since.
+	 */
+	public String getParentCID() {
+		return parentCID;
+	}
+	
 	public String getParentFileNameHint() {
 		return parentFileNameHint;
 	}
+
+	/**
+	 * @return the extent descriptions, in logical disk order.  A
+	 * monolithic disk has just one, a split disk one per host file.
+	 */
+	public List<Extent> getExtents() {
+		return Collections.unmodifiableList( extents );
+	}
+
+	/**
+	 * One line of the descriptor's 'Extent description' section, e.g.
+	 *
+	 * RW 4192256 SPARSE "Windows 7 x64-s001.vmdk"
+	 *
+	 * RW 8388608 FLAT "disk-flat.vmdk" 0
+	 *
+	 * The file name, if any, is relative to the descriptor's own file.
+	 */
+	static public class Extent {
+		public String getAccess() {
+			return access;
+		}
+
+		public long getSectors() {
+			return sectors;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		// null for ZERO extents
+		public String getFileName() {
+			return fileName;
+		}
+
+		// in sectors, used by FLAT extents only
+		public long getOffset() {
+			return offset;
+		}
+
+		@Override
+		public String toString() {
+			return access + " " + sectors + " " + type + " " + fileName +
+				" " + offset;
+		}
+		
+		String access, type, fileName;
+		long sectors, offset;
+	}
 	
 	// createType="monolithicSparse"
 	static final Pattern reType = Pattern.compile
@@ -127,11 +207,20 @@ public class Descriptor {
 	static final Pattern reCID = Pattern.compile
 		( "CID=(\\p{XDigit}+)" );
 
+	// parentCID=ffffffff
+	static final Pattern reParentCID = Pattern.compile
+		( "parentCID=(\\p{XDigit}+)" );
+
 	// parentFileNameHint="path/to/vmware/Windows 7 x64/Windows 7 x64.vmdk"
 	static final Pattern reParentFileNameHint = Pattern.compile
 		( "parentFileNameHint=\"([^\"]+)\"" );
 
 
+	// RW 4192256 SPARSE "Windows 7 x64-s001.vmdk"
+	static final Pattern reExtent = Pattern.compile
+		( "(RW|RDONLY|NOACCESS)\\s+(\\d+)\\s+([A-Z]+)" +
+		  "(?:\\s+\"([^\"]+)\"(?:\\s+(\\d+))?)?" );
+
 	// e1246c7c-05dd-48c5-aa5b-5ad44ce0c13e
 	static final String REUUID =
 		"\\p{XDigit}{8}-\\p{XDigit}{4}-\\p{XDigit}{4}-\\p{XDigit}{4}-" +
@@ -147,7 +236,7 @@ public class Descriptor {
 	String type;
 
 	// Should be present in all (host-based) VMDK disks, used for our ID
-	String cid;
+	String cid, parentCID;
 	
 	/*
 	  Only present for VMDK virtual disks created by VMware products,
@@ -158,6 +247,8 @@ public class Descriptor {
 
 	String parentFileNameHint;
 
+	final List<Extent> extents;
+
 	/*
 	  Only present for VMDK virtual disks created by VirtualBox.  Used
 	  by VirtualBox to provide parent-child linkage across Snapshots.
@@ -0,0 +1,387 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import edu.uw.apl.vmvols.model.Constants;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+   Disk types 2 and 3 (and ESX 'vmfs' disks):
+
+   A preallocated virtual disk, in a single host file ("monolithic
+   flat") or split into 2GB host files ("split flat").  The file we
+   are handed is a standalone Descriptor, whose extent lines name the
+   raw data files, e.g.
+
+   RW 8388608 FLAT "Windows 7 x64-flat.vmdk" 0
+
+   There is no grain directory, no grain tables, no metadata at all,
+   logical disk bytes are host file bytes, starting at the extent's
+   offset.  So reads need no intermediate buffering.  Read-only
+   access maps the extent files into memory (in MAPCHUNK pieces) and
+   copies straight from the mapping into the caller's array.  Writable
+   access uses positional FileChannel reads/writes on the caller's
+   array.  Whole-disk streaming, e.g. VDCat, should use transferTo,
+   which lets the OS move the data file to channel with no copy into
+   the JVM at all.
+
+   ZERO extents, which have no file, read as zeros.  So do any parts
+   of a flat file the descriptor promises but which are missing (a
+   truncated copy).
+ */
+
+public class FlatDisk extends VMDKDisk {
+
+	FlatDisk( File f, Descriptor d ) {
+		super( f, d );
+		log = LogFactory.getLog( getClass() );
+		List<Descriptor.Extent> es = d.getExtents();
+		if( es.isEmpty() )
+			throw new VMDKException( "No extents: " + f );
+		files = new File[es.size()];
+		fileOffsets = new long[es.size()];
+		starts = new long[es.size()];
+		lengths = new long[es.size()];
+		chunks = new MappedByteBuffer[es.size()][];
+		File dir = f.getAbsoluteFile().getParentFile();
+		long start = 0;
+		for( int i = 0; i < es.size(); i++ ) {
+			Descriptor.Extent e = es.get(i);
+			String type = e.getType();
+			if( "FLAT".equals( type ) || "VMFS".equals( type ) ) {
+				files[i] = new File( dir, e.getFileName() );
+				fileOffsets[i] = e.getOffset() * Constants.SECTORLENGTH;
+			} else if( !"ZERO".equals( type ) ) {
+				throw new VMDKException( "Extent type not supported in " +
+										 f + ": " + e );
+			}
+			starts[i] = start;
+			lengths[i] = e.getSectors() * Constants.SECTORLENGTH;
+			chunks[i] = new MappedByteBuffer
+				[(int)((lengths[i] + MAPCHUNK - 1) / MAPCHUNK)];
+			start += lengths[i];
+		}
+		size = start;
+	}
+
+	@Override
+	public long size() {
+		return size;
+	}
+
+	// each extent's file, once, ZERO extents have none
+	@Override
+	public List<File> getHostFiles() {
+		List<File> result = super.getHostFiles();
+		for( File f : files ) {
+			if( f != null && !result.contains( f ) )
+				result.add( f );
+		}
+		return result;
+	}
+
+	@Override
+	public long contiguousStorage() {
+		return MAPCHUNK;
+	}
+	
+	@Override
+	public List<String> check() throws IOException {
+		List<String> result = new ArrayList<String>();
+		for( int i = 0; i < files.length; i++ ) {
+			if( files[i] == null )
+				continue;
+			if( !files[i].isFile() )
+				result.add( "Missing extent: " + files[i] );
+			else if( files[i].length() < fileOffsets[i] + lengths[i] )
+				result.add( "Extent too short: " + files[i] );
+		}
+		return result;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return getRandomAccess( false );
+	}
+
+	@Override
+	public RandomAccessVirtualDisk getRandomAccess( boolean writable )
+		throws IOException {
+		return new FlatRandomAccess( writable );
+	}
+
+	/**
+	 * Copy count bytes of logical disk content, starting at posn, to
+	 * the target channel.  File data moves via FileChannel.transferTo,
+	 * so when the target is a file, pipe or socket, the bytes need
+	 * never enter the JVM.
+	 *
+	 * @return bytes transferred, less than count only if posn + count
+	 * is beyond the disk size
+	 */
+	public long transferTo( long posn, long count, WritableByteChannel target )
+		throws IOException {
+		count = Math.max( 0, Math.min( count, size - posn ) );
+		long total = 0;
+		while( total < count ) {
+			int i = extentIndex( posn );
+			long extentOffset = posn - starts[i];
+			long n = Math.min( count - total, lengths[i] - extentOffset );
+			long done = 0;
+			if( files[i] != null ) {
+				RandomAccessFile raf = new RandomAccessFile( files[i], "r" );
+				try {
+					FileChannel fc = raf.getChannel();
+					while( done < n ) {
+						long m = fc.transferTo
+							( fileOffsets[i] + extentOffset + done,
+							  n - done, target );
+						// past eof of a truncated flat file...
+						if( m < 1 )
+							break;
+						done += m;
+					}
+				} finally {
+					raf.close();
+				}
+			}
+			if( done < n )
+				transferZeros( n - done, target );
+			total += n;
+			posn += n;
+		}
+		return total;
+	}
+
+	/**
+	   @return index of the extent containing logical offset posn,
+	   which must be in [0,size)
+	*/
+	int extentIndex( long posn ) {
+		int i = Arrays.binarySearch( starts, posn );
+		return i >= 0 ? i : -i - 2;
+	}
+
+	/**
+	   The mappings are made once, on demand, and shared by all
+	   read-only handles on this disk.  A mapping never extends past
+	   the file's eof, it may thus be shorter than the chunk.
+	*/
+	private synchronized MappedByteBuffer chunk( int i, int c )
+		throws IOException {
+		MappedByteBuffer result = chunks[i][c];
+		if( result != null )
+			return result;
+		long chunkStart = (long)c * MAPCHUNK;
+		long chunkLength = Math.min( MAPCHUNK, lengths[i] - chunkStart );
+		RandomAccessFile raf = new RandomAccessFile( files[i], "r" );
+		try {
+			long filePosn = fileOffsets[i] + chunkStart;
+			long available = Math.max( 0, raf.length() - filePosn );
+			long n = Math.min( chunkLength, available );
+			if( log.isDebugEnabled() )
+				log.debug( "Mapping " + files[i] + " " + filePosn + " " + n );
+			result = raf.getChannel().map( FileChannel.MapMode.READ_ONLY,
+										   filePosn, n );
+		} finally {
+			// the mapping remains valid after the close
+			raf.close();
+		}
+		chunks[i][c] = result;
+		return result;
+	}
+
+	static private void transferZeros( long n, WritableByteChannel target )
+		throws IOException {
+		ByteBuffer bb = ByteBuffer.allocate( (int)Math.min( n, 64 * 1024 ) );
+		while( n > 0 ) {
+			bb.clear();
+			if( n < bb.capacity() )
+				bb.limit( (int)n );
+			n -= bb.remaining();
+			while( bb.hasRemaining() )
+				target.write( bb );
+		}
+	}
+	
+	class FlatRandomAccess extends RandomAccessVirtualDisk {
+		FlatRandomAccess( boolean writable ) {
+			super( FlatDisk.this.size );
+			this.writable = writable;
+			if( writable )
+				rafs = new RandomAccessFile[files.length];
+			else
+				views = new ByteBuffer[files.length][];
+		}
+
+		@Override
+		public void close() throws IOException {
+			if( rafs == null )
+				return;
+			for( RandomAccessFile raf : rafs ) {
+				if( raf != null )
+					raf.close();
+			}
+		}
+
+		@Override
+		public void seek( long s ) throws IOException {
+			// according to java.io.RandomAccessFile, no restriction on seek
+			posn = s;
+		}
+
+		@Override
+		public int readImpl( byte[] ba, int off, int len ) throws IOException {
+
+			// Do min in long space, since size - posn may overflow int...
+			long actualL = Math.min( size - posn, len );
+
+			// Cannot blindly coerce a long to int, result could be -ve
+			int actual = actualL > Integer.MAX_VALUE ? Integer.MAX_VALUE :
+				(int)actualL;
+
+			int total = 0;
+			while( total < actual ) {
+				int i = extentIndex( posn );
+				long extentOffset = posn - starts[i];
+				int n = (int)Math.min( actual - total,
+									   lengths[i] - extentOffset );
+				int fromFile = 0;
+				if( files[i] == null ) {
+				} else if( writable ) {
+					ByteBuffer bb = ByteBuffer.wrap( ba, off+total, n );
+					FileChannel fc = raf( i ).getChannel();
+					long filePosn = fileOffsets[i] + extentOffset;
+					while( bb.hasRemaining() ) {
+						int m = fc.read( bb, filePosn + fromFile );
+						if( m < 1 )
+							break;
+						fromFile += m;
+					}
+				} else {
+					int c = (int)(extentOffset / MAPCHUNK);
+					int cOffset = (int)(extentOffset % MAPCHUNK);
+					n = Math.min( n, (int)(MAPCHUNK - cOffset) );
+					ByteBuffer v = view( i, c );
+					fromFile = Math.max( 0, Math.min( n, v.limit() - cOffset ) );
+					if( fromFile > 0 ) {
+						v.position( cOffset );
+						v.get( ba, off+total, fromFile );
+					}
+				}
+				if( fromFile < n )
+					Arrays.fill( ba, off+total+fromFile, off+total+n, (byte)0 );
+				total += n;
+				posn += n;
+			}
+			return total;
+		}
+
+		@Override
+		public void writeImpl( byte[] ba, int off, int len )
+			throws IOException {
+			if( !writable )
+				throw new IOException( "Not writable: " + source );
+
+			// Do min in long space, since size - posn may overflow int...
+			long actualL = Math.min( size - posn, len );
+
+			// Cannot blindly coerce a long to int, result could be -ve
+			int actual = actualL > Integer.MAX_VALUE ? Integer.MAX_VALUE :
+				(int)actualL;
+
+			int total = 0;
+			while( total < actual ) {
+				int i = extentIndex( posn );
+				long extentOffset = posn - starts[i];
+				int n = (int)Math.min( actual - total,
+									   lengths[i] - extentOffset );
+				if( files[i] == null )
+					throw new VMDKException( "Write to ZERO extent: " +
+											 getPath() );
+				ByteBuffer bb = ByteBuffer.wrap( ba, off+total, n );
+				FileChannel fc = raf( i ).getChannel();
+				long filePosn = fileOffsets[i] + extentOffset;
+				while( bb.hasRemaining() )
+					fc.write( bb, filePosn + n - bb.remaining() );
+				total += n;
+				posn += n;
+			}
+		}
+
+		private RandomAccessFile raf( int i ) throws IOException {
+			if( rafs[i] == null )
+				rafs[i] = new RandomAccessFile( files[i], "rw" );
+			return rafs[i];
+		}
+
+		/*
+		  Our own views of the shared mappings, since a buffer's
+		  position is state, and we need no locking to use it
+		*/
+		private ByteBuffer view( int i, int c ) throws IOException {
+			if( views[i] == null )
+				views[i] = new ByteBuffer[chunks[i].length];
+			if( views[i][c] == null )
+				views[i][c] = chunk( i, c ).duplicate();
+			return views[i][c];
+		}
+		
+		private final boolean writable;
+		private RandomAccessFile[] rafs;
+		private ByteBuffer[][] views;
+	}
+	
+	private final Log log;
+	private final File[] files;
+	private final long[] fileOffsets, starts, lengths;
+	private final MappedByteBuffer[][] chunks;
+	private final long size;
+
+	// 256MB, so any 32-bit address space still copes
+	static public final long MAPCHUNK = 256L * 1024 * 1024;
+}
+
+// eof
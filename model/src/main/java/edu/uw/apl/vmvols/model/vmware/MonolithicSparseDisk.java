@@ -36,6 +36,7 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
@@ -78,6 +79,37 @@ public class MonolithicSparseDisk extends VMDKDisk {
 		return extent.grainSizeBytes;
 	}
 	
+	@Override
+	public long allocationUnit() {
+		return extent.grainBytes();
+	}
+
+	@Override
+	public BitSet allocationMap() throws IOException {
+		return extent.allocationMap();
+	}
+
+	@Override
+	public BitSet zeroMap() throws IOException {
+		return extent.zeroMap();
+	}
+
+	@Override
+	public long hostOffset( int i ) throws IOException {
+		return extent.hostOffset( i );
+	}
+
+	@Override
+	public void setReleaseZeros( boolean b ) {
+		super.setReleaseZeros( b );
+		extent.releaseZeros = b;
+	}
+
+	@Override
+	public List<String> check() throws IOException {
+		return extent.check();
+	}
+
 	@Override
 	public InputStream getInputStream() throws IOException {
 		InputStream parentIS = parent == null ? null :
@@ -88,11 +120,20 @@ public class MonolithicSparseDisk extends VMDKDisk {
 	@Override
 	public RandomAccessVirtualDisk getRandomAccess( boolean writable )
 		throws IOException {
+		/*
+		  By definition, any non-active disk cannot be writable,
+		  and a parent of this disk cannot be active.
+		*/
 		RandomAccessVirtualDisk parentRA = parent == null ? null :
-			parent.getRandomAccess( writable );
-		return extent.getRandomAccess( parentRA );
+			parent.getRandomAccess( false );
+		return extent.getRandomAccess( parentRA, writable );
 	}
 
+	// for SparseCompactor
+	SparseExtent getExtent() {
+		return extent;
+	}
+	
 	private final SparseExtent extent;
 }
 
@@ -35,6 +35,7 @@ import java.io.InputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
@@ -72,6 +73,16 @@ public class MonolithicStreamOptimizedDisk extends VMDKDisk {
 		extent = new StreamOptimizedSparseExtent( f, seh );
 	}
 
+	/**
+	 * A disk held at [base, base+length) of f, e.g. a member of an
+	 * .ova archive, see OVAArchive
+	 */
+	MonolithicStreamOptimizedDisk( File f, SparseExtentHeader seh,
+								   Descriptor d, long base, long length ) {
+		super( f, d );
+		extent = new StreamOptimizedSparseExtent( f, seh, base, length );
+	}
+
 	@Override
 	public long size() {
 		return extent.size();
@@ -82,6 +93,31 @@ public class MonolithicStreamOptimizedDisk extends VMDKDisk {
 		return extent.grainSizeBytes;
 	}
 	
+	@Override
+	public long allocationUnit() {
+		return extent.grainBytes();
+	}
+
+	@Override
+	public BitSet allocationMap() throws IOException {
+		return extent.allocationMap();
+	}
+
+	@Override
+	public BitSet zeroMap() throws IOException {
+		return extent.zeroMap();
+	}
+
+	@Override
+	public long hostOffset( int i ) throws IOException {
+		return extent.hostOffset( i );
+	}
+
+	@Override
+	public List<String> check() throws IOException {
+		return extent.check();
+	}
+
 	@Override
 	public InputStream getInputStream() throws IOException {
 		return extent.getInputStream();
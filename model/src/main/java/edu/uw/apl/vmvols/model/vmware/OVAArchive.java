@@ -0,0 +1,269 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import edu.uw.apl.vmvols.model.ByteSource;
+import edu.uw.apl.vmvols.model.Constants;
+import edu.uw.apl.vmvols.model.HeaderCache;
+
+/**
+ * @author Stuart Maclean
+ *
+ * An .ova file is a tar archive holding an .ovf descriptor and one or
+ * more (streamOptimized) .vmdk files.  Tar stores each member's data
+ * contiguously, after a 512-byte header, so one scan of the headers
+ * maps every member to a byte range of the archive.  Disks are then
+ * read in place, at an offset, with no extraction.
+ *
+ * We understand ustar/posix headers, GNU long names ('L' entries) and
+ * pax 'path' records, enough for what ovftool, VirtualBox and packer
+ * write.  Sizes may be octal or GNU base-256.
+ */
+public class OVAArchive {
+
+	/**
+	 * @return the regular file members of archive f, in archive
+	 * order.  The index is memoized against f's length and mtime, so
+	 * an unchanged archive is scanned once only.
+	 */
+	static public List<Member> index( File f ) throws IOException {
+		HeaderCache.Key k = HeaderCache.key( f );
+		List<Member> result = CACHE.get( k );
+		if( result != null )
+			return result;
+		result = Collections.unmodifiableList( scan( f ) );
+		CACHE.put( k, result );
+		return result;
+	}
+
+	/**
+	 * @return the .vmdk members of archive f, as disks read in place,
+	 * in archive order
+	 */
+	static public List<VMDKDisk> readDisks( File f ) throws IOException {
+		List<VMDKDisk> result = new ArrayList<VMDKDisk>();
+		for( Member m : index( f ) ) {
+			if( !m.name.endsWith( VMDKDisk.FILESUFFIX ) )
+				continue;
+			VMDKDisk vd = VMDKDisk.readFrom( f, m );
+			if( vd != null )
+				result.add( vd );
+		}
+		return result;
+	}
+
+	static List<Member> scan( File f ) throws IOException {
+		List<Member> result = new ArrayList<Member>();
+		ByteSource store = ByteSource.open( f, false );
+		try {
+			long len = store.size();
+			byte[] hdr = new byte[BLOCKSIZE];
+			long offset = 0;
+			String longName = null;
+			while( offset + BLOCKSIZE <= len ) {
+				store.readFully( offset, hdr );
+				// end of archive is two zero blocks, one suffices us
+				if( isZero( hdr ) )
+					break;
+				if( !checksumOK( hdr ) )
+					throw new VMDKException( f + ": bad tar header at " +
+											 offset );
+				long size = number( hdr, 124, 12 );
+				long data = offset + BLOCKSIZE;
+				if( size < 0 || data + size > len )
+					throw new VMDKException( f + ": truncated member at " +
+											 offset );
+				byte type = hdr[156];
+				if( false ) {
+				} else if( type == 'L' ) {
+					longName = string( read( store, data, size ), 0,
+									   (int)size );
+				} else if( type == 'x' ) {
+					String path = paxPath( read( store, data, size ) );
+					if( path != null )
+						longName = path;
+				} else if( type == '0' || type == 0 ) {
+					String name = longName;
+					if( name == null ) {
+						name = string( hdr, 0, 100 );
+						String prefix = string( hdr, 345, 155 );
+						if( prefix.length() > 0 )
+							name = prefix + "/" + name;
+					}
+					result.add( new Member( name, data, size ) );
+					longName = null;
+				} else {
+					// directories, links, global pax headers...
+					longName = null;
+				}
+				offset = data + (size + BLOCKSIZE - 1) / BLOCKSIZE * BLOCKSIZE;
+			}
+		} finally {
+			store.close();
+		}
+		return result;
+	}
+
+	static private byte[] read( ByteSource store, long offset, long size )
+		throws IOException {
+		if( size > MAXMETADATA )
+			throw new VMDKException( "Tar metadata too big: " + size );
+		byte[] result = new byte[(int)size];
+		store.readFully( offset, result );
+		return result;
+	}
+
+	/**
+	 * A pax extended header is records of the form "len key=value\n"
+	 */
+	static String paxPath( byte[] ba ) throws IOException {
+		String s = new String( ba, "UTF-8" );
+		int i = 0;
+		while( i < s.length() ) {
+			int sp = s.indexOf( ' ', i );
+			if( sp < 0 )
+				break;
+			int n;
+			try {
+				n = Integer.parseInt( s.substring( i, sp ) );
+			} catch( NumberFormatException nfe ) {
+				break;
+			}
+			if( n <= 0 || i + n > s.length() )
+				break;
+			String kv = s.substring( sp + 1, i + n - 1 );
+			if( kv.startsWith( "path=" ) )
+				return kv.substring( 5 );
+			i += n;
+		}
+		return null;
+	}
+
+	/**
+	 * Octal, NUL/space terminated, or GNU base-256 (high bit of first
+	 * byte set) for sizes of 8GB and over
+	 */
+	static long number( byte[] ba, int off, int len ) {
+		if( (ba[off] & 0x80) != 0 ) {
+			long result = ba[off] & 0x7f;
+			for( int i = 1; i < len; i++ )
+				result = (result << 8) | (ba[off+i] & 0xff);
+			return result;
+		}
+		long result = 0;
+		for( int i = 0; i < len; i++ ) {
+			byte b = ba[off+i];
+			if( b == ' ' && result == 0 )
+				continue;
+			if( b < '0' || b > '7' )
+				break;
+			result = (result << 3) | (b - '0');
+		}
+		return result;
+	}
+
+	static private String string( byte[] ba, int off, int len )
+		throws IOException {
+		int n = 0;
+		while( n < len && ba[off+n] != 0 )
+			n++;
+		return new String( ba, off, n, "UTF-8" );
+	}
+
+	static private boolean isZero( byte[] ba ) {
+		for( byte b : ba )
+			if( b != 0 )
+				return false;
+		return true;
+	}
+
+	/**
+	 * Sum of header bytes, with the checksum field itself taken as
+	 * spaces.  Some old tars summed signed bytes, accept either.
+	 */
+	static private boolean checksumOK( byte[] hdr ) {
+		long expected = number( hdr, 148, 8 );
+		long unsigned = 0, signed = 0;
+		for( int i = 0; i < hdr.length; i++ ) {
+			int b = i >= 148 && i < 156 ? ' ' : hdr[i];
+			unsigned += b & 0xff;
+			signed += b;
+		}
+		return expected == unsigned || expected == signed;
+	}
+
+	/**
+	 * A regular file in the archive: its name, and its data as a byte
+	 * range [offset, offset+length) of the archive.
+	 */
+	static public class Member {
+		Member( String name, long offset, long length ) {
+			this.name = name;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public long getLength() {
+			return length;
+		}
+
+		@Override
+		public String toString() {
+			return name + "@" + offset + "," + length;
+		}
+
+		final String name;
+		final long offset, length;
+	}
+
+	static public final String FILESUFFIX = "ova";
+
+	static final int BLOCKSIZE = Constants.SECTORLENGTH;
+
+	// bound on long name/pax header size, these are not disk data
+	static private final int MAXMETADATA = 1024 * 1024;
+
+	static private final HeaderCache<List<Member>> CACHE =
+		new HeaderCache<List<Member>>( HeaderCache.CAPACITY_DEFAULT );
+}
+
+// eof
@@ -0,0 +1,172 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.EndianUtils;
+
+import edu.uw.apl.vmvols.model.Compactor;
+import edu.uw.apl.vmvols.model.Constants;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Compaction of a monolithicSparse .vmdk, see Compactor.  The header
+ * and embedded descriptor are kept.  After them we lay out afresh:
+ *
+ * redundant grain directory and its tables (iff the original had them)
+ * grain directory and its tables
+ * grains, in logical order, from the first grain boundary on
+ *
+ * Every grain table is allocated, as VMware itself does.  Grains
+ * holding only zeros get GTE 1, and the header the 'zeroed-grain GTE'
+ * flag which the spec requires of any such use.  Unallocated grains
+ * keep their GTE, 0 (see parent) or 1 (zero).  The header's gdOffset,
+ * rgdOffset and overhead are patched to match.
+ *
+ * The MonolithicSparseDisk object is stale afterwards, since its
+ * extent caches the old grain directory.  Re-read the file via
+ * VMDKDisk.readFrom.
+ */
+public class SparseCompactor {
+
+	static public void compact( MonolithicSparseDisk msd ) throws IOException {
+		File f = msd.getPath();
+		SparseExtent se = msd.getExtent();
+		SparseExtentHeader h = se.header;
+		long gs = h.grainSize;
+		long sl = Constants.SECTORLENGTH;
+		int n = msd.allocationUnits();
+		int gtCount = (int)((n + h.numGTEsPerGT - 1) / h.numGTEsPerGT);
+		long gdSectors = (4L * gtCount + sl - 1) / sl;
+		long gtSectors = (4 * h.numGTEsPerGT + sl - 1) / sl;
+		long tablesSectors = gdSectors + gtCount * gtSectors;
+
+		// all in sectors...
+		long descEnd = Math.max( 1, h.descriptorOffset + h.descriptorSize );
+		long rgdOffset = 0;
+		long gdOffset = descEnd;
+		if( h.rgdOffset > 0 ) {
+			rgdOffset = descEnd;
+			gdOffset = rgdOffset + tablesSectors;
+		}
+		long overhead = gdOffset + tablesSectors;
+		overhead = (overhead + gs - 1) / gs * gs;
+		
+		File tmp = Compactor.compactFile( f );
+		RandomAccessFile in = new RandomAccessFile( f, "r" );
+		try {
+			RandomAccessFile out = new RandomAccessFile( tmp, "rw" );
+			try {
+				out.setLength( 0 );
+				Compactor.copy( in, out, 0, descEnd * sl );
+				int[] slots = Compactor.copyUnits( msd, in, out,
+												   overhead * sl );
+				long[][] gd = se.getGrainDirectory();
+				byte[] gts = new byte[(int)(gtCount * gtSectors * sl)];
+				boolean zeroed = false;
+				for( int g = 0; g < n; g++ ) {
+					long gte;
+					if( false ) {
+					} else if( slots[g] == Compactor.FREE ) {
+						gte = originalGTE( gd, h.numGTEsPerGT, g );
+					} else if( slots[g] == Compactor.ZERO ) {
+						gte = 1;
+					} else {
+						gte = overhead + slots[g] * gs;
+					}
+					if( gte == 1 )
+						zeroed = true;
+					int t = (int)(g / h.numGTEsPerGT);
+					int i = (int)(g % h.numGTEsPerGT);
+					EndianUtils.writeSwappedInteger
+						( gts, (int)(t * gtSectors * sl + 4 * i ), (int)gte );
+				}
+				if( rgdOffset > 0 )
+					writeTables( out, rgdOffset, gdSectors, gtCount,
+								 gtSectors, gts );
+				writeTables( out, gdOffset, gdSectors, gtCount,
+							 gtSectors, gts );
+
+				byte[] ba = new byte[8];
+				int flags = h.flags;
+				if( zeroed )
+					flags |= SparseExtentHeader.FLAGS_ZEROEDGRAINGTE;
+				EndianUtils.writeSwappedInteger( ba, 0, flags );
+				out.seek( 8 );
+				out.write( ba, 0, 4 );
+				EndianUtils.writeSwappedLong( ba, 0, rgdOffset );
+				out.seek( 48 );
+				out.write( ba );
+				EndianUtils.writeSwappedLong( ba, 0, gdOffset );
+				out.seek( 56 );
+				out.write( ba );
+				EndianUtils.writeSwappedLong( ba, 0, overhead );
+				out.seek( 64 );
+				out.write( ba );
+				out.setLength( (overhead + Compactor.slots( slots ) * gs)
+							   * sl );
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		Compactor.replace( f, tmp );
+	}
+
+	// a directory at offset, its tables directly after
+	static private void writeTables( RandomAccessFile out, long offset,
+									 long gdSectors, int gtCount,
+									 long gtSectors, byte[] gts )
+		throws IOException {
+		long sl = Constants.SECTORLENGTH;
+		byte[] gdBuf = new byte[(int)(gdSectors * sl)];
+		for( int t = 0; t < gtCount; t++ ) {
+			long gde = offset + gdSectors + t * gtSectors;
+			EndianUtils.writeSwappedInteger( gdBuf, 4*t, (int)gde );
+		}
+		out.seek( offset * sl );
+		out.write( gdBuf );
+		out.write( gts );
+	}
+
+	// an unallocated grain's entry: 0 (parent) or 1 (zero)
+	static private long originalGTE( long[][] gd, long numGTEsPerGT,
+									 int g ) {
+		long[] gt = gd[(int)(g / numGTEsPerGT)];
+		int i = (int)(g % numGTEsPerGT);
+		return i < gt.length ? gt[i] : 0;
+	}
+}
+
+// eof
@@ -30,14 +30,19 @@ package edu.uw.apl.vmvols.model.vmware;
 import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 
 import org.apache.commons.io.EndianUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import edu.uw.apl.vmvols.model.ByteSource;
 import edu.uw.apl.vmvols.model.Constants;
 import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+import edu.uw.apl.vmvols.model.Utils;
 
 /**
  * @author Stuart Maclean
@@ -77,22 +82,17 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 		if( grainDirectory != null )
 			return;
 		
-		RandomAccessFile raf = new RandomAccessFile( source, "r" );
-		long grainCount = header.capacity / header.grainSize;
-		int grainTableCount = (int)(grainCount / header.numGTEsPerGT );
+		ByteSource store = ByteSource.open( source, false );
+		long grainCount = (header.capacity + header.grainSize - 1) /
+			header.grainSize;
+		int grainTableCount = (int)((grainCount + header.numGTEsPerGT - 1) /
+									header.numGTEsPerGT );
 		log.info( "GrainCount: "+ grainCount );
 		log.info( "GrainTableCount: "+ grainTableCount );
 
-		byte[] gdBuf = new byte[4*grainTableCount];
 		long gdOffset = header.grainDirOffset();
 		log.info( "Using gdOffset: "+ gdOffset );
-		raf.seek( gdOffset * Constants.SECTORLENGTH );
-		raf.readFully( gdBuf );
-		long[] gdes = new long[grainTableCount];
-		for( int i = 0; i < gdes.length; i++ ) {
-			long gde = EndianUtils.readSwappedUnsignedInteger( gdBuf, 4*i );
-			gdes[i] = gde;
-		}
+		long[] gdes = readDirectory( store, gdOffset, grainTableCount );
 		
 		byte[] gtBuf = new byte[(int)(4*header.numGTEsPerGT)];
 		grainDirectory = new long[gdes.length][];
@@ -115,8 +115,7 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 				continue;
 			}
 
-			raf.seek( gde * Constants.SECTORLENGTH );
-			raf.readFully( gtBuf );
+			store.readFully( gde * Constants.SECTORLENGTH, gtBuf );
 
 			long[] grainTable = new long[(int)header.numGTEsPerGT];
 			for( int gt = 0; gt < grainTable.length; gt++ ) {
@@ -126,24 +125,26 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 			}
 			grainDirectory[i] = grainTable;
 		}
-		raf.close();
+		store.close();
 	}
 
-	private void buildZeroGrains() {
-		if( zeroGrain != null )
-			return;
+	private long[] readDirectory( ByteSource store, long offset,
+								  int grainTableCount ) throws IOException {
+		byte[] gdBuf = new byte[4*grainTableCount];
+		store.readFully( offset * Constants.SECTORLENGTH, gdBuf );
+		long[] result = new long[grainTableCount];
+		for( int i = 0; i < result.length; i++ ) {
+			result[i] = EndianUtils.readSwappedUnsignedInteger( gdBuf, 4*i );
+		}
+		return result;
+	}
+	
+	private void buildGeometry() {
 		grainSizeBytes = header.grainSize * Constants.SECTORLENGTH;
 		grainTableCoverageBytes = grainSizeBytes * header.numGTEsPerGT;
 		log2GrainSize = log2( grainSizeBytes );
 		log2GrainTableCoverage = log2( grainTableCoverageBytes );
 		log2SectorSize = log2( Constants.SECTORLENGTH );
-	    if( header.grainSize == GRAINSIZE_DEFAULT ) {
-			zeroGrain =	ZEROGRAIN_DEFAULT;
-			zeroGrainTable = ZEROGRAINTABLE_DEFAULT;
-		} else {
-			zeroGrain = new byte[(int)grainSizeBytes];
-			zeroGrainTable = new byte[(int)grainTableCoverageBytes];
-		}
 	}
 
 	// for test case access only
@@ -151,48 +152,451 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 		return grainDirectory;
 	}
 
+	long grainBytes() {
+		return header.grainSize * Constants.SECTORLENGTH;
+	}
+	
+	/**
+	 * @return bit g set iff grain g is held in this extent's file
+	 */
+	BitSet allocationMap() throws IOException {
+		readGrainData();
+		return allocationMap( grainDirectory, header.numGTEsPerGT );
+	}
+
+	/**
+	 * @return bit g set iff grain g has GTE 1, i.e. reads as zeros
+	 */
+	BitSet zeroMap() throws IOException {
+		readGrainData();
+		return zeroMap( grainDirectory, header.numGTEsPerGT );
+	}
+
+	/**
+	 * @return file offset of grain g, or -1 if not held in our file
+	 */
+	long hostOffset( int g ) throws IOException {
+		readGrainData();
+		return hostOffset( grainDirectory, header.numGTEsPerGT, g );
+	}
+
 	/*
-	private long nextFreeGrain() {
-		long max = -1;
-		for( long[] gt : grainTables ) {
-			for( long gte : gt ) {
-				if( gte == 0 )
+	  Shared with StreamOptimizedSparseExtent, whose grain directory
+	  is the same shape.  A GTE of 0 means 'see parent', of 1 means a
+	  zero grain, neither of which is held in the file.
+	*/
+	static BitSet allocationMap( long[][] grainDirectory,
+								 long numGTEsPerGT ) {
+		BitSet result = new BitSet();
+		for( int gd = 0; gd < grainDirectory.length; gd++ ) {
+			long[] gt = grainDirectory[gd];
+			for( int i = 0; i < gt.length; i++ ) {
+				if( gt[i] > 1 )
+					result.set( (int)(gd * numGTEsPerGT + i) );
+			}
+		}
+		return result;
+	}
+
+	static BitSet zeroMap( long[][] grainDirectory, long numGTEsPerGT ) {
+		BitSet result = new BitSet();
+		for( int gd = 0; gd < grainDirectory.length; gd++ ) {
+			long[] gt = grainDirectory[gd];
+			for( int i = 0; i < gt.length; i++ ) {
+				if( gt[i] == 1 )
+					result.set( (int)(gd * numGTEsPerGT + i) );
+			}
+		}
+		return result;
+	}
+
+	static long hostOffset( long[][] grainDirectory, long numGTEsPerGT,
+							int g ) {
+		int gd = (int)(g / numGTEsPerGT);
+		int i = (int)(g % numGTEsPerGT);
+		if( gd >= grainDirectory.length )
+			return -1;
+		long[] gt = grainDirectory[gd];
+		if( i >= gt.length || gt[i] <= 1 )
+			return -1;
+		return gt[i] * Constants.SECTORLENGTH;
+	}
+
+	/**
+	 * Check the grain directory, its redundant twin if any, and every
+	 * grain table, straight from the file.  Every grain table and
+	 * grain must lie within the file, outside the metadata overhead,
+	 * and overlap no other; twin tables must agree.
+	 *
+	 * @see edu.uw.apl.vmvols.model.VirtualDisk#check
+	 */
+	List<String> check() throws IOException {
+		List<String> result = new ArrayList<String>();
+		long gs = header.grainSize;
+		// spec: a power of 2, and at least 8 sectors
+		if( gs < 8 || Long.bitCount( gs ) != 1 ) {
+			result.add( "Bad grain size: " + gs );
+			return result;
+		}
+		if( header.numGTEsPerGT != NUMGTESPERGT )
+			result.add( "Unexpected numGTEsPerGT: " + header.numGTEsPerGT );
+		ByteSource store = ByteSource.open( source, false );
+		try {
+			long fileSectors = store.size() / Constants.SECTORLENGTH;
+			long grainCount = (header.capacity + gs - 1) / gs;
+			int grainTableCount = (int)((grainCount + header.numGTEsPerGT - 1)
+										/ header.numGTEsPerGT );
+			long gdSectors = (4L * grainTableCount +
+							  Constants.SECTORLENGTH - 1) /
+				Constants.SECTORLENGTH;
+			long gtSectors = (4 * header.numGTEsPerGT +
+							  Constants.SECTORLENGTH - 1) /
+				Constants.SECTORLENGTH;
+			SectorMap used = new SectorMap( fileSectors );
+
+			long gdOffset = header.grainDirOffset();
+			long twinOffset = gdOffset == header.rgdOffset ?
+				header.gdOffset : header.rgdOffset;
+			if( twinOffset == gdOffset )
+				twinOffset = 0;
+			if( gdOffset + gdSectors > fileSectors ||
+				twinOffset + gdSectors > fileSectors ) {
+				result.add( "Grain directory beyond eof: " + gdOffset + "," +
+							twinOffset );
+				return result;
+			}
+			long[] gdes = readDirectory( store, gdOffset, grainTableCount );
+			used.mark( gdOffset, gdSectors );
+			long[] twinGdes = null;
+			if( twinOffset > 0 ) {
+				twinGdes = readDirectory( store, twinOffset, grainTableCount );
+				if( used.overlaps( twinOffset, gdSectors ) )
+					result.add( "Grain directories overlap" );
+				used.mark( twinOffset, gdSectors );
+			}
+			
+			byte[] gtBuf = new byte[(int)(4*header.numGTEsPerGT)];
+			byte[] twinBuf = new byte[gtBuf.length];
+			for( int i = 0; i < gdes.length; i++ ) {
+				long gde = gdes[i];
+				if( twinGdes != null && (gde == 0) != (twinGdes[i] == 0) )
+					result.add( "GDE " + i + " differs from redundant: " +
+								gde + "," + twinGdes[i] );
+				if( gde == 0 )
 					continue;
-				if( gte > max )
-					max = gte;
+				if( gde == 1 || gde < 0 || gde + gtSectors > fileSectors ) {
+					result.add( "GDE " + i + " out of range: " + gde );
+					continue;
+				}
+				if( used.overlaps( gde, gtSectors ) )
+					result.add( "Grain table " + i + " overlaps: " + gde );
+				used.mark( gde, gtSectors );
+				store.readFully( gde * Constants.SECTORLENGTH, gtBuf );
+
+				long twinGde = twinGdes == null ? 0 : twinGdes[i];
+				if( twinGde > 1 && twinGde + gtSectors <= fileSectors ) {
+					if( used.overlaps( twinGde, gtSectors ) )
+						result.add( "Redundant grain table " + i +
+									" overlaps: " + twinGde );
+					used.mark( twinGde, gtSectors );
+					store.readFully( twinGde * Constants.SECTORLENGTH,
+									 twinBuf );
+					if( !Arrays.equals( gtBuf, twinBuf ) )
+						result.add( "Grain table " + i +
+									" differs from redundant" );
+				} else if( twinGde != 0 ) {
+					result.add( "Redundant GDE " + i + " out of range: " +
+								twinGde );
+				}
+
+				for( int gt = 0; gt < header.numGTEsPerGT; gt++ ) {
+					long gte = EndianUtils.readSwappedUnsignedInteger
+						( gtBuf, 4*gt );
+					if( gte <= 1 )
+						continue;
+					long g = i * header.numGTEsPerGT + gt;
+					if( g >= grainCount ) {
+						result.add( "GTE for grain beyond capacity: " + g );
+					} else if( gte < header.overhead ) {
+						result.add( "GTE " + g + " within overhead: " + gte );
+					} else if( gte + gs > fileSectors ) {
+						result.add( "GTE " + g + " beyond eof: " + gte );
+					} else if( used.overlaps( gte, gs ) ) {
+						result.add( "GTE " + g + " overlaps: " + gte );
+					} else {
+						used.mark( gte, gs );
+					}
+				}
 			}
+		} finally {
+			store.close();
 		}
-		return max+1;
+		return result;
+	}
+
+	/**
+	   Which sectors of a host file are claimed by some metadata or
+	   grain, a bit per sector.  Beyond 2^31 sectors (1TB) we keep a
+	   bit per 2^shift sectors and note just the first of each range,
+	   so detect duplicate, but not partially overlapping, ranges.
+	*/
+	static class SectorMap {
+		SectorMap( long sectors ) {
+			int s = 0;
+			while( (sectors >> s) >= Integer.MAX_VALUE )
+				s++;
+			shift = s;
+			bits = new BitSet( (int)(sectors >> shift) );
+		}
+
+		boolean overlaps( long start, long length ) {
+			int from = (int)(start >> shift);
+			int to = shift == 0 ? (int)(start + length) : from + 1;
+			int i = bits.nextSetBit( from );
+			return i >= 0 && i < to;
+		}
+
+		void mark( long start, long length ) {
+			int from = (int)(start >> shift);
+			int to = shift == 0 ? (int)(start + length) : from + 1;
+			bits.set( from, to );
+		}
+
+		private final int shift;
+		private final BitSet bits;
 	}
 	
-	private void writeGrainTables() throws IOException {
-		byte[] ba = new byte[(int)(4*header.numGTEsPerGT)];
-		RandomAccessFile raf = new RandomAccessFile( source, "rw" );
-		for( int i = 0; i < grainDirectory.length; i++ ) {
-			long[] gt = grainTables[i];
+	/**
+	   Writes need more than the reads do: the on-disk locations of
+	   every grain table, in both the grain directory we read from
+	   and its redundant twin (if any), and the next free sector at
+	   which to place new grains.  We build these just once, on the
+	   first writable open, and maintain them in memory from then on.
+
+	   Allocation is then O(1): new grain tables and grains are always
+	   appended at the end of the host file, so we need only bump
+	   nextFreeSector, rather than scan every grain table for the
+	   highest grain in use.
+	*/
+	private synchronized void prepareWrites() throws IOException {
+		if( gdes != null )
+			return;
+		int grainTableCount = grainDirectory.length;
+		ByteSource store = ByteSource.open( source, false );
+		gdes = readDirectory( store, header.grainDirOffset(), grainTableCount );
+		long twinOffset = header.grainDirOffset() == header.rgdOffset ?
+			header.gdOffset : header.rgdOffset;
+		if( twinOffset > 0 && twinOffset != header.grainDirOffset() )
+			twinGdes = readDirectory( store, twinOffset, grainTableCount );
+		long fileSectors = (store.size() + Constants.SECTORLENGTH - 1) /
+			Constants.SECTORLENGTH;
+		store.close();
+		nextFreeSector = Math.max( fileSectors, header.overhead );
+		grainTableSectors = (4 * header.numGTEsPerGT +
+							 Constants.SECTORLENGTH - 1) /
+			Constants.SECTORLENGTH;
+		dirtyTables = new BitSet( grainTableCount );
+		dirtyEntries = 0;
+		directoryDirty = false;
+		flags = header.flags;
+		log.info( "NextFreeSector: " + nextFreeSector );
+	}
+
+	/**
+	   A grain directory entry of 0 means 'no grain table', and
+	   every grain it would cover is then read from any parent (or as
+	   zeros).  On the first write into such a region we create the
+	   grain table, in memory and in both directories.  Its on-disk
+	   location is reserved now but its content only written at the
+	   next flushMetaData, after any grain data it points to.
+	*/
+	private synchronized long[] allocateGrainTable( int gdIndex ) {
+		long[] gt = grainDirectory[gdIndex];
+		if( gt != PARENTGDE )
+			return gt;
+		gt = new long[(int)header.numGTEsPerGT];
+		gdes[gdIndex] = nextFreeSector;
+		nextFreeSector += grainTableSectors;
+		if( twinGdes != null ) {
+			twinGdes[gdIndex] = nextFreeSector;
+			nextFreeSector += grainTableSectors;
+		}
+		grainDirectory[gdIndex] = gt;
+		dirtyTables.set( gdIndex );
+		directoryDirty = true;
+		if( log.isDebugEnabled() )
+			log.debug( "New GT: " + gdIndex + " = " + gdes[gdIndex] );
+		return gt;
+	}
+
+	/**
+	   Reserve space for one grain at the end of the host file,
+	   returning its sector offset.  The caller writes the grain data
+	   there and only then calls commitGrain, so no grain table entry,
+	   in memory or on disk, ever refers to an unwritten grain.  Until
+	   then the reservation is outstanding, see discardGrains.
+	*/
+	private synchronized long allocateGrain() {
+		reservedGrains++;
+		long result = nextFreeSector;
+		nextFreeSector += header.grainSize;
+		return result;
+	}
+
+	/**
+	   @return true if sufficient grain table entries are now dirty
+	   that the caller should flush them out
+	*/
+	private synchronized boolean commitGrain( int gdIndex, int gtIndex,
+											  long gte ) {
+		// a real grain completes an allocateGrain reservation
+		if( gte > 1 )
+			reservedGrains--;
+		grainDirectory[gdIndex][gtIndex] = gte;
+		if( gte == 1 )
+			zeroedGTEs = true;
+		dirtyTables.set( gdIndex );
+		dirtyEntries++;
+		return dirtyEntries >= DIRTYENTRIES_FLUSH;
+	}
+
+	/**
+	   Write out every grain table with entries changed since the
+	   last flush, to both its primary and redundant locations, then
+	   the grain directories themselves if any grain tables were
+	   created.  Each dirty grain table costs one write per directory,
+	   regardless of how many of its entries changed.
+
+	   The grain data those entries refer to is synced first, so no
+	   entry can reach the disk ahead of its grain, and the tables
+	   themselves after, so a flush is durable once we return.  As
+	   for VDIDisk.flushBlockMap.
+	*/
+	synchronized void flushMetaData( ByteSource store )
+		throws IOException {
+		if( dirtyTables == null || dirtyTables.isEmpty() )
+			return;
+		store.sync();
+		byte[] gtBuf = new byte[(int)(4*header.numGTEsPerGT)];
+		for( int i = dirtyTables.nextSetBit( 0 ); i >= 0;
+			 i = dirtyTables.nextSetBit( i+1 ) ) {
+			long[] gt = grainDirectory[i];
 			for( int j = 0; j < gt.length; j++ ) {
-				EndianUtils.writeSwappedInteger( ba, 4*j, (int)gt[j] );
+				EndianUtils.writeSwappedInteger( gtBuf, 4*j, (int)gt[j] );
+			}
+			store.write( gdes[i] * Constants.SECTORLENGTH, gtBuf );
+			if( twinGdes != null ) {
+				store.write( twinGdes[i] * Constants.SECTORLENGTH, gtBuf );
 			}
-			long gde = grainDirectory[i];
-			raf.seek( gde * Constants.SECTORLENGTH );
-			raf.write( ba );
 		}
-		raf.close();
+		if( directoryDirty ) {
+			writeDirectory( store, header.grainDirOffset(), gdes );
+			if( twinGdes != null ) {
+				long twinOffset = header.grainDirOffset() == header.rgdOffset
+					? header.gdOffset : header.rgdOffset;
+				writeDirectory( store, twinOffset, twinGdes );
+			}
+			directoryDirty = false;
+		}
+		/*
+		  The spec has any extent using GTE 1 say so in its header.
+		  The flags are the header's only field we ever rewrite.
+		*/
+		if( zeroedGTEs &&
+			(flags & SparseExtentHeader.FLAGS_ZEROEDGRAINGTE) == 0 ) {
+			flags |= SparseExtentHeader.FLAGS_ZEROEDGRAINGTE;
+			byte[] ba = new byte[4];
+			EndianUtils.writeSwappedInteger( ba, 0, flags );
+			store.write( 8, ba );
+		}
+		store.sync();
+		if( log.isDebugEnabled() )
+			log.debug( "Flushed GTs: " + dirtyTables.cardinality() +
+					   ", GTEs: " + dirtyEntries );
+		dirtyTables.clear();
+		dirtyEntries = 0;
 	}
+
+	/**
+	   Discard grains [first,last).  With a parent, each gets GTE 1
+	   (zeros, hiding the parent), else GTE 0.  Then give back to the
+	   host file system any space so freed at the end of the file,
+	   after flushing the grain tables, so no entry ever refers past
+	   eof.  Java cannot punch holes, so grains freed mid-file stay
+	   in the file, unused, until a compaction.
+
+	   The next free sector only drops back when no allocateGrain
+	   reservation is outstanding, i.e. no other handle has a new
+	   grain's data in flight.  Such grains lie above every committed
+	   one, so would otherwise be handed out twice.
 	*/
+	synchronized void discardGrains( ByteSource store, long first,
+									 long last, boolean hasParent )
+		throws IOException {
+		long target = hasParent ? 1 : 0;
+		boolean released = false;
+		for( long g = first; g < last; g++ ) {
+			int gd = (int)(g / header.numGTEsPerGT);
+			int i = (int)(g % header.numGTEsPerGT);
+			long[] gt = grainDirectory[gd];
+			if( gt == PARENTGDE ) {
+				if( !hasParent )
+					continue;
+				gt = allocateGrainTable( gd );
+			}
+			if( gt[i] == target )
+				continue;
+			if( gt[i] > 1 )
+				released = true;
+			commitGrain( gd, i, target );
+		}
+		if( !released )
+			return;
+		long end = header.overhead;
+		for( int gd = 0; gd < grainDirectory.length; gd++ ) {
+			if( gdes[gd] > 1 )
+				end = Math.max( end, gdes[gd] + grainTableSectors );
+			if( twinGdes != null && twinGdes[gd] > 1 )
+				end = Math.max( end, twinGdes[gd] + grainTableSectors );
+			for( long gte : grainDirectory[gd] ) {
+				if( gte > 1 )
+					end = Math.max( end, gte + header.grainSize );
+			}
+		}
+		if( reservedGrains == 0 )
+			nextFreeSector = end;
+		flushMetaData( store );
+		// the grain tables must be durable before the file shrinks
+		store.sync();
+		long length = nextFreeSector * Constants.SECTORLENGTH;
+		if( store.size() > length )
+			store.truncate( length );
+	}
+	
+	private void writeDirectory( ByteSource store, long offset,
+								 long[] directory ) throws IOException {
+		byte[] gdBuf = new byte[4*directory.length];
+		for( int i = 0; i < directory.length; i++ ) {
+			EndianUtils.writeSwappedInteger( gdBuf, 4*i, (int)directory[i] );
+		}
+		store.write( offset * Constants.SECTORLENGTH, gdBuf );
+	}
 
 	InputStream getInputStream( InputStream parentIS ) throws IOException {
 		readMetaData();
-		buildZeroGrains();
+		buildGeometry();
 		return new SparseExtentRandomAccess
 			( false, (RandomAccessVirtualDisk)parentIS );
 	}
 
-	RandomAccessVirtualDisk getRandomAccess( RandomAccessVirtualDisk parentRA )
+	RandomAccessVirtualDisk getRandomAccess( RandomAccessVirtualDisk parentRA,
+											 boolean writable )
 		throws IOException {
 		readMetaData();
-		buildZeroGrains();
-		return new SparseExtentRandomAccess( true, parentRA );
+		buildGeometry();
+		if( writable )
+			prepareWrites();
+		return new SparseExtentRandomAccess( writable, parentRA );
 	}
 
 	/*
@@ -220,8 +624,8 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 			throws IOException {
 			super( size() );
 			this.parentRA = parentRA;
-			String mode = writable ? "rw" : "r";
-			raf = new RandomAccessFile( source, mode );
+			this.writable = writable;
+			store = ByteSource.open( source, writable );
 			dPos();
 			grainBuffer = new byte[(int)grainSizeBytes];
 			gtePrev = 0;
@@ -231,7 +635,14 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 		public void close() throws IOException {
 			if( parentRA != null )
 				parentRA.close();
-			raf.close();
+			flush();
+			store.close();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if( writable )
+				flushMetaData( store );
 		}
 
 		@Override
@@ -281,23 +692,29 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 			int actual = actualL > Integer.MAX_VALUE ? Integer.MAX_VALUE :
 				(int)actualL;
 
+			boolean sequential = sequential( actual );
+
 			int total = 0;
 			while( total < actual ) {
 				int left = actual - total;
 				long[] gt = grainDirectory[gdIndex];
 				if( false ) {
 				} else if( gt == PARENTGDE ) {
-					if( parentRA != null ) {
-						// look, read from parent...
-					}
-					log.debug( "Zero GD : " + gdIndex );
+					if( log.isDebugEnabled() )
+						log.debug( "Zero GD : " + gdIndex );
 					int grainTableOffset = (int)
-						(gtIndex << log2GrainSize + gOffset);
+						(((long)gtIndex << log2GrainSize) + gOffset);
 					int inGrainTable = (int)
 						(grainTableCoverageBytes - grainTableOffset);
 					int fromGrainTable = Math.min( left, inGrainTable );
-					System.arraycopy( zeroGrainTable, grainTableOffset,
-									  ba, off+total, fromGrainTable );
+					if( parentRA != null ) {
+						// LOOK: fromParent should ALWAYS == fromGrainTable
+						fromGrainTable = parentRA.readImpl
+							( ba, off+total, fromGrainTable );
+					} else {
+						Arrays.fill( ba, off+total, off+total+fromGrainTable,
+									 (byte)0 );
+					}
 					if( log.isDebugEnabled() )
 						log.debug( len + " " + actual + " " +
 								   left + " " + inGrainTable + " " +
@@ -325,27 +742,47 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 							total += fromParent;
 							posn += fromParent;
 						} else {
-							System.arraycopy( zeroGrain, 0,
-											  ba, off+total, fromGrain );
+							Arrays.fill( ba, off+total, off+total+fromGrain,
+										 (byte)0 );
 							total += fromGrain;
 							posn += fromGrain;
 						}
 					} else if( gte == 1 ) {
 						// 1 means 'zeros'
-						System.arraycopy( zeroGrain, 0,
-										  ba, off+total, fromGrain );
+						Arrays.fill( ba, off+total, off+total+fromGrain,
+									 (byte)0 );
 						total += fromGrain;
 						posn += fromGrain;
 						if( parentRA != null )
 							parentRA.skip( fromGrain );
 					} else {
-						if( gte != gtePrev ) {
-							raf.seek( gte << log2SectorSize );
-							raf.readFully( grainBuffer );
+						if( gte == gtePrev && gOffset >= cachedFrom &&
+							gOffset + fromGrain <= cachedTo ) {
+							System.arraycopy( grainBuffer, gOffset,
+											  ba, off+total, fromGrain );
+						} else if( fromGrain == inGrain ) {
+							/*
+							  Wanted up to the end of this grain, so
+							  read straight into the caller's array,
+							  along with any following grains
+							  contiguous with it.
+							*/
+							fromGrain = contiguous( gdIndex, gtIndex, gte,
+													fromGrain, left );
+							store.readFully( (gte << log2SectorSize) + gOffset,
+											 ba, off+total, fromGrain );
+						} else {
+							int from = spanStart( gOffset, sequential );
+							int to = spanEnd( gOffset + fromGrain,
+											  grainBuffer.length, sequential );
+							store.readFully( (gte << log2SectorSize) + from,
+											 grainBuffer, from, to - from );
 							gtePrev = gte;
+							cachedFrom = from;
+							cachedTo = to;
+							System.arraycopy( grainBuffer, gOffset,
+											  ba, off+total, fromGrain );
 						}
-						System.arraycopy( grainBuffer, (int)gOffset,
-										  ba, off+total, fromGrain );
 						total += fromGrain;
 						posn += fromGrain;
 						if( parentRA != null )
@@ -363,16 +800,24 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 		/**
 		   For the array write, we shall attempt to satify the length
 		   requested, even if it is takes us many writes (of the
-		   physical file) from different blocks to do so.
+		   physical file) from different grains to do so.
+
+		   A write to an already-allocated grain is a plain overwrite.
+		   A write to an unallocated grain (gte 0 or 1) appends a new
+		   grain at end of file.  If the write does not cover the
+		   whole grain, the rest of the grain is filled from the
+		   parent (if any, and only for gte 0) or with zeros, so that
+		   the new grain is always fully written before any grain
+		   table entry refers to it.  Grain table updates are held in
+		   memory and flushed in batches, see flushMetaData.
 		*/
 		
 		@Override
 		public void writeImpl( byte[] ba, int off, int len )
 			throws IOException {
 
-			// Until we fix this ...
-			if( true )
-				throw new UnsupportedOperationException();
+			if( !writable )
+				throw new IOException( "Not writable: " + source );
 			
 			log.debug( "Write.[BII: " + off + " " + len );
 			
@@ -388,23 +833,99 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 				int left = actual - total;
 				int inGrain = (int)(grainSizeBytes - gOffset);
 				int fromGrain = Math.min( left, inGrain );
-				long gte = 0;// LOOK grainTables[gdIndex][gtIndex];
-				log.debug( "gte " + gte + " " + gdIndex + " "+ gtIndex );
-				if( gte == 0 ) {
-					gte = 0;//nextFreeGrain();
-					//grainTables[gdIndex][gtIndex] = gte;
-					//writeGrainTables();
+				long[] gt = grainDirectory[gdIndex];
+				if( gt == ZEROGDE )
+					throw new IllegalStateException( "ZEROGDE!" );
+				long gte = gt == PARENTGDE ? 0 : gt[gtIndex];
+				if( log.isDebugEnabled() )
+					log.debug( "gte " + gte + " " + gdIndex + " "+ gtIndex );
+				boolean flushNeeded = false;
+				boolean whole = fromGrain == grainSizeBytes;
+				// zeros already read back, or could be made to via GTE 1
+				boolean zeros = gte == 1 || ( gte == 0 && parentRA == null );
+				boolean hide = whole &&
+					( ( gte == 0 && parentRA != null ) ||
+					  ( gte > 1 && releaseZeros ) );
+				if( ( zeros || hide ) &&
+					Utils.isZero( ba, off+total, fromGrain ) ) {
+					if( hide ) {
+						allocateGrainTable( gdIndex );
+						flushNeeded = commitGrain( gdIndex, gtIndex, 1 );
+						if( gte == gtePrev )
+							gtePrev = 0;
+					}
+				} else if( gte == 0 || gte == 1 ) {
+					allocateGrainTable( gdIndex );
+					long grainStart = posn - gOffset;
+					long grain = allocateGrain();
+					if( fromGrain == grainSizeBytes ) {
+						store.write( grain << log2SectorSize,
+									 ba, off+total, fromGrain );
+					} else {
+						if( gte == 0 && parentRA != null ) {
+							parentRA.seek( grainStart );
+							int fromParent = parentRA.readImpl
+								( grainBuffer, 0, (int)grainSizeBytes );
+							// a final, partial grain, beyond parent's eof
+							for( int i = fromParent; i < grainSizeBytes; i++ )
+								grainBuffer[i] = 0;
+						} else {
+							Arrays.fill( grainBuffer, (byte)0 );
+						}
+						System.arraycopy( ba, off+total, grainBuffer, gOffset,
+										  fromGrain );
+						store.write( grain << log2SectorSize, grainBuffer );
+					}
+					// grainBuffer now either stale or holds the new grain
+					gtePrev = fromGrain == grainSizeBytes ? 0 : grain;
+					cachedFrom = 0;
+					cachedTo = grainBuffer.length;
+					flushNeeded = commitGrain( gdIndex, gtIndex, grain );
+				} else {
+					store.write( (gte << log2SectorSize) + gOffset,
+								 ba, off+total, fromGrain );
+					// keep any cached copy of this grain coherent
+					if( gte == gtePrev )
+						System.arraycopy( ba, off+total, grainBuffer, gOffset,
+										  fromGrain );
 				}
-				// need long operands to the product, to avoid overflow...
-				long seek = gte * Constants.SECTORLENGTH + gOffset;
-				raf.seek( seek );
-				raf.write( ba, off+total, fromGrain );
 				total += fromGrain;
 				posn += fromGrain;
+				// align the parent with where our own posn now is...
+				if( parentRA != null )
+					parentRA.seek( posn );
 				dPos();
+				if( flushNeeded )
+					flushMetaData( store );
 			}
 		}
 
+		/**
+		   Whole grains in the range are dropped, see discardGrains,
+		   the rest is zero-filled.  A final partial grain of the
+		   extent counts as whole.
+		*/
+		@Override
+		public void discard( long offset, long length ) throws IOException {
+			dropBytes();
+			if( !writable )
+				throw new IOException( "Not writable: " + source );
+			long end = Math.min( size, offset + length );
+			if( offset < 0 || offset >= end )
+				return;
+			long gs = grainSizeBytes;
+			long first = (offset + gs - 1) / gs;
+			long last = end == size ? (end + gs - 1) / gs : end / gs;
+			if( first >= last ) {
+				zeroFill( offset, end );
+				return;
+			}
+			zeroFill( offset, first * gs );
+			zeroFill( last * gs, end );
+			discardGrains( store, first, last, parentRA != null );
+			gtePrev = 0;
+		}
+
 		/**
 		   Called whenever the local posn changes value.
 		   Do NOT make calls to the parent.dPos here,
@@ -447,13 +968,44 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 							  " gOffset: " + gOffset );
 		}
 
-		private final RandomAccessFile raf;
+		private final ByteSource store;
+		private final boolean writable;
 		private RandomAccessVirtualDisk parentRA;
 		private int gdIndex, gtIndex, gOffset;
 		private long gtePrev;
+		// grainBuffer holds valid data for gtePrev in [cachedFrom,cachedTo)
+		private int cachedFrom, cachedTo;
 		private byte[] grainBuffer;
 	}
 	
+	/**
+	 * Extend a read of n bytes, which ends at the end of grain
+	 * gtIndex of grain table gdIndex, held at sector gte, over the
+	 * following grains while they are wholly wanted (left bytes are
+	 * wanted in all) and follow on in the host file, as they do when
+	 * VMware allocates sequentially.  Returns the extended length,
+	 * readable with a single I/O.
+	 */
+	private int contiguous( int gdIndex, int gtIndex, long gte,
+							int n, int left ) {
+		long next = gte + header.grainSize;
+		while( left - n >= grainSizeBytes ) {
+			if( ++gtIndex == header.numGTEsPerGT ) {
+				gtIndex = 0;
+				gdIndex++;
+			}
+			if( gdIndex >= grainDirectory.length )
+				break;
+			long[] gt = grainDirectory[gdIndex];
+			if( gt == PARENTGDE || gt == ZEROGDE || gtIndex >= gt.length ||
+				gt[gtIndex] != next )
+				break;
+			n += grainSizeBytes;
+			next += header.grainSize;
+		}
+		return n;
+	}
+
 	static int log2( long i ) {
 		for( int p = 0; p < 32; p++ ) {
 			if( i == 1 << p )
@@ -470,15 +1022,24 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 	int log2GrainSize, log2GrainTableCoverage, log2SectorSize;
 
 	long[][] grainDirectory;
-	byte[] zeroGrain;
-	byte[] zeroGrainTable;
+
+	// Write support only, see prepareWrites...
+	private long[] gdes, twinGdes;
+	private long nextFreeSector, grainTableSectors;
+	private int reservedGrains;
+	private BitSet dirtyTables;
+	private int dirtyEntries;
+	private boolean directoryDirty;
+	private boolean zeroedGTEs;
+	private int flags;
+
+	// see VirtualDisk.setReleaseZeros
+	boolean releaseZeros;
 	
 
 	/*
 	  The VMware vmdk spec says that the default grain size is 2^7 =
-	  128 sectors, or 64KB.  So prealloc the '64KB zero grain', so
-	  that all SparseExents, StreamOptimizedSparseExtents can use it
-	  (so saving on per-disk/stream copies)
+	  128 sectors, or 64KB.
 	*/
 
 	 // LOOK: We have this in ./Constants.java ??
@@ -486,12 +1047,15 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 
 	static final long NUMGTESPERGT = 512;
 
-	static final byte[] ZEROGRAIN_DEFAULT =
-		new byte[(int)(GRAINSIZE_DEFAULT * Constants.SECTORLENGTH)];
 
-	static final byte[] ZEROGRAINTABLE_DEFAULT =
-		new byte[(int)(GRAINSIZE_DEFAULT * Constants.SECTORLENGTH *
-					   NUMGTESPERGT )];
+	/*
+	  Once this many grain table entries are dirty, flush the grain
+	  tables to disk even without an explicit flush/close.  Bounds the
+	  work lost on a crash.  Consistency is flushMetaData's sync
+	  ordering: grain data always reaches the disk before any
+	  entry referring to it.
+	*/
+	static final int DIRTYENTRIES_FLUSH = 4096;
 
 	static final long[] ZEROGDE = new long[0];
 	static final long[] PARENTGDE = new long[0];
@@ -187,6 +187,7 @@ public class SparseExtentHeader {
 	static public final int SIZEOF = 512;
 
 	static public final int FLAGS_USEREDUNDANTGRAINTABLE = (1 << 1);
+	static public final int FLAGS_ZEROEDGRAINGTE = (1 << 2);
 	static public final int FLAGS_COMPRESSEDGRAINS = (1 << 16);
 	static public final int FLAGS_HASGRAINMARKERS = (1 << 17);
 }
@@ -27,24 +27,18 @@
  */
 package edu.uw.apl.vmvols.model.vmware;
 
-import java.io.DataInput;
 import java.io.File;
-import java.io.FilenameFilter;
-import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.HashMap;
-import java.util.Map;
-
-
-import org.apache.commons.io.EndianUtils;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import edu.uw.apl.vmvols.model.Constants;
 import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 
 /**
@@ -52,39 +46,346 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
  *
    Disk type 1:
 
-   A growable virtual disk split into 2GB host files (called "split sparse").
+   A growable virtual disk split into 2GB host files (called "split
+   sparse").  The file we are handed is a standalone Descriptor, whose
+   extent lines name the host files, e.g.
+
+   RW 4192256 SPARSE "Windows 7 x64-s001.vmdk"
+   RW 4192256 SPARSE "Windows 7 x64-s002.vmdk"
+
+   Each such file is a sparse extent just like a monolithicSparse
+   disk, but covering only its own window of the logical disk.  We
+   map a logical disk offset to its extent by binary search over the
+   extent start offsets, and open each extent (grain directory etc)
+   only when first accessed.
 
-   NOTE: This disk type not yet implemented, TODO
+   Any parent disk is presented to each extent as a window onto the
+   parent at that extent's start offset, so a parent need not be
+   split the same way (or at all).
  */
 
 public class SplitSparseDisk extends VMDKDisk {
 
 	SplitSparseDisk( File f, Descriptor d ) {
 		super( f, d );
+		log = LogFactory.getLog( getClass() );
+		List<Descriptor.Extent> es = d.getExtents();
+		if( es.isEmpty() )
+			throw new VMDKException( "No extents: " + f );
+		extentFiles = new File[es.size()];
+		extents = new SparseExtent[es.size()];
+		starts = new long[es.size()];
+		lengths = new long[es.size()];
+		File dir = f.getAbsoluteFile().getParentFile();
+		long start = 0;
+		for( int i = 0; i < es.size(); i++ ) {
+			Descriptor.Extent e = es.get(i);
+			if( !"SPARSE".equals( e.getType() ) )
+				throw new VMDKException( "Extent type not supported in " +
+										 f + ": " + e );
+			extentFiles[i] = new File( dir, e.getFileName() );
+			starts[i] = start;
+			lengths[i] = e.getSectors() * Constants.SECTORLENGTH;
+			start += lengths[i];
+		}
+		size = start;
 	}
 
 	@Override
 	public long size() {
-		// to do
-		return 0L;
+		return size;
 	}
 
+	@Override
+	public List<File> getHostFiles() {
+		List<File> result = super.getHostFiles();
+		result.addAll( Arrays.asList( extentFiles ) );
+		return result;
+	}
 
 	@Override
 	public long contiguousStorage() {
-		return 0L;
+		try {
+			return extent( 0 ).header.grainSize * Constants.SECTORLENGTH;
+		} catch( IOException ioe ) {
+			log.warn( ioe );
+			return SparseExtent.GRAINSIZE_DEFAULT * Constants.SECTORLENGTH;
+		}
 	}
 	
+	/**
+	 * Our grains are those of the extents, which we expect to share a
+	 * grain size and to start on grain boundaries, as VMware creates
+	 * them.
+	 */
+	@Override
+	public long allocationUnit() {
+		return contiguousStorage();
+	}
+
+	@Override
+	public BitSet allocationMap() throws IOException {
+		return merge( false );
+	}
+
+	@Override
+	public BitSet zeroMap() throws IOException {
+		return merge( true );
+	}
+
+	// the extents' maps, each shifted to where its extent starts
+	private BitSet merge( boolean zeros ) throws IOException {
+		long u = allocationUnit();
+		BitSet result = new BitSet( allocationUnits() );
+		for( int i = 0; i < extents.length; i++ ) {
+			BitSet bs = zeros ? extent( i ).zeroMap() :
+				extent( i ).allocationMap();
+			int first = (int)(starts[i] / u);
+			for( int g = bs.nextSetBit( 0 ); g >= 0;
+				 g = bs.nextSetBit( g+1 ) )
+				result.set( first + g );
+		}
+		return result;
+	}
+
+	@Override
+	public long hostOffset( int g ) throws IOException {
+		long u = allocationUnit();
+		long posn = g * u;
+		int i = extentIndex( posn );
+		return extent( i ).hostOffset( (int)((posn - starts[i]) / u) );
+	}
+
+	@Override
+	public List<String> check() throws IOException {
+		List<String> result = new ArrayList<String>();
+		for( int i = 0; i < extents.length; i++ ) {
+			if( !extentFiles[i].isFile() ) {
+				result.add( "Missing extent: " + extentFiles[i] );
+				continue;
+			}
+			for( String s : extent( i ).check() )
+				result.add( extentFiles[i].getName() + ": " + s );
+		}
+		return result;
+	}
+
 	@Override
 	public InputStream getInputStream() throws IOException {
-		throw new IllegalStateException( "To Implement: SplitSparseDisk..." );
+		return getRandomAccess( false );
 	}
 
 	@Override
 	public RandomAccessVirtualDisk getRandomAccess( boolean writable )
 		throws IOException {
-		throw new IllegalStateException( "To Implement: SplitSparseDisk..." );
+		/*
+		  By definition, any non-active disk cannot be writable,
+		  and a parent of this disk cannot be active.
+		*/
+		RandomAccessVirtualDisk parentRA = parent == null ? null :
+			parent.getRandomAccess( false );
+		return new SplitSparseRandomAccess( parentRA, writable );
+	}
+
+	/**
+	   @return index of the extent containing logical offset posn,
+	   which must be in [0,size)
+	*/
+	int extentIndex( long posn ) {
+		int i = Arrays.binarySearch( starts, posn );
+		return i >= 0 ? i : -i - 2;
+	}
+	
+	private synchronized SparseExtent extent( int i ) throws IOException {
+		if( extents[i] == null ) {
+			SparseExtentHeader seh = locateSparseExtentHeader
+				( extentFiles[i] );
+			if( seh.capacity * Constants.SECTORLENGTH != lengths[i] )
+				throw new VMDKException
+					( "Extent size mismatch: " + extentFiles[i] );
+			extents[i] = new SparseExtent( extentFiles[i], seh );
+			extents[i].releaseZeros = releaseZeros;
+		}
+		return extents[i];
+	}
+
+	@Override
+	public synchronized void setReleaseZeros( boolean b ) {
+		super.setReleaseZeros( b );
+		for( SparseExtent se : extents ) {
+			if( se != null )
+				se.releaseZeros = b;
+		}
+	}
+
+	class SplitSparseRandomAccess extends RandomAccessVirtualDisk {
+		SplitSparseRandomAccess( RandomAccessVirtualDisk parentRA,
+								 boolean writable ) {
+			super( SplitSparseDisk.this.size );
+			this.parentRA = parentRA;
+			this.writable = writable;
+			extentRAs = new RandomAccessVirtualDisk[extents.length];
+		}
+
+		@Override
+		public void close() throws IOException {
+			for( RandomAccessVirtualDisk ra : extentRAs ) {
+				if( ra != null )
+					ra.close();
+			}
+			if( parentRA != null )
+				parentRA.close();
+		}
+
+		@Override
+		public void flush() throws IOException {
+			for( RandomAccessVirtualDisk ra : extentRAs ) {
+				if( ra != null )
+					ra.flush();
+			}
+		}
+		
+		@Override
+		public void seek( long s ) throws IOException {
+			// according to java.io.RandomAccessFile, no restriction on seek
+			posn = s;
+		}
+
+		/**
+		   Satisfy the whole read here, even if it spans extent
+		   boundaries, see SparseExtentRandomAccess.readImpl.
+		*/
+		@Override
+		public int readImpl( byte[] ba, int off, int len ) throws IOException {
+
+			// Do min in long space, since size - posn may overflow int...
+			long actualL = Math.min( size - posn, len );
+
+			// Cannot blindly coerce a long to int, result could be -ve
+			int actual = actualL > Integer.MAX_VALUE ? Integer.MAX_VALUE :
+				(int)actualL;
+
+			int total = 0;
+			while( total < actual ) {
+				int i = extentIndex( posn );
+				long inExtent = starts[i] + lengths[i] - posn;
+				int n = (int)Math.min( actual - total, inExtent );
+				RandomAccessVirtualDisk ra = extentRA( i );
+				ra.seek( posn - starts[i] );
+				n = ra.readImpl( ba, off+total, n );
+				if( n < 1 )
+					break;
+				total += n;
+				posn += n;
+			}
+			return total;
+		}
+
+		@Override
+		public void writeImpl( byte[] ba, int off, int len )
+			throws IOException {
+
+			// Do min in long space, since size - posn may overflow int...
+			long actualL = Math.min( size - posn, len );
+
+			// Cannot blindly coerce a long to int, result could be -ve
+			int actual = actualL > Integer.MAX_VALUE ? Integer.MAX_VALUE :
+				(int)actualL;
+
+			int total = 0;
+			while( total < actual ) {
+				int i = extentIndex( posn );
+				long inExtent = starts[i] + lengths[i] - posn;
+				int n = (int)Math.min( actual - total, inExtent );
+				RandomAccessVirtualDisk ra = extentRA( i );
+				ra.seek( posn - starts[i] );
+				ra.writeImpl( ba, off+total, n );
+				total += n;
+				posn += n;
+			}
+		}
+
+		@Override
+		public void discard( long offset, long length ) throws IOException {
+			dropBytes();
+			long end = Math.min( size, offset + length );
+			while( offset >= 0 && offset < end ) {
+				int i = extentIndex( offset );
+				long n = Math.min( end, starts[i] + lengths[i] ) - offset;
+				extentRA( i ).discard( offset - starts[i], n );
+				offset += n;
+			}
+		}
+
+		private RandomAccessVirtualDisk extentRA( int i ) throws IOException {
+			if( extentRAs[i] == null ) {
+				RandomAccessVirtualDisk window = parentRA == null ? null :
+					new ParentWindow( parentRA, starts[i], lengths[i] );
+				extentRAs[i] = extent( i ).getRandomAccess( window, writable );
+			}
+			return extentRAs[i];
+		}
+		
+		private final RandomAccessVirtualDisk parentRA;
+		private final boolean writable;
+		private final RandomAccessVirtualDisk[] extentRAs;
 	}
+
+	/**
+	   A view of the parent disk as seen by one extent, i.e. offset by
+	   that extent's start.  The parent handle is shared by all
+	   extents, and closed by the SplitSparseRandomAccess, not here.
+	*/
+	static class ParentWindow extends RandomAccessVirtualDisk {
+		ParentWindow( RandomAccessVirtualDisk parent, long start,
+					  long size ) {
+			super( size );
+			this.parent = parent;
+			this.start = start;
+		}
+
+		@Override
+		public void close() {
+		}
+		
+		@Override
+		public void seek( long s ) throws IOException {
+			posn = s;
+			parent.seek( start + s );
+		}
+
+		@Override
+		public long skip( long n ) throws IOException {
+			long result = super.skip( n );
+			parent.seek( start + posn );
+			return result;
+		}
+
+		@Override
+		public int readImpl( byte[] ba, int off, int len ) throws IOException {
+			int n = (int)Math.min( len, size - posn );
+			if( n < 1 )
+				return 0;
+			n = parent.readImpl( ba, off, n );
+			posn += n;
+			return n;
+		}
+
+		@Override
+		public void writeImpl( byte[] ba, int off, int len )
+			throws IOException {
+			throw new IOException( "Parent disks are read-only" );
+		}
+
+		private final RandomAccessVirtualDisk parent;
+		private final long start;
+	}
+	
+	private final Log log;
+	private final File[] extentFiles;
+	private final SparseExtent[] extents;
+	private final long[] starts, lengths;
+	private final long size;
 }
 
 // eof
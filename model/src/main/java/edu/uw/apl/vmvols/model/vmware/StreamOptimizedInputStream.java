@@ -0,0 +1,309 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.EOFException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.commons.io.EndianUtils;
+import org.apache.commons.io.IOUtils;
+
+import edu.uw.apl.vmvols.model.Constants;
+import edu.uw.apl.vmvols.model.vmware.StreamOptimizedSparseExtent.GrainMarker;
+import edu.uw.apl.vmvols.model.vmware.StreamOptimizedSparseExtent.MetadataMarker;
+
+/**
+ * @author Stuart Maclean
+ *
+ * The logical content of a streamOptimized .vmdk, decoded from any
+ * InputStream: a pipe, stdin, an .ova tar entry, an HTTP download.
+ * Unlike StreamOptimizedSparseExtent, which needs the whole file (it
+ * starts from the footer and seeks), we consume the format as it was
+ * designed to be consumed, front to back.  After the header, grain
+ * markers (each followed by its deflated grain) and metadata markers
+ * (grain tables, directory, footer, each followed by that metadata,
+ * which we skip) follow in file order, up to the end-of-stream
+ * marker.  Grains not in the stream read as zeros.  A stream which
+ * ends before that marker fails the read with an EOFException.
+ *
+ * Grains must appear in logical order, as VMware and ovftool write
+ * them.  A grain out of order fails the read, since we cannot go
+ * back for it.
+ *
+ * Decoding (reading the source and inflating) runs in a thread of
+ * its own, QUEUEDEPTH grains ahead of our reader, so that inflate
+ * overlaps whatever the reader does with the content (hashing,
+ * imaging).  Memory is bounded by QUEUEDEPTH grain buffers plus one
+ * for compressed data.  Close the stream, even when abandoning it
+ * part read, so that the decoder stops.
+ */
+public class StreamOptimizedInputStream extends InputStream {
+
+	public StreamOptimizedInputStream( InputStream source )
+		throws IOException {
+		this.source = source;
+		byte[] ba = new byte[SparseExtentHeader.SIZEOF];
+		IOUtils.readFully( source, ba );
+		header = new SparseExtentHeader( ba );
+		if( (header.flags & SparseExtentHeader.FLAGS_HASGRAINMARKERS) == 0 ||
+			header.compressAlgorithm != 1 )
+			throw new VMDKException( "Not streamOptimized, flags " +
+									 header.flags + ", compression " +
+									 header.compressAlgorithm );
+		size = header.capacity * Constants.SECTORLENGTH;
+		grainSizeBytes = (int)(header.grainSize * Constants.SECTORLENGTH);
+		empty = new ArrayBlockingQueue<byte[]>( QUEUEDEPTH );
+		full = new ArrayBlockingQueue<Grain>( QUEUEDEPTH + 1 );
+		for( int i = 0; i < QUEUEDEPTH; i++ )
+			empty.add( new byte[grainSizeBytes] );
+		ExecutorService es = Executors.newSingleThreadExecutor();
+		decoder = es.submit( new Callable<Void>() {
+				public Void call() throws Exception {
+					try {
+						decode();
+					} finally {
+						full.put( END );
+					}
+					return null;
+				}
+			} );
+		es.shutdown();
+	}
+
+	/**
+	 * @return the logical size, in bytes, of the disk, i.e. how many
+	 * bytes this stream yields in all
+	 */
+	public long size() {
+		return size;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int n = read( oneByte, 0, 1 );
+		if( n == -1 )
+			return -1;
+		return oneByte[0] & 0xff;
+	}
+
+	@Override
+	public int read( byte[] ba, int off, int len ) throws IOException {
+		if( off < 0 || len < 0 || off + len > ba.length )
+			throw new IndexOutOfBoundsException();
+		if( len == 0 )
+			return 0;
+		if( posn >= size ) {
+			finish();
+			return -1;
+		}
+		int total = 0;
+		while( total < len && posn < size ) {
+			if( !ended && ( current == null ||
+							posn >= current.posn + current.len ) ) {
+				if( current != null )
+					empty.offer( current.ba );
+				current = next();
+			}
+			int n;
+			if( current == null || posn < current.posn ) {
+				// a gap, zeros up to the next grain, or eof
+				long gapEnd = current == null ? size : current.posn;
+				n = (int)Math.min( len - total, gapEnd - posn );
+				Arrays.fill( ba, off+total, off+total+n, (byte)0 );
+			} else {
+				n = (int)Math.min( len - total,
+								   current.posn + current.len - posn );
+				System.arraycopy( current.ba, (int)(posn - current.posn),
+								  ba, off+total, n );
+			}
+			total += n;
+			posn += n;
+		}
+		return total;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// a decoder blocked on a full queue must not outlive us
+		decoder.cancel( true );
+		source.close();
+	}
+
+	/**
+	 * At eof, the decoder must still reach the end-of-stream marker,
+	 * else the stream was cut off, after the last grain it held but
+	 * before any trailing (zero) grains, footer, etc.
+	 */
+	private void finish() throws IOException {
+		while( !ended ) {
+			Grain g = next();
+			if( g != null )
+				empty.offer( g.ba );
+		}
+	}
+
+	/**
+	 * @return the next grain from the decoder, or null at end of
+	 * stream, when any decoder failure is rethrown
+	 */
+	private Grain next() throws IOException {
+		try {
+			Grain result = full.take();
+			if( result != END )
+				return result;
+			ended = true;
+			decoder.get();
+			return null;
+		} catch( InterruptedException ie ) {
+			throw new InterruptedIOException();
+		} catch( ExecutionException ee ) {
+			Throwable t = ee.getCause();
+			if( t instanceof IOException )
+				throw (IOException)t;
+			if( t instanceof RuntimeException )
+				throw (RuntimeException)t;
+			throw new IOException( t );
+		}
+	}
+
+	/*
+	  The decoder.  All markers, and the metadata they precede, start
+	  on a sector boundary.  A marker's size field tells a grain
+	  marker (size > 0, the deflated grain follows it directly) from a
+	  metadata marker (size 0, then a type, then padding to the end of
+	  its sector).  Metadata markers give their metadata's length in
+	  sectors (the lba field), so it can be skipped.
+	*/
+	private void decode() throws IOException, InterruptedException {
+		// the descriptor, any other header matter, up to the first marker
+		long first = Math.max( header.overhead,
+							   header.descriptorOffset + header.descriptorSize );
+		IOUtils.skipFully( source, (first - 1) * Constants.SECTORLENGTH );
+		byte[] compressed = new byte[2 * grainSizeBytes];
+		byte[] marker = new byte[MetadataMarker.SIZEOF];
+		Inflater inf = new Inflater();
+		long end = 0;
+		try {
+			while( true ) {
+				int nin = IOUtils.read( source, marker, 0,
+										GrainMarker.SIZEOF );
+				/*
+				  No end-of-stream marker: a cut-off download, say.
+				  Never pass that off as a complete disk, the rest of
+				  which would then read as zeros.
+				*/
+				if( nin == 0 )
+					throw new EOFException( "No end-of-stream marker" );
+				if( nin < GrainMarker.SIZEOF )
+					throw new EOFException( "Partial marker" );
+				long lba = GrainMarker.lba( marker, 0 );
+				int grainSize = GrainMarker.size( marker, 0 );
+				if( grainSize == 0 ) {
+					IOUtils.readFully( source, marker, GrainMarker.SIZEOF,
+									   marker.length - GrainMarker.SIZEOF );
+					int type = MetadataMarker.type( marker, 0 );
+					if( type == MetadataMarker.TYPE_EOS )
+						break;
+					IOUtils.skipFully( source, lba * Constants.SECTORLENGTH );
+					continue;
+				}
+				if( grainSize < 0 || grainSize > compressed.length )
+					throw new VMDKException( "Bad grain size: " + grainSize );
+				IOUtils.readFully( source, compressed, 0, grainSize );
+				int used = GrainMarker.SIZEOF + grainSize;
+				IOUtils.skipFully( source, padding( used ) );
+
+				long posn = lba * Constants.SECTORLENGTH;
+				if( posn < end || posn >= size )
+					throw new VMDKException( "Grain out of order: " + lba );
+				byte[] ba = empty.take();
+				inf.reset();
+				inf.setInput( compressed, 0, grainSize );
+				try {
+					int n = inf.inflate( ba );
+					if( n != grainSizeBytes )
+						throw new VMDKException( "Bad inflate len: " + n );
+				} catch( DataFormatException dfe ) {
+					throw new VMDKException( "Grain " + lba + ": " + dfe );
+				}
+				int len = (int)Math.min( grainSizeBytes, size - posn );
+				full.put( new Grain( posn, ba, len ) );
+				end = posn + len;
+			}
+		} finally {
+			inf.end();
+		}
+	}
+
+	static private int padding( int used ) {
+		int partial = used % Constants.SECTORLENGTH;
+		return partial == 0 ? 0 : Constants.SECTORLENGTH - partial;
+	}
+
+	static class Grain {
+		Grain( long posn, byte[] ba, int len ) {
+			this.posn = posn;
+			this.ba = ba;
+			this.len = len;
+		}
+		final long posn;
+		final byte[] ba;
+		final int len;
+	}
+
+	static private final Grain END = new Grain( -1, null, 0 );
+
+	private final InputStream source;
+	private final SparseExtentHeader header;
+	private final long size;
+	private final int grainSizeBytes;
+	private final BlockingQueue<byte[]> empty;
+	private final BlockingQueue<Grain> full;
+	private final Future<Void> decoder;
+	private Grain current;
+	private boolean ended;
+	private long posn;
+	private final byte[] oneByte = new byte[1];
+
+	// inflated grains in flight, decoded but not yet read...
+	static public final int QUEUEDEPTH = 16;
+}
+
+// eof
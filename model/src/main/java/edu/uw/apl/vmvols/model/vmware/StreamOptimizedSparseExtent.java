@@ -31,8 +31,10 @@ import java.io.DataInput;
 import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
@@ -41,8 +43,10 @@ import org.apache.commons.io.EndianUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import edu.uw.apl.vmvols.model.ByteSource;
 import edu.uw.apl.vmvols.model.Constants;
 import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+import edu.uw.apl.vmvols.model.SliceByteSource;
 
 /**
  * @author Stuart Maclean
@@ -55,8 +59,23 @@ import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
 public class StreamOptimizedSparseExtent {
 
 	public StreamOptimizedSparseExtent( File f, SparseExtentHeader h ) {
+		this( f, h, 0, -1 );
+	}
+
+	/**
+	 * An extent which is not a whole file, but the byte range [base,
+	 * base+length) of one, e.g. a .vmdk inside an .ova (tar) archive.
+	 * All our reads are then of that range only, see open.
+	 *
+	 * @param length - the extent's length, or -1 for all of f after
+	 * base
+	 */
+	public StreamOptimizedSparseExtent( File f, SparseExtentHeader h,
+										long base, long length ) {
 		source = f;
 		header = h;
+		this.base = base;
+		this.length = length;
 		log = LogFactory.getLog( getClass() );
 	}
 
@@ -64,14 +83,26 @@ public class StreamOptimizedSparseExtent {
 		return header.capacity * Constants.SECTORLENGTH;
 	}
 	
+	/**
+	 * @return a source for just our extent's bytes, of our file or
+	 * the slice of it holding the extent
+	 */
+	ByteSource open() throws IOException {
+		ByteSource result = ByteSource.open( source, false );
+		if( base == 0 && length < 0 )
+			return result;
+		return new SliceByteSource( result, base, length );
+	}
+
 	public SparseExtentHeader locateSparseExtentFooter() throws IOException {
-		long len = source.length();
-		long footerOffset = len - 2 * Constants.SECTORLENGTH;
-		RandomAccessFile raf = new RandomAccessFile( source, "r" );
-		raf.seek( footerOffset );
+		ByteSource store = open();
 		byte[] ba = new byte[SparseExtentHeader.SIZEOF];
-		raf.readFully( ba );
-		raf.close();
+		try {
+			long footerOffset = store.size() - 2 * Constants.SECTORLENGTH;
+			store.readFully( footerOffset, ba );
+		} finally {
+			store.close();
+		}
 		SparseExtentHeader result = new SparseExtentHeader( ba );
 		return result;
 	}
@@ -81,59 +112,66 @@ public class StreamOptimizedSparseExtent {
 		readGrainData();
 	}
 
+	/*
+	  Each marker is read along with the metadata it precedes, in one
+	  read, not via MetadataMarker.readFrom, whose RandomAccessFile
+	  readLong/readInt are built from single byte reads.
+	*/
 	private void readGrainData() throws IOException {
 		// only need to read the directory at most once, it is invariant...
 		if( grainDirectory != null )
 			return;
 
 		// recall we use the footer for meta-data, NOT the header
-		RandomAccessFile raf = new RandomAccessFile( source, "r" );
+		ByteSource store = open();
 		// Contained data ends with footer and eos marker, each 1 sector long
-		long footerOffset = raf.length() - (2 * Constants.SECTORLENGTH );
+		long footerOffset = store.size() - (2 * Constants.SECTORLENGTH );
 
 		// sanity check, locate the Footer marker, precedes the Footer
-		if( true ) {
-			raf.seek( footerOffset - MetadataMarker.SIZEOF );
-			MetadataMarker mdm = MetadataMarker.readFrom( raf );
-			log.debug( "Expected FOOTER: actual " + mdm );
-			if( mdm.type != MetadataMarker.TYPE_FOOTER )
-				throw new IllegalStateException
-					( "Expected footer marker, found " + mdm.type );
-		}
-
-		raf.seek( footerOffset );
-		byte[] ba = new byte[Constants.SECTORLENGTH];
-		raf.readFully( ba );
-		SparseExtentHeader footer = new SparseExtentHeader( ba );
+		byte[] ba = new byte[MetadataMarker.SIZEOF + Constants.SECTORLENGTH];
+		store.readFully( footerOffset - MetadataMarker.SIZEOF, ba );
+		int type = MetadataMarker.type( ba, 0 );
+		if( log.isDebugEnabled() )
+			log.debug( "Expected FOOTER: actual " + type );
+		if( type != MetadataMarker.TYPE_FOOTER )
+			throw new IllegalStateException
+				( "Expected footer marker, found " + type );
+		SparseExtentHeader footer = new SparseExtentHeader
+			( Arrays.copyOfRange( ba, MetadataMarker.SIZEOF, ba.length ) );
 		log.info( "Footer.gdOffset: " + footer.gdOffset );
 
-		// sanity check, locate the GD marker, precedes the GD
-		if( true ) {
-			raf.seek( footer.gdOffset * Constants.SECTORLENGTH -
-					  MetadataMarker.SIZEOF );
-			MetadataMarker mdm = MetadataMarker.readFrom( raf );
-			log.debug( "Expected GD: actual " + mdm );
-			if( mdm.type != MetadataMarker.TYPE_GD )
-				throw new IllegalStateException
-					( "Expected GD marker, found " + mdm.type );
-		}
-
 		long grainCount = footer.capacity / footer.grainSize;
 		int grainTableCount = (int)(grainCount / footer.numGTEsPerGT );
 		log.info( "GrainCount: "+ grainCount );
 		log.info( "GrainTableCount: "+ grainTableCount );
 
-		byte[] gdBuf = new byte[4*grainTableCount];
-		raf.seek( footer.gdOffset * Constants.SECTORLENGTH );
-		raf.readFully( gdBuf );
+		// sanity check, locate the GD marker, precedes the GD
+		byte[] gdBuf = new byte[MetadataMarker.SIZEOF + 4*grainTableCount];
+		store.readFully( footer.gdOffset * Constants.SECTORLENGTH -
+						 MetadataMarker.SIZEOF, gdBuf );
+		type = MetadataMarker.type( gdBuf, 0 );
+		if( log.isDebugEnabled() )
+			log.debug( "Expected GD: actual " + type );
+		if( type != MetadataMarker.TYPE_GD )
+			throw new IllegalStateException
+				( "Expected GD marker, found " + type );
 		long[] gdes = new long[grainTableCount];
 		for( int i = 0; i < gdes.length; i++ ) {
-			long gde = EndianUtils.readSwappedUnsignedInteger( gdBuf, 4*i );
+			long gde = EndianUtils.readSwappedUnsignedInteger
+				( gdBuf, MetadataMarker.SIZEOF + 4*i );
 			//			log.debug( i + " " + gde );
 			gdes[i] = gde;
 		}
 
-		byte[] gtBuf = new byte[(int)(4*footer.numGTEsPerGT)];
+		// every metadata marker's sector, see grainSpans
+		long[] markers = new long[gdes.length + 2];
+		int markerCount = 0;
+		markers[markerCount++] = footer.gdOffset - 1;
+		markers[markerCount++] =
+			footerOffset / Constants.SECTORLENGTH - 1;
+
+		byte[] gtBuf = new byte[(int)(MetadataMarker.SIZEOF +
+									  4*footer.numGTEsPerGT)];
 		grainDirectory = new long[gdes.length][];
 		for( int i = 0; i < gdes.length; i++ ) {
 			long gde = gdes[i];
@@ -154,61 +192,198 @@ public class StreamOptimizedSparseExtent {
 			}
 
 			// sanity check, locate the GT marker, precedes the GT
-			if( true ) {
-				raf.seek( gde * Constants.SECTORLENGTH -
-						  MetadataMarker.SIZEOF );
-				MetadataMarker mdm = MetadataMarker.readFrom( raf );
-				//log.debug( i + ", expected GT: actual " + mdm ); 
-				if( mdm.type != MetadataMarker.TYPE_GT )
-					throw new IllegalStateException
-						( "Expected GT marker, found " + mdm.type );
-			}
-
-			raf.seek( gde * Constants.SECTORLENGTH );
-			raf.readFully( gtBuf );
+			store.readFully( gde * Constants.SECTORLENGTH -
+							 MetadataMarker.SIZEOF, gtBuf );
+			type = MetadataMarker.type( gtBuf, 0 );
+			if( type != MetadataMarker.TYPE_GT )
+				throw new IllegalStateException
+					( "Expected GT marker, found " + type );
+			markers[markerCount++] = gde - 1;
 			
 			long[] grainTable = new long[(int)footer.numGTEsPerGT];
 			for( int gt = 0; gt < grainTable.length; gt++ ) {
-				long gte = EndianUtils.readSwappedUnsignedInteger( gtBuf,
-																   4*gt );
+				long gte = EndianUtils.readSwappedUnsignedInteger
+					( gtBuf, MetadataMarker.SIZEOF + 4*gt );
 				grainTable[gt] = gte;
 			}
 			grainDirectory[i] = grainTable;
 		}
-		raf.close();
+		store.close();
+		grainSpans = grainSpans( grainDirectory,
+								 Arrays.copyOf( markers, markerCount ) );
+	}
+
+	/**
+	 * The per-grain index of compressed sizes: for each grain held,
+	 * the bytes from its marker to whatever follows it in the file,
+	 * the next grain or a metadata marker.  So its marker, compressed
+	 * data and padding, an upper bound on what a read of the grain
+	 * must fetch, and so what one read can fetch.  Shaped as the
+	 * grain directory, with null for tables not held, 0 for grains
+	 * not held.
+	 *
+	 * @param markers - the sector of every metadata marker
+	 */
+	static int[][] grainSpans( long[][] grainDirectory, long[] markers ) {
+		int n = markers.length;
+		for( long[] gt : grainDirectory )
+			if( gt != SparseExtent.PARENTGDE && gt != SparseExtent.ZEROGDE )
+				n += gt.length;
+		long[] sectors = new long[n];
+		int k = 0;
+		for( long m : markers )
+			sectors[k++] = m;
+		for( long[] gt : grainDirectory ) {
+			if( gt == SparseExtent.PARENTGDE || gt == SparseExtent.ZEROGDE )
+				continue;
+			for( long gte : gt )
+				if( gte > 1 )
+					sectors[k++] = gte;
+		}
+		sectors = Arrays.copyOf( sectors, k );
+		Arrays.sort( sectors );
+
+		int[][] result = new int[grainDirectory.length][];
+		for( int i = 0; i < grainDirectory.length; i++ ) {
+			long[] gt = grainDirectory[i];
+			if( gt == SparseExtent.PARENTGDE || gt == SparseExtent.ZEROGDE )
+				continue;
+			result[i] = new int[gt.length];
+			for( int j = 0; j < gt.length; j++ ) {
+				long gte = gt[j];
+				if( gte <= 1 )
+					continue;
+				int s = Arrays.binarySearch( sectors, gte );
+				// nothing after a grain is a corrupt file, leave to check
+				long next = s + 1 < sectors.length ? sectors[s+1] : gte + 1;
+				result[i][j] = (int)Math.min
+					( (next - gte) * Constants.SECTORLENGTH,
+					  Integer.MAX_VALUE );
+			}
+		}
+		return result;
 	}
 
 	// for test case access only
 	long[][] getGrainDirectory() {
 		return grainDirectory;
 	}
+
+	// for test case access only
+	int[][] getGrainSpans() {
+		return grainSpans;
+	}
+
+	long grainBytes() {
+		return header.grainSize * Constants.SECTORLENGTH;
+	}
+
+	BitSet allocationMap() throws IOException {
+		readGrainData();
+		return SparseExtent.allocationMap( grainDirectory,
+										   header.numGTEsPerGT );
+	}
+
+	BitSet zeroMap() throws IOException {
+		readGrainData();
+		return SparseExtent.zeroMap( grainDirectory, header.numGTEsPerGT );
+	}
+
+	/**
+	 * @return file offset of the (compressed) grain g, or -1 if not
+	 * held in our file
+	 */
+	long hostOffset( int g ) throws IOException {
+		readGrainData();
+		long result = SparseExtent.hostOffset( grainDirectory,
+											   header.numGTEsPerGT, g );
+		return result < 0 ? result : base + result;
+	}
 	
-	private void buildZeroGrains() {
-		if( zeroGrain != null ) {
-			return;
+	/**
+	 * Check the footer, directory and grain table markers (by loading
+	 * them, as any read would), then that every grain marker holds the
+	 * LBA of the grain whose table entry points at it, with its
+	 * compressed data wholly within the file.  The markers are visited
+	 * in file order, so the scan is one forward pass.
+	 *
+	 * @see edu.uw.apl.vmvols.model.VirtualDisk#check
+	 */
+	List<String> check() throws IOException {
+		List<String> result = new ArrayList<String>();
+		try {
+			readGrainData();
+		} catch( IllegalStateException ise ) {
+			result.add( ise.getMessage() );
+			return result;
+		}
+		long gs = header.grainSize;
+		long n = header.numGTEsPerGT;
+		/*
+		  (sector offset, grain) pairs packed in one long, so a
+		  primitive sort orders them by offset.  GTEs are 32 bits,
+		  grain indices 31.
+		*/
+		BitSet bs = SparseExtent.allocationMap( grainDirectory, n );
+		long[] pairs = new long[bs.cardinality()];
+		int k = 0;
+		for( int g = bs.nextSetBit( 0 ); g >= 0; g = bs.nextSetBit( g+1 ) ) {
+			long gte = grainDirectory[(int)(g / n)][(int)(g % n)];
+			pairs[k++] = (gte << 31) | g;
 		}
+		Arrays.sort( pairs );
+		ByteSource store = open();
+		try {
+			long len = store.size();
+			long prevEnd = 0;
+			byte[] gmBuf = new byte[GrainMarker.SIZEOF];
+			for( long pair : pairs ) {
+				long gte = pair >>> 31;
+				int g = (int)(pair & Integer.MAX_VALUE);
+				long offset = gte * Constants.SECTORLENGTH;
+				if( offset + GrainMarker.SIZEOF > len ) {
+					result.add( "GTE " + g + " beyond eof: " + gte );
+					continue;
+				}
+				if( offset < prevEnd )
+					result.add( "Grain " + g + " overlaps previous grain" );
+				// one read per marker, not readFrom's dozen
+				store.readFully( offset, gmBuf );
+				long lba = GrainMarker.lba( gmBuf, 0 );
+				int size = GrainMarker.size( gmBuf, 0 );
+				if( lba != g * gs )
+					result.add( "Grain " + g + " marker LBA " + lba +
+								", expected " + g * gs );
+				long end = offset + GrainMarker.SIZEOF + size;
+				if( size <= 0 || end > len )
+					result.add( "Grain " + g + " marker size " + size );
+				prevEnd = end;
+			}
+		} finally {
+			store.close();
+		}
+		return result;
+	}
 
+	private void buildGeometry() {
 		// LOOK: use footer values, though header and footer same ??
 		grainSizeBytes = header.grainSize * Constants.SECTORLENGTH;
 		grainTableCoverageBytes = grainSizeBytes * header.numGTEsPerGT;
-	    if( header.grainSize == SparseExtent.GRAINSIZE_DEFAULT ) {
-			zeroGrain =	SparseExtent.ZEROGRAIN_DEFAULT;
-			zeroGrainTable = SparseExtent.ZEROGRAINTABLE_DEFAULT;
-		} else {
-			zeroGrain = new byte[(int)grainSizeBytes];
-			zeroGrainTable = new byte[(int)grainTableCoverageBytes];
-		}
 	}
 
-	private int uncompressGrain( byte[] ba, int offset, int len, byte[] output )
+	/**
+	 * @param inf - the caller's Inflater, reset here before use, so
+	 * that one serves all the grains a reader inflates
+	 */
+	private int uncompressGrain( Inflater inf, byte[] ba, int offset, int len,
+								 byte[] output, int outOffset, int outLen )
 		throws IOException, DataFormatException {
 		int result = 0;
 		switch( header.compressAlgorithm ) {
 		case 1:
-			Inflater inf = new Inflater();
+			inf.reset();
 			inf.setInput( ba, offset, len );
-			result = inf.inflate( output );
-			inf.end();
+			result = inf.inflate( output, outOffset, outLen );
 			break;
 		default:
 			throw new IllegalStateException( "Unknown compression: " +
@@ -219,29 +394,32 @@ public class StreamOptimizedSparseExtent {
 
 	public InputStream getInputStream() throws IOException {
 		readMetaData();
-		buildZeroGrains();
+		buildGeometry();
 		return new StreamOptimizedRandomAccess();
 	}
 
 	public RandomAccessVirtualDisk getRandomAccess() throws IOException {
 		readMetaData();
-		buildZeroGrains();
+		buildGeometry();
 		return new StreamOptimizedRandomAccess();
 	}
 
 	class StreamOptimizedRandomAccess extends RandomAccessVirtualDisk {
 		StreamOptimizedRandomAccess() throws IOException {
 			super( size() );
-			raf = new RandomAccessFile( source, "r" );
+			store = open();
 			dPos();
 			compressedGrainBuffer = new byte[(int)(2*grainSizeBytes)];
+			compressedGrainBB = ByteBuffer.wrap( compressedGrainBuffer );
 			grainBuffer = new byte[(int)grainSizeBytes];
+			inflater = new Inflater();
 			gtePrev = 0;
 		}
 
 		@Override
 		public void close() throws IOException {
-			raf.close();
+			inflater.end();
+			store.close();
 		}
 		   
 		@Override
@@ -281,14 +459,15 @@ public class StreamOptimizedSparseExtent {
 				long[] gt = grainDirectory[gdIndex];
 				if( false ) {
 				} else if( gt == SparseExtent.PARENTGDE ) {
-					log.debug( "Zero GD : " + gdIndex );
+					if( log.isDebugEnabled() )
+						log.debug( "Zero GD : " + gdIndex );
 					int grainTableOffset = (int)
 						(gtIndex * grainSizeBytes + gOffset);
 					int inGrainTable = (int)
 						(grainTableCoverageBytes - grainTableOffset);
 					int fromGrainTable = Math.min( left, inGrainTable );
-					System.arraycopy( zeroGrainTable, grainTableOffset,
-									  ba, off+total, fromGrainTable );
+					Arrays.fill( ba, off+total, off+total+fromGrainTable,
+								 (byte)0 );
 					if( log.isDebugEnabled() )
 						log.debug( len + " " + actual + " " +
 								   left + " " + inGrainTable + " " +
@@ -308,32 +487,68 @@ public class StreamOptimizedSparseExtent {
 					} else if( gte == 0 ) {
 						if( log.isDebugEnabled() )
 							log.debug( "Zero GT : "+ gdIndex + " " + gtIndex );
-						System.arraycopy( zeroGrain, 0,
-										  ba, off+total, fromGrain );
+						Arrays.fill( ba, off+total, off+total+fromGrain,
+									 (byte)0 );
 						total += fromGrain;
 						posn += fromGrain;
 					} else if( gte == 1 ) {
-						System.arraycopy( zeroGrain, 0,
-										  ba, off+total, fromGrain );
+						Arrays.fill( ba, off+total, off+total+fromGrain,
+									 (byte)0 );
 						total += fromGrain;
 						posn += fromGrain;
 					} else {
+						/*
+						  A whole grain wanted, so inflate it straight
+						  into the caller's array, else into
+						  grainBuffer, retained for the next read
+						*/
+						boolean whole = gOffset == 0 &&
+							fromGrain == grainSizeBytes && gte != gtePrev;
 						if( gte != gtePrev ) {
-							raf.seek( gte * Constants.SECTORLENGTH );
-							GrainMarker gm = GrainMarker.readFrom( raf );
-							int nin = raf.read( compressedGrainBuffer,
-												0, gm.size );
-							if( nin != gm.size )
+							/*
+							  Marker and compressed data in one
+							  positional read, sized from the grain
+							  span index.  Marker fields parsed in
+							  place, no GrainMarker.
+							*/
+							long offset = gte * Constants.SECTORLENGTH;
+							int span = Math.min
+								( grainSpans[gdIndex][gtIndex],
+								  compressedGrainBuffer.length );
+							int nin = fetch( offset, 0, span );
+							if( nin < GrainMarker.SIZEOF )
+								throw new IllegalStateException
+									( "Partial read: " + nin );
+							int size = GrainMarker.size
+								( compressedGrainBuffer, 0 );
+							int need = GrainMarker.SIZEOF + size;
+							if( size < 0 ||
+								need > compressedGrainBuffer.length )
 								throw new IllegalStateException
-									( "Partial read: "+ nin + " " + gm.size);
+									( "Bad grain size: " + size );
+							// span too small only in a corrupt file
+							if( nin < need )
+								nin += fetch( offset + nin, nin, need - nin );
+							if( nin < need )
+								throw new IllegalStateException
+									( "Partial read: "+ nin + " " + need );
 							if( log.isDebugEnabled() )
 								log.debug( "Inflating " + gdIndex +
-										   " "+ gtIndex +
-										   " = " + nin + " " + gm.lba );
+										   " "+ gtIndex + " = " + size + " " +
+										   GrainMarker.lba
+										   ( compressedGrainBuffer, 0 ) );
 							try {
-								int actualLength = uncompressGrain
-									( compressedGrainBuffer, 0, nin,
-									  grainBuffer );
+								int actualLength = whole ?
+									uncompressGrain( inflater,
+													 compressedGrainBuffer,
+													 GrainMarker.SIZEOF, size,
+													 ba, off+total,
+													 fromGrain ) :
+									uncompressGrain( inflater,
+													 compressedGrainBuffer,
+													 GrainMarker.SIZEOF, size,
+													 grainBuffer, 0,
+													 grainBuffer.length );
 								if( actualLength != grainSizeBytes ) {
 									throw new IllegalStateException
 										( "Bad inflate len: " + actualLength );
@@ -342,10 +557,12 @@ public class StreamOptimizedSparseExtent {
 									// what now??
 								log.warn( dfe );
 							}
-							gtePrev = gte;
+							if( !whole )
+								gtePrev = gte;
 						}
-						System.arraycopy( grainBuffer, (int)gOffset,
-										  ba, off+total, fromGrain );
+						if( !whole )
+							System.arraycopy( grainBuffer, (int)gOffset,
+											  ba, off+total, fromGrain );
 						total += fromGrain;
 						posn += fromGrain;
 					}
@@ -357,6 +574,25 @@ public class StreamOptimizedSparseExtent {
 			return total;
 		}
 
+		/**
+		 * Positional (pread) read of up to len bytes at extent offset
+		 * into compressedGrainBuffer at off, short only at eof.
+		 *
+		 * @return bytes read
+		 */
+		private int fetch( long offset, int off, int len )
+			throws IOException {
+			compressedGrainBB.limit( off + len );
+			compressedGrainBB.position( off );
+			while( compressedGrainBB.hasRemaining() ) {
+				int n = store.read( offset + compressedGrainBB.position() - off,
+									compressedGrainBB );
+				if( n < 0 )
+					break;
+			}
+			return compressedGrainBB.position() - off;
+		}
+
 		@Override
 		public void writeImpl( byte[] ba, int off, int len )
 			throws IOException {
@@ -401,12 +637,14 @@ public class StreamOptimizedSparseExtent {
 			*/
 		}
 
-		private final RandomAccessFile raf;
+		private final ByteSource store;
 		private int gdIndex, gtIndex;
 		private long gOffset;
 		private long gtePrev;
 		private byte[] compressedGrainBuffer;
+		private final ByteBuffer compressedGrainBB;
 		private byte[] grainBuffer;
+		private final Inflater inflater;
 
 	}
 	
@@ -428,6 +666,21 @@ public class StreamOptimizedSparseExtent {
 			int size = EndianUtils.swapInteger( i );
 			return new GrainMarker( lba, size );
 		}
+
+		/**
+		 * The lba field of a marker held in ba at off, for readers
+		 * which parse markers in place, without allocating
+		 */
+		static long lba( byte[] ba, int off ) {
+			return EndianUtils.readSwappedLong( ba, off );
+		}
+
+		/**
+		 * The size field of a marker held in ba at off
+		 */
+		static int size( byte[] ba, int off ) {
+			return EndianUtils.readSwappedInteger( ba, off + 8 );
+		}
 		
 		final long lba;
 		final int size;
@@ -460,6 +713,14 @@ public class StreamOptimizedSparseExtent {
 			return new MetadataMarker( numSectors, type );
 		}
 
+		/**
+		 * The type field of a marker held in ba at off, for readers
+		 * which parse markers in place
+		 */
+		static int type( byte[] ba, int off ) {
+			return EndianUtils.readSwappedInteger( ba, off + 12 );
+		}
+
 		@Override
 		public String toString() {
 			return "" + numSectors + "," + type;
@@ -493,11 +754,13 @@ public class StreamOptimizedSparseExtent {
 	File source;
 	SparseExtentHeader header;
 	Log log;
+
+	// where in source the extent lies, see the 4-arg constructor
+	final long base, length;
 	
 	long grainSizeBytes, grainTableCoverageBytes;
-	private byte[] zeroGrain;
-	private byte[] zeroGrainTable;
 	private long[][] grainDirectory;
+	private int[][] grainSpans;
 
 }
 
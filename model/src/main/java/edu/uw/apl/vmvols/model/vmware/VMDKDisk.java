@@ -33,8 +33,8 @@ import java.io.FilenameFilter;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
@@ -45,7 +45,10 @@ import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import edu.uw.apl.vmvols.model.ByteSource;
 import edu.uw.apl.vmvols.model.Constants;
+import edu.uw.apl.vmvols.model.DiskProbe;
+import edu.uw.apl.vmvols.model.HeaderCache;
 import edu.uw.apl.vmvols.model.VirtualDisk;
 
 /**
@@ -92,13 +95,10 @@ abstract public class VMDKDisk extends VirtualDisk {
 	 */
 	static public SparseExtentHeader locateSparseExtentHeader( File f )
 		throws IOException {
-		RandomAccessFile raf = new RandomAccessFile( f, "r" );
-		if( raf.length() < SparseExtentHeader.SIZEOF )
+		SparseExtentHeader result = probe( f ).header;
+		if( result == null )
 			throw new IllegalStateException( "No SparseExtentHeader: " + f );
-		byte[] ba = new byte[SparseExtentHeader.SIZEOF];
-		raf.readFully( ba );
-		raf.close();
-		return new SparseExtentHeader( ba );
+		return result;
 	}
 
 	/**
@@ -110,27 +110,7 @@ abstract public class VMDKDisk extends VirtualDisk {
 	   different file contents/formats is beyond me!)
 	*/
 	static public Descriptor locateDescriptor( File f ) throws IOException {
-		SparseExtentHeader seh = null;
-		try {
-			seh = locateSparseExtentHeader( f );
-			long dOffset = seh.descriptorOffset;
-			if( dOffset == 0 )
-				return null;
-			long dSize = seh.descriptorSize;
-			RandomAccessFile raf = new RandomAccessFile( f, "r" );
-			raf.seek( dOffset * Constants.SECTORLENGTH );
-			byte[] ba = new byte[(int)(dSize * Constants.SECTORLENGTH)];
-			raf.readFully( ba );
-			raf.close();
-			return new Descriptor( ba );
-		} catch( IllegalStateException ise ) {
-			/*
-			  No SparseExtentHeader at start of data, assume standalone
-			  descriptor file
-			*/
-			byte[] ba = FileUtils.readFileToByteArray( f );
-			return new Descriptor( ba );
-		}
+		return probe( f ).descriptor;
 	}
 
 	/**
@@ -143,16 +123,11 @@ abstract public class VMDKDisk extends VirtualDisk {
 		VMDKDisk result = null;
 
 		Log log = LogFactory.getLog( VMDKDisk.class );
-		
-		Descriptor d = null;
-		try {
-			d = locateDescriptor( vmdkFile );
-			if( d == null ) {
-				log.warn( "No descriptor found: " + vmdkFile );
-				return null;
-			}
-		} catch( IllegalStateException ise ) {
-			// LOOK: null is best result ???
+
+		Probe p = probe( vmdkFile );
+		Descriptor d = p.descriptor;
+		if( d == null ) {
+			log.warn( "No descriptor found: " + vmdkFile );
 			return null;
 		}
 		String type = d.getCreateType();
@@ -161,13 +136,20 @@ abstract public class VMDKDisk extends VirtualDisk {
 		type = type.intern();
 		if( false ) {
 		} else if( "monolithicSparse" == type ) {
-			SparseExtentHeader seh = locateSparseExtentHeader( vmdkFile );
-			result = new MonolithicSparseDisk( vmdkFile, seh, d );
+			if( p.header == null )
+				return null;
+			result = new MonolithicSparseDisk( vmdkFile, p.header, d );
 		} else if( "twoGbMaxExtentSparse" == type ) {
 			result = new SplitSparseDisk( vmdkFile, d );
+		} else if( "monolithicFlat" == type ||
+				   "twoGbMaxExtentFlat" == type ||
+				   "vmfs" == type ) {
+			result = new FlatDisk( vmdkFile, d );
 		} else if( "streamOptimized" == type ) {
-			SparseExtentHeader seh = locateSparseExtentHeader( vmdkFile );
-			result = new MonolithicStreamOptimizedDisk( vmdkFile, seh, d );
+			if( p.header == null )
+				return null;
+			result = new MonolithicStreamOptimizedDisk( vmdkFile, p.header,
+														d );
 		} else {
 			// to finish..
 			throw new VMDKException( "Disk type not yet supported: " + type );
@@ -175,6 +157,109 @@ abstract public class VMDKDisk extends VirtualDisk {
 		return result;
 	}
 
+	/**
+	 * Load a .vmdk held as member m of an .ova (tar) archive, read in
+	 * place.  Only streamOptimized disks, as all .ova exports are, can
+	 * be served this way.
+	 *
+	 * @see OVAArchive
+	 */
+	static public VMDKDisk readFrom( File ova, OVAArchive.Member m )
+		throws IOException {
+		byte[] head = new byte[(int)Math.min( DiskProbe.HEADSIZE,
+											  m.length )];
+		ByteSource store = ByteSource.open( ova, false );
+		try {
+			store.readFully( m.offset, head );
+		} finally {
+			store.close();
+		}
+		Probe p = probe( ova, m.offset, head );
+		if( p.header == null || p.descriptor == null ) {
+			LogFactory.getLog( VMDKDisk.class ).warn
+				( "No descriptor found: " + ova + "/" + m.name );
+			return null;
+		}
+		String type = p.descriptor.getCreateType();
+		if( !"streamOptimized".equals( type ) )
+			throw new VMDKException( "Disk type not supported in ova: " +
+									 type );
+		return new MonolithicStreamOptimizedDisk( ova, p.header, p.descriptor,
+												  m.offset, m.length );
+	}
+
+	/**
+	   All that readFrom needs from a .vmdk file, read with a single
+	   open and read of its head (see DiskProbe.readHead), and
+	   memoized (see HeaderCache), so rescans of unchanged VM
+	   directories parse nothing.
+	*/
+	static Probe probe( File f ) throws IOException {
+		HeaderCache.Key k = HeaderCache.key( f );
+		Probe result = CACHE.get( k );
+		if( result != null )
+			return result;
+		result = probe( f, DiskProbe.readHead( f ) );
+		CACHE.put( k, result );
+		return result;
+	}
+
+	static Probe probe( File f, byte[] head ) throws IOException {
+		return probe( f, 0, head );
+	}
+
+	/**
+	 * @param base - where in f the .vmdk starts, non-zero for one
+	 * within an .ova, head being read from there
+	 */
+	static Probe probe( File f, long base, byte[] head ) throws IOException {
+		Probe result = new Probe();
+		if( head.length >= SparseExtentHeader.SIZEOF ) {
+			try {
+				result.header = new SparseExtentHeader
+					( Arrays.copyOf( head, SparseExtentHeader.SIZEOF ) );
+			} catch( IllegalStateException noMagic ) {
+			}
+		}
+		if( result.header != null ) {
+			long dOffset = result.header.descriptorOffset;
+			if( dOffset == 0 )
+				return result;
+			long from = dOffset * Constants.SECTORLENGTH;
+			byte[] ba = new byte[(int)(result.header.descriptorSize *
+									   Constants.SECTORLENGTH)];
+			if( from + ba.length <= head.length ) {
+				System.arraycopy( head, (int)from, ba, 0, ba.length );
+			} else {
+				ByteSource store = ByteSource.open( f, false );
+				try {
+					store.readFully( base + from, ba );
+				} finally {
+					store.close();
+				}
+			}
+			result.descriptor = new Descriptor( ba );
+		} else if( base == 0 && f.length() <= DESCRIPTORFILESIZE_MAX ) {
+			/*
+			  No SparseExtentHeader at start of data, assume standalone
+			  descriptor file, which head holds in full.  Unless it is
+			  big, in which case it is likely raw data, e.g. a
+			  -flat.vmdk extent of a FlatDisk
+			*/
+			result.descriptor = new Descriptor( head );
+		}
+		return result;
+	}
+
+	/**
+	   Either field may be null, e.g. a standalone descriptor has no
+	   header, a split extent (-s001.vmdk) has no descriptor.
+	*/
+	static class Probe {
+		SparseExtentHeader header;
+		Descriptor descriptor;
+	}
+	
 	/**
 	 * Set the parent of this disk to the supplied disk p.  A check is
 	 * made on the linkage between the two, using getUUID and
@@ -234,10 +319,31 @@ abstract public class VMDKDisk extends VirtualDisk {
 	public String getCID() {
 		return descriptor.getCID();
 	}
+
+	public String getParentCID() {
+		return descriptor.getParentCID();
+	}
+
+	public String getCreateType() {
+		return descriptor.getCreateType();
+	}
 	
+	/**
+	 * VMware writes the hint relative to this disk's own directory
+	 * (it may also be absolute), so resolve it against that before
+	 * trying our working directory.
+	 */
 	public File getParentFileNameHint() {
 		String s = descriptor.getParentFileNameHint();
-		return s == null ? null : new File( s );
+		if( s == null )
+			return null;
+		File f = new File( s );
+		if( f.isAbsolute() )
+			return f;
+		File sibling = new File( getPath().getAbsoluteFile().getParentFile(),
+								 s );
+		// LOOK: fall back to the old, working directory, interpretation
+		return sibling.exists() ? sibling : f;
 	}
 	
 	@Override
@@ -291,6 +397,12 @@ abstract public class VMDKDisk extends VirtualDisk {
 	
 	static public final String FILESUFFIX = "vmdk";
 
+	// Standalone descriptors are a few KB at most
+	static final long DESCRIPTORFILESIZE_MAX = DiskProbe.HEADSIZE;
+
+	static private final HeaderCache<Probe> CACHE =
+		new HeaderCache<Probe>( HeaderCache.CAPACITY_DEFAULT );
+
 	static public final FilenameFilter FILEFILTER =
 		new FilenameFilter() {
 			public boolean accept( File dir, String name ) {
@@ -0,0 +1,130 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Just enough of a VMware .vmx machine config to tell which disk
+ * files are attached to the VM, in controller order.  The relevant
+ * entries are
+ *
+ * scsi0:0.present = "TRUE"
+ * scsi0:0.fileName = "Windows 7 x64-000002.vmdk"
+ *
+ * for ide, sata, scsi and nvme controllers.  The file named is the
+ * disk the VM would write to, i.e. the active disk.  Any snapshot
+ * chain behind it is found from that disk's parentFileNameHint, the
+ * .vmx does not list it.  CD/DVD images (deviceType cdrom-image) are
+ * skipped.
+ */
+public class VMXConfig {
+
+	public VMXConfig( File vmxFile ) throws IOException {
+		Map<String,String> entries = new HashMap<String,String>();
+		for( String line : FileUtils.readLines( vmxFile, "UTF-8" ) ) {
+			Matcher m = ENTRYP.matcher( line );
+			if( m.matches() )
+				entries.put( m.group(1).toLowerCase(), m.group(2) );
+		}
+		List<String[]> found = new ArrayList<String[]>();
+		for( Map.Entry<String,String> me : entries.entrySet() ) {
+			Matcher m = FILENAMEP.matcher( me.getKey() );
+			if( !m.matches() )
+				continue;
+			String device = me.getKey().substring
+				( 0, me.getKey().length() - ".filename".length() );
+			if( "false".equalsIgnoreCase( entries.get( device + ".present" ) ))
+				continue;
+			String type = entries.get( device + ".devicetype" );
+			if( type != null && type.toLowerCase().contains( "cdrom" ) )
+				continue;
+			if( !me.getValue().toLowerCase().endsWith
+				( "." + VMDKDisk.FILESUFFIX ) )
+				continue;
+			found.add( new String[] { m.group(1), m.group(2), m.group(3),
+									  me.getValue() } );
+		}
+		Collections.sort( found, new Comparator<String[]>() {
+				public int compare( String[] s1, String[] s2 ) {
+					int c = CONTROLLERS.indexOf( s1[0] ) -
+						CONTROLLERS.indexOf( s2[0] );
+					if( c != 0 )
+						return c;
+					c = Integer.parseInt( s1[1] ) - Integer.parseInt( s2[1] );
+					if( c != 0 )
+						return c;
+					return Integer.parseInt( s1[2] ) -
+						Integer.parseInt( s2[2] );
+				}
+			} );
+		File dir = vmxFile.getAbsoluteFile().getParentFile();
+		disks = new ArrayList<File>();
+		for( String[] ss : found ) {
+			File f = new File( ss[3] );
+			disks.add( f.isAbsolute() ? f : new File( dir, ss[3] ) );
+		}
+	}
+
+	/**
+	 * @return the attached (active) disk files, in controller, bus,
+	 * unit order
+	 */
+	public List<File> getDisks() {
+		return disks;
+	}
+	
+	private final List<File> disks;
+
+	// key = "value", keys are case-insensitive
+	static final Pattern ENTRYP = Pattern.compile
+		( "\\s*([^=\\s]+)\\s*=\\s*\"(.*)\"\\s*" );
+
+	// e.g. scsi0:1.filename, after lower-casing
+	static final Pattern FILENAMEP = Pattern.compile
+		( "(ide|sata|scsi|nvme)(\\d+):(\\d+)\\.filename" );
+
+	// The order in which we name disks sda, sdb...
+	static final List<String> CONTROLLERS =
+		java.util.Arrays.asList( "ide", "sata", "scsi", "nvme" );
+}
+
+// eof
@@ -31,19 +31,25 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.HashMap;
 import java.util.Comparator;
 import java.util.Collections;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.io.FileUtils;
 
+import edu.uw.apl.vmvols.model.DiskProbe;
 import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualDiskException;
 import edu.uw.apl.vmvols.model.VirtualMachine;
 
 /**
@@ -96,39 +102,113 @@ public class VMwareVM extends VirtualMachine {
 	}
 
 	public VMwareVM( File f ) throws IOException {
+		this( f, false );
+	}
+
+	/**
+	 * @param fromConfig - if true, open just those disks the .vmx
+	 * file says are attached, in controller order, each with the
+	 * snapshot chain found from its parentFileNameHint.  Otherwise,
+	 * walk the directory tree for any .vmdk files and link them by
+	 * hint.  The former ignores stray disk files and needs no
+	 * recursive walk, so is the better choice for large directories
+	 * or slow filesystems.
+	 *
+	 * @see VMXConfig
+	 */
+	public VMwareVM( File f, boolean fromConfig ) throws IOException {
 		if( !isVMwareVM( f ) )
 			throw new IllegalArgumentException
 				( "Not a VMware VM directory: " + f );
 		dir = f;
 		baseDisks = new ArrayList<VirtualDisk>();
 		log = LogFactory.getLog( getClass() );
+		if( fromConfig )
+			readConfig();
+		else
+			walk();
+	}
+
+	private void walk() throws IOException {
 		List<VMDKDisk> children = new ArrayList<VMDKDisk>();
 
-		// A VMware VM can manage VMware .vmdk disks...
+		// A VMware VM can manage VMware .vmdk disks, probed in parallel...
 		Collection<File> fs = FileUtils.listFiles
 			( dir, new String[] { VMDKDisk.FILESUFFIX }, true );
-		for( File el : fs ) {
-			VMDKDisk vmdk = null;
-			try {
-				vmdk = VMDKDisk.readFrom( el );
-			} catch( VMDKException e ) {
-				log.warn( el + ": " + e );
-				continue;
-			}
-			if( vmdk == null )
-				// LOOK: log e ??
-				continue;
+		for( VirtualDisk vd : DiskProbe.readAll( fs ) ) {
+			VMDKDisk vmdk = (VMDKDisk)vd;
 			if( vmdk.getParentFileNameHint() == null )
 				baseDisks.add( vmdk );
 			else
 				children.add( vmdk );
 		}
-
 		// Link base disks to child disks...
 		for( VirtualDisk d : baseDisks )
 			link( d, children );
 	}
 
+	private void readConfig() throws IOException {
+		File[] vmxs = dir.listFiles( VMXFILE );
+		Arrays.sort( vmxs );
+		VMXConfig config = new VMXConfig( vmxs[0] );
+
+		// The active disks, probed in parallel...
+		List<Callable<VirtualDisk>> tasks =
+			new ArrayList<Callable<VirtualDisk>>();
+		for( final File af : config.getDisks() ) {
+			tasks.add( new Callable<VirtualDisk>() {
+					public VirtualDisk call() throws IOException {
+						return chain( af );
+					}
+				} );
+		}
+		for( VirtualDisk vd : DiskProbe.invokeAll( tasks ) ) {
+			if( vd != null )
+				baseDisks.add( vd );
+		}
+	}
+
+	/**
+	 * Open the active disk f, then follow parentFileNameHints back to
+	 * its base disk, linking as we go.
+	 *
+	 * @return the base disk, or null if any disk in the chain is
+	 * missing or unreadable, in which case the whole chain is skipped.
+	 * A chain which loops back on itself (a damaged or hostile
+	 * descriptor's hint) counts as unreadable.
+	 */
+	private VirtualDisk chain( File f ) throws IOException {
+		VMDKDisk child = null;
+		Set<File> visited = new HashSet<File>();
+		while( f != null ) {
+			if( !f.isFile() ) {
+				log.warn( dir + ": missing disk " + f );
+				return null;
+			}
+			if( !visited.add( f.getCanonicalFile() ) ) {
+				log.warn( dir + ": cyclic disk chain at " + f );
+				return null;
+			}
+			VMDKDisk vd;
+			try {
+				vd = VMDKDisk.readFrom( f );
+			} catch( VirtualDiskException vde ) {
+				vd = null;
+			}
+			if( vd == null ) {
+				log.warn( dir + ": unreadable disk " + f );
+				return null;
+			}
+			if( child != null ) {
+				vd.setChild( child );
+				child.setParent( vd );
+			}
+			child = vd;
+			f = vd.getParentFileNameHint();
+		}
+		return child;
+	}
+
 	@Override
 	public String getName() {
 		return dir.getName();
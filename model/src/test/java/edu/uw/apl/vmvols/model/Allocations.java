@@ -0,0 +1,108 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Count heap allocation by the read paths of RandomAccessVirtualDisk
+ * implementations, so that tests can hold steady-state reads to
+ * allocating nothing.  GC pauses show up as latency spikes in fuse
+ * reads.  Uses the per-thread allocation counter of HotSpot's
+ * ThreadMXBean, if the JVM has one.
+ */
+public class Allocations {
+
+	/**
+	 * @return bytes allocated so far by the calling thread, or -1 if
+	 * the JVM cannot say
+	 */
+	static public long current() {
+		ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if( !( mx instanceof com.sun.management.ThreadMXBean ) )
+			return -1;
+		com.sun.management.ThreadMXBean hs =
+			(com.sun.management.ThreadMXBean)mx;
+		if( !hs.isThreadAllocatedMemorySupported() ||
+			!hs.isThreadAllocatedMemoryEnabled() )
+			return -1;
+		return hs.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+
+	/**
+	 * Make random reads, both array and single byte, through ra, once
+	 * to warm up (buffers allocated, classes loaded, code compiled)
+	 * and then again, counting.
+	 *
+	 * @return bytes allocated by the second, steady-state, pass, or
+	 * -1 if the JVM cannot say
+	 */
+	static public long readLoop( RandomAccessVirtualDisk ra, long size )
+		throws IOException {
+		byte[] ba = new byte[3 * 64 * 1024];
+		readLoop( ra, size, ba, new Random( 31 ) );
+		Random r = new Random( 37 );
+		// what the counting itself costs, e.g. the MXBean lookup
+		long before = current();
+		if( before == -1 )
+			return -1;
+		long overhead = current() - before;
+		before = current();
+		readLoop( ra, size, ba, r );
+		return current() - before - overhead;
+	}
+
+	static private void readLoop( RandomAccessVirtualDisk ra, long size,
+								  byte[] ba, Random r ) throws IOException {
+		for( int i = 0; i < ITERATIONS; i++ ) {
+			int len = 1 + r.nextInt( ba.length );
+			ra.seek( (long)(r.nextDouble() * (size - len)) );
+			int total = 0;
+			while( total < len )
+				total += ra.read( ba, total, len - total );
+			for( int b = 0; b < 16; b++ )
+				ra.read();
+		}
+	}
+
+	static private final int ITERATIONS = 2000;
+
+	/**
+	 * What a test may see from readLoop, from the counting itself,
+	 * without the read paths allocating.  A per-read allocation of
+	 * even one small object would cost ITERATIONS times 16 bytes.
+	 */
+	static public final long SLACK = 1024;
+}
+
+// eof
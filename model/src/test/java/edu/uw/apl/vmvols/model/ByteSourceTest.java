@@ -0,0 +1,224 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for the ByteSource implementations: each must read exactly
+ * as the file it fronts, at any offset and length, eof included.
+ */
+public class ByteSourceTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/ByteSourceTest" );
+		dir.mkdirs();
+		// not a multiple of any alignment, so eof is mid-window
+		content = new byte[3 * 1024 * 1024 + 1234];
+		new Random( 41 ).nextBytes( content );
+		file = new File( dir, "content.bin" );
+		FileUtils.writeByteArrayToFile( file, content );
+	}
+
+	public void testFile() throws IOException {
+		ByteSource bs = new FileByteSource( file, false );
+		check( bs, content );
+		bs.close();
+	}
+
+	public void testMapped() throws IOException {
+		// small chunks, so reads cross them
+		ByteSource bs = new MappedByteSource( file, 100000 );
+		check( bs, content );
+		bs.close();
+	}
+
+	public void testSlice() throws IOException {
+		ByteSource bs = new SliceByteSource
+			( new FileByteSource( file, false ), 5000, 1000000 );
+		check( bs, Arrays.copyOfRange( content, 5000, 1005000 ) );
+		bs.close();
+	}
+
+	/**
+	 * Every request reaching the underlying source is aligned, and
+	 * small sequential reads are coalesced, one request per window
+	 */
+	public void testAligned() throws IOException {
+		Counting c = new Counting( new FileByteSource( file, false ) );
+		ByteSource bs = new AlignedByteSource( c, 4096, 65536 );
+		check( bs, content );
+		for( long[] r : c.requests ) {
+			assertEquals( 0, r[0] % 4096 );
+			assertTrue( r[0] + r[1] == content.length || r[1] % 4096 == 0 );
+		}
+
+		c.requests.clear();
+		byte[] ba = new byte[512];
+		for( int off = 0; off < 1024 * 1024; off += ba.length ) {
+			bs.readFully( off, ba );
+			assertTrue( Arrays.equals
+						( Arrays.copyOfRange( content, off, off + ba.length ),
+						  ba ) );
+		}
+		assertEquals( 1024 * 1024 / 65536, c.requests.size() );
+		bs.close();
+	}
+
+	public void testAlignedWrites() throws IOException {
+		File f = new File( dir, "writes.bin" );
+		FileUtils.writeByteArrayToFile( f, content );
+		byte[] expected = content.clone();
+		ByteSource bs = new AlignedByteSource
+			( new FileByteSource( f, true ), 512, 8192 );
+		byte[] ba = new byte[100];
+		// buffer some, then write within it, it must not read stale
+		bs.readFully( 1000, ba );
+		byte[] w = new byte[300];
+		new Random( 43 ).nextBytes( w );
+		bs.write( 900, w );
+		System.arraycopy( w, 0, expected, 900, w.length );
+		bs.readFully( 1000, ba );
+		assertTrue( Arrays.equals
+					( Arrays.copyOfRange( expected, 1000, 1100 ), ba ) );
+		bs.close();
+		assertTrue( Arrays.equals( expected,
+								   FileUtils.readFileToByteArray( f ) ) );
+	}
+
+	public void testHttp() throws IOException {
+		RangeServer rs = new RangeServer( dir );
+		try {
+			ByteSource bs = new AlignedByteSource
+				( new HttpByteSource( new URL( rs.getURL(), file.getName() ) ),
+				  4096, 65536 );
+			assertEquals( content.length, bs.size() );
+			check( bs, content );
+			bs.close();
+			assertTrue( rs.getRequests() > 0 );
+		} finally {
+			rs.stop();
+		}
+	}
+
+	public void testReadOnly() throws IOException {
+		ByteSource bs = new FileByteSource( file, false );
+		try {
+			bs.write( 0, new byte[1] );
+			fail();
+		} catch( UnsupportedOperationException uoe ) {
+		}
+		bs.close();
+	}
+
+	/**
+	 * Random array and ByteBuffer reads of bs, which should read as
+	 * expected, plus reads at and past eof
+	 */
+	private void check( ByteSource bs, byte[] expected ) throws IOException {
+		assertEquals( expected.length, bs.size() );
+		Random r = new Random( 47 );
+		byte[] ba = new byte[200000];
+		for( int i = 0; i < 300; i++ ) {
+			int len = 1 + r.nextInt( i % 2 == 0 ? 2000 : ba.length );
+			int off = r.nextInt( expected.length );
+			int n;
+			if( i % 3 == 0 ) {
+				ByteBuffer bb = ByteBuffer.allocate( len );
+				n = bs.read( off, bb );
+				assertEquals( n, bb.position() );
+				System.arraycopy( bb.array(), 0, ba, 0, n );
+			} else {
+				n = bs.read( off, ba, 0, len );
+			}
+			assertEquals( Math.min( len, expected.length - off ), n );
+			assertTrue( Arrays.equals
+						( Arrays.copyOfRange( expected, off, off + n ),
+						  Arrays.copyOf( ba, n ) ) );
+		}
+		assertEquals( -1, bs.read( expected.length, ba, 0, 10 ) );
+		assertEquals( -1, bs.read( expected.length, ByteBuffer.allocate( 1 ) ) );
+		try {
+			bs.readFully( expected.length - 5, ba, 0, 10 );
+			fail();
+		} catch( EOFException eof ) {
+		}
+	}
+
+	/**
+	 * Records the (offset, length) of every read request
+	 */
+	static class Counting extends ByteSource {
+		Counting( ByteSource source ) {
+			this.source = source;
+		}
+
+		@Override
+		public int read( long pos, ByteBuffer dst ) throws IOException {
+			requests.add( new long[] { pos, dst.remaining() } );
+			return source.read( pos, dst );
+		}
+
+		@Override
+		public int read( long pos, byte[] ba, int off, int len )
+			throws IOException {
+			requests.add( new long[] { pos, len } );
+			return source.read( pos, ba, off, len );
+		}
+
+		@Override
+		public long size() throws IOException {
+			return source.size();
+		}
+
+		@Override
+		public void close() throws IOException {
+			source.close();
+		}
+
+		final ByteSource source;
+		final List<long[]> requests = new ArrayList<long[]>();
+	}
+
+	private File dir, file;
+	private byte[] content;
+}
+
+// eof
@@ -0,0 +1,236 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for {@link HostFilePool}: descriptors shared, capped, never
+ * stale, and not leaked.
+ */
+public class HostFilePoolTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/HostFilePoolTest" );
+		dir.mkdirs();
+	}
+
+	public void testShared() throws IOException {
+		File f = file( "shared.bin", 100000, 1 );
+		HostFilePool pool = new HostFilePool( 8 );
+		List<ByteSource> bss = new ArrayList<ByteSource>();
+		for( int i = 0; i < 10; i++ )
+			bss.add( pool.open( f, false ) );
+		assertEquals( 1, pool.openCount() );
+		assertEquals( 10, pool.activeCount() );
+		for( ByteSource bs : bss )
+			bs.close();
+		assertEquals( 0, pool.activeCount() );
+		// idle, but retained for the next open
+		assertEquals( 1, pool.openCount() );
+		pool.closeIdle();
+		assertEquals( 0, pool.openCount() );
+	}
+
+	/**
+	 * More files in use than descriptors allowed, read concurrently,
+	 * so channels are evicted under readers' feet
+	 */
+	public void testCap() throws Exception {
+		final int N = 6;
+		final byte[][] contents = new byte[N][];
+		final File[] fs = new File[N];
+		for( int i = 0; i < N; i++ ) {
+			fs[i] = file( "cap" + i + ".bin", 200000 + i, i );
+			contents[i] = FileUtils.readFileToByteArray( fs[i] );
+		}
+		final HostFilePool pool = new HostFilePool( 2 );
+		final AtomicReference<Throwable> failure =
+			new AtomicReference<Throwable>();
+		Thread[] ts = new Thread[N];
+		for( int i = 0; i < N; i++ ) {
+			final int t = i;
+			ts[i] = new Thread() {
+					public void run() {
+						try {
+							ByteSource bs = pool.open( fs[t], false );
+							byte[] ba = new byte[4096];
+							Random r = new Random( t );
+							for( int j = 0; j < 2000; j++ ) {
+								int off = r.nextInt( contents[t].length -
+													 ba.length );
+								bs.readFully( off, ba );
+								if( !Arrays.equals
+									( Arrays.copyOfRange( contents[t], off,
+														  off + ba.length ),
+									  ba ) )
+									throw new IllegalStateException
+										( "Bad read " + t + " " + off );
+							}
+							bs.close();
+						} catch( Throwable th ) {
+							failure.compareAndSet( null, th );
+						}
+					}
+				};
+			ts[i].start();
+		}
+		for( Thread t : ts )
+			t.join();
+		if( failure.get() != null )
+			throw new AssertionError( failure.get() );
+		assertTrue( pool.openCount() <= 2 );
+		assertEquals( 0, pool.activeCount() );
+	}
+
+	/**
+	 * A file replaced by rename, as compactions do, is not then read
+	 * via the old file's retained descriptor
+	 */
+	public void testReplaced() throws IOException {
+		File f = file( "replaced.bin", 10000, 3 );
+		HostFilePool pool = new HostFilePool( 8 );
+		ByteSource bs = pool.open( f, false );
+		byte[] ba = new byte[100];
+		bs.readFully( 0, ba );
+		bs.close();
+
+		File tmp = file( "replaced.tmp", 10000, 4 );
+		byte[] expected = FileUtils.readFileToByteArray( tmp );
+		assertTrue( tmp.renameTo( f ) );
+		bs = pool.open( f, false );
+		bs.readFully( 0, ba );
+		bs.close();
+		assertTrue( Arrays.equals( Arrays.copyOf( expected, ba.length ),
+								   ba ) );
+		assertEquals( 1, pool.openCount() );
+	}
+
+	/**
+	 * Sources dropped unclosed are found once collected
+	 */
+	public void testLeak() throws Exception {
+		File f = file( "leak.bin", 10000, 5 );
+		HostFilePool pool = new HostFilePool( 8 );
+		for( int i = 0; i < 5; i++ )
+			pool.open( f, false ).readFully( 0, new byte[10] );
+		assertEquals( 5, pool.activeCount() );
+		for( int i = 0; i < 100 && pool.activeCount() > 0; i++ ) {
+			System.gc();
+			Thread.sleep( 10 );
+			pool.closeIdle();
+		}
+		assertEquals( 0, pool.activeCount() );
+		assertEquals( 0, pool.openCount() );
+	}
+
+	public void testClosed() throws IOException {
+		File f = file( "closed.bin", 1000, 6 );
+		HostFilePool pool = new HostFilePool( 8 );
+		ByteSource bs = pool.open( f, false );
+		bs.close();
+		// twice is harmless
+		bs.close();
+		try {
+			bs.readFully( 0, new byte[10] );
+			fail();
+		} catch( IOException ioe ) {
+		}
+	}
+
+	/**
+	 * One Source read by many threads at once, each with its own
+	 * array, but some sharing one: every read lands in its caller's
+	 * array, at its offset, never another's
+	 */
+	public void testThreads() throws Exception {
+		File f = file( "threads.bin", 1 << 20, 7 );
+		final byte[] expected = FileUtils.readFileToByteArray( f );
+		HostFilePool pool = new HostFilePool( 8 );
+		final ByteSource bs = pool.open( f, false );
+		final byte[] shared = new byte[8192];
+		final AtomicReference<Throwable> failure =
+			new AtomicReference<Throwable>();
+		Thread[] ts = new Thread[8];
+		for( int t = 0; t < ts.length; t++ ) {
+			final int seed = t;
+			ts[t] = new Thread() {
+					public void run() {
+						Random r = new Random( seed );
+						byte[] own = new byte[4096];
+						try {
+							for( int i = 0; i < 2000; i++ ) {
+								int pos = r.nextInt( expected.length - 4096 );
+								if( seed % 2 == 0 ) {
+									bs.readFully( pos, own );
+									assertTrue( Arrays.equals
+												( Arrays.copyOfRange
+												  ( expected, pos, pos + 4096 ),
+												  own ) );
+								} else {
+									// disjoint halves of the shared array
+									int off = (seed / 2 % 2) * 4096;
+									bs.readFully( pos, shared, off, 4096 );
+								}
+							}
+						} catch( Throwable t ) {
+							failure.compareAndSet( null, t );
+						}
+					}
+				};
+			ts[t].start();
+		}
+		for( Thread t : ts )
+			t.join();
+		bs.close();
+		if( failure.get() != null )
+			throw new AssertionError( failure.get() );
+	}
+
+	private File file( String name, int len, long seed ) throws IOException {
+		byte[] ba = new byte[len];
+		new Random( seed ).nextBytes( ba );
+		File result = new File( dir, name );
+		FileUtils.writeByteArrayToFile( result, ba );
+		return result;
+	}
+
+	private File dir;
+}
+
+// eof
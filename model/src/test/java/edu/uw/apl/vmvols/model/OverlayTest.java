@@ -0,0 +1,158 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for {@link Overlay} and {@link OverlayRandomAccess}.  The
+ * 'disk' being overlaid is just a byte array, so we can check that
+ * it is never written to until a commit.
+ */
+public class OverlayTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		File dir = new File( "target/OverlayTest" );
+		dir.mkdirs();
+		sidecar = new File( dir, "disk.overlay" );
+		sidecar.delete();
+		new File( sidecar.getPath() + Overlay.MAPSUFFIX ).delete();
+
+		// not a whole number of overlay blocks, to test the last one
+		disk = new byte[10 * Overlay.BLOCKSIZE + 1000];
+		new Random( 3 ).nextBytes( disk );
+		original = disk.clone();
+	}
+
+	public void testWriteReadCommit() throws IOException {
+		// small memory limit, so that we spill
+		Overlay o = new Overlay( sidecar, disk.length, 2 );
+		byte[] expected = disk.clone();
+		RandomAccessVirtualDisk ra = new OverlayRandomAccess
+			( new ByteArrayDisk( disk ), o );
+		writeRandom( ra, expected, 40 );
+		ra.seek( expected.length - 10 );
+		ra.write( new byte[20] );
+		Arrays.fill( expected, expected.length - 10, expected.length,
+					 (byte)0 );
+		assertTrue( Arrays.equals( expected, readAll( ra ) ) );
+		ra.close();
+		assertTrue( Arrays.equals( original, disk ) );
+		o.close();
+
+		// a fresh overlay, loaded from the sidecar
+		o = new Overlay( sidecar, disk.length, 2 );
+		assertFalse( o.isEmpty() );
+		ra = new OverlayRandomAccess( new ByteArrayDisk( disk ), o );
+		assertTrue( Arrays.equals( expected, readAll( ra ) ) );
+		ra.close();
+
+		o.commit( new ByteArrayDisk( disk ) );
+		assertTrue( Arrays.equals( expected, disk ) );
+		assertTrue( o.isEmpty() );
+		assertFalse( sidecar.exists() );
+	}
+
+	public void testDiscard() throws IOException {
+		Overlay o = new Overlay( sidecar, disk.length );
+		RandomAccessVirtualDisk ra = new OverlayRandomAccess
+			( new ByteArrayDisk( disk ), o );
+		writeRandom( ra, disk.clone(), 10 );
+		o.flush();
+		assertTrue( sidecar.exists() );
+		o.discard();
+		assertTrue( o.isEmpty() );
+		assertFalse( sidecar.exists() );
+		assertTrue( Arrays.equals( original, readAll( ra ) ) );
+		ra.close();
+	}
+
+	private void writeRandom( RandomAccessVirtualDisk ra, byte[] expected,
+							  int count ) throws IOException {
+		Random r = new Random( 5 );
+		for( int i = 0; i < count; i++ ) {
+			byte[] ba = new byte[1 + r.nextInt( 3 * Overlay.BLOCKSIZE )];
+			r.nextBytes( ba );
+			int posn = r.nextInt( expected.length - ba.length );
+			ra.seek( posn );
+			ra.write( ba );
+			System.arraycopy( ba, 0, expected, posn, ba.length );
+		}
+	}
+	
+	private byte[] readAll( RandomAccessVirtualDisk ra ) throws IOException {
+		byte[] result = new byte[(int)ra.size];
+		ra.seek( 0 );
+		IOUtils.readFully( ra, result );
+		return result;
+	}
+
+	/**
+	 * The simplest possible virtual disk, backed by a byte array
+	 */
+	static class ByteArrayDisk extends RandomAccessVirtualDisk {
+		ByteArrayDisk( byte[] ba ) {
+			super( ba.length );
+			this.ba = ba;
+		}
+
+		@Override
+		public int readImpl( byte[] b, int off, int len ) {
+			int n = (int)Math.min( len, size - posn );
+			System.arraycopy( ba, (int)posn, b, off, n );
+			posn += n;
+			return n;
+		}
+
+		@Override
+		public void writeImpl( byte[] b, int off, int len ) {
+			int n = (int)Math.min( len, size - posn );
+			System.arraycopy( b, off, ba, (int)posn, n );
+			posn += n;
+		}
+
+		@Override
+		public void seek( long s ) {
+			posn = s;
+		}
+
+		private final byte[] ba;
+	}
+	
+	private File sidecar;
+	private byte[] disk, original;
+}
+
+// eof
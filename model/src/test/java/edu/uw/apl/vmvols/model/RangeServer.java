@@ -0,0 +1,134 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * @author Stuart Maclean
+ *
+ * A minimal HTTP server, on a free local port, serving the files
+ * under a root directory, honouring single 'bytes=a-b' Range
+ * requests.  Enough for tests of HttpByteSource, counting the GETs
+ * it makes.
+ */
+public class RangeServer {
+
+	public RangeServer( final File root ) throws IOException {
+		server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ),
+									0 );
+		server.createContext( "/", new HttpHandler() {
+				public void handle( HttpExchange he ) throws IOException {
+					try {
+						serve( root, he );
+					} finally {
+						he.close();
+					}
+				}
+			} );
+		server.start();
+	}
+
+	public URL getURL() throws IOException {
+		return new URL( "http://127.0.0.1:" +
+						server.getAddress().getPort() + "/" );
+	}
+
+	/**
+	 * @return ranged GETs served so far
+	 */
+	public int getRequests() {
+		return gets.get();
+	}
+
+	public void stop() {
+		server.stop( 0 );
+	}
+
+	private void serve( File root, HttpExchange he ) throws IOException {
+		File f = new File( root, he.getRequestURI().getPath().substring( 1 ) );
+		if( !f.isFile() ) {
+			he.sendResponseHeaders( 404, -1 );
+			return;
+		}
+		long len = f.length();
+		if( "HEAD".equals( he.getRequestMethod() ) ) {
+			he.getResponseHeaders().set( "Content-Length", "" + len );
+			he.sendResponseHeaders( 200, -1 );
+			return;
+		}
+		String range = he.getRequestHeaders().getFirst( "Range" );
+		Matcher m = range == null ? null : RANGE.matcher( range );
+		if( m == null || !m.matches() ) {
+			// we insist on ranges, as must the client
+			he.sendResponseHeaders( 501, -1 );
+			return;
+		}
+		long from = Long.parseLong( m.group( 1 ) );
+		long to = Math.min( Long.parseLong( m.group( 2 ) ), len - 1 );
+		if( from > to ) {
+			he.sendResponseHeaders( 416, -1 );
+			return;
+		}
+		gets.incrementAndGet();
+		byte[] ba = new byte[(int)(to - from + 1)];
+		RandomAccessFile raf = new RandomAccessFile( f, "r" );
+		try {
+			raf.seek( from );
+			raf.readFully( ba );
+		} finally {
+			raf.close();
+		}
+		he.getResponseHeaders().set( "Content-Range", "bytes " + from + "-" +
+									 to + "/" + len );
+		he.sendResponseHeaders( 206, ba.length );
+		OutputStream os = he.getResponseBody();
+		os.write( ba );
+		os.close();
+	}
+
+	private final HttpServer server;
+	private final AtomicInteger gets = new AtomicInteger();
+
+	static private final Pattern RANGE = Pattern.compile
+		( "bytes=(\\d+)-(\\d+)" );
+}
+
+// eof
@@ -0,0 +1,412 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.virtualbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.EndianUtils;
+import org.apache.commons.io.IOUtils;
+
+import edu.uw.apl.vmvols.model.Allocations;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for writes to dynamically allocated .vdi files, via {@link
+ * NormalDisk}, and for the block map persistence they rely on, see
+ * {@link BlockMapJournal}.  We build our own small disks, see {@link
+ * VDIBuilder}.
+ */
+public class NormalDiskWriteTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/NormalDiskWriteTest" );
+		dir.mkdirs();
+	}
+
+	public void testPartialBlockWrites() throws IOException {
+		File f = VDIBuilder.build( new File( dir, "partial.vdi" ), BLOCKS );
+		byte[] expected = new byte[BLOCKS * VDIBuilder.BLOCKSIZE];
+		Random r = new Random( 11 );
+
+		VDIDisk d = VDIDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = d.getRandomAccess( true );
+		for( int i = 0; i < 32; i++ ) {
+			byte[] ba = new byte[1 + r.nextInt( 8192 )];
+			r.nextBytes( ba );
+			int posn = r.nextInt( expected.length - ba.length );
+			ra.seek( posn );
+			ra.write( ba );
+			System.arraycopy( ba, 0, expected, posn, ba.length );
+
+			// the write must be visible to a read through the same handle
+			byte[] back = new byte[ba.length];
+			ra.seek( posn );
+			IOUtils.readFully( ra, back );
+			assertTrue( Arrays.equals( ba, back ) );
+		}
+		ra.close();
+		assertFalse( new BlockMapJournal( f ).getFile().exists() );
+
+		// a fresh VDIDisk, so the block map is re-read from the file
+		d = VDIDisk.readFrom( f );
+		assertEquals( allocated( d.getBlockMap() ),
+					  d.header.blocksAllocated() );
+		byte[] actual = new byte[expected.length];
+		ra = d.getRandomAccess( false );
+		IOUtils.readFully( ra, actual );
+		ra.close();
+		assertTrue( Arrays.equals( expected, actual ) );
+	}
+
+	public void testAllocationMap() throws IOException {
+		File f = VDIBuilder.build( new File( dir, "alloc.vdi" ), BLOCKS );
+		VDIDisk d = VDIDisk.readFrom( f );
+		assertEquals( 0, d.allocatedBytes() );
+		RandomAccessVirtualDisk ra = d.getRandomAccess( true );
+		ra.seek( 5L * VDIBuilder.BLOCKSIZE );
+		ra.write( new byte[] { 1 } );
+		ra.seek( 2L * VDIBuilder.BLOCKSIZE );
+		ra.write( new byte[] { 1 } );
+		ra.close();
+
+		d = VDIDisk.readFrom( f );
+		assertEquals( VDIBuilder.BLOCKSIZE, d.allocationUnit() );
+		assertEquals( 2L * VDIBuilder.BLOCKSIZE, d.allocatedBytes() );
+		assertTrue( d.allocationMap().get( 2 ) );
+		assertTrue( d.allocationMap().get( 5 ) );
+		assertEquals( -1, d.hostOffset( 0 ) );
+		assertEquals( d.hostOffset( 5 ) + VDIBuilder.BLOCKSIZE,
+					  d.hostOffset( 2 ) );
+	}
+	
+	public void testZeroWrites() throws IOException {
+		File f = VDIBuilder.build( new File( dir, "zeros.vdi" ), BLOCKS );
+		long len = f.length();
+		VDIDisk d = VDIDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = d.getRandomAccess( true );
+		// a whole block, a partial block and all but the last block
+		byte[] zeros = new byte[(BLOCKS-1) * VDIBuilder.BLOCKSIZE];
+		ra.seek( 3L * VDIBuilder.BLOCKSIZE );
+		ra.write( zeros, 0, VDIBuilder.BLOCKSIZE );
+		ra.seek( 100 );
+		ra.write( zeros, 0, 1000 );
+		ra.seek( 0 );
+		ra.write( zeros );
+		ra.seek( 7L * VDIBuilder.BLOCKSIZE );
+		ra.write( new byte[] { 1 } );
+		ra.close();
+
+		d = VDIDisk.readFrom( f );
+		assertEquals( VDIBuilder.BLOCKSIZE, d.allocatedBytes() );
+		assertEquals( len + VDIBuilder.BLOCKSIZE, f.length() );
+		assertEquals( VDIDisk.VDI_IMAGE_BLOCK_ZERO, d.getBlockMap()[3] );
+		assertTrue( d.check().isEmpty() );
+
+		// a zero block over an allocated one, released only on request
+		ra = d.getRandomAccess( true );
+		ra.seek( 7L * VDIBuilder.BLOCKSIZE );
+		ra.write( zeros, 0, VDIBuilder.BLOCKSIZE );
+		ra.close();
+		d = VDIDisk.readFrom( f );
+		assertEquals( VDIBuilder.BLOCKSIZE, d.allocatedBytes() );
+		d.setReleaseZeros( true );
+		ra = d.getRandomAccess( true );
+		ra.seek( 7L * VDIBuilder.BLOCKSIZE );
+		ra.write( zeros, 0, VDIBuilder.BLOCKSIZE );
+		ra.close();
+		d = VDIDisk.readFrom( f );
+		assertEquals( 0, d.allocatedBytes() );
+		assertTrue( d.check().toString(), d.check().isEmpty() );
+		byte[] all = new byte[BLOCKS * VDIBuilder.BLOCKSIZE];
+		ra = d.getRandomAccess( false );
+		IOUtils.readFully( ra, all );
+		ra.close();
+		assertTrue( Arrays.equals( new byte[all.length], all ) );
+	}
+	
+	/**
+	 * Zeros through a read-only handle are refused, as any other
+	 * write is, and leave the shared block map alone
+	 */
+	public void testReadOnlyZeroWrites() throws IOException {
+		File f = VDIBuilder.build( new File( dir, "rozeros.vdi" ), BLOCKS );
+		VDIDisk d = VDIDisk.readFrom( f );
+		d.setReleaseZeros( true );
+		RandomAccessVirtualDisk ra = d.getRandomAccess( false );
+		ra.seek( 3L * VDIBuilder.BLOCKSIZE );
+		try {
+			ra.write( new byte[VDIBuilder.BLOCKSIZE] );
+			fail( "Zero write through a read-only handle" );
+		} catch( IOException expected ) {
+		}
+		ra.close();
+		assertEquals( VDIDisk.VDI_IMAGE_BLOCK_FREE, d.getBlockMap()[3] );
+	}
+	
+	public void testDiscard() throws IOException {
+		File f = VDIBuilder.build( new File( dir, "discard.vdi" ), BLOCKS );
+		int bs = VDIBuilder.BLOCKSIZE;
+		byte[] expected = new byte[BLOCKS * bs];
+		new Random( 13 ).nextBytes( expected );
+		VDIDisk d = VDIDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = d.getRandomAccess( true );
+		ra.write( expected );
+		long full = f.length();
+
+		// half of block 0, all of 1 and 2, none of 3
+		ra.seek( 1234 );
+		ra.discard( bs / 2, 5 * bs / 2 );
+		Arrays.fill( expected, bs / 2, 3 * bs, (byte)0 );
+		// the file position is unchanged
+		assertEquals( expected[1234] & 0xff, ra.read() );
+		// the last two blocks, also last in the file
+		ra.discard( 6L * bs, Long.MAX_VALUE / 2 );
+		Arrays.fill( expected, 6 * bs, 8 * bs, (byte)0 );
+		ra.close();
+
+		d = VDIDisk.readFrom( f );
+		assertEquals( 4L * bs, d.allocatedBytes() );
+		assertEquals( full - 2L * bs, f.length() );
+		assertEquals( VDIDisk.VDI_IMAGE_BLOCK_ZERO, d.getBlockMap()[1] );
+		assertTrue( d.check().toString(), d.check().isEmpty() );
+		byte[] actual = new byte[expected.length];
+		ra = d.getRandomAccess( false );
+		IOUtils.readFully( ra, actual );
+		ra.close();
+		assertTrue( Arrays.equals( expected, actual ) );
+	}
+	
+	/**
+	 * A discard must not lower the next free block below a block
+	 * reserved, but not yet committed, by a write on another handle.
+	 */
+	public void testDiscardWithReservation() throws IOException {
+		File f = VDIBuilder.build( new File( dir, "reserved.vdi" ), BLOCKS );
+		int bs = VDIBuilder.BLOCKSIZE;
+		VDIDisk d = VDIDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = d.getRandomAccess( true );
+		byte[] ba = new byte[4 * bs];
+		Arrays.fill( ba, (byte)1 );
+		ra.write( ba );
+		// as if another handle were mid-write of a new block
+		int reserved = d.allocateBlock();
+		assertEquals( 4, reserved );
+		ra.discard( 3L * bs, bs );
+		int next1 = d.allocateBlock();
+		int next2 = d.allocateBlock();
+		assertTrue( next1 != reserved && next2 != reserved );
+		ra.close();
+	}
+
+	/**
+	 * Simulate a crash after a block was written and the journal
+	 * made durable, but before the block map in the .vdi was updated.
+	 * The next open must replay the journal.
+	 */
+	public void testRandomReads() throws IOException {
+		File f = VDIBuilder.build( new File( dir, "random.vdi" ), BLOCKS );
+		byte[] expected = new byte[BLOCKS * VDIBuilder.BLOCKSIZE];
+		new Random( 19 ).nextBytes( expected );
+		VDIDisk d = VDIDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = d.getRandomAccess( true );
+		ra.write( expected );
+		ra.setReadMinimum( 512 );
+		Random r = new Random( 23 );
+		for( int i = 0; i < 1100; i++ ) {
+			// and some reads spanning many, contiguous, units
+			int len = 1 + r.nextInt( i < 1000 ? 8192 : 3 * VDIBuilder.BLOCKSIZE );
+			int offset = r.nextInt( expected.length - len );
+			// writes into a partially read block keep it coherent
+			if( i % 10 == 0 ) {
+				byte[] ba = new byte[len];
+				r.nextBytes( ba );
+				System.arraycopy( ba, 0, expected, offset, len );
+				// buffered single byte reads see writes too
+				ra.seek( offset );
+				ra.read();
+				ra.seek( offset );
+				ra.write( ba );
+				ra.seek( offset );
+				assertEquals( ba[0] & 0xff, ra.read() );
+			}
+			byte[] actual = new byte[len];
+			ra.seek( offset );
+			IOUtils.readFully( ra, actual );
+			assertTrue( "" + offset + " " + len, Arrays.equals
+						( Arrays.copyOfRange( expected, offset, offset + len ),
+						  actual ) );
+		}
+		// and sequential reads, straddling all those partial blocks
+		byte[] actual = new byte[expected.length];
+		ra.seek( 0 );
+		for( int i = 0; i < actual.length; i += 4096 )
+			IOUtils.readFully( ra, actual, i, 4096 );
+		ra.close();
+		assertTrue( Arrays.equals( expected, actual ) );
+	}
+
+	public void testReadsAllocateNothing() throws IOException {
+		File f = VDIBuilder.build( new File( dir, "alloc.vdi" ), BLOCKS );
+		byte[] ba = new byte[3 * VDIBuilder.BLOCKSIZE];
+		new Random( 41 ).nextBytes( ba );
+		VDIDisk d = VDIDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = d.getRandomAccess( true );
+		ra.write( ba );
+		ra.close();
+		ra = d.getRandomAccess( false );
+		long allocated = Allocations.readLoop( ra, d.size() );
+		ra.close();
+		assertTrue( "" + allocated, allocated < Allocations.SLACK );
+	}
+
+	public void testJournalReplay() throws IOException {
+		File f = VDIBuilder.build( new File( dir, "replay.vdi" ), BLOCKS );
+		VDIDisk d = VDIDisk.readFrom( f );
+		byte[] block = new byte[VDIBuilder.BLOCKSIZE];
+		new Random( 13 ).nextBytes( block );
+		RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+		raf.seek( d.header.dataOffset() );
+		raf.write( block );
+		raf.close();
+
+		int[] blockMap = new int[BLOCKS];
+		Arrays.fill( blockMap, VDIDisk.VDI_IMAGE_BLOCK_FREE );
+		blockMap[2] = 0;
+		BlockMapJournal j = new BlockMapJournal( f );
+		j.write( blockMap, 2, 1, 1 );
+		assertTrue( j.getFile().exists() );
+
+		// a read only open replays in memory, and touches nothing
+		long modified = f.lastModified();
+		byte[] before = new byte[4];
+		raf = new RandomAccessFile( f, "r" );
+		raf.seek( d.header.blocksOffset() + 4 * 2 );
+		raf.readFully( before );
+		raf.close();
+		d = VDIDisk.readFrom( f );
+		assertEquals( 0, d.getBlockMap()[2] );
+		assertTrue( j.getFile().exists() );
+		raf = new RandomAccessFile( f, "r" );
+		byte[] after = new byte[4];
+		raf.seek( d.header.blocksOffset() + 4 * 2 );
+		raf.readFully( after );
+		raf.close();
+		assertTrue( Arrays.equals( before, after ) );
+		assertEquals( modified, f.lastModified() );
+
+		RandomAccessVirtualDisk ra = d.getRandomAccess( false );
+		ra.seek( 2L * VDIBuilder.BLOCKSIZE );
+		byte[] actual = new byte[block.length];
+		IOUtils.readFully( ra, actual );
+		ra.close();
+		assertTrue( Arrays.equals( block, actual ) );
+
+		// the first writable open completes the replay
+		d.getRandomAccess( true ).close();
+		assertFalse( j.getFile().exists() );
+
+		// the replay must have reached the .vdi itself
+		raf = new RandomAccessFile( f, "r" );
+		byte[] ba = new byte[4];
+		raf.seek( d.header.blocksOffset() + 4 * 2 );
+		raf.readFully( ba );
+		assertEquals( 0, EndianUtils.readSwappedInteger( ba, 0 ) );
+		raf.seek( d.header.blocksAllocatedOffset() );
+		raf.readFully( ba );
+		assertEquals( 1, EndianUtils.readSwappedInteger( ba, 0 ) );
+		raf.close();
+
+		d = VDIDisk.readFrom( f );
+		ra = d.getRandomAccess( false );
+		ra.seek( 2L * VDIBuilder.BLOCKSIZE );
+		IOUtils.readFully( ra, actual );
+		ra.close();
+		assertTrue( Arrays.equals( block, actual ) );
+	}
+
+	public void testCorruptJournalIgnored() throws IOException {
+		File f = VDIBuilder.build( new File( dir, "corrupt.vdi" ), BLOCKS );
+		int[] blockMap = new int[BLOCKS];
+		blockMap[1] = 5;
+		BlockMapJournal j = new BlockMapJournal( f );
+		j.write( blockMap, 1, 1, 6 );
+		RandomAccessFile raf = new RandomAccessFile( j.getFile(), "rw" );
+		raf.seek( 16 );
+		raf.write( 0xff );
+		raf.close();
+
+		VDIDisk d = VDIDisk.readFrom( f );
+		assertEquals( VDIDisk.VDI_IMAGE_BLOCK_FREE, d.getBlockMap()[1] );
+	}
+
+	/**
+	 * Journals with good crcs which yet cannot be this disk's, e.g.
+	 * of a bigger disk, or naming blocks past those allocated
+	 */
+	public void testMisfitJournalIgnored() throws IOException {
+		File f = VDIBuilder.build( new File( dir, "misfit.vdi" ), BLOCKS );
+		BlockMapJournal j = new BlockMapJournal( f );
+		int[] blockMap = new int[2*BLOCKS];
+		j.write( blockMap, BLOCKS-1, 2, 2 );
+		VDIDisk d = VDIDisk.readFrom( f );
+		assertEquals( VDIDisk.VDI_IMAGE_BLOCK_FREE,
+					  d.getBlockMap()[BLOCKS-1] );
+
+		blockMap[1] = 5;
+		j.write( blockMap, 1, 1, 1 );
+		d = VDIDisk.readFrom( f );
+		assertEquals( VDIDisk.VDI_IMAGE_BLOCK_FREE, d.getBlockMap()[1] );
+
+		// a writable open drops it, as it would a corrupt one
+		d.getRandomAccess( true ).close();
+		assertFalse( j.getFile().exists() );
+	}
+
+	static private long allocated( int[] blockMap ) {
+		long result = 0;
+		for( int bme : blockMap ) {
+			if( bme == VDIDisk.VDI_IMAGE_BLOCK_FREE ||
+				bme == VDIDisk.VDI_IMAGE_BLOCK_ZERO )
+				continue;
+			result++;
+		}
+		return result;
+	}
+
+	private File dir;
+	
+	static final int BLOCKS = 8;
+}
+
+// eof
@@ -0,0 +1,159 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.virtualbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualMachine;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for {@link VBoxConfig} and config-driven VBoxVM discovery.
+ * The .vbox attaches two disks, one with a snapshot, out of port
+ * order.  The disk under a Snapshot element's controllers, and a
+ * stray disk file, must be ignored.
+ */
+public class VBoxConfigTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/VBoxConfigTest" );
+		FileUtils.deleteQuietly( dir );
+		new File( dir, "Snapshots" ).mkdirs();
+		VDIBuilder.build( new File( dir, "a.vdi" ), 4 );
+		VDIBuilder.build( new File( dir, "b.vdi" ), 4 );
+		VDIBuilder.build( new File( dir, "stray.vdi" ), 4 );
+		FileUtils.writeStringToFile
+			( new File( dir, "vm.vbox" ),
+			  "<?xml version=\"1.0\"?>\n" +
+			  "<VirtualBox xmlns=\"http://www.virtualbox.org/\">\n" +
+			  " <Machine uuid=\"{m}\" name=\"vm\">\n" +
+			  "  <MediaRegistry><HardDisks>\n" +
+			  "   <HardDisk uuid=\"{a}\" location=\"a.vdi\">\n" +
+			  "    <HardDisk uuid=\"{a1}\" location=\"Snapshots/{a1}.vdi\"/>\n" +
+			  "   </HardDisk>\n" +
+			  "   <HardDisk uuid=\"{b}\" location=\"b.vdi\"/>\n" +
+			  "  </HardDisks></MediaRegistry>\n" +
+			  "  <Snapshot uuid=\"{s}\" name=\"s\"><StorageControllers>\n" +
+			  "   <StorageController name=\"SATA\" type=\"AHCI\">\n" +
+			  "    <AttachedDevice type=\"HardDisk\" port=\"0\" device=\"0\">\n" +
+			  "     <Image uuid=\"{a}\"/></AttachedDevice>\n" +
+			  "   </StorageController>\n" +
+			  "  </StorageControllers></Snapshot>\n" +
+			  "  <StorageControllers>\n" +
+			  "   <StorageController name=\"SATA\" type=\"AHCI\">\n" +
+			  "    <AttachedDevice type=\"DVD\" port=\"2\" device=\"0\"/>\n" +
+			  "    <AttachedDevice type=\"HardDisk\" port=\"1\" device=\"0\">\n" +
+			  "     <Image uuid=\"{b}\"/></AttachedDevice>\n" +
+			  "    <AttachedDevice type=\"HardDisk\" port=\"0\" device=\"0\">\n" +
+			  "     <Image uuid=\"{a1}\"/></AttachedDevice>\n" +
+			  "   </StorageController>\n" +
+			  "  </StorageControllers>\n" +
+			  " </Machine>\n" +
+			  "</VirtualBox>\n" );
+	}
+
+	public void testConfig() throws IOException {
+		VBoxConfig c = new VBoxConfig( new File( dir, "vm.vbox" ) );
+		List<List<File>> chains = c.getDiskChains();
+		assertEquals( 2, chains.size() );
+		assertEquals( 2, chains.get(0).size() );
+		assertEquals( "a.vdi", chains.get(0).get(0).getName() );
+		assertEquals( "{a1}.vdi", chains.get(0).get(1).getName() );
+		assertEquals( "Snapshots",
+					  chains.get(0).get(1).getParentFile().getName() );
+		assertEquals( 1, chains.get(1).size() );
+		assertEquals( "b.vdi", chains.get(1).get(0).getName() );
+	}
+
+	public void testFromConfig() throws IOException {
+		// Drop the snapshot disk, so each attached disk is a base disk
+		FileUtils.writeStringToFile
+			( new File( dir, "vm.vbox" ),
+			  "<VirtualBox><Machine name=\"vm\">\n" +
+			  " <MediaRegistry><HardDisks>\n" +
+			  "  <HardDisk uuid=\"{a}\" location=\"a.vdi\"/>\n" +
+			  "  <HardDisk uuid=\"{b}\" location=\"b.vdi\"/>\n" +
+			  " </HardDisks></MediaRegistry>\n" +
+			  " <StorageControllers>\n" +
+			  "  <StorageController name=\"IDE\">\n" +
+			  "   <AttachedDevice type=\"HardDisk\" port=\"0\" device=\"1\">\n" +
+			  "    <Image uuid=\"{a}\"/></AttachedDevice>\n" +
+			  "   <AttachedDevice type=\"HardDisk\" port=\"0\" device=\"0\">\n" +
+			  "    <Image uuid=\"{b}\"/></AttachedDevice>\n" +
+			  "  </StorageController>\n" +
+			  " </StorageControllers>\n" +
+			  "</Machine></VirtualBox>\n" );
+		VirtualMachine vm = VirtualMachine.create( dir, true );
+		List<VirtualDisk> active = vm.getActiveDisks();
+		assertEquals( 2, active.size() );
+		assertEquals( "b.vdi", active.get(0).getPath().getName() );
+		assertEquals( "a.vdi", active.get(1).getPath().getName() );
+	}
+
+	public void testMissingSnapshot() throws IOException {
+		/*
+		  setUp's config names a snapshot we never built, so the
+		  chain behind it goes, the other disk stays
+		*/
+		VirtualMachine vm = VirtualMachine.create( dir, true );
+		List<VirtualDisk> active = vm.getActiveDisks();
+		assertEquals( 1, active.size() );
+		assertEquals( "b.vdi", active.get(0).getPath().getName() );
+	}
+
+	public void testDoctypeRejected() throws IOException {
+		File secret = new File( dir, "secret.txt" );
+		FileUtils.writeStringToFile( secret, "b.vdi" );
+		File f = new File( dir, "xxe.vbox" );
+		FileUtils.writeStringToFile
+			( f,
+			  "<?xml version=\"1.0\"?>\n" +
+			  "<!DOCTYPE VirtualBox [<!ENTITY x SYSTEM \"" +
+			  secret.getAbsoluteFile().toURI() + "\">]>\n" +
+			  "<VirtualBox><Machine name=\"vm\">\n" +
+			  " <MediaRegistry><HardDisks>\n" +
+			  "  <HardDisk uuid=\"{b}\" location=\"&x;\"/>\n" +
+			  " </HardDisks></MediaRegistry>\n" +
+			  "</Machine></VirtualBox>\n" );
+		try {
+			new VBoxConfig( f );
+			fail( "DOCTYPE accepted" );
+		} catch( VDIException expected ) {
+		}
+	}
+
+	private File dir;
+}
+
+// eof
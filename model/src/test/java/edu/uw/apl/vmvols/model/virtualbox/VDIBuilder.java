@@ -0,0 +1,86 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.virtualbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.EndianUtils;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Build small, empty, dynamically allocated ('normal') .vdi files
+ * for write tests.  Only those Header1 fields we actually parse are
+ * filled in, see {@link VDIHeaders}.  Every block map entry starts
+ * out as VDI_IMAGE_BLOCK_FREE.
+ */
+class VDIBuilder {
+
+	static File build( File f, int blockCount ) throws IOException {
+		int blocksOffset = 512;
+		int mapLength = 4 * blockCount;
+		int dataOffset = blocksOffset +
+			(mapLength + 511) / 512 * 512;
+
+		byte[] ba = new byte[dataOffset];
+		EndianUtils.writeSwappedInteger
+			( ba, 64, (int)VDIHeaders.PreHeader.VDI_IMAGE_SIGNATURE );
+		EndianUtils.writeSwappedInteger( ba, 68, 0x00010001 );
+
+		// cbHeader, then the Header1 fields, relative to 76...
+		EndianUtils.writeSwappedInteger( ba, 72, HEADERSIZE );
+		int h = 76;
+		EndianUtils.writeSwappedInteger
+			( ba, h + 0, VDIDisk.VDI_IMAGE_TYPE_NORMAL );
+		EndianUtils.writeSwappedInteger( ba, h + 264, blocksOffset );
+		EndianUtils.writeSwappedInteger( ba, h + 268, dataOffset );
+		EndianUtils.writeSwappedLong
+			( ba, h + 292, (long)blockCount * BLOCKSIZE );
+		EndianUtils.writeSwappedInteger( ba, h + 300, BLOCKSIZE );
+		EndianUtils.writeSwappedInteger( ba, h + 308, blockCount );
+		EndianUtils.writeSwappedInteger( ba, h + 312, 0 );
+
+		for( int i = 0; i < blockCount; i++ )
+			EndianUtils.writeSwappedInteger
+				( ba, blocksOffset + 4*i, VDIDisk.VDI_IMAGE_BLOCK_FREE );
+
+		RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+		raf.setLength( 0 );
+		raf.write( ba );
+		raf.close();
+		return f;
+	}
+
+	static final int HEADERSIZE = 400;
+
+	static final int BLOCKSIZE = 1024 * 1024;
+}
+
+// eof
@@ -0,0 +1,89 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.virtualbox;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.apache.commons.io.EndianUtils;
+
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for VDIDisk.check, on a clean disk and after corrupting its
+ * block map on disk.
+ */
+public class VDICheckTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		File dir = new File( "target/VDICheckTest" );
+		dir.mkdirs();
+		f = VDIBuilder.build( new File( dir, "check.vdi" ), 8 );
+		VDIDisk d = VDIDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = d.getRandomAccess( true );
+		ra.seek( 0 );
+		ra.write( new byte[] { 1 } );
+		ra.seek( 3L * VDIBuilder.BLOCKSIZE );
+		ra.write( new byte[] { 1 } );
+		ra.close();
+	}
+
+	public void testClean() throws IOException {
+		VDIDisk d = VDIDisk.readFrom( f );
+		List<String> problems = d.check();
+		assertTrue( problems.toString(), problems.isEmpty() );
+	}
+
+	public void testCorrupt() throws IOException {
+		VDIDisk d = VDIDisk.readFrom( f );
+		RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+		byte[] ba = new byte[4];
+		// block 5 -> same data as block 0, block 6 -> beyond eof
+		EndianUtils.writeSwappedInteger( ba, 0, d.getBlockMap()[0] );
+		raf.seek( d.header.blocksOffset() + 4 * 5 );
+		raf.write( ba );
+		EndianUtils.writeSwappedInteger( ba, 0, 1000 );
+		raf.seek( d.header.blocksOffset() + 4 * 6 );
+		raf.write( ba );
+		raf.close();
+
+		List<String> problems = VDIDisk.readFrom( f ).check();
+		assertEquals( problems.toString(), 3, problems.size() );
+		assertTrue( problems.get(0).contains( "duplicate" ) );
+		assertTrue( problems.get(1).contains( "out of range" ) );
+		assertTrue( problems.get(2).contains( "BlocksAllocated" ) );
+	}
+
+	private File f;
+}
+
+// eof
@@ -0,0 +1,129 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.virtualbox;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import edu.uw.apl.vmvols.model.Compactor;
+import edu.uw.apl.vmvols.model.DiskLayout;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+import edu.uw.apl.vmvols.model.Utils;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for VDICompactor, on a NormalDisk whose blocks were written
+ * out of logical order, one of them all zeros.
+ */
+public class VDICompactorTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		File dir = new File( "target/VDICompactorTest" );
+		dir.mkdirs();
+		f = VDIBuilder.build( new File( dir, "compact.vdi" ), 8 );
+		VDIDisk d = VDIDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = d.getRandomAccess( true );
+		write( ra, 6, (byte)6 );
+		// an allocated block of zeros, zero writes alone allocate none
+		write( ra, 4, (byte)4 );
+		write( ra, 4, (byte)0 );
+		write( ra, 2, (byte)2 );
+		write( ra, 1, (byte)1 );
+		ra.close();
+	}
+
+	public void testCompact() throws IOException {
+		VDIDisk before = VDIDisk.readFrom( f );
+		String md5 = md5( before );
+		long len = f.length();
+		assertEquals( 4, new DiskLayout( before ).runs() );
+		
+		Compactor.compact( before );
+
+		VDIDisk after = VDIDisk.readFrom( f );
+		assertEquals( md5, md5( after ) );
+		assertTrue( after.check().toString(), after.check().isEmpty() );
+		DiskLayout dl = new DiskLayout( after );
+		assertEquals( 3, dl.allocatedUnits() );
+		// 1,2 then 6, each after the last in the file
+		assertEquals( 2, dl.runs() );
+		assertEquals( 1, dl.forward(), 0.001 );
+		assertEquals( len - VDIBuilder.BLOCKSIZE, f.length() );
+		assertEquals( VDIDisk.VDI_IMAGE_BLOCK_ZERO, after.getBlockMap()[4] );
+		assertEquals( VDIDisk.VDI_IMAGE_BLOCK_FREE, after.getBlockMap()[0] );
+		assertEquals( 0, after.getBlockMap()[1] );
+		assertEquals( 2, after.getBlockMap()[6] );
+		assertFalse( Compactor.compactFile( f ).exists() );
+	}
+
+	public void testPendingJournal() throws IOException {
+		// block 3 appended, as slot 4, but its entry only journaled
+		VDIDisk d = VDIDisk.readFrom( f );
+		byte[] block = new byte[VDIBuilder.BLOCKSIZE];
+		Arrays.fill( block, (byte)3 );
+		RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+		raf.seek( d.header.dataOffset() + 4L * VDIBuilder.BLOCKSIZE );
+		raf.write( block );
+		raf.close();
+		int[] blockMap = d.getBlockMap().clone();
+		blockMap[3] = 4;
+		BlockMapJournal j = new BlockMapJournal( f );
+		j.write( blockMap, 3, 1, 5 );
+
+		VDIDisk before = VDIDisk.readFrom( f );
+		String md5 = md5( before );
+		Compactor.compact( before );
+		assertFalse( j.getFile().exists() );
+
+		VDIDisk after = VDIDisk.readFrom( f );
+		assertEquals( md5, md5( after ) );
+		assertTrue( after.check().toString(), after.check().isEmpty() );
+		assertEquals( 4 * VDIBuilder.BLOCKSIZE, after.allocatedBytes() );
+	}
+
+	static private void write( RandomAccessVirtualDisk ra, int block, byte b )
+		throws IOException {
+		ra.seek( block * (long)VDIBuilder.BLOCKSIZE + 17 );
+		ra.write( new byte[] { b } );
+	}
+
+	static private String md5( VDIDisk d ) throws IOException {
+		InputStream is = d.getInputStream();
+		String result = Utils.md5sum( is );
+		is.close();
+		return result;
+	}
+	
+	private File f;
+}
+
+// eof
@@ -0,0 +1,99 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for the VirtualDisk allocation api (allocationMap,
+ * hostOffset, allocatedBytes) on monolithic and split sparse vmdks.
+ */
+public class AllocationMapTest extends junit.framework.TestCase {
+
+	protected void setUp() {
+		dir = new File( "target/AllocationMapTest" );
+		dir.mkdirs();
+	}
+
+	public void testMonolithic() throws IOException {
+		File f = SparseDiskBuilder.build( new File( dir, "mono.vmdk" ),
+										  2048, false, null );
+		VirtualDisk vd = VMDKDisk.readFrom( f );
+		assertEquals( 0, vd.allocatedBytes() );
+		long u = vd.allocationUnit();
+		assertEquals( 65536, u );
+		assertEquals( 16, vd.allocationUnits() );
+		
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( true );
+		ra.seek( 3 * u + 10 );
+		ra.write( new byte[] { 1 } );
+		ra.seek( 1 * u );
+		ra.write( new byte[] { 1 } );
+		ra.close();
+
+		vd = VMDKDisk.readFrom( f );
+		BitSet bs = vd.allocationMap();
+		assertEquals( 2, bs.cardinality() );
+		assertTrue( bs.get( 1 ) );
+		assertTrue( bs.get( 3 ) );
+		assertEquals( 2 * u, vd.allocatedBytes() );
+		assertEquals( -1, vd.hostOffset( 0 ) );
+		// grains are appended, in write order
+		assertEquals( vd.hostOffset( 3 ) + u, vd.hostOffset( 1 ) );
+	}
+
+	public void testSplit() throws IOException {
+		File f = SparseDiskBuilder.buildSplit
+			( new File( dir, "split.vmdk" ), new long[] { 1024, 1024 },
+			  null );
+		VirtualDisk vd = VMDKDisk.readFrom( f );
+		long u = vd.allocationUnit();
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( true );
+		ra.seek( 9 * u );
+		ra.write( new byte[] { 1 } );
+		ra.close();
+
+		vd = VMDKDisk.readFrom( f );
+		BitSet bs = vd.allocationMap();
+		assertEquals( 1, bs.cardinality() );
+		assertTrue( bs.get( 9 ) );
+		assertTrue( vd.hostOffset( 9 ) > 0 );
+		assertEquals( -1, vd.hostOffset( 1 ) );
+	}
+
+	private File dir;
+}
+
+// eof
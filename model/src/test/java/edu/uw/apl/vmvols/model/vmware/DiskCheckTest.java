@@ -0,0 +1,120 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.EndianUtils;
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.vmvols.model.Constants;
+import edu.uw.apl.vmvols.model.DiskCheck;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualMachine;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for DiskCheck over a VMware snapshot chain, and for
+ * SparseExtent.check after corrupting a grain table.
+ */
+public class DiskCheckTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/DiskCheckTest" );
+		FileUtils.deleteQuietly( dir );
+		dir.mkdirs();
+		FileUtils.writeStringToFile( new File( dir, "vm.vmx" ), "" );
+		base = SparseDiskBuilder.build( new File( dir, "disk.vmdk" ),
+										2048, true, null );
+		child = SparseDiskBuilder.build
+			( new File( dir, "disk-000001.vmdk" ), 2048, true,
+			  base.getName() );
+		write( base, 0 );
+		write( base, 1 );
+		write( child, 1 );
+	}
+
+	public void testClean() throws IOException {
+		VirtualMachine vm = VirtualMachine.create( dir );
+		List<String> problems = DiskCheck.check( vm );
+		assertTrue( problems.toString(), problems.isEmpty() );
+	}
+
+	public void testDuplicateGrain() throws IOException {
+		// point the primary GTE for grain 1 at grain 0's data
+		SparseExtentHeader h = VMDKDisk.locateSparseExtentHeader( base );
+		RandomAccessFile raf = new RandomAccessFile( base, "rw" );
+		byte[] ba = new byte[8];
+		raf.seek( h.grainDirOffset() * Constants.SECTORLENGTH );
+		raf.readFully( ba, 0, 4 );
+		long gt = EndianUtils.readSwappedUnsignedInteger( ba, 0 );
+		raf.seek( gt * Constants.SECTORLENGTH );
+		raf.readFully( ba );
+		System.arraycopy( ba, 0, ba, 4, 4 );
+		raf.seek( gt * Constants.SECTORLENGTH );
+		raf.write( ba );
+		raf.close();
+
+		VirtualDisk vd = VMDKDisk.readFrom( base );
+		List<String> problems = vd.check();
+		assertEquals( problems.toString(), 2, problems.size() );
+		assertTrue( problems.get(0).contains( "differs from redundant" ) );
+		assertTrue( problems.get(1).contains( "overlaps" ) );
+
+		// and via the chain, the child reporting nothing more
+		VirtualMachine vm = VirtualMachine.create( dir );
+		assertEquals( 2, DiskCheck.check( vm ).size() );
+	}
+
+	public void testLinkage() throws IOException {
+		File other = SparseDiskBuilder.build
+			( new File( dir, "other.vmdk" ), 4096, false, null );
+		List<String> problems = DiskCheck.linkage
+			( VMDKDisk.readFrom( child ), VMDKDisk.readFrom( other ) );
+		assertEquals( 1, problems.size() );
+		assertTrue( problems.get(0).startsWith( "Size" ) );
+	}
+
+	static private void write( File f, int grain ) throws IOException {
+		VirtualDisk vd = VMDKDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( true );
+		ra.seek( grain * vd.allocationUnit() );
+		ra.write( new byte[] { 1 } );
+		ra.close();
+	}
+	
+	private File dir, base, child;
+}
+
+// eof
@@ -0,0 +1,119 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.vmvols.model.DiskLayout;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualMachine;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for DiskLayout, on a two-generation VMware chain whose base
+ * grains were written out of logical order.
+ */
+public class DiskLayoutTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/DiskLayoutTest" );
+		FileUtils.deleteQuietly( dir );
+		dir.mkdirs();
+		FileUtils.writeStringToFile( new File( dir, "vm.vmx" ), "" );
+		File base = SparseDiskBuilder.build( new File( dir, "disk.vmdk" ),
+											 2048, true, null );
+		File child = SparseDiskBuilder.build
+			( new File( dir, "disk-000001.vmdk" ), 2048, true,
+			  base.getName() );
+		// grains 3,2,1 then an all-zero 5
+		write( base, 3, (byte)1 );
+		write( base, 2, (byte)1 );
+		write( base, 1, (byte)1 );
+		write( base, 5, (byte)1 );
+		write( base, 5, (byte)0 );
+		write( child, 2, (byte)1 );
+	}
+
+	public void testBase() throws IOException {
+		VirtualDisk vd = VirtualMachine.create( dir ).getBaseDisks().get(0);
+		DiskLayout dl = new DiskLayout( vd );
+		assertEquals( 4, dl.allocatedUnits() );
+		// 1,2,3 backwards in the file, 5 after a gap
+		assertEquals( 4, dl.runs() );
+		assertEquals( 0.5, dl.forward(), 0.001 );
+		assertEquals( 1, dl.zeroUnits() );
+		assertEquals( 4, dl.seeks() );
+	}
+	
+	public void testChain() throws IOException {
+		VirtualDisk vd = VirtualMachine.create( dir ).getActiveDisks().get(0);
+		DiskLayout dl = new DiskLayout( vd );
+		double[] os = dl.ownership();
+		assertEquals( 3, os.length );
+		assertEquals( 12 / 16.0, os[0], 0.001 );
+		assertEquals( 3 / 16.0, os[1], 0.001 );
+		assertEquals( 1 / 16.0, os[2], 0.001 );
+		assertEquals( 4, dl.seeks() );
+	}
+
+	public void testChildZeroed() throws IOException {
+		// the child hides base grain 3 behind a zero mark (GTE 1)
+		VirtualDisk c = VirtualMachine.create( dir ).getActiveDisks().get(0);
+		RandomAccessVirtualDisk ra = c.getRandomAccess( true );
+		ra.discard( 3 * c.allocationUnit(), c.allocationUnit() );
+		ra.close();
+
+		VirtualDisk vd = VirtualMachine.create( dir ).getActiveDisks().get(0);
+		assertTrue( vd.zeroMap().get( 3 ) );
+		DiskLayout dl = new DiskLayout( vd );
+		double[] os = dl.ownership();
+		assertEquals( 13 / 16.0, os[0], 0.001 );
+		assertEquals( 2 / 16.0, os[1], 0.001 );
+		assertEquals( 1 / 16.0, os[2], 0.001 );
+		// base 1, child 2, base 5
+		assertEquals( 3, dl.seeks() );
+	}
+
+	static private void write( File f, int grain, byte b )
+		throws IOException {
+		VirtualDisk vd = VMDKDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( true );
+		ra.seek( grain * vd.allocationUnit() );
+		ra.write( new byte[] { b } );
+		ra.close();
+	}
+	
+	private File dir;
+}
+
+// eof
@@ -0,0 +1,183 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import edu.uw.apl.vmvols.model.Constants;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for {@link FlatDisk}.  We build the disks ourselves: a
+ * standalone descriptor plus raw extent files, one of which is
+ * accessed at a non-zero offset, one a ZERO extent and one
+ * truncated, i.e. shorter than the descriptor claims.
+ */
+public class FlatDiskTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/FlatDiskTest" );
+		dir.mkdirs();
+		Random r = new Random( 17 );
+
+		// extent 1: 1MB at offset 2 sectors
+		byte[] e1 = new byte[1024 * 1024];
+		r.nextBytes( e1 );
+		byte[] f1 = new byte[2 * (int)Constants.SECTORLENGTH + e1.length];
+		System.arraycopy( e1, 0, f1, 2 * (int)Constants.SECTORLENGTH,
+						  e1.length );
+		FileUtils.writeByteArrayToFile( new File( dir, "split-f001.vmdk" ),
+										f1 );
+
+		// extent 2: 512KB of ZERO
+
+		// extent 3: claims 1MB, only 700000 bytes on disk
+		byte[] e3 = new byte[700000];
+		r.nextBytes( e3 );
+		FileUtils.writeByteArrayToFile( new File( dir, "split-f003.vmdk" ),
+										e3 );
+
+		expected = new byte[e1.length + 512 * 1024 + 1024 * 1024];
+		System.arraycopy( e1, 0, expected, 0, e1.length );
+		System.arraycopy( e3, 0, expected, e1.length + 512 * 1024,
+						  e3.length );
+
+		StringBuilder sb = new StringBuilder();
+		sb.append( "# Disk DescriptorFile\n" );
+		sb.append( "version=1\n" );
+		sb.append( "CID=fffffffc\n" );
+		sb.append( "parentCID=ffffffff\n" );
+		sb.append( "createType=\"twoGbMaxExtentFlat\"\n" );
+		sb.append( "\n# Extent description\n" );
+		sb.append( "RW 2048 FLAT \"split-f001.vmdk\" 2\n" );
+		sb.append( "RW 1024 ZERO\n" );
+		sb.append( "RW 2048 FLAT \"split-f003.vmdk\" 0\n" );
+		descriptor = new File( dir, "split.vmdk" );
+		FileUtils.writeStringToFile( descriptor, sb.toString(),
+									 "ISO-8859-1" );
+	}
+
+	public void testRandomReads() throws IOException {
+		VMDKDisk vd = VMDKDisk.readFrom( descriptor );
+		assertTrue( vd instanceof FlatDisk );
+		assertEquals( expected.length, vd.size() );
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( false );
+		byte[] all = new byte[expected.length];
+		IOUtils.readFully( ra, all );
+		assertTrue( Arrays.equals( expected, all ) );
+
+		Random r = new Random( 19 );
+		for( int i = 0; i < 200; i++ ) {
+			byte[] ba = new byte[1 + r.nextInt( 300 * 1024 )];
+			int posn = r.nextInt( expected.length - ba.length );
+			ra.seek( posn );
+			IOUtils.readFully( ra, ba );
+			assertTrue( Arrays.equals
+						( Arrays.copyOfRange( expected, posn,
+											  posn + ba.length ), ba ) );
+		}
+		ra.close();
+	}
+
+	public void testHostFiles() throws IOException {
+		VMDKDisk vd = VMDKDisk.readFrom( descriptor );
+		List<File> fs = vd.getHostFiles();
+		assertEquals( 3, fs.size() );
+		assertEquals( descriptor, fs.get(0) );
+		assertEquals( "split-f001.vmdk", fs.get(1).getName() );
+		assertEquals( "split-f003.vmdk", fs.get(2).getName() );
+	}
+
+	public void testTransferTo() throws IOException {
+		FlatDisk vd = (FlatDisk)VMDKDisk.readFrom( descriptor );
+		File out = new File( dir, "out.dd" );
+		FileOutputStream fos = new FileOutputStream( out );
+		long n = vd.transferTo( 0, Long.MAX_VALUE, fos.getChannel() );
+		fos.close();
+		assertEquals( expected.length, n );
+		assertTrue( Arrays.equals( expected,
+								   FileUtils.readFileToByteArray( out ) ) );
+	}
+	
+	public void testWrites() throws IOException {
+		VMDKDisk vd = VMDKDisk.readFrom( descriptor );
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( true );
+		Random r = new Random( 23 );
+		for( int i = 0; i < 50; i++ ) {
+			byte[] ba = new byte[1 + r.nextInt( 64 * 1024 )];
+			r.nextBytes( ba );
+			// extent 1 only, the others are ZERO or may grow
+			int posn = r.nextInt( 1024 * 1024 - ba.length );
+			ra.seek( posn );
+			ra.write( ba );
+			System.arraycopy( ba, 0, expected, posn, ba.length );
+		}
+		ra.close();
+
+		// the leading 2 sectors of the extent file are untouched
+		RandomAccessFile raf = new RandomAccessFile
+			( new File( dir, "split-f001.vmdk" ), "r" );
+		assertEquals( 2 * Constants.SECTORLENGTH + 1024 * 1024,
+					  raf.length() );
+		raf.close();
+		
+		vd = VMDKDisk.readFrom( descriptor );
+		ra = vd.getRandomAccess( false );
+		byte[] all = new byte[expected.length];
+		IOUtils.readFully( ra, all );
+		ra.close();
+		assertTrue( Arrays.equals( expected, all ) );
+	}
+
+	public void testReadOnlyWrite() throws IOException {
+		VMDKDisk vd = VMDKDisk.readFrom( descriptor );
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( false );
+		try {
+			ra.write( new byte[] { 1 } );
+			fail( "Write through a read-only handle" );
+		} catch( IOException expected ) {
+		}
+		ra.close();
+	}
+
+	private File dir, descriptor;
+	private byte[] expected;
+}
+
+// eof
@@ -0,0 +1,134 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.vmvols.model.Compactor;
+import edu.uw.apl.vmvols.model.Flattener;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+import edu.uw.apl.vmvols.model.Utils;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualMachine;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for Flattener, on a two-generation VMware chain.  The child
+ * overwrites one base grain with data and another with zeros, the
+ * latter compacted to a GTE of 1 so that only zeroMap says the child
+ * owns it.
+ */
+public class FlattenerTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/FlattenerTest" );
+		FileUtils.deleteQuietly( dir );
+		dir.mkdirs();
+		FileUtils.writeStringToFile( new File( dir, "vm.vmx" ), "" );
+		File base = SparseDiskBuilder.build( new File( dir, "disk.vmdk" ),
+											 2048, true, null );
+		File child = SparseDiskBuilder.build
+			( new File( dir, "disk-000001.vmdk" ), 2048, true,
+			  base.getName() );
+		write( base, 1, (byte)1 );
+		write( base, 2, (byte)2 );
+		write( base, 3, (byte)3 );
+		write( child, 2, (byte)4 );
+		// an allocated grain of zeros, zero writes alone allocate none
+		write( child, 3, (byte)5 );
+		write( child, 3, (byte)0 );
+		Compactor.compact( VMDKDisk.readFrom( child ) );
+		out = new File( "target/FlattenerTest.out/flat.vmdk" );
+		FileUtils.deleteQuietly( out.getParentFile() );
+		out.getParentFile().mkdirs();
+	}
+
+	public void testFlatten() throws IOException {
+		VirtualDisk active = VirtualMachine.create( dir ).getActiveDisks().
+			get(0);
+		assertEquals( 2, active.getGeneration() );
+		assertTrue( active.zeroMap().get( 3 ) );
+		String md5 = md5( active );
+		
+		Flattener.flatten( active, out );
+
+		VMDKDisk flat = VMDKDisk.readFrom( out );
+		assertTrue( flat instanceof FlatDisk );
+		assertEquals( active.size(), flat.size() );
+		assertEquals( md5, md5( flat ) );
+		assertTrue( flat.check().isEmpty() );
+		assertTrue( Flattener.extentFile( out ).isFile() );
+	}
+
+	public void testFlattenBase() throws IOException {
+		VirtualDisk base = VirtualMachine.create( dir ).getBaseDisks().get(0);
+		String md5 = md5( base );
+		Flattener.flatten( base, out );
+		assertEquals( md5, md5( VMDKDisk.readFrom( out ) ) );
+	}
+	
+	public void testCommit() throws IOException {
+		VirtualDisk active = VirtualMachine.create( dir ).getActiveDisks().
+			get(0);
+		String md5 = md5( active );
+
+		Flattener.commit( active );
+
+		VirtualDisk base = VMDKDisk.readFrom( new File( dir, "disk.vmdk" ) );
+		assertEquals( md5, md5( base ) );
+		assertTrue( base.check().toString(), base.check().isEmpty() );
+		// and the child, over the committed parent, reads the same
+		active = VirtualMachine.create( dir ).getActiveDisks().get(0);
+		assertEquals( md5, md5( active ) );
+	}
+
+	static private void write( File f, int grain, byte b )
+		throws IOException {
+		VirtualDisk vd = VMDKDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( true );
+		ra.seek( grain * vd.allocationUnit() + 100 );
+		ra.write( new byte[] { b } );
+		ra.close();
+	}
+
+	static private String md5( VirtualDisk vd ) throws IOException {
+		InputStream is = vd.getInputStream();
+		String result = Utils.md5sum( is );
+		is.close();
+		return result;
+	}
+	
+	private File dir, out;
+}
+
+// eof
@@ -0,0 +1,243 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import edu.uw.apl.vmvols.model.ByteSource;
+import edu.uw.apl.vmvols.model.Constants;
+import edu.uw.apl.vmvols.model.HttpByteSource;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+import edu.uw.apl.vmvols.model.RangeServer;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for {@link OVAArchive}: .vmdks read in place from within a tar
+ * archive, of our own making, must read exactly as the same .vmdks
+ * as standalone files.
+ */
+public class OVAArchiveTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/OVAArchiveTest" );
+		dir.mkdirs();
+		int gs = (int)(SparseExtent.GRAINSIZE_DEFAULT * Constants.SECTORLENGTH);
+		content = new byte[512 * gs];
+		Random r = new Random( 31 );
+		for( int g = 0; g < 512; g++ ) {
+			if( r.nextInt( 4 ) != 0 )
+				continue;
+			for( int i = 0; i < gs; i += 1 + r.nextInt( 64 ) )
+				content[g * gs + i] = (byte)r.nextInt( 256 );
+		}
+		vmdk = StreamOptimizedBuilder.build( new File( dir, "disk1.vmdk" ),
+											 content );
+	}
+
+	public void testIndex() throws IOException {
+		File ova = new File( dir, "index.ova" );
+		byte[] ovf = "<Envelope/>\n".getBytes( "UTF-8" );
+		String longName = "a/very/" + repeat( "long/", 30 ) + "disk1.vmdk";
+		OutputStream os = new FileOutputStream( ova );
+		member( os, "vm.ovf", ovf, false );
+		member( os, longName, FileUtils.readFileToByteArray( vmdk ), true );
+		os.write( new byte[2 * OVAArchive.BLOCKSIZE] );
+		os.close();
+
+		List<OVAArchive.Member> ms = OVAArchive.index( ova );
+		assertEquals( 2, ms.size() );
+		assertEquals( "vm.ovf", ms.get(0).getName() );
+		assertEquals( OVAArchive.BLOCKSIZE, ms.get(0).getOffset() );
+		assertEquals( ovf.length, ms.get(0).getLength() );
+		assertEquals( longName, ms.get(1).getName() );
+		assertEquals( vmdk.length(), ms.get(1).getLength() );
+		// memoized
+		assertSame( ms, OVAArchive.index( ova ) );
+	}
+
+	public void testContent() throws IOException {
+		File ova = new File( dir, "content.ova" );
+		OutputStream os = new FileOutputStream( ova );
+		member( os, "vm.ovf", "<Envelope/>\n".getBytes( "UTF-8" ), false );
+		member( os, "disk1.vmdk", FileUtils.readFileToByteArray( vmdk ),
+				false );
+		os.write( new byte[2 * OVAArchive.BLOCKSIZE] );
+		os.close();
+
+		VirtualDisk vd = VirtualDisk.create( ova );
+		assertTrue( vd instanceof MonolithicStreamOptimizedDisk );
+		assertEquals( ova, vd.getPath() );
+		assertEquals( content.length, vd.size() );
+		assertEquals( 0, vd.check().size() );
+
+		InputStream is = vd.getInputStream();
+		assertTrue( Arrays.equals( content, IOUtils.toByteArray( is ) ) );
+		is.close();
+
+		// random access, offsets shifted by the member's position
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( false );
+		Random r = new Random( 37 );
+		byte[] ba = new byte[100000];
+		for( int i = 0; i < 200; i++ ) {
+			int off = r.nextInt( content.length - ba.length );
+			int len = 1 + r.nextInt( ba.length );
+			ra.seek( off );
+			IOUtils.readFully( ra, ba, 0, len );
+			assertTrue( Arrays.equals
+						( Arrays.copyOfRange( content, off, off + len ),
+						  Arrays.copyOf( ba, len ) ) );
+		}
+		ra.close();
+
+		// host offsets are within the archive
+		VirtualDisk alone = VirtualDisk.create( vmdk );
+		long base = OVAArchive.index( ova ).get(1).getOffset();
+		for( int g = 0; g < 512; g++ ) {
+			long expected = alone.hostOffset( g );
+			assertEquals( expected < 0 ? expected : base + expected,
+						  vd.hostOffset( g ) );
+		}
+	}
+
+	/**
+	 * The same archive, its index and disk all read over HTTP, via a
+	 * ByteSource factory, as if held in an object store
+	 */
+	public void testHttp() throws IOException {
+		File ova = new File( dir, "http.ova" );
+		OutputStream os = new FileOutputStream( ova );
+		member( os, "vm.ovf", "<Envelope/>\n".getBytes( "UTF-8" ), false );
+		member( os, "disk1.vmdk", FileUtils.readFileToByteArray( vmdk ),
+				false );
+		os.write( new byte[2 * OVAArchive.BLOCKSIZE] );
+		os.close();
+
+		RangeServer rs = new RangeServer( dir );
+		ByteSource.Factory prev = ByteSource.getFactory();
+		ByteSource.setFactory( HttpByteSource.factory
+							   ( dir, rs.getURL(), 4096, 1024 * 1024 ) );
+		try {
+			VirtualDisk vd = VirtualDisk.create( ova );
+			InputStream is = vd.getInputStream();
+			assertTrue( Arrays.equals( content, IOUtils.toByteArray( is ) ) );
+			is.close();
+			assertTrue( rs.getRequests() > 0 );
+		} finally {
+			ByteSource.setFactory( prev );
+			rs.stop();
+		}
+	}
+
+	public void testNoDisks() throws IOException {
+		File ova = new File( dir, "empty.ova" );
+		OutputStream os = new FileOutputStream( ova );
+		member( os, "vm.ovf", "<Envelope/>\n".getBytes( "UTF-8" ), false );
+		os.write( new byte[2 * OVAArchive.BLOCKSIZE] );
+		os.close();
+		try {
+			VirtualDisk.create( ova );
+			fail();
+		} catch( IllegalArgumentException iae ) {
+		}
+	}
+
+	/**
+	 * Append a ustar member to os, its name in a GNU 'L' entry if
+	 * gnuLongName, as GNU tar writes names over 100 chars
+	 */
+	static void member( OutputStream os, String name, byte[] data,
+						boolean gnuLongName ) throws IOException {
+		if( gnuLongName ) {
+			byte[] nb = (name + "\0").getBytes( "UTF-8" );
+			os.write( header( "././@LongLink", nb.length, 'L' ) );
+			pad( os, nb );
+			name = name.substring( name.length() - 99 );
+		}
+		os.write( header( name, data.length, '0' ) );
+		pad( os, data );
+	}
+
+	static private void pad( OutputStream os, byte[] data )
+		throws IOException {
+		os.write( data );
+		int rem = data.length % OVAArchive.BLOCKSIZE;
+		if( rem > 0 )
+			os.write( new byte[OVAArchive.BLOCKSIZE - rem] );
+	}
+
+	static private byte[] header( String name, long size, char type )
+		throws IOException {
+		byte[] result = new byte[OVAArchive.BLOCKSIZE];
+		put( result, 0, name );
+		put( result, 100, "0000644" );
+		put( result, 108, "0000000" );
+		put( result, 116, "0000000" );
+		put( result, 124, String.format( "%011o", size ) );
+		put( result, 136, "00000000000" );
+		result[156] = (byte)type;
+		put( result, 257, "ustar" );
+		put( result, 263, "00" );
+		Arrays.fill( result, 148, 156, (byte)' ' );
+		int sum = 0;
+		for( byte b : result )
+			sum += b & 0xff;
+		put( result, 148, String.format( "%06o", sum ) );
+		result[155] = ' ';
+		return result;
+	}
+
+	static private void put( byte[] ba, int off, String s )
+		throws IOException {
+		byte[] sb = s.getBytes( "UTF-8" );
+		System.arraycopy( sb, 0, ba, off, sb.length );
+	}
+
+	static private String repeat( String s, int n ) {
+		StringBuilder sb = new StringBuilder();
+		for( int i = 0; i < n; i++ )
+			sb.append( s );
+		return sb.toString();
+	}
+
+	private File dir, vmdk;
+	private byte[] content;
+}
+
+// eof
@@ -0,0 +1,111 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.vmvols.model.Compactor;
+import edu.uw.apl.vmvols.model.DiskLayout;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+import edu.uw.apl.vmvols.model.Utils;
+import edu.uw.apl.vmvols.model.VirtualDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for SparseCompactor, on a monolithicSparse disk whose grains
+ * were written out of logical order, one of them all zeros.
+ */
+public class SparseCompactorTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		File dir = new File( "target/SparseCompactorTest" );
+		FileUtils.deleteQuietly( dir );
+		dir.mkdirs();
+		f = SparseDiskBuilder.build( new File( dir, "disk.vmdk" ),
+									 2048, true, null );
+		VirtualDisk vd = VMDKDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( true );
+		write( ra, vd, 9, (byte)9 );
+		// an allocated grain of zeros, zero writes alone allocate none
+		write( ra, vd, 5, (byte)5 );
+		write( ra, vd, 5, (byte)0 );
+		write( ra, vd, 3, (byte)3 );
+		write( ra, vd, 1, (byte)1 );
+		ra.close();
+	}
+
+	public void testCompact() throws IOException {
+		VirtualDisk before = VMDKDisk.readFrom( f );
+		String md5 = md5( before );
+		long len = f.length();
+		assertEquals( 4, new DiskLayout( before ).runs() );
+
+		Compactor.compact( before );
+
+		MonolithicSparseDisk after = (MonolithicSparseDisk)
+			VMDKDisk.readFrom( f );
+		assertEquals( md5, md5( after ) );
+		assertTrue( after.check().toString(), after.check().isEmpty() );
+		DiskLayout dl = new DiskLayout( after );
+		assertEquals( 3, dl.allocatedUnits() );
+		// 1,3,9 logically apart, but adjacent in the file
+		assertEquals( 3, dl.runs() );
+		assertEquals( 1, dl.forward(), 0.001 );
+		assertEquals( len - after.allocationUnit(), f.length() );
+		SparseExtentHeader h = after.getExtent().header;
+		assertTrue( (h.flags & SparseExtentHeader.FLAGS_ZEROEDGRAINGTE) != 0 );
+		assertEquals( h.overhead * 512, after.hostOffset( 1 ) );
+		assertEquals( after.hostOffset( 3 ) + after.allocationUnit(),
+					  after.hostOffset( 9 ) );
+		assertEquals( -1, after.hostOffset( 5 ) );
+		assertEquals( 1, after.getExtent().getGrainDirectory()[0][5] );
+		assertEquals( 0, after.getExtent().getGrainDirectory()[0][0] );
+	}
+
+	static private void write( RandomAccessVirtualDisk ra, VirtualDisk vd,
+							   int grain, byte b ) throws IOException {
+		ra.seek( grain * vd.allocationUnit() + 17 );
+		ra.write( new byte[] { b } );
+	}
+
+	static private String md5( VirtualDisk vd ) throws IOException {
+		InputStream is = vd.getInputStream();
+		String result = Utils.md5sum( is );
+		is.close();
+		return result;
+	}
+	
+	private File f;
+}
+
+// eof
@@ -0,0 +1,164 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.EndianUtils;
+
+import edu.uw.apl.vmvols.model.Constants;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Build small, synthetic monolithicSparse .vmdk files, so that write
+ * paths can be tested without needing real VMware-built disks on the
+ * test host.  Layout follows what VMware itself produces: header,
+ * embedded descriptor, redundant grain directory and tables, then
+ * the primary grain directory and tables, all padded to a grain
+ * boundary (the 'overhead').  No grains are allocated.
+ *
+ * If preallocateGrainTables is false, all grain directory entries
+ * are 0, i.e. no grain tables exist at all.
+ */
+class SparseDiskBuilder {
+
+	static File build( File f, long capacitySectors,
+					   boolean preallocateGrainTables,
+					   String parentFileNameHint ) throws IOException {
+
+		long grainSize = SparseExtent.GRAINSIZE_DEFAULT;
+		long gtes = 512;
+		long grains = (capacitySectors + grainSize - 1) / grainSize;
+		int gts = (int)((grains + gtes - 1) / gtes);
+		long gdSectors = (4 * gts + Constants.SECTORLENGTH - 1) /
+			Constants.SECTORLENGTH;
+		long gtSectors = 4 * gtes / Constants.SECTORLENGTH;
+
+		long descriptorOffset = 1;
+		long descriptorSize = 2;
+		long rgdOffset = descriptorOffset + descriptorSize;
+		long rgtOffset = rgdOffset + gdSectors;
+		long gdOffset = rgtOffset + gts * gtSectors;
+		long gtOffset = gdOffset + gdSectors;
+		long end = gtOffset + gts * gtSectors;
+		long overhead = (end + grainSize - 1) / grainSize * grainSize;
+
+		byte[] h = new byte[SparseExtentHeader.SIZEOF];
+		EndianUtils.writeSwappedInteger
+			( h, 0, (int)SparseExtentHeader.MAGICNUMBER );
+		EndianUtils.writeSwappedInteger( h, 4, 1 );
+		EndianUtils.writeSwappedInteger
+			( h, 8, 1 | SparseExtentHeader.FLAGS_USEREDUNDANTGRAINTABLE );
+		EndianUtils.writeSwappedLong( h, 12, capacitySectors );
+		EndianUtils.writeSwappedLong( h, 20, grainSize );
+		EndianUtils.writeSwappedLong( h, 28, descriptorOffset );
+		EndianUtils.writeSwappedLong( h, 36, descriptorSize );
+		EndianUtils.writeSwappedInteger( h, 44, (int)gtes );
+		EndianUtils.writeSwappedLong( h, 48, rgdOffset );
+		EndianUtils.writeSwappedLong( h, 56, gdOffset );
+		EndianUtils.writeSwappedLong( h, 64, overhead );
+		h[73] = '\n';
+		h[74] = ' ';
+		h[75] = '\r';
+		h[76] = '\n';
+
+		StringBuilder sb = new StringBuilder();
+		sb.append( "# Disk DescriptorFile\n" );
+		sb.append( "version=1\n" );
+		sb.append( "CID=fffffffe\n" );
+		// all our monolithic disks share a CID, so any parent's is this
+		sb.append( "parentCID=" + (parentFileNameHint == null ? "ffffffff" :
+								   "fffffffe") + "\n" );
+		sb.append( "createType=\"monolithicSparse\"\n" );
+		if( parentFileNameHint != null )
+			sb.append( "parentFileNameHint=\"" + parentFileNameHint +
+					   "\"\n" );
+		byte[] d = sb.toString().getBytes( "ISO-8859-1" );
+
+		RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+		raf.setLength( 0 );
+		raf.write( h );
+		raf.seek( descriptorOffset * Constants.SECTORLENGTH );
+		raf.write( d );
+		if( preallocateGrainTables ) {
+			writeDirectory( raf, rgdOffset, rgtOffset, gts, gtSectors );
+			writeDirectory( raf, gdOffset, gtOffset, gts, gtSectors );
+		}
+		raf.setLength( overhead * Constants.SECTORLENGTH );
+		raf.close();
+		return f;
+	}
+
+	/**
+	 * Build a twoGbMaxExtentSparse disk, i.e. a standalone descriptor
+	 * file f plus one sparse extent file per entry in extentSectors,
+	 * named as VMware does, f-s001.vmdk etc.
+	 */
+	static File buildSplit( File f, long[] extentSectors,
+							String parentFileNameHint ) throws IOException {
+		String base = f.getName().replaceFirst( "\\.vmdk$", "" );
+		StringBuilder sb = new StringBuilder();
+		sb.append( "# Disk DescriptorFile\n" );
+		sb.append( "version=1\n" );
+		sb.append( "CID=fffffffd\n" );
+		sb.append( "parentCID=ffffffff\n" );
+		sb.append( "createType=\"twoGbMaxExtentSparse\"\n" );
+		if( parentFileNameHint != null )
+			sb.append( "parentFileNameHint=\"" + parentFileNameHint +
+					   "\"\n" );
+		sb.append( "\n# Extent description\n" );
+		for( int i = 0; i < extentSectors.length; i++ ) {
+			String name = String.format( "%s-s%03d.vmdk", base, i+1 );
+			build( new File( f.getParentFile(), name ), extentSectors[i],
+				   false, null );
+			sb.append( "RW " + extentSectors[i] + " SPARSE \"" + name +
+					   "\"\n" );
+		}
+		RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+		raf.setLength( 0 );
+		raf.write( sb.toString().getBytes( "ISO-8859-1" ) );
+		raf.close();
+		return f;
+	}
+	
+	static private void writeDirectory( RandomAccessFile raf, long gdOffset,
+										long gtOffset, int gts,
+										long gtSectors ) throws IOException {
+		byte[] gd = new byte[4*gts];
+		for( int i = 0; i < gts; i++ )
+			EndianUtils.writeSwappedInteger
+				( gd, 4*i, (int)(gtOffset + i * gtSectors) );
+		raf.seek( gdOffset * Constants.SECTORLENGTH );
+		raf.write( gd );
+	}
+}
+
+// eof
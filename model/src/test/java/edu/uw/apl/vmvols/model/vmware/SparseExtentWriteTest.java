@@ -0,0 +1,338 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.EndianUtils;
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.vmvols.model.Allocations;
+import edu.uw.apl.vmvols.model.Constants;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for writes to monolithicSparse disks, via {@link
+ * SparseExtent}.  We build our own small disks (see {@link
+ * SparseDiskBuilder}), write random data at random offsets through
+ * RandomAccessVirtualDisk and read it all back, via a fresh
+ * VMDKDisk, i.e. from the grain tables as flushed to disk.
+ */
+public class SparseExtentWriteTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/SparseExtentWriteTest" );
+		dir.mkdirs();
+	}
+
+	public void testPreallocatedGrainTables() throws IOException {
+		File f = SparseDiskBuilder.build( new File( dir, "prealloc.vmdk" ),
+										  CAPACITY, true, null );
+		testWrites( f );
+	}
+
+	public void testLazyGrainTables() throws IOException {
+		File f = SparseDiskBuilder.build( new File( dir, "lazy.vmdk" ),
+										  CAPACITY, false, null );
+		testWrites( f );
+		testRedundantDirectory( f );
+	}
+
+	public void testChildFillsFromParent() throws IOException {
+		File pf = SparseDiskBuilder.build( new File( dir, "parent.vmdk" ),
+										   CAPACITY, true, null );
+		byte[] expected = new byte[(int)(CAPACITY * Constants.SECTORLENGTH)];
+		new Random( 7 ).nextBytes( expected );
+		VMDKDisk parent = VMDKDisk.readFrom( pf );
+		RandomAccessVirtualDisk ra = parent.getRandomAccess( true );
+		ra.write( expected );
+		ra.close();
+
+		File cf = SparseDiskBuilder.build( new File( dir, "child.vmdk" ),
+										   CAPACITY, false,
+										   pf.getPath() );
+		VMDKDisk child = VMDKDisk.readFrom( cf );
+		parent = VMDKDisk.readFrom( pf );
+		child.setParent( parent );
+		parent.setChild( child );
+
+		// Partial grain writes, so rest of each grain from parent
+		Random r = new Random( 11 );
+		ra = child.getRandomAccess( true );
+		for( int i = 0; i < 50; i++ ) {
+			int offset = r.nextInt( expected.length - 4096 );
+			byte[] ba = new byte[1 + r.nextInt( 4096 )];
+			r.nextBytes( ba );
+			ra.seek( offset );
+			ra.write( ba );
+			System.arraycopy( ba, 0, expected, offset, ba.length );
+		}
+		ra.close();
+
+		child = VMDKDisk.readFrom( cf );
+		parent = VMDKDisk.readFrom( pf );
+		child.setParent( parent );
+		parent.setChild( child );
+		assertTrue( Arrays.equals( expected, readAll( child ) ) );
+	}
+
+	public void testZeroWrites() throws IOException {
+		File pf = SparseDiskBuilder.build( new File( dir, "zparent.vmdk" ),
+										   CAPACITY, false, null );
+		byte[] expected = new byte[(int)(CAPACITY * Constants.SECTORLENGTH)];
+		VMDKDisk parent = VMDKDisk.readFrom( pf );
+		int gs = (int)parent.allocationUnit();
+		RandomAccessVirtualDisk ra = parent.getRandomAccess( true );
+		ra.write( expected );
+		assertEquals( 0, parent.allocatedBytes() );
+		new Random( 5 ).nextBytes( expected );
+		ra.seek( 0 );
+		ra.write( expected );
+		ra.close();
+
+		File cf = SparseDiskBuilder.build( new File( dir, "zchild.vmdk" ),
+										   CAPACITY, false, pf.getPath() );
+		VMDKDisk child = VMDKDisk.readFrom( cf );
+		parent = VMDKDisk.readFrom( pf );
+		child.setParent( parent );
+		parent.setChild( child );
+		ra = child.getRandomAccess( true );
+		// whole grains of zeros hide the parent's, via GTE 1...
+		ra.seek( 2 * gs );
+		ra.write( new byte[3 * gs] );
+		Arrays.fill( expected, 2 * gs, 5 * gs, (byte)0 );
+		// ...a partial grain has to merge with the parent's
+		ra.seek( 8 * gs + 10 );
+		ra.write( new byte[10] );
+		Arrays.fill( expected, 8 * gs + 10, 8 * gs + 20, (byte)0 );
+		ra.close();
+
+		child = VMDKDisk.readFrom( cf );
+		parent = VMDKDisk.readFrom( pf );
+		child.setParent( parent );
+		parent.setChild( child );
+		assertTrue( Arrays.equals( expected, readAll( child ) ) );
+		assertEquals( gs, child.allocatedBytes() );
+		assertEquals( 3, child.zeroMap().cardinality() );
+		SparseExtentHeader h = new SparseExtentHeader
+			( Arrays.copyOf( FileUtils.readFileToByteArray( cf ),
+							 SparseExtentHeader.SIZEOF ) );
+		assertTrue( (h.flags() & SparseExtentHeader.FLAGS_ZEROEDGRAINGTE)
+					!= 0 );
+
+		// releasing zeroed grains of the parent itself
+		parent.setReleaseZeros( true );
+		ra = parent.getRandomAccess( true );
+		ra.seek( gs );
+		ra.write( new byte[gs] );
+		ra.close();
+		parent = VMDKDisk.readFrom( pf );
+		assertTrue( parent.zeroMap().get( 1 ) );
+		assertFalse( parent.allocationMap().get( 1 ) );
+		assertTrue( parent.check().toString(), parent.check().isEmpty() );
+	}
+	
+	public void testDiscard() throws IOException {
+		File pf = SparseDiskBuilder.build( new File( dir, "dparent.vmdk" ),
+										   CAPACITY, true, null );
+		byte[] expected = new byte[(int)(CAPACITY * Constants.SECTORLENGTH)];
+		new Random( 17 ).nextBytes( expected );
+		VMDKDisk parent = VMDKDisk.readFrom( pf );
+		int gs = (int)parent.allocationUnit();
+		RandomAccessVirtualDisk ra = parent.getRandomAccess( true );
+		ra.write( expected );
+		long full = pf.length();
+		// grains 1,2 and part of 3, then the final 2 grains
+		ra.discard( gs, 2 * gs + 100 );
+		Arrays.fill( expected, gs, 3 * gs + 100, (byte)0 );
+		ra.discard( expected.length - 2 * gs, 2 * gs );
+		Arrays.fill( expected, expected.length - 2 * gs, expected.length,
+					 (byte)0 );
+		ra.close();
+		parent = VMDKDisk.readFrom( pf );
+		assertTrue( Arrays.equals( expected, readAll( parent ) ) );
+		assertEquals( full - 2 * gs, pf.length() );
+		assertFalse( parent.allocationMap().get( 1 ) );
+		assertTrue( parent.check().toString(), parent.check().isEmpty() );
+
+		// a child must hide what its parent holds, so GTE 1
+		File cf = SparseDiskBuilder.build( new File( dir, "dchild.vmdk" ),
+										   CAPACITY, false, pf.getPath() );
+		VMDKDisk child = VMDKDisk.readFrom( cf );
+		child.setParent( parent );
+		parent.setChild( child );
+		ra = child.getRandomAccess( true );
+		ra.discard( 4 * gs, gs );
+		ra.close();
+		Arrays.fill( expected, 4 * gs, 5 * gs, (byte)0 );
+		child = VMDKDisk.readFrom( cf );
+		parent = VMDKDisk.readFrom( pf );
+		child.setParent( parent );
+		parent.setChild( child );
+		assertTrue( Arrays.equals( expected, readAll( child ) ) );
+		assertTrue( child.zeroMap().get( 4 ) );
+		assertEquals( 0, child.allocatedBytes() );
+	}
+	
+	public void testRandomReads() throws IOException {
+		File f = SparseDiskBuilder.build( new File( dir, "random.vmdk" ),
+										  CAPACITY, true, null );
+		byte[] expected = new byte[(int)(CAPACITY * Constants.SECTORLENGTH)];
+		new Random( 19 ).nextBytes( expected );
+		VMDKDisk vd = VMDKDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( true );
+		ra.write( expected );
+		ra.setReadMinimum( 512 );
+		Random r = new Random( 23 );
+		for( int i = 0; i < 1100; i++ ) {
+			// and some reads spanning many, contiguous, units
+			int len = 1 + r.nextInt( i < 1000 ? 8192 : 3 * (int)vd.allocationUnit() );
+			int offset = r.nextInt( expected.length - len );
+			// writes into a partially read grain keep it coherent
+			if( i % 10 == 0 ) {
+				byte[] ba = new byte[len];
+				r.nextBytes( ba );
+				System.arraycopy( ba, 0, expected, offset, len );
+				// buffered single byte reads see writes too
+				ra.seek( offset );
+				ra.read();
+				ra.seek( offset );
+				ra.write( ba );
+				ra.seek( offset );
+				assertEquals( ba[0] & 0xff, ra.read() );
+			}
+			byte[] actual = new byte[len];
+			ra.seek( offset );
+			int n = 0;
+			while( n < len )
+				n += ra.read( actual, n, len - n );
+			assertTrue( "" + offset + " " + len, Arrays.equals
+						( Arrays.copyOfRange( expected, offset, offset + len ),
+						  actual ) );
+		}
+		ra.close();
+		assertTrue( Arrays.equals( expected, readAll( vd ) ) );
+	}
+
+	public void testReadsAllocateNothing() throws IOException {
+		File f = SparseDiskBuilder.build( new File( dir, "alloc.vmdk" ),
+										  CAPACITY, false, null );
+		byte[] ba = new byte[(int)(CAPACITY * Constants.SECTORLENGTH / 2)];
+		new Random( 41 ).nextBytes( ba );
+		VMDKDisk vd = VMDKDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( true );
+		ra.write( ba );
+		ra.close();
+		vd = VMDKDisk.readFrom( f );
+		ra = vd.getRandomAccess( false );
+		long allocated = Allocations.readLoop( ra, vd.size() );
+		ra.close();
+		assertTrue( "" + allocated, allocated < Allocations.SLACK );
+	}
+
+	private void testWrites( File f ) throws IOException {
+		byte[] expected = new byte[(int)(CAPACITY * Constants.SECTORLENGTH)];
+		Random r = new Random( 3 );
+		VMDKDisk vd = VMDKDisk.readFrom( f );
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( true );
+		for( int i = 0; i < 200; i++ ) {
+			int offset = r.nextInt( expected.length );
+			byte[] ba = new byte[r.nextInt( 200 * 1024 )];
+			r.nextBytes( ba );
+			ra.seek( offset );
+			ra.write( ba );
+			int n = Math.min( ba.length, expected.length - offset );
+			System.arraycopy( ba, 0, expected, offset, n );
+
+			// And read back through the same handle
+			byte[] ba2 = new byte[n];
+			ra.seek( offset );
+			ra.read( ba2 );
+			assertTrue( Arrays.equals( Arrays.copyOf( ba, n ), ba2 ) );
+		}
+		ra.close();
+
+		vd = VMDKDisk.readFrom( f );
+		assertTrue( Arrays.equals( expected, readAll( vd ) ) );
+	}
+
+	// Both directories, and their grain tables, should now be identical
+	private void testRedundantDirectory( File f ) throws IOException {
+		SparseExtentHeader seh = VMDKDisk.locateSparseExtentHeader( f );
+		RandomAccessFile raf = new RandomAccessFile( f, "r" );
+		int gts = (int)((CAPACITY / seh.grainSize + seh.numGTEsPerGT - 1) /
+						seh.numGTEsPerGT);
+		byte[] gt1 = new byte[(int)(4 * seh.numGTEsPerGT)];
+		byte[] gt2 = new byte[gt1.length];
+		for( int i = 0; i < gts; i++ ) {
+			long gde1 = readGDE( raf, seh.gdOffset, i );
+			long gde2 = readGDE( raf, seh.rgdOffset, i );
+			assertTrue( gde1 != 0 && gde2 != 0 && gde1 != gde2 );
+			raf.seek( gde1 * Constants.SECTORLENGTH );
+			raf.readFully( gt1 );
+			raf.seek( gde2 * Constants.SECTORLENGTH );
+			raf.readFully( gt2 );
+			assertTrue( Arrays.equals( gt1, gt2 ) );
+		}
+		raf.close();
+	}
+
+	private long readGDE( RandomAccessFile raf, long gdOffset, int i )
+		throws IOException {
+		byte[] ba = new byte[4];
+		raf.seek( gdOffset * Constants.SECTORLENGTH + 4 * i );
+		raf.readFully( ba );
+		return EndianUtils.readSwappedUnsignedInteger( ba, 0 );
+	}
+	
+	private byte[] readAll( VMDKDisk vd ) throws IOException {
+		byte[] result = new byte[(int)vd.size()];
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( false );
+		int total = 0;
+		while( total < result.length ) {
+			int nin = ra.read( result, total,
+							   Math.min( 100000, result.length - total ) );
+			total += nin;
+		}
+		ra.close();
+		return result;
+	}
+
+	private File dir;
+
+	// 40MB, so spans 2 grain tables
+	static private final long CAPACITY = 40 * 1024 * 2;
+}
+
+// eof
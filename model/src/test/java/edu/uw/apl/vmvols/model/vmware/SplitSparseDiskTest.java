@@ -0,0 +1,144 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+
+import edu.uw.apl.vmvols.model.Constants;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for {@link SplitSparseDisk}, on disks built by {@link
+ * SparseDiskBuilder}.  Reads and writes deliberately span extent
+ * boundaries.
+ */
+public class SplitSparseDiskTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/SplitSparseDiskTest" );
+		dir.mkdirs();
+	}
+
+	public void testExtentIndex() throws IOException {
+		File f = SparseDiskBuilder.buildSplit
+			( new File( dir, "index.vmdk" ), EXTENTS, null );
+		SplitSparseDisk d = (SplitSparseDisk)VMDKDisk.readFrom( f );
+		assertEquals( 3, d.descriptor.getExtents().size() );
+		long e0 = EXTENTS[0] * Constants.SECTORLENGTH;
+		long e1 = EXTENTS[1] * Constants.SECTORLENGTH;
+		assertEquals( (e0 + e1 + EXTENTS[2] * Constants.SECTORLENGTH),
+					  d.size() );
+		assertEquals( 0, d.extentIndex( 0 ) );
+		assertEquals( 0, d.extentIndex( e0 - 1 ) );
+		assertEquals( 1, d.extentIndex( e0 ) );
+		assertEquals( 1, d.extentIndex( e0 + e1 - 1 ) );
+		assertEquals( 2, d.extentIndex( e0 + e1 ) );
+		assertEquals( 2, d.extentIndex( d.size() - 1 ) );
+	}
+	
+	public void testWriteRead() throws IOException {
+		File f = SparseDiskBuilder.buildSplit
+			( new File( dir, "split.vmdk" ), EXTENTS, null );
+		VMDKDisk vd = VMDKDisk.readFrom( f );
+		byte[] expected = new byte[(int)vd.size()];
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( true );
+		writeRandom( ra, expected, 3 );
+		ra.close();
+
+		vd = VMDKDisk.readFrom( f );
+		assertTrue( Arrays.equals( expected, readAll( vd ) ) );
+	}
+
+	/**
+	 * A split child of a split parent, with different extent sizes,
+	 * so that child extents straddle parent extents.  The
+	 * parentFileNameHint is relative, as VMware writes it.
+	 */
+	public void testParentChain() throws IOException {
+		File pf = SparseDiskBuilder.buildSplit
+			( new File( dir, "parent.vmdk" ), EXTENTS, null );
+		VMDKDisk parent = VMDKDisk.readFrom( pf );
+		byte[] expected = new byte[(int)parent.size()];
+		new Random( 7 ).nextBytes( expected );
+		RandomAccessVirtualDisk ra = parent.getRandomAccess( true );
+		ra.write( expected );
+		ra.close();
+
+		long[] childExtents = { 6656, 6656 };
+		File cf = SparseDiskBuilder.buildSplit
+			( new File( dir, "child.vmdk" ), childExtents, pf.getName() );
+		VMDKDisk child = VMDKDisk.readFrom( cf );
+		parent = VMDKDisk.readFrom( pf );
+		child.setParent( parent );
+		parent.setChild( child );
+		ra = child.getRandomAccess( true );
+		writeRandom( ra, expected, 11 );
+		ra.close();
+
+		child = VMDKDisk.readFrom( cf );
+		parent = VMDKDisk.readFrom( pf );
+		child.setParent( parent );
+		parent.setChild( child );
+		assertTrue( Arrays.equals( expected, readAll( child ) ) );
+	}
+	
+	private void writeRandom( RandomAccessVirtualDisk ra, byte[] expected,
+							  long seed ) throws IOException {
+		Random r = new Random( seed );
+		for( int i = 0; i < 50; i++ ) {
+			byte[] ba = new byte[1 + r.nextInt( 300 * 1024 )];
+			r.nextBytes( ba );
+			int offset = r.nextInt( expected.length - ba.length );
+			ra.seek( offset );
+			ra.write( ba );
+			System.arraycopy( ba, 0, expected, offset, ba.length );
+		}
+	}
+	
+	private byte[] readAll( VMDKDisk vd ) throws IOException {
+		byte[] result = new byte[(int)vd.size()];
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( false );
+		IOUtils.readFully( ra, result );
+		ra.close();
+		return result;
+	}
+
+	private File dir;
+
+	// 2MB, 2MB, 2.5MB, not all a whole number of grain tables
+	static private final long[] EXTENTS = { 4096, 4096, 5120 };
+}
+
+// eof
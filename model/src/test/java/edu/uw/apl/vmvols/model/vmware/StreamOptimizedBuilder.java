@@ -0,0 +1,194 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.Deflater;
+
+import org.apache.commons.io.EndianUtils;
+
+import edu.uw.apl.vmvols.model.Constants;
+import edu.uw.apl.vmvols.model.Utils;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Build small, synthetic streamOptimized .vmdk files holding given
+ * content, as VMware/ovftool would: header with the 'gd at end'
+ * sentinel, embedded descriptor, then each non-zero grain deflated
+ * behind its grain marker, then the grain tables, grain directory,
+ * footer and end-of-stream marker, each behind its metadata marker.
+ * All-zero grains are not stored.
+ *
+ * The capacity must cover whole grain tables, as our reader expects.
+ */
+class StreamOptimizedBuilder {
+
+	static File build( File f, byte[] content ) throws IOException {
+		long grainSize = SparseExtent.GRAINSIZE_DEFAULT;
+		int gtes = (int)SparseExtent.NUMGTESPERGT;
+		int grainBytes = (int)(grainSize * Constants.SECTORLENGTH);
+		long capacitySectors = content.length / Constants.SECTORLENGTH;
+		int grains = content.length / grainBytes;
+		int gts = grains / gtes;
+		if( (long)gts * gtes * grainBytes != content.length )
+			throw new IllegalArgumentException( "Partial grain table" );
+
+		long descriptorOffset = 1;
+		long descriptorSize = 1;
+		long overhead = descriptorOffset + descriptorSize;
+
+		StringBuilder sb = new StringBuilder();
+		sb.append( "# Disk DescriptorFile\n" );
+		sb.append( "version=1\n" );
+		sb.append( "CID=fffffffc\n" );
+		sb.append( "parentCID=ffffffff\n" );
+		sb.append( "createType=\"streamOptimized\"\n" );
+		byte[] d = sb.toString().getBytes( "ISO-8859-1" );
+
+		RandomAccessFile raf = new RandomAccessFile( f, "rw" );
+		raf.setLength( 0 );
+		raf.write( header( capacitySectors, grainSize, descriptorOffset,
+						   descriptorSize, gtes, GD_AT_END, overhead ) );
+		raf.seek( descriptorOffset * Constants.SECTORLENGTH );
+		raf.write( d );
+
+		long sector = overhead;
+		long[] gt = new long[grains];
+		byte[] out = new byte[2 * grainBytes];
+		for( int g = 0; g < grains; g++ ) {
+			if( Utils.isZero( content, g * grainBytes, grainBytes ) )
+				continue;
+			Deflater def = new Deflater();
+			def.setInput( content, g * grainBytes, grainBytes );
+			def.finish();
+			int n = def.deflate( out );
+			def.end();
+			byte[] gm = new byte[StreamOptimizedSparseExtent.GrainMarker.
+								 SIZEOF];
+			EndianUtils.writeSwappedLong( gm, 0, g * grainSize );
+			EndianUtils.writeSwappedInteger( gm, 8, n );
+			raf.seek( sector * Constants.SECTORLENGTH );
+			raf.write( gm );
+			raf.write( out, 0, n );
+			gt[g] = sector;
+			sector += sectors( gm.length + n );
+		}
+
+		long gtSectors = sectors( 4 * gtes );
+		long[] gd = new long[gts];
+		for( int i = 0; i < gts; i++ ) {
+			sector = marker( raf, sector, gtSectors,
+							 StreamOptimizedSparseExtent.MetadataMarker.
+							 TYPE_GT );
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			for( int j = 0; j < gtes; j++ )
+				EndianUtils.writeSwappedInteger( bos, (int)gt[i * gtes + j] );
+			raf.seek( sector * Constants.SECTORLENGTH );
+			raf.write( bos.toByteArray() );
+			gd[i] = sector;
+			sector += gtSectors;
+		}
+
+		long gdSectors = sectors( 4 * gts );
+		sector = marker( raf, sector, gdSectors,
+						 StreamOptimizedSparseExtent.MetadataMarker.TYPE_GD );
+		long gdOffset = sector;
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for( int i = 0; i < gts; i++ )
+			EndianUtils.writeSwappedInteger( bos, (int)gd[i] );
+		raf.seek( sector * Constants.SECTORLENGTH );
+		raf.write( bos.toByteArray() );
+		sector += gdSectors;
+
+		sector = marker( raf, sector, 1,
+						 StreamOptimizedSparseExtent.MetadataMarker.
+						 TYPE_FOOTER );
+		raf.seek( sector * Constants.SECTORLENGTH );
+		raf.write( header( capacitySectors, grainSize, descriptorOffset,
+						   descriptorSize, gtes, gdOffset, overhead ) );
+		sector++;
+		sector = marker( raf, sector, 0,
+						 StreamOptimizedSparseExtent.MetadataMarker.TYPE_EOS );
+		raf.setLength( sector * Constants.SECTORLENGTH );
+		raf.close();
+		return f;
+	}
+
+	static private byte[] header( long capacitySectors, long grainSize,
+								  long descriptorOffset, long descriptorSize,
+								  int gtes, long gdOffset, long overhead ) {
+		byte[] h = new byte[Constants.SECTORLENGTH];
+		EndianUtils.writeSwappedInteger
+			( h, 0, (int)SparseExtentHeader.MAGICNUMBER );
+		EndianUtils.writeSwappedInteger( h, 4, 3 );
+		EndianUtils.writeSwappedInteger
+			( h, 8, 1 | SparseExtentHeader.FLAGS_COMPRESSEDGRAINS |
+			  SparseExtentHeader.FLAGS_HASGRAINMARKERS );
+		EndianUtils.writeSwappedLong( h, 12, capacitySectors );
+		EndianUtils.writeSwappedLong( h, 20, grainSize );
+		EndianUtils.writeSwappedLong( h, 28, descriptorOffset );
+		EndianUtils.writeSwappedLong( h, 36, descriptorSize );
+		EndianUtils.writeSwappedInteger( h, 44, gtes );
+		EndianUtils.writeSwappedLong( h, 56, gdOffset );
+		EndianUtils.writeSwappedLong( h, 64, overhead );
+		h[73] = '\n';
+		h[74] = ' ';
+		h[75] = '\r';
+		h[76] = '\n';
+		EndianUtils.writeSwappedShort( h, 77, (short)1 );
+		return h;
+	}
+
+	/**
+	 * Write a metadata marker, of the given type and describing
+	 * numSectors of metadata, in the sector at 'sector', returning
+	 * the sector which follows it.
+	 */
+	static private long marker( RandomAccessFile raf, long sector,
+								long numSectors, int type )
+		throws IOException {
+		byte[] m = new byte[StreamOptimizedSparseExtent.MetadataMarker.SIZEOF];
+		EndianUtils.writeSwappedLong( m, 0, numSectors );
+		EndianUtils.writeSwappedInteger( m, 12, type );
+		raf.seek( sector * Constants.SECTORLENGTH );
+		raf.write( m );
+		return sector + 1;
+	}
+
+	static private long sectors( long bytes ) {
+		return (bytes + Constants.SECTORLENGTH - 1) / Constants.SECTORLENGTH;
+	}
+
+	static final long GD_AT_END = -1;
+}
+
+// eof
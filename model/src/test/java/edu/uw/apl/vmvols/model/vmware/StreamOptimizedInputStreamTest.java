@@ -0,0 +1,170 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import edu.uw.apl.vmvols.model.Constants;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for {@link StreamOptimizedInputStream}, decoding disks of our
+ * own making (see {@link StreamOptimizedBuilder}) from plain,
+ * unseekable, InputStreams.
+ */
+public class StreamOptimizedInputStreamTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/StreamOptimizedInputStreamTest" );
+		dir.mkdirs();
+		gs = (int)(SparseExtent.GRAINSIZE_DEFAULT * Constants.SECTORLENGTH);
+	}
+
+	public void testContent() throws IOException {
+		byte[] expected = new byte[2 * 512 * gs];
+		Random r = new Random( 47 );
+		// first and last grains, a run, and scattered single grains
+		for( int g = 0; g < 1024; g++ ) {
+			if( g == 0 || g == 1023 || ( g > 100 && g < 200 ) ||
+				r.nextInt( 16 ) == 0 ) {
+				for( int i = 0; i < gs; i += 1 + r.nextInt( 16 ) )
+					expected[g * gs + i] = (byte)r.nextInt( 256 );
+			}
+		}
+		File f = StreamOptimizedBuilder.build
+			( new File( dir, "content.vmdk" ), expected );
+		InputStream is = new StreamOptimizedInputStream
+			( new BufferedInputStream( new FileInputStream( f ) ) );
+		assertEquals( expected.length,
+					  ((StreamOptimizedInputStream)is).size() );
+		byte[] actual = new byte[expected.length];
+		// odd-sized reads, straddling grains and gaps
+		int total = 0;
+		while( total < actual.length ) {
+			int n = is.read( actual, total,
+							 Math.min( 12345, actual.length - total ) );
+			assertTrue( n > 0 );
+			total += n;
+		}
+		assertEquals( -1, is.read() );
+		is.close();
+		assertTrue( Arrays.equals( expected, actual ) );
+
+		// and the same as the seekable reader sees
+		VMDKDisk vd = VMDKDisk.readFrom( f );
+		InputStream vis = vd.getInputStream();
+		is = new StreamOptimizedInputStream( new FileInputStream( f ) );
+		assertTrue( IOUtils.contentEquals( vis, is ) );
+		vis.close();
+		is.close();
+	}
+
+	public void testEmpty() throws IOException {
+		byte[] expected = new byte[512 * gs];
+		File f = StreamOptimizedBuilder.build
+			( new File( dir, "empty.vmdk" ), expected );
+		InputStream is = new StreamOptimizedInputStream
+			( new FileInputStream( f ) );
+		byte[] actual = IOUtils.toByteArray( is );
+		is.close();
+		assertTrue( Arrays.equals( expected, actual ) );
+	}
+
+	/**
+	 * Abandoning a stream part read must not leave its decoder
+	 * blocked, holding the source open.
+	 */
+	public void testClosePartRead() throws Exception {
+		byte[] expected = new byte[512 * gs];
+		new Random( 53 ).nextBytes( expected );
+		File f = StreamOptimizedBuilder.build
+			( new File( dir, "partial.vmdk" ), expected );
+		int before = Thread.activeCount();
+		for( int i = 0; i < 10; i++ ) {
+			InputStream is = new StreamOptimizedInputStream
+				( new FileInputStream( f ) );
+			byte[] ba = new byte[1000];
+			IOUtils.readFully( is, ba );
+			assertTrue( Arrays.equals
+						( Arrays.copyOfRange( expected, 0, ba.length ), ba ) );
+			is.close();
+		}
+		Thread.sleep( 500 );
+		assertTrue( Thread.activeCount() <= before + 1 );
+	}
+
+	/**
+	 * A stream cut off before its end-of-stream marker, even at a
+	 * marker boundary, is an error, not a disk of trailing zeros.
+	 */
+	public void testTruncated() throws IOException {
+		byte[] expected = new byte[512 * gs];
+		new Random( 59 ).nextBytes( expected );
+		File f = StreamOptimizedBuilder.build
+			( new File( dir, "truncated.vmdk" ), expected );
+		byte[] whole = FileUtils.readFileToByteArray( f );
+		// drop just the end-of-stream marker, the file's last sector
+		int cut = whole.length - Constants.SECTORLENGTH;
+		InputStream is = new StreamOptimizedInputStream
+			( new ByteArrayInputStream( whole, 0, cut ) );
+		try {
+			IOUtils.toByteArray( is );
+			fail();
+		} catch( EOFException eof ) {
+		} finally {
+			is.close();
+		}
+	}
+
+	public void testNotStreamOptimized() throws IOException {
+		File f = SparseDiskBuilder.build( new File( dir, "sparse.vmdk" ),
+										  1024, false, null );
+		try {
+			new StreamOptimizedInputStream( new FileInputStream( f ) );
+			fail();
+		} catch( VMDKException e ) {
+		}
+	}
+
+	private File dir;
+	private int gs;
+}
+
+// eof
@@ -30,16 +30,116 @@ package edu.uw.apl.vmvols.model.vmware;
 import java.io.File;
 import java.io.InputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.commons.io.FileUtils;
 
+import edu.uw.apl.vmvols.model.Allocations;
+import edu.uw.apl.vmvols.model.Constants;
+import edu.uw.apl.vmvols.model.RandomAccessVirtualDisk;
+
 public class StreamOptimizedSparseExtentTest extends junit.framework.TestCase {
 	
 	protected void setUp() {
 	}
 
+	/**
+	 * Read back a disk of our own making (see {@link
+	 * StreamOptimizedBuilder}), in reads covering whole grains, parts
+	 * of grains and both.
+	 */
+	public void testSynthetic() throws IOException {
+		File dir = new File( "target/StreamOptimizedSparseExtentTest" );
+		dir.mkdirs();
+		int gs = (int)(SparseExtent.GRAINSIZE_DEFAULT *
+					   Constants.SECTORLENGTH);
+		byte[] expected = new byte[2 * 512 * gs];
+		Random r = new Random( 29 );
+		// compressible, but not trivially so
+		for( int i = 0; i < 100 * gs; i++ )
+			expected[i] = (byte)r.nextInt( 4 );
+		for( int i = 600 * gs; i < 700 * gs + 1234; i++ )
+			expected[i] = (byte)r.nextInt( 4 );
+		File f = StreamOptimizedBuilder.build
+			( new File( dir, "synthetic.vmdk" ), expected );
+		VMDKDisk vd = VMDKDisk.readFrom( f );
+		assertTrue( vd instanceof MonolithicStreamOptimizedDisk );
+		assertTrue( vd.check().toString(), vd.check().isEmpty() );
+		assertEquals( 201, vd.allocationMap().cardinality() );
+
+		RandomAccessVirtualDisk ra = vd.getRandomAccess( false );
+		byte[] actual = new byte[expected.length];
+		for( int i = 0; i < actual.length; i += 100000 ) {
+			int n = Math.min( 100000, actual.length - i );
+			assertEquals( n, ra.read( actual, i, n ) );
+		}
+		assertTrue( Arrays.equals( expected, actual ) );
+		for( int i = 0; i < 200; i++ ) {
+			int len = 1 + r.nextInt( 3 * gs );
+			int offset = r.nextInt( expected.length - len );
+			byte[] ba = new byte[len];
+			ra.seek( offset );
+			assertEquals( len, ra.read( ba ) );
+			assertTrue( Arrays.equals
+						( Arrays.copyOfRange( expected, offset, offset + len ),
+						  ba ) );
+		}
+		ra.close();
+
+		ra = vd.getRandomAccess( false );
+		long allocated = Allocations.readLoop( ra, vd.size() );
+		ra.close();
+		assertTrue( "" + allocated, allocated < Allocations.SLACK );
+	}
+
+	/**
+	 * Each grain's span, all a single read of it fetches, must hold
+	 * its marker and compressed data, and no more than the sector
+	 * padding which follows.
+	 */
+	public void testGrainSpans() throws IOException {
+		File dir = new File( "target/StreamOptimizedSparseExtentTest" );
+		dir.mkdirs();
+		int gs = (int)(SparseExtent.GRAINSIZE_DEFAULT *
+					   Constants.SECTORLENGTH);
+		byte[] content = new byte[512 * gs];
+		Random r = new Random( 43 );
+		for( int g = 0; g < 512; g += 1 + r.nextInt( 8 ) )
+			for( int i = 0; i < gs; i += 1 + r.nextInt( 64 ) )
+				content[g * gs + i] = (byte)r.nextInt( 256 );
+		File f = StreamOptimizedBuilder.build
+			( new File( dir, "spans.vmdk" ), content );
+		SparseExtentHeader seh = VMDKDisk.locateSparseExtentHeader( f );
+		StreamOptimizedSparseExtent sose = new StreamOptimizedSparseExtent
+			( f, seh );
+		sose.readMetaData();
+		long[][] gd = sose.getGrainDirectory();
+		int[][] spans = sose.getGrainSpans();
+		RandomAccessFile raf = new RandomAccessFile( f, "r" );
+		byte[] gm = new byte[StreamOptimizedSparseExtent.GrainMarker.SIZEOF];
+		int held = 0;
+		for( int g = 0; g < gd[0].length; g++ ) {
+			long gte = gd[0][g];
+			if( gte == 0 ) {
+				assertEquals( 0, spans[0][g] );
+				continue;
+			}
+			held++;
+			raf.seek( gte * Constants.SECTORLENGTH );
+			raf.readFully( gm );
+			int need = gm.length +
+				StreamOptimizedSparseExtent.GrainMarker.size( gm, 0 );
+			assertTrue( spans[0][g] >= need );
+			assertTrue( spans[0][g] - need < Constants.SECTORLENGTH );
+		}
+		raf.close();
+		assertEquals( sose.allocationMap().cardinality(), held );
+	}
+
 	public void testPackerPlaypen() throws Exception {
 		File dir = new File( "/home/stuart/playpen/packer/ovfs" );
 		if( !dir.isDirectory() )
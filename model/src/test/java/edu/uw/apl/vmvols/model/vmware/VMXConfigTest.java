@@ -0,0 +1,129 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualMachine;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for {@link VMXConfig} and config-driven VMwareVM discovery.
+ * The .vmx lists two disks, out of unit order, one of them with a
+ * snapshot, plus a cdrom image.  A stray disk file lies about too.
+ */
+public class VMXConfigTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/VMXConfigTest" );
+		FileUtils.deleteQuietly( dir );
+		dir.mkdirs();
+		File a = SparseDiskBuilder.build( new File( dir, "a.vmdk" ),
+										  2048, false, null );
+		SparseDiskBuilder.build( new File( dir, "a-000001.vmdk" ),
+								 2048, false, a.getName() );
+		SparseDiskBuilder.build( new File( dir, "b.vmdk" ),
+								 2048, false, null );
+		SparseDiskBuilder.build( new File( dir, "stray.vmdk" ),
+								 2048, false, null );
+		FileUtils.writeStringToFile
+			( new File( dir, "vm.vmx" ),
+			  ".encoding = \"UTF-8\"\n" +
+			  "scsi0.present = \"TRUE\"\n" +
+			  "scsi0:1.present = \"TRUE\"\n" +
+			  "scsi0:1.fileName = \"b.vmdk\"\n" +
+			  "scsi0:0.present = \"TRUE\"\n" +
+			  "scsi0:0.fileName = \"a-000001.vmdk\"\n" +
+			  "scsi0:2.present = \"FALSE\"\n" +
+			  "scsi0:2.fileName = \"stray.vmdk\"\n" +
+			  "ide1:0.present = \"TRUE\"\n" +
+			  "ide1:0.deviceType = \"cdrom-image\"\n" +
+			  "ide1:0.fileName = \"install.iso\"\n" );
+	}
+
+	public void testConfig() throws IOException {
+		VMXConfig c = new VMXConfig( new File( dir, "vm.vmx" ) );
+		List<File> fs = c.getDisks();
+		assertEquals( 2, fs.size() );
+		assertEquals( "a-000001.vmdk", fs.get(0).getName() );
+		assertEquals( "b.vmdk", fs.get(1).getName() );
+	}
+
+	public void testFromConfig() throws IOException {
+		VirtualMachine vm = VirtualMachine.create( dir, true );
+		List<VirtualDisk> active = vm.getActiveDisks();
+		assertEquals( 2, active.size() );
+		assertEquals( "a-000001.vmdk", active.get(0).getPath().getName() );
+		assertEquals( 2, active.get(0).getGeneration() );
+		assertEquals( "a.vmdk",
+					  active.get(0).getBase().getPath().getName() );
+		assertEquals( "b.vmdk", active.get(1).getPath().getName() );
+
+		// whereas the directory walk finds the stray disk too
+		vm = VirtualMachine.create( dir );
+		assertEquals( 3, vm.getActiveDisks().size() );
+	}
+
+	public void testCyclicChain() throws IOException {
+		File cyc = new File( "target/VMXConfigTest-cycle" );
+		FileUtils.deleteQuietly( cyc );
+		cyc.mkdirs();
+		SparseDiskBuilder.build( new File( cyc, "self.vmdk" ),
+								 2048, false, "self.vmdk" );
+		SparseDiskBuilder.build( new File( cyc, "c.vmdk" ),
+								 2048, false, "c-000001.vmdk" );
+		SparseDiskBuilder.build( new File( cyc, "c-000001.vmdk" ),
+								 2048, false, "c.vmdk" );
+		SparseDiskBuilder.build( new File( cyc, "b.vmdk" ),
+								 2048, false, null );
+		FileUtils.writeStringToFile
+			( new File( cyc, "vm.vmx" ),
+			  "scsi0.present = \"TRUE\"\n" +
+			  "scsi0:0.present = \"TRUE\"\n" +
+			  "scsi0:0.fileName = \"self.vmdk\"\n" +
+			  "scsi0:1.present = \"TRUE\"\n" +
+			  "scsi0:1.fileName = \"c-000001.vmdk\"\n" +
+			  "scsi0:2.present = \"TRUE\"\n" +
+			  "scsi0:2.fileName = \"b.vmdk\"\n" );
+		// must terminate, with the looping chains skipped
+		VirtualMachine vm = VirtualMachine.create( cyc, true );
+		List<VirtualDisk> active = vm.getActiveDisks();
+		assertEquals( 1, active.size() );
+		assertEquals( "b.vmdk", active.get(0).getPath().getName() );
+	}
+
+	private File dir;
+}
+
+// eof
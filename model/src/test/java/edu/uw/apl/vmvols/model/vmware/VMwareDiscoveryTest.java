@@ -0,0 +1,109 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualMachine;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for parallel, memoized VM discovery, see {@link
+ * edu.uw.apl.vmvols.model.DiskProbe} and {@link
+ * edu.uw.apl.vmvols.model.HeaderCache}.  We build a small tree of
+ * VMware VM directories, each a .vmx plus disks from {@link
+ * SparseDiskBuilder}.
+ */
+public class VMwareDiscoveryTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		root = new File( "target/VMwareDiscoveryTest" );
+		FileUtils.deleteQuietly( root );
+		dirs = new ArrayList<File>();
+		for( int v = 0; v < VMS; v++ ) {
+			File dir = new File( root, "vm" + v );
+			dir.mkdirs();
+			FileUtils.writeStringToFile( new File( dir, "vm" + v + ".vmx" ),
+										 "" );
+			for( int d = 0; d < 3; d++ ) {
+				File f = new File( dir, "disk" + d + ".vmdk" );
+				SparseDiskBuilder.build( f, 2048, false, null );
+				SparseDiskBuilder.build
+					( new File( dir, "disk" + d + "-000001.vmdk" ),
+					  2048, false, f.getName() );
+			}
+			dirs.add( dir );
+		}
+		// not a VM dir at all, skipped
+		File other = new File( root, "other" );
+		other.mkdirs();
+		dirs.add( other );
+	}
+
+	public void testCreateAll() throws IOException {
+		List<VirtualMachine> vms = VirtualMachine.createAll( dirs );
+		assertEquals( VMS, vms.size() );
+		for( int v = 0; v < VMS; v++ ) {
+			VirtualMachine vm = vms.get(v);
+			assertEquals( "vm" + v, vm.getName() );
+			assertEquals( 3, vm.getBaseDisks().size() );
+			for( VirtualDisk vd : vm.getActiveDisks() ) {
+				assertEquals( 2, vd.getGeneration() );
+				assertTrue( vd.getPath().getName().endsWith
+							( "-000001.vmdk" ) );
+			}
+		}
+	}
+
+	public void testProbeMemoized() throws IOException {
+		File f = new File( dirs.get(0), "disk0.vmdk" );
+		VMDKDisk.Probe p1 = VMDKDisk.probe( f );
+		assertSame( p1, VMDKDisk.probe( f ) );
+
+		// any change to the file invalidates
+		assertTrue( f.setLastModified( f.lastModified() - 10000 ) );
+		VMDKDisk.Probe p2 = VMDKDisk.probe( f );
+		assertNotSame( p1, p2 );
+		assertEquals( "monolithicSparse",
+					  p2.descriptor.getCreateType() );
+	}
+
+	private File root;
+	private List<File> dirs;
+
+	static private final int VMS = 20;
+}
+
+// eof
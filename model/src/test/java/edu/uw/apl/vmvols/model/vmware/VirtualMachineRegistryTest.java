@@ -0,0 +1,132 @@
+/**
+ * Copyright © 2015, University of Washington
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the University of Washington nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT
+ * LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR
+ * A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE UNIVERSITY
+ * OF WASHINGTON BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.uw.apl.vmvols.model.vmware;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+
+import edu.uw.apl.vmvols.model.VirtualDisk;
+import edu.uw.apl.vmvols.model.VirtualMachineRegistry;
+
+/**
+ * @author Stuart Maclean
+ *
+ * Tests for {@link VirtualMachineRegistry}, via VirtualDisk.create.
+ * Our VM has a base disk in the VM dir and snapshots in a
+ * sub-directory, as VMware and VirtualBox both may lay them out.
+ */
+public class VirtualMachineRegistryTest extends junit.framework.TestCase {
+
+	protected void setUp() throws IOException {
+		dir = new File( "target/VirtualMachineRegistryTest/vm" );
+		FileUtils.deleteQuietly( dir );
+		File snaps = new File( dir, "Snapshots" );
+		snaps.mkdirs();
+		FileUtils.writeStringToFile( new File( dir, "vm.vmx" ), "" );
+		base = SparseDiskBuilder.build( new File( dir, "disk.vmdk" ),
+										2048, false, null );
+		snap1 = SparseDiskBuilder.build
+			( new File( snaps, "disk-000001.vmdk" ), 2048, false,
+			  base.getAbsolutePath() );
+		VirtualMachineRegistry.clear();
+	}
+
+	public void testLookups() throws IOException {
+		VirtualDisk vd = VirtualDisk.create( snap1 );
+		assertEquals( 2, vd.getGeneration() );
+		assertSame( vd, VirtualDisk.create( snap1 ) );
+		assertSame( vd, VirtualDisk.create( base, VirtualDisk.ACTIVE ) );
+		assertSame( vd.getBase(), VirtualDisk.create( base ) );
+		assertSame( vd.getVirtualMachine(),
+					VirtualMachineRegistry.get( dir ) );
+		assertEquals( "vm", vd.getVirtualMachine().getName() );
+	}
+
+	public void testNewSnapshotSeen() throws IOException {
+		VirtualDisk vd = VirtualDisk.create( base, VirtualDisk.ACTIVE );
+		assertEquals( snap1.getName(), vd.getPath().getName() );
+
+		File snaps = snap1.getParentFile();
+		File snap2 = SparseDiskBuilder.build
+			( new File( snaps, "disk-000002.vmdk" ), 2048, false,
+			  snap1.getAbsolutePath() );
+		// beat any coarse mtime granularity
+		snaps.setLastModified( snaps.lastModified() + 2000 );
+		vd = VirtualDisk.create( base, VirtualDisk.ACTIVE );
+		assertEquals( snap2.getName(), vd.getPath().getName() );
+		assertEquals( 3, VirtualDisk.create( snap2 ).getGeneration() );
+	}
+
+	public void testDiskWriteSeen() throws IOException {
+		VirtualDisk vd = VirtualDisk.create( snap1 );
+		File dirs = snap1.getParentFile();
+		long dirModified = dirs.lastModified();
+		// a write into the disk file, as by a running VM, is no
+		// directory change, yet the disk's metadata may be stale
+		snap1.setLastModified( snap1.lastModified() + 2000 );
+		dirs.setLastModified( dirModified );
+		VirtualDisk vd2 = VirtualDisk.create( snap1 );
+		assertNotSame( vd, vd2 );
+		assertSame( vd2, VirtualDisk.create( snap1 ) );
+	}
+
+	public void testStandalone() throws IOException {
+		File other = new File( "target/VirtualMachineRegistryTest/other" );
+		other.mkdirs();
+		File f = SparseDiskBuilder.build( new File( other, "lone.vmdk" ),
+										  2048, false, null );
+		VirtualDisk vd = VirtualDisk.create( f );
+		assertEquals( "lone.vmdk", vd.getVirtualMachine().getName() );
+		assertNull( VirtualMachineRegistry.get( other ) );
+	}
+	
+	public void testEviction() throws IOException {
+		// snap1's lookup visits Snapshots/ then the VM dir, two entries
+		VirtualMachineRegistry.setCapacity( 2 );
+		try {
+			VirtualDisk vd = VirtualDisk.create( snap1 );
+			assertSame( vd, VirtualDisk.create( snap1 ) );
+			for( int i = 0; i < 2; i++ ) {
+				File other = new File( "target/VirtualMachineRegistryTest/" +
+									   "empty" + i );
+				other.mkdirs();
+				assertNull( VirtualMachineRegistry.get( other ) );
+			}
+			assertNotSame( vd, VirtualDisk.create( snap1 ) );
+		} finally {
+			VirtualMachineRegistry.setCapacity
+				( VirtualMachineRegistry.CAPACITY_DEFAULT );
+		}
+	}
+	
+	private File dir, base, snap1;
+}
+
+// eof